@@ -0,0 +1,47 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.logging.LogManager;
+
+/**
+ * This class groups the helpers shared by the benchmarks.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class BenchmarkSupport {
+    
+    /**
+     * Starts a handler. The logging is turned off, since the connection 
+     * churn of some benchmarks would flood the output.
+     * 
+     * @param portNumber the port to listen to.
+     * @param mode       the connection serving mode.
+     * @return the running handler.
+     * @throws IOException if the handler cannot bind its port.
+     */
+    static MessageQueueHandler startHandler(int portNumber,
+                                            MessageQueueHandler.Mode mode) 
+            throws IOException {
+        LogManager.getLogManager().reset();
+        MessageQueueHandler handler = new MessageQueueHandler(portNumber, mode);
+        handler.setDaemon(true);
+        handler.start();
+        return handler;
+    }
+    
+    /**
+     * Returns a port no one listens to at the moment.
+     * 
+     * @return the port number.
+     * @throws IOException if no port can be bound.
+     */
+    static int findFreePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+    
+    private BenchmarkSupport() {}
+}
@@ -0,0 +1,84 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of connecting a client: a bare TCP connection as the 
+ * baseline, and a connection followed by the handshake and the close frame.
+ * The sockets are reset upon closing, so that the client ports do not pile
+ * up in the {@code TIME_WAIT} state.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HandshakeBenchmark {
+    
+    @Param({"BLOCKING", "NON_BLOCKING"})
+    public MessageQueueHandler.Mode mode;
+    
+    private MessageQueueHandler handler;
+    
+    private int portNumber;
+    
+    private ByteBuffer closeFrame;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        portNumber = BenchmarkSupport.findFreePort();
+        handler = BenchmarkSupport.startHandler(portNumber, mode);
+        closeFrame = Frame.encodeEmpty(MagicConstants.FRAME_TYPE_CLOSE);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        handler.requestHalt();
+    }
+    
+    @Benchmark
+    public void connect() throws IOException {
+        try (Socket socket = openSocket()) {
+            socket.getOutputStream().flush();
+        }
+    }
+    
+    @Benchmark
+    public void handshake() throws IOException {
+        try (Socket socket = openSocket()) {
+            Utilities.handshake(socket, 
+                                MagicConstants.PRODUCER_STRING, 
+                                "benchmark");
+            socket.getOutputStream().write(closeFrame.array(), 
+                                           0, 
+                                           closeFrame.limit());
+        }
+    }
+    
+    private Socket openSocket() throws IOException {
+        Socket socket = new Socket("localhost", portNumber);
+        socket.setTcpNoDelay(true);
+        socket.setSoLinger(true, 0);
+        return socket;
+    }
+}
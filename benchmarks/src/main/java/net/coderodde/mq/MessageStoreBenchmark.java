@@ -0,0 +1,165 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+/**
+ * Measures the in-process enqueue/dequeue throughput of a 
+ * {@link MessageQueue} over each of the storage engines the handler may 
+ * choose, without any networking.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageStoreBenchmark {
+    
+    /**
+     * The number of messages moved by a single batch operation.
+     */
+    private static final int BATCH_SIZE = 64;
+    
+    /**
+     * Bounds the queue in the concurrent benchmark, so that the producers 
+     * cannot outrun the consumers without limit.
+     */
+    private static final int MAX_MESSAGES = 64 * 1024;
+    
+    @Param({"HEAP", "OFF_HEAP", "RING_BUFFER", "DURABLE"})
+    public MessageQueueConfiguration.StorageType storageType;
+    
+    @Param({"64", "1024"})
+    public int payloadBytes;
+    
+    private MessageQueue queue;
+    
+    private Path dataDirectory;
+    
+    private byte[] message;
+    
+    private List<byte[]> batch;
+    
+    private List<byte[]> drainedBatch;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        MessageQueueConfiguration configuration = 
+                new MessageQueueConfiguration();
+        configuration.setMaxMessages(MAX_MESSAGES);
+        configuration.setStorageType(storageType);
+        queue = new MessageQueue("benchmark", 
+                                 configuration, 
+                                 new MemoryBudget(), 
+                                 createMessageStore(configuration));
+        message = new byte[payloadBytes];
+        batch = Collections.nCopies(BATCH_SIZE, message);
+        drainedBatch = new ArrayList<>(BATCH_SIZE);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        queue.close();
+        
+        if (dataDirectory != null) {
+            try (Stream<Path> paths = Files.walk(dataDirectory)) {
+                paths.sorted(Comparator.reverseOrder())
+                     .forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+    
+    /**
+     * A single message in and out.
+     */
+    @Benchmark
+    public byte[] offerPoll() {
+        queue.offer(message);
+        return queue.poll();
+    }
+    
+    /**
+     * A batch in and out, as the handler moves the messages of a frame.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int offerAllDrainTo() {
+        queue.offerAll(batch, 0);
+        drainedBatch.clear();
+        return queue.drainTo(drainedBatch, BATCH_SIZE, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Two producer threads transferring messages to two consumer threads.
+     */
+    @Benchmark
+    @Group("transfer")
+    @GroupThreads(2)
+    public void transferOffer(Control control) {
+        while (queue.offer(message) != MessageQueue.OfferResult.ACCEPTED &&
+               !control.stopMeasurement) {
+            Thread.yield();
+        }
+    }
+    
+    @Benchmark
+    @Group("transfer")
+    @GroupThreads(2)
+    public byte[] transferPoll(Control control) {
+        byte[] polledMessage;
+        
+        while ((polledMessage = queue.poll()) == null && 
+               !control.stopMeasurement) {
+            Thread.yield();
+        }
+        
+        return polledMessage;
+    }
+    
+    private MessageStore createMessageStore(
+            MessageQueueConfiguration configuration) throws IOException {
+        switch (storageType) {
+            case OFF_HEAP:
+                return new SlabMessageStore(configuration.getSlabBytes());
+                
+            case RING_BUFFER:
+                return new RingBufferMessageStore(
+                        configuration.getRingBufferCapacity());
+                
+            case DURABLE:
+                dataDirectory = Files.createTempDirectory("rodde.mq-bench");
+                return new DurableMessageStore(dataDirectory, configuration);
+                
+            default:
+                return new HeapMessageStore();
+        }
+    }
+}
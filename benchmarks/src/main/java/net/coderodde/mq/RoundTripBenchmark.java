@@ -0,0 +1,146 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Measures the latency of a message going from 
+ * {@link MessageQueueProducer#produce(byte[])} through the handler to 
+ * {@link MessageQueueConsumer#consume()} over the loopback interface. Each
+ * benchmark thread owns a producer and a consumer of a queue of its own, so 
+ * the thread count is the number of concurrent producer/consumer pairs; it
+ * may be changed with the {@code -t} option as well.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+    
+    /**
+     * The number of messages produced in one frame by the batch benchmark.
+     */
+    private static final int BATCH_SIZE = 100;
+    
+    /**
+     * The handler shared by all the benchmark threads.
+     */
+    @State(Scope.Benchmark)
+    public static class Broker {
+        
+        @Param({"BLOCKING", "NON_BLOCKING"})
+        public MessageQueueHandler.Mode mode;
+        
+        private MessageQueueHandler handler;
+        
+        private int portNumber;
+        
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            portNumber = BenchmarkSupport.findFreePort();
+            handler = BenchmarkSupport.startHandler(portNumber, mode);
+        }
+        
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            handler.requestHalt();
+        }
+    }
+    
+    /**
+     * The producer/consumer pair of a single benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Client {
+        
+        @Param({"16", "1024", "65536"})
+        public int payloadBytes;
+        
+        private MessageQueueProducer producer;
+        
+        private MessageQueueConsumer consumer;
+        
+        private byte[] message;
+        
+        private List<byte[]> batch;
+        
+        @Setup(Level.Trial)
+        public void setUp(Broker broker, ThreadParams threadParams) 
+                throws IOException {
+            String messageQueueName = 
+                    "round-trip-" + threadParams.getThreadIndex();
+            consumer = new MessageQueueConsumer(messageQueueName, 
+                                                "localhost", 
+                                                broker.portNumber);
+            producer = new MessageQueueProducer(messageQueueName, 
+                                                "localhost", 
+                                                broker.portNumber);
+            message = new byte[payloadBytes];
+            batch = new ArrayList<>(BATCH_SIZE);
+            
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                batch.add(message);
+            }
+        }
+        
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            producer.close();
+            consumer.close();
+        }
+    }
+    
+    @Benchmark
+    @Threads(1)
+    public byte[] roundTrip(Client client) throws IOException {
+        client.producer.produce(client.message);
+        return client.consumer.consume();
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public byte[] roundTripFourPairs(Client client) throws IOException {
+        client.producer.produce(client.message);
+        return client.consumer.consume();
+    }
+    
+    /**
+     * A batch of messages produced in a single frame and consumed one by one.
+     * Reports the time per message.
+     */
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int batchRoundTrip(Client client) throws IOException {
+        client.producer.produce(client.batch);
+        int consumedMessages = 0;
+        
+        while (consumedMessages < BATCH_SIZE) {
+            consumedMessages += client.consumer.consume(BATCH_SIZE).size();
+        }
+        
+        return consumedMessages;
+    }
+}
@@ -0,0 +1,478 @@
+package net.coderodde.mq;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class implements the connection of an asynchronous client over an
+ * {@link AsynchronousSocketChannel}. Nothing here blocks: the handshake and
+ * the writes complete futures, and the received frames are handed to a
+ * {@link FrameHandler} from the threads of the channel group. The writes are
+ * queued, since a channel accepts a single outstanding write at a time, and
+ * a single read is outstanding at a time, so that the frames are handled
+ * one after another.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class AsyncConnection {
+    
+    /**
+     * This interface defines the receiver of the frames of a connection.
+     */
+    interface FrameHandler {
+        
+        /**
+         * Handles a received frame. The body of the frame shares the read
+         * buffer, and so must be consumed before returning.
+         * 
+         * @param frame the frame.
+         * @throws IOException if the frame is malformed or unexpected.
+         */
+        void onFrame(Frame frame) throws IOException;
+        
+        /**
+         * Called once when the connection is closed.
+         * 
+         * @param cause the failure closing the connection, or {@code null}
+         *              if it was closed by this side.
+         */
+        void onClosed(Throwable cause);
+    }
+    
+    /**
+     * The channel connected to the handler.
+     */
+    private final AsynchronousSocketChannel channel;
+    
+    /**
+     * Guards the write queue.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    
+    /**
+     * Holds the buffers not yet written, the head being written now.
+     */
+    private final Queue<ByteBuffer> pendingBuffers = new ArrayDeque<>();
+    
+    /**
+     * Holds the futures of the pending buffers.
+     */
+    private final Queue<CompletableFuture<Void>> pendingFutures =
+            new ArrayDeque<>();
+    
+    /**
+     * Continues the write of the head buffer, and then of the next ones.
+     */
+    private final CompletionHandler<Integer, Void> writeHandler =
+            new WriteHandler();
+    
+    /**
+     * Set once this connection is closed.
+     */
+    private final AtomicBoolean closed = new AtomicBoolean();
+    
+    /**
+     * Set once the close frame is queued. The handler closes its side upon
+     * reading the frame, which is then no failure.
+     */
+    private volatile boolean closing;
+    
+    /**
+     * The reason this connection failed, or {@code null}.
+     */
+    private IOException failure;
+    
+    /**
+     * Accumulates the bytes not yet parsed. Kept in write mode between the
+     * reads. Grows whenever a frame does not fit in it.
+     */
+    private ByteBuffer readBuffer =
+            ByteBuffer.allocate(MagicConstants.DEFAULT_READ_BUFFER_CAPACITY);
+    
+    /**
+     * Receives the frames once the reading is started.
+     */
+    private FrameHandler frameHandler;
+    
+    /**
+     * The codec chosen in the handshake, or {@code null}.
+     */
+    private CompressionCodec compressionCodec;
+    
+    private AsyncConnection(AsynchronousSocketChannel channel) {
+        this.channel = channel;
+    }
+    
+    /**
+     * Connects to the handler and performs the handshake. The host name is
+     * resolved by the calling thread.
+     * 
+     * @param hostName         the host of the handler.
+     * @param portNumber       the port of the handler.
+     * @param roleName         the role of the client.
+     * @param messageQueueName the name of the queue.
+     * @param channelGroup     the group whose threads complete the I/O, or
+     *                         {@code null} for the default group.
+     * @return the future completed with the connection once the handshake is
+     *         done.
+     */
+    static CompletableFuture<AsyncConnection> connect(
+            String hostName,
+            int portNumber,
+            String roleName,
+            String messageQueueName,
+            AsynchronousChannelGroup channelGroup) {
+        byte[] handshakeBytes =
+                Utilities.encodeHandshake(roleName, messageQueueName);
+        CompletableFuture<Void> connected = new CompletableFuture<>();
+        AsyncConnection connection;
+        
+        try {
+            AsynchronousSocketChannel channel =
+                    AsynchronousSocketChannel.open(channelGroup);
+            // Small frames must not wait for the delayed acknowledgements:
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            connection = new AsyncConnection(channel);
+            channel.connect(new InetSocketAddress(hostName, portNumber),
+                            null,
+                            new CompletionHandler<Void, Void>() {
+                
+                @Override
+                public void completed(Void result, Void attachment) {
+                    connected.complete(null);
+                }
+                
+                @Override
+                public void failed(Throwable ex, Void attachment) {
+                    connected.completeExceptionally(ex);
+                }
+            });
+        } catch (IOException ex) {
+            connected.completeExceptionally(ex);
+            return connected.thenApply(v -> null);
+        }
+        
+        CompletableFuture<AsyncConnection> handshaken =
+                connected.thenCompose(
+                                v -> connection.write(
+                                        ByteBuffer.wrap(handshakeBytes)))
+                         .thenCompose(v -> connection.readByte())
+                         .thenCompose(connection::completeHandshake)
+                         .thenApply(v -> connection);
+        handshaken.whenComplete((result, ex) -> {
+            if (ex != null) {
+                connection.close();
+            }
+        });
+        
+        return handshaken;
+    }
+    
+    /**
+     * Starts reading the frames.
+     * 
+     * @param frameHandler the receiver of the frames.
+     */
+    void startReading(FrameHandler frameHandler) {
+        this.frameHandler = frameHandler;
+        channel.read(readBuffer, null, new ReadHandler());
+    }
+    
+    CompressionCodec getCompressionCodec() {
+        return compressionCodec;
+    }
+    
+    /**
+     * Queues the buffer for writing.
+     * 
+     * @param buffer the buffer in read mode.
+     * @return the future completed once the buffer is written in its
+     *         entirety.
+     */
+    CompletableFuture<Void> write(ByteBuffer buffer) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        boolean idle;
+        writeLock.lock();
+        
+        try {
+            if (failure != null || closed.get()) {
+                future.completeExceptionally(
+                        failure != null ?
+                                failure :
+                                new IOException("The connection is closed."));
+                return future;
+            }
+            
+            idle = pendingBuffers.isEmpty();
+            pendingBuffers.add(buffer);
+            pendingFutures.add(future);
+        } finally {
+            writeLock.unlock();
+        }
+        
+        if (idle) {
+            channel.write(buffer, null, writeHandler);
+        }
+        
+        return future;
+    }
+    
+    /**
+     * Closes the connection once the buffers queued so far are written.
+     * 
+     * @param buffer the last buffer to write.
+     * @return the future completed once the connection is closed.
+     */
+    CompletableFuture<Void> writeAndClose(ByteBuffer buffer) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        closing = true;
+        write(buffer).whenComplete((result, ex) -> {
+            close();
+            
+            if (ex != null) {
+                future.completeExceptionally(ex);
+            } else {
+                future.complete(null);
+            }
+        });
+        
+        return future;
+    }
+    
+    /**
+     * Closes the connection right away.
+     */
+    void close() {
+        fail(null);
+    }
+    
+    /**
+     * Closes the connection, fails the pending writes and tells the frame
+     * handler. Only the first call has an effect. Once the close frame is 
+     * queued, the handler closing its side ends the connection normally: the
+     * handler read all the pending buffers, even if their writes are not 
+     * noticed as completed yet.
+     * 
+     * @param cause the failure, or {@code null} if closed by this side.
+     */
+    private void fail(Throwable cause) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        
+        boolean closedByHandler = 
+                closing && 
+                (cause instanceof EOFException || 
+                 cause instanceof ClosedChannelException);
+        
+        if (closedByHandler) {
+            cause = null;
+        }
+        
+        IOException writeFailure =
+                cause instanceof IOException ?
+                        (IOException) cause :
+                        new IOException("The connection is closed.", cause);
+        CompletableFuture<?>[] futures;
+        writeLock.lock();
+        
+        try {
+            failure = writeFailure;
+            futures = pendingFutures.toArray(new CompletableFuture<?>[0]);
+            pendingBuffers.clear();
+            pendingFutures.clear();
+        } finally {
+            writeLock.unlock();
+        }
+        
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Nothing to do with it.
+        }
+        
+        for (CompletableFuture<?> future : futures) {
+            if (closedByHandler) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(writeFailure);
+            }
+        }
+        
+        if (frameHandler != null) {
+            frameHandler.onClosed(cause);
+        }
+    }
+    
+    private CompletableFuture<Integer> readByte() {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        channel.read(buffer, null, new CompletionHandler<Integer, Void>() {
+            
+            @Override
+            public void completed(Integer byteCount, Void attachment) {
+                if (byteCount == -1) {
+                    future.completeExceptionally(
+                            new EOFException(
+                                    "The handler closed the connection."));
+                } else if (byteCount == 0) {
+                    channel.read(buffer, null, this);
+                } else {
+                    future.complete(buffer.get(0) & 0xff);
+                }
+            }
+            
+            @Override
+            public void failed(Throwable ex, Void attachment) {
+                future.completeExceptionally(ex);
+            }
+        });
+        
+        return future;
+    }
+    
+    /**
+     * Checks the protocol version confirmed by the handler, and negotiates
+     * the codec if the version calls for it.
+     */
+    private CompletableFuture<Void> completeHandshake(int protocolVersion) {
+        try {
+            Utilities.checkProtocolVersion(protocolVersion,
+                                           MagicConstants.PROTOCOL_VERSION_2);
+        } catch (IOException ex) {
+            throw new CompletionException(ex);
+        }
+        
+        if (protocolVersion < MagicConstants.PROTOCOL_VERSION_4) {
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        return write(ByteBuffer.wrap(Utilities.encodeCodecOffer()))
+                .thenCompose(v -> readByte())
+                .thenAccept(codecId -> {
+                    try {
+                        compressionCodec =
+                                Utilities.toCompressionCodec(codecId);
+                    } catch (IOException ex) {
+                        throw new CompletionException(ex);
+                    }
+                });
+    }
+    
+    /**
+     * Handles the frames in the read buffer and reads more.
+     */
+    private final class ReadHandler
+            implements CompletionHandler<Integer, Void> {
+        
+        @Override
+        public void completed(Integer byteCount, Void attachment) {
+            if (byteCount == -1) {
+                fail(new EOFException("The handler closed the connection."));
+                return;
+            }
+            
+            readBuffer.flip();
+            
+            try {
+                Frame frame;
+                
+                while (!closed.get() &&
+                        (frame = Frame.decode(readBuffer)) != null) {
+                    frameHandler.onFrame(frame);
+                }
+                
+                ensureReadCapacity(Frame.peekFrameSize(readBuffer));
+            } catch (IOException | RuntimeException ex) {
+                fail(ex);
+                return;
+            } finally {
+                readBuffer.compact();
+            }
+            
+            if (!closed.get()) {
+                channel.read(readBuffer, null, this);
+            }
+        }
+        
+        @Override
+        public void failed(Throwable ex, Void attachment) {
+            fail(ex);
+        }
+        
+        /**
+         * Makes sure the read buffer is able to hold a frame of given size.
+         */
+        private void ensureReadCapacity(int frameSize) {
+            if (frameSize <= readBuffer.capacity()) {
+                return;
+            }
+            
+            ByteBuffer largerBuffer = ByteBuffer.allocate(frameSize);
+            largerBuffer.put(readBuffer);
+            largerBuffer.flip();
+            readBuffer = largerBuffer;
+        }
+    }
+    
+    /**
+     * Writes the queued buffers one after another.
+     */
+    private final class WriteHandler
+            implements CompletionHandler<Integer, Void> {
+        
+        @Override
+        public void completed(Integer byteCount, Void attachment) {
+            ByteBuffer next;
+            CompletableFuture<Void> written;
+            writeLock.lock();
+            
+            try {
+                ByteBuffer buffer = pendingBuffers.peek();
+                
+                if (buffer == null) {
+                    // Failed and cleared meanwhile.
+                    return;
+                }
+                
+                if (buffer.hasRemaining()) {
+                    next = buffer;
+                    written = null;
+                } else {
+                    pendingBuffers.remove();
+                    written = pendingFutures.remove();
+                    next = pendingBuffers.peek();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            
+            if (written != null) {
+                written.complete(null);
+            }
+            
+            if (next != null) {
+                channel.write(next, null, this);
+            }
+        }
+        
+        @Override
+        public void failed(Throwable ex, Void attachment) {
+            fail(ex);
+        }
+    }
+}
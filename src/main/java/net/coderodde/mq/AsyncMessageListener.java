@@ -0,0 +1,37 @@
+package net.coderodde.mq;
+
+/**
+ * This interface defines the receiver of the messages of an
+ * {@link AsyncMessageQueueConsumer}. The methods are called from the threads
+ * of the channel group of the consumer, one call at a time, and should not
+ * block: a thread blocked in a listener serves no other connection of the
+ * group meanwhile.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public interface AsyncMessageListener {
+    
+    /**
+     * Receives a single message. The credit for the message is granted back
+     * to the handler once this method returns. An exception thrown closes
+     * the consumer.
+     * 
+     * @param message the message data.
+     */
+    void onMessage(byte[] message);
+    
+    /**
+     * Called once if the connection fails or the handler closes it. No
+     * messages follow.
+     * 
+     * @param cause the failure.
+     */
+    default void onError(Throwable cause) {}
+    
+    /**
+     * Called once after the consumer is closed by its owner. No messages
+     * follow.
+     */
+    default void onClosed() {}
+}
@@ -0,0 +1,213 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import static net.coderodde.mq.Utilities.checkPortNumber;
+
+/**
+ * This class implements a consumer that never blocks a thread. The messages
+ * are pushed to an {@link AsyncMessageListener} as they arrive, from the
+ * threads of an {@link AsynchronousChannelGroup}, so that a handful of
+ * threads serve any number of consumers. The handler sends ahead at most the
+ * prefetch window of messages, and the window is topped up as the listener
+ * returns from the messages, so that a listener falling behind slows down
+ * the delivery rather than the messages piling up.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public final class AsyncMessageQueueConsumer implements AutoCloseable {
+    
+    /**
+     * The connection to the message queue handler.
+     */
+    private final AsyncConnection connection;
+    
+    /**
+     * Receives the messages.
+     */
+    private final AsyncMessageListener listener;
+    
+    /**
+     * The maximum number of messages the handler may send ahead.
+     */
+    private final int prefetchMessages;
+    
+    /**
+     * The maximum number of message bytes the handler may send ahead.
+     */
+    private final long prefetchBytes;
+    
+    /**
+     * The number of messages delivered but not yet reported back as credit.
+     * Touched by the reading thread only.
+     */
+    private int unreportedMessages;
+    
+    /**
+     * The number of message bytes delivered but not yet reported back as
+     * credit.
+     */
+    private long unreportedBytes;
+    
+    private AsyncMessageQueueConsumer(AsyncConnection connection,
+                                      AsyncMessageListener listener,
+                                      int prefetchMessages,
+                                      long prefetchBytes) {
+        this.connection = connection;
+        this.listener = listener;
+        this.prefetchMessages = prefetchMessages;
+        this.prefetchBytes = prefetchBytes;
+    }
+    
+    /**
+     * Connects a consumer with the default prefetch window, served by the
+     * default channel group.
+     * 
+     * @param messageQueueName the name of the queue to listen to.
+     * @param hostName         the IP address of the message queue handler.
+     * @param portNumber       the port number to use.
+     * @param listener         the receiver of the messages.
+     * @return the future completed with the consumer once connected.
+     */
+    public static CompletableFuture<AsyncMessageQueueConsumer> connect(
+            String messageQueueName,
+            String hostName,
+            int portNumber,
+            AsyncMessageListener listener) {
+        return connect(messageQueueName,
+                       hostName,
+                       portNumber,
+                       MagicConstants.DEFAULT_PREFETCH_MESSAGES,
+                       MagicConstants.DEFAULT_PREFETCH_BYTES,
+                       null,
+                       listener);
+    }
+    
+    /**
+     * Connects a consumer. The delivery starts as soon as the returned future
+     * completes.
+     * 
+     * @param messageQueueName the name of the queue to listen to.
+     * @param hostName         the IP address of the message queue handler.
+     * @param portNumber       the port number to use.
+     * @param prefetchMessages the prefetch window in messages.
+     * @param prefetchBytes    the prefetch window in bytes.
+     * @param channelGroup     the group whose threads call the listener, or
+     *                         {@code null} for the default group.
+     * @param listener         the receiver of the messages.
+     * @return the future completed with the consumer once connected.
+     */
+    public static CompletableFuture<AsyncMessageQueueConsumer> connect(
+            String messageQueueName,
+            String hostName,
+            int portNumber,
+            int prefetchMessages,
+            long prefetchBytes,
+            AsynchronousChannelGroup channelGroup,
+            AsyncMessageListener listener) {
+        Objects.requireNonNull(hostName, "The input host name is null.");
+        Objects.requireNonNull(listener, "The input listener is null.");
+        checkPortNumber(portNumber);
+        MessageQueueConsumer.checkPrefetchMessages(prefetchMessages);
+        MessageQueueConsumer.checkPrefetchBytes(prefetchBytes);
+        return AsyncConnection.connect(hostName,
+                                       portNumber,
+                                       MagicConstants.CONSUMER_STRING,
+                                       messageQueueName,
+                                       channelGroup)
+                              .thenApply(connection -> {
+            AsyncMessageQueueConsumer consumer =
+                    new AsyncMessageQueueConsumer(connection,
+                                                  listener,
+                                                  prefetchMessages,
+                                                  prefetchBytes);
+            connection.startReading(consumer.new FrameReceiver());
+            // Announce the initial prefetch window:
+            consumer.sendCredit(prefetchMessages, prefetchBytes);
+            return consumer;
+        });
+    }
+    
+    /**
+     * Tells the handler this consumer is closing and closes the connection.
+     * The messages received meanwhile are dropped.
+     * 
+     * @return the future completed once the connection is closed.
+     */
+    public CompletableFuture<Void> closeAsync() {
+        return connection.writeAndClose(
+                Frame.encodeEmpty(MagicConstants.FRAME_TYPE_CLOSE));
+    }
+    
+    @Override
+    public void close() throws Exception {
+        try {
+            closeAsync().get();
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof Exception ? 
+                    (Exception) ex.getCause() : 
+                    ex;
+        }
+    }
+    
+    /**
+     * Tops up the credit once half of the prefetch window is delivered, so
+     * that the handler can keep streaming while the rest is processed.
+     * 
+     * @param messageCount the number of delivered messages.
+     * @param byteCount    the number of delivered bytes.
+     */
+    private void acknowledgeDelivery(int messageCount, long byteCount) {
+        unreportedMessages += messageCount;
+        unreportedBytes += byteCount;
+        
+        if (unreportedMessages >= Math.max(1, prefetchMessages / 2) ||
+            unreportedBytes >= prefetchBytes / 2) {
+            sendCredit(unreportedMessages, unreportedBytes);
+            unreportedMessages = 0;
+            unreportedBytes = 0L;
+        }
+    }
+    
+    private void sendCredit(int messageCredit, long byteCredit) {
+        // A failed write closes the connection and is reported as such:
+        connection.write(Frame.encodeCredit(messageCredit, byteCredit));
+    }
+    
+    /**
+     * This inner class passes the received messages to the listener.
+     */
+    private final class FrameReceiver implements AsyncConnection.FrameHandler {
+        
+        @Override
+        public void onFrame(Frame frame) throws IOException {
+            if (frame.getType() != MagicConstants.FRAME_TYPE_MESSAGES) {
+                throw new IOException(
+                        "Unexpected frame type: " + frame.getType());
+            }
+            
+            List<byte[]> messages = frame.getMessages();
+            
+            for (byte[] message : messages) {
+                listener.onMessage(message);
+            }
+            
+            acknowledgeDelivery(messages.size(),
+                                Utilities.countBytes(messages));
+        }
+        
+        @Override
+        public void onClosed(Throwable cause) {
+            if (cause == null) {
+                listener.onClosed();
+            } else {
+                listener.onError(cause);
+            }
+        }
+    }
+}
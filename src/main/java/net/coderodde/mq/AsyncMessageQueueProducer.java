@@ -0,0 +1,219 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import static net.coderodde.mq.Utilities.checkPortNumber;
+
+/**
+ * This class implements a producer that never blocks a thread. Each send
+ * packs its messages in a single frame queued for writing, and returns a
+ * future completed once the frame is written to the socket. The I/O is
+ * completed by the threads of an {@link AsynchronousChannelGroup}, so that a
+ * handful of threads serve any number of producers.
+ * <p>
+ * The frames queued are held until written, so a caller producing faster
+ * than the network accepts should wait on the futures now and then. The
+ * messages the handler rejects are counted and logged as the error frames
+ * arrive.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public final class AsyncMessageQueueProducer implements AutoCloseable {
+    
+    /**
+     * The connection to the message queue handler.
+     */
+    private final AsyncConnection connection;
+    
+    /**
+     * The codec compressing the batches, as chosen by the handler, or
+     * {@code null}.
+     */
+    private final CompressionCodec compressionCodec;
+    
+    /**
+     * The total number of messages the handler rejected.
+     */
+    private final AtomicLong rejectedMessageCount = new AtomicLong();
+    
+    /**
+     * The logger object used for reporting the rejections.
+     */
+    private volatile Logger logger;
+    
+    private AsyncMessageQueueProducer(AsyncConnection connection) {
+        this.connection = connection;
+        this.compressionCodec = connection.getCompressionCodec();
+    }
+    
+    /**
+     * Connects a producer served by the default channel group.
+     * 
+     * @param messageQueueName the name of the queue to produce.
+     * @param hostName         the IP address of the message queue handler.
+     * @param portNumber       the port number to use.
+     * @return the future completed with the producer once connected.
+     */
+    public static CompletableFuture<AsyncMessageQueueProducer> connect(
+            String messageQueueName,
+            String hostName,
+            int portNumber) {
+        return connect(messageQueueName, hostName, portNumber, null);
+    }
+    
+    /**
+     * Connects a producer.
+     * 
+     * @param messageQueueName the name of the queue to produce.
+     * @param hostName         the IP address of the message queue handler.
+     * @param portNumber       the port number to use.
+     * @param channelGroup     the group whose threads complete the I/O, or
+     *                         {@code null} for the default group.
+     * @return the future completed with the producer once connected.
+     */
+    public static CompletableFuture<AsyncMessageQueueProducer> connect(
+            String messageQueueName,
+            String hostName,
+            int portNumber,
+            AsynchronousChannelGroup channelGroup) {
+        Objects.requireNonNull(hostName, "The input host name is null.");
+        checkPortNumber(portNumber);
+        return AsyncConnection.connect(hostName,
+                                       portNumber,
+                                       MagicConstants.PRODUCER_STRING,
+                                       messageQueueName,
+                                       channelGroup)
+                              .thenApply(connection -> {
+            AsyncMessageQueueProducer producer =
+                    new AsyncMessageQueueProducer(connection);
+            connection.startReading(producer.new FrameReceiver());
+            return producer;
+        });
+    }
+    
+    /**
+     * Sends a binary message.
+     * 
+     * @param bytes the message data.
+     * @return the future completed once the message is written to the
+     *         socket.
+     */
+    public CompletableFuture<Void> produce(byte[] bytes) {
+        return produce(Collections.singletonList(bytes));
+    }
+    
+    /**
+     * Sends a batch of binary messages in a single frame.
+     * 
+     * @param messages the list of message data.
+     * @return the future completed once the batch is written to the socket.
+     */
+    public CompletableFuture<Void> produce(List<byte[]> messages) {
+        return connection.write(
+                compressionCodec == null || messages.isEmpty() ?
+                        Frame.encodeMessages(messages) :
+                        Frame.encodeCompressedMessages(compressionCodec,
+                                                       messages));
+    }
+    
+    /**
+     * Sends a batch of binary messages with a common partition key in a
+     * single frame. All the messages with equal keys go to the same
+     * partition of a partitioned queue.
+     * 
+     * @param key      the partition key.
+     * @param messages the list of message data.
+     * @return the future completed once the batch is written to the socket.
+     */
+    public CompletableFuture<Void> produce(byte[] key, List<byte[]> messages) {
+        Objects.requireNonNull(key, "The input key is null.");
+        int keyHash = Utilities.hashKey(key);
+        return connection.write(
+                compressionCodec == null || messages.isEmpty() ?
+                        Frame.encodeKeyedMessages(keyHash, messages) :
+                        Frame.encodeKeyedCompressedMessages(keyHash,
+                                                            compressionCodec,
+                                                            messages));
+    }
+    
+    /**
+     * Returns the total number of messages the handler has rejected so far
+     * because a queue limit was reached.
+     * 
+     * @return the number of rejected messages.
+     */
+    public long getRejectedMessageCount() {
+        return rejectedMessageCount.get();
+    }
+    
+    /**
+     * Sets the logger for reporting the rejections.
+     * 
+     * @param logger the logger to set, or {@code null} in order to turn off
+     *               the reporting.
+     */
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+    
+    /**
+     * Closes this producer once the messages sent so far are written.
+     * 
+     * @return the future completed once the connection is closed.
+     */
+    public CompletableFuture<Void> closeAsync() {
+        return connection.writeAndClose(
+                Frame.encodeEmpty(MagicConstants.FRAME_TYPE_CLOSE));
+    }
+    
+    @Override
+    public void close() throws Exception {
+        try {
+            closeAsync().get();
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof Exception ? 
+                    (Exception) ex.getCause() : 
+                    ex;
+        }
+    }
+    
+    /**
+     * This inner class counts the rejections reported by the handler.
+     */
+    private final class FrameReceiver implements AsyncConnection.FrameHandler {
+        
+        @Override
+        public void onFrame(Frame frame) throws IOException {
+            if (frame.getType() != MagicConstants.FRAME_TYPE_ERROR) {
+                throw new IOException(
+                        "Unexpected frame type: " + frame.getType());
+            }
+            
+            rejectedMessageCount.addAndGet(frame.getCount());
+            Logger currentLogger = logger;
+            
+            if (currentLogger != null) {
+                currentLogger.warning(
+                        "The handler rejected " + frame.getCount() +
+                        " message(s): " + frame.getErrorReason());
+            }
+        }
+        
+        @Override
+        public void onClosed(Throwable cause) {
+            Logger currentLogger = logger;
+            
+            if (cause != null && currentLogger != null) {
+                currentLogger.warning("The connection failed: " + cause);
+            }
+        }
+    }
+}
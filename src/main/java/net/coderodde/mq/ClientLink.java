@@ -0,0 +1,57 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * This interface defines the frame transport of a single producer or 
+ * consumer: either a connection of its own, or a channel of a connection 
+ * shared with the other clients to the same handler.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+interface ClientLink extends AutoCloseable {
+    
+    /**
+     * Writes an entire frame.
+     * 
+     * @param frame the frame. Left intact.
+     * @throws IOException if the network I/O fails.
+     */
+    void write(ByteBuffer frame) throws IOException;
+    
+    /**
+     * Reads the next frame, blocking until it arrives.
+     * 
+     * @return the frame.
+     * @throws IOException if the network I/O fails or the handler closed the
+     *                     link.
+     */
+    Frame read() throws IOException;
+    
+    /**
+     * Returns {@code true} if {@link #read()} would not block.
+     * 
+     * @return whether a frame is available.
+     * @throws IOException if the network I/O fails.
+     */
+    boolean hasFrame() throws IOException;
+    
+    /**
+     * Returns the compression codec chosen by the handler for the link.
+     * 
+     * @return the codec or {@code null} if the batches go uncompressed.
+     */
+    CompressionCodec getCompressionCodec();
+    
+    /**
+     * Returns the protocol version the handler confirmed for the link.
+     * 
+     * @return the protocol version.
+     */
+    int getProtocolVersion();
+    
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,219 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class groups the routines for the queues configured with a
+ * {@link CompressionCodec}. Each entry of such a queue is a whole batch of
+ * messages kept compressed, laid out as the {@code int32} message count
+ * followed by the {@code int8} codec ID, the {@code int32} length of the
+ * decompressed records and the compressed records: the same bytes as the
+ * tail of a compressed message frame. A batch received compressed by the
+ * codec of the queue is stored without being decompressed, and is forwarded
+ * as is to the consumers having negotiated the same codec. Only the batches
+ * of the other clients are compressed or decompressed by the handler.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class CompressedBatches {
+    
+    /**
+     * The number of bytes preceding the compressed records of an entry: the
+     * message count, the codec ID and the decompressed length.
+     */
+    private static final int ENTRY_HEADER_LENGTH =
+            4 + MagicConstants.COMPRESSION_HEADER_LENGTH;
+    
+    private CompressedBatches() {}
+    
+    /**
+     * Returns the entries to enqueue for the messages of the frame: the
+     * messages themselves if the queue is not compressed, and a single
+     * compressed batch otherwise.
+     * 
+     * @param queue the target queue.
+     * @param frame the message frame.
+     * @return the entries to enqueue.
+     * @throws IOException if the frame body is malformed.
+     */
+    static List<byte[]> toEntries(MessageQueue queue, Frame frame)
+            throws IOException {
+        if (frame.getCount() == 0) {
+            return Collections.emptyList();
+        }
+        
+        CompressionCodec codec = queue.getCompressionCodec();
+        
+        if (codec == null || !frame.isCompressed() || frame.hasChecksums()) {
+            return toEntries(queue, frame.getMessages());
+        }
+        
+        ByteBuffer compressedRecords = frame.getCompressedRecords();
+        
+        if (compressedRecords.get(0) != codec.getId()) {
+            return toEntries(queue, frame.getMessages());
+        }
+        
+        checkDecompressedLength(frame.getCount(),
+                                compressedRecords.getInt(1));
+        byte[] entry = new byte[4 + compressedRecords.remaining()];
+        ByteBuffer.wrap(entry)
+                  .putInt(frame.getCount())
+                  .put(compressedRecords);
+        return Collections.singletonList(entry);
+    }
+    
+    /**
+     * Returns the entries to enqueue for the messages: the messages
+     * themselves if the queue is not compressed, and a single compressed
+     * batch otherwise.
+     * 
+     * @param queue    the target queue.
+     * @param messages the messages.
+     * @return the entries to enqueue.
+     */
+    static List<byte[]> toEntries(MessageQueue queue, List<byte[]> messages) {
+        CompressionCodec codec = queue.getCompressionCodec();
+        
+        if (codec == null || messages.isEmpty()) {
+            return messages;
+        }
+        
+        byte[] records = Frame.encodeRecords(messages);
+        byte[] compressedRecords =
+                codec.compress(records, 0, records.length);
+        byte[] entry = new byte[ENTRY_HEADER_LENGTH +
+                                compressedRecords.length];
+        ByteBuffer.wrap(entry)
+                  .putInt(messages.size())
+                  .put(codec.getId())
+                  .putInt(records.length)
+                  .put(compressedRecords);
+        return Collections.singletonList(entry);
+    }
+    
+    /**
+     * Encodes the entries drained from the queue into a message frame for a
+     * consumer. A compressed batch is forwarded without being decompressed
+     * if the consumer negotiated its codec.
+     * 
+     * @param queue         the queue the entries were drained from.
+     * @param entries       the entries: a single batch if the queue is
+     *                      compressed.
+     * @param consumerCodec the codec negotiated by the consumer, or
+     *                      {@code null}.
+     * @return the buffer holding the entire frame, ready for reading.
+     * @throws IOException if a compressed batch is malformed.
+     */
+    static ByteBuffer encodeFrame(MessageQueue queue,
+                                  List<byte[]> entries,
+                                  CompressionCodec consumerCodec)
+            throws IOException {
+        if (queue.getCompressionCodec() == null) {
+            return Frame.encodeMessages(entries);
+        }
+        
+        byte[] entry = entries.get(0);
+        
+        if (consumerCodec != null && entry[4] == consumerCodec.getId()) {
+            return Frame.encodeCompressedRecords(getMessageCount(entry),
+                                                 entry,
+                                                 4);
+        }
+        
+        return Frame.encodeMessages(getMessages(entry));
+    }
+    
+    /**
+     * Returns the number of messages in the entries drained from the queue.
+     * 
+     * @param queue   the queue the entries were drained from.
+     * @param entries the entries.
+     * @return the number of messages.
+     */
+    static int countMessages(MessageQueue queue, List<byte[]> entries) {
+        if (queue.getCompressionCodec() == null) {
+            return entries.size();
+        }
+        
+        int messageCount = 0;
+        
+        for (byte[] entry : entries) {
+            messageCount += getMessageCount(entry);
+        }
+        
+        return messageCount;
+    }
+    
+    /**
+     * Returns the number of messages an entry of the queue stands for.
+     * 
+     * @param queue the queue.
+     * @param entry the entry.
+     * @return the number of messages.
+     */
+    static int countMessages(MessageQueue queue, byte[] entry) {
+        return queue.getCompressionCodec() == null ?
+                1 :
+                getMessageCount(entry);
+    }
+    
+    /**
+     * Returns the number of decompressed message bytes in the entries
+     * drained from the queue, as counted by the consumer.
+     * 
+     * @param queue   the queue the entries were drained from.
+     * @param entries the entries.
+     * @return the number of message bytes.
+     */
+    static long countMessageBytes(MessageQueue queue, List<byte[]> entries) {
+        if (queue.getCompressionCodec() == null) {
+            return Utilities.countBytes(entries);
+        }
+        
+        long byteCount = 0L;
+        
+        for (byte[] entry : entries) {
+            // Each record is the message preceded by its length:
+            byteCount += ByteBuffer.wrap(entry).getInt(5) -
+                         4L * getMessageCount(entry);
+        }
+        
+        return byteCount;
+    }
+    
+    private static int getMessageCount(byte[] entry) {
+        return ByteBuffer.wrap(entry).getInt(0);
+    }
+    
+    private static List<byte[]> getMessages(byte[] entry) throws IOException {
+        List<byte[]> messages = new ArrayList<>(getMessageCount(entry));
+        ByteBuffer body = ByteBuffer.wrap(entry, 4, entry.length - 4).slice();
+        new Frame(MagicConstants.FRAME_TYPE_MESSAGES,
+                  MagicConstants.FRAME_FLAG_COMPRESSED,
+                  getMessageCount(entry),
+                  body).readMessages(messages);
+        return messages;
+    }
+    
+    /**
+     * Checks that the decompressed length claimed by a compressed frame is
+     * able to hold its records, since the batch is stored without being
+     * decompressed.
+     */
+    private static void checkDecompressedLength(int messageCount,
+                                                int decompressedLength)
+            throws IOException {
+        if (decompressedLength < 4L * messageCount ||
+                decompressedLength > MagicConstants.MAX_FRAME_LENGTH) {
+            throw new IOException(
+                    "Bad decompressed length " + decompressedLength +
+                    " for " + messageCount + " message(s).");
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+
+/**
+ * This interface defines the API for the codecs compressing the message 
+ * batches. A codec is identified on the wire by its ID, and so both the
+ * handler and the clients must have it registered with
+ * {@link CompressionCodecs#register(CompressionCodec)}. The implementations
+ * must be safe to use from several threads at a time.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public interface CompressionCodec {
+    
+    /**
+     * Returns the ID of this codec within {@code [1, 127]}.
+     * 
+     * @return the codec ID.
+     */
+    byte getId();
+    
+    String getName();
+    
+    /**
+     * Compresses a range of bytes.
+     * 
+     * @param input  the array holding the bytes to compress.
+     * @param offset the index of the first byte to compress.
+     * @param length the number of bytes to compress.
+     * @return the compressed bytes.
+     */
+    byte[] compress(byte[] input, int offset, int length);
+    
+    /**
+     * Decompresses a range of bytes compressed by this codec.
+     * 
+     * @param input              the array holding the compressed bytes.
+     * @param offset             the index of the first compressed byte.
+     * @param length             the number of compressed bytes.
+     * @param decompressedLength the exact number of decompressed bytes.
+     * @return the decompressed bytes.
+     * @throws IOException if the compressed data is malformed.
+     */
+    byte[] decompress(byte[] input, 
+                      int offset, 
+                      int length, 
+                      int decompressedLength) throws IOException;
+}
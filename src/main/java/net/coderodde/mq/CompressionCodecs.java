@@ -0,0 +1,86 @@
+package net.coderodde.mq;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class holds the registry of the {@link CompressionCodec}s known to
+ * this JVM. The clients offer all of them in the handshake, and the handler
+ * decodes the batches compressed by any of them.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public final class CompressionCodecs {
+    
+    /**
+     * The built-in codec based on {@link java.util.zip.Deflater}.
+     */
+    public static final CompressionCodec DEFLATE = 
+            new DeflateCompressionCodec();
+    
+    /**
+     * Maps the codec IDs to the codecs.
+     */
+    private static final Map<Byte, CompressionCodec> ID_TO_CODEC_MAP =
+            new ConcurrentHashMap<>();
+    
+    static {
+        register(DEFLATE);
+    }
+    
+    private CompressionCodecs() {}
+    
+    /**
+     * Registers a codec. Registering the same codec again has no effect.
+     * 
+     * @param codec the codec to register.
+     * @throws IllegalArgumentException if the ID of the codec is out of range
+     *                                  or taken by another codec.
+     */
+    public static void register(CompressionCodec codec) {
+        Objects.requireNonNull(codec, "The input codec is null.");
+        byte id = codec.getId();
+        
+        if (id < 1) {
+            throw new IllegalArgumentException(
+                    "The codec ID is out of range: " + id);
+        }
+        
+        CompressionCodec registeredCodec = 
+                ID_TO_CODEC_MAP.putIfAbsent(id, codec);
+        
+        if (registeredCodec != null && registeredCodec != codec) {
+            throw new IllegalArgumentException(
+                    "The codec ID " + id + " is taken by \"" + 
+                    registeredCodec.getName() + "\".");
+        }
+    }
+    
+    /**
+     * Returns the codec with the given ID.
+     * 
+     * @param id the codec ID.
+     * @return the codec or {@code null} if none is registered.
+     */
+    static CompressionCodec get(byte id) {
+        return ID_TO_CODEC_MAP.get(id);
+    }
+    
+    /**
+     * Returns the IDs of all the registered codecs.
+     * 
+     * @return the codec IDs.
+     */
+    static byte[] getIds() {
+        Byte[] ids = ID_TO_CODEC_MAP.keySet().toArray(new Byte[0]);
+        byte[] result = new byte[ids.length];
+        
+        for (int i = 0; i < ids.length; i++) {
+            result[i] = ids[i];
+        }
+        
+        return result;
+    }
+}
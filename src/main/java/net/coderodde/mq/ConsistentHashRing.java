@@ -0,0 +1,200 @@
+package net.coderodde.mq;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class implements a consistent hash ring placing keys on nodes. Each
+ * node takes a number of points, the virtual nodes, scattered over the
+ * 64-bit ring, and a key goes to the node owning the first point at or
+ * after the hash of the key, wrapping around. Adding a node moves to it only
+ * the keys falling just before its points, and removing a node moves only
+ * the keys it owned; the rest stay where they were. The virtual nodes even
+ * out the share of each node.
+ * <p>
+ * The placement depends on the set of the nodes alone, not on the order they
+ * were added in. The lookups read an immutable snapshot of the ring and so
+ * take no lock; the changes build a new snapshot.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class ConsistentHashRing {
+    
+    /**
+     * The offset basis of the 64-bit FNV-1a hash.
+     */
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    
+    /**
+     * The prime of the 64-bit FNV-1a hash.
+     */
+    private static final long FNV_PRIME = 0x100000001b3L;
+    
+    /**
+     * The number of points of each node.
+     */
+    private final int virtualNodeCount;
+    
+    /**
+     * Serializes the changes of the ring.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    /**
+     * The nodes on the ring.
+     */
+    private volatile Set<String> nodes = Collections.emptySet();
+    
+    /**
+     * Maps the points of the ring to the nodes owning them.
+     */
+    private volatile NavigableMap<Long, String> points =
+            Collections.emptyNavigableMap();
+    
+    /**
+     * Constructs an empty ring.
+     * 
+     * @param virtualNodeCount the number of points of each node.
+     */
+    ConsistentHashRing(int virtualNodeCount) {
+        if (virtualNodeCount < 1) {
+            throw new IllegalArgumentException(
+                    "The virtual node count is too small: " +
+                    virtualNodeCount);
+        }
+        
+        this.virtualNodeCount = virtualNodeCount;
+    }
+    
+    /**
+     * Adds a node to the ring.
+     * 
+     * @param node the node.
+     * @return {@code false} if the node is on the ring already.
+     */
+    boolean add(String node) {
+        lock.lock();
+        
+        try {
+            if (nodes.contains(node)) {
+                return false;
+            }
+            
+            Set<String> newNodes = new TreeSet<>(nodes);
+            newNodes.add(node);
+            NavigableMap<Long, String> newPoints = new TreeMap<>(points);
+            addPoints(newPoints, node);
+            publish(newNodes, newPoints);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Removes a node from the ring.
+     * 
+     * @param node the node.
+     * @return {@code false} if the node is not on the ring.
+     */
+    boolean remove(String node) {
+        lock.lock();
+        
+        try {
+            if (!nodes.contains(node)) {
+                return false;
+            }
+            
+            Set<String> newNodes = new TreeSet<>(nodes);
+            newNodes.remove(node);
+            // Rebuilt, so that the points the node won in a collision go
+            // back to their other owners:
+            NavigableMap<Long, String> newPoints = new TreeMap<>();
+            
+            for (String remainingNode : newNodes) {
+                addPoints(newPoints, remainingNode);
+            }
+            
+            publish(newNodes, newPoints);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the node a key is placed on.
+     * 
+     * @param key the key.
+     * @return the node or {@code null} if the ring is empty.
+     */
+    String get(String key) {
+        NavigableMap<Long, String> currentPoints = points;
+        
+        if (currentPoints.isEmpty()) {
+            return null;
+        }
+        
+        Map.Entry<Long, String> entry = currentPoints.ceilingEntry(hash(key));
+        return entry != null ?
+                entry.getValue() :
+                currentPoints.firstEntry().getValue();
+    }
+    
+    /**
+     * Returns the nodes on the ring.
+     * 
+     * @return the nodes, in their natural order.
+     */
+    Set<String> getNodes() {
+        return nodes;
+    }
+    
+    private void addPoints(NavigableMap<Long, String> newPoints, String node) {
+        for (int i = 0; i < virtualNodeCount; i++) {
+            // A point taken by two nodes goes to the lesser one, so that the
+            // outcome does not depend on the order of the additions:
+            newPoints.merge(hash(node + "-" + i),
+                            node,
+                            (owner, challenger) ->
+                                    owner.compareTo(challenger) <= 0 ?
+                                            owner :
+                                            challenger);
+        }
+    }
+    
+    private void publish(Set<String> newNodes,
+                         NavigableMap<Long, String> newPoints) {
+        nodes = Collections.unmodifiableSet(newNodes);
+        points = Collections.unmodifiableNavigableMap(newPoints);
+    }
+    
+    /**
+     * Hashes a string to a point of the ring: the 64-bit FNV-1a hash of its
+     * UTF-8 bytes with the bits mixed by the finalizer of MurmurHash3, so
+     * that the similar strings, such as the names of the partitions of a
+     * queue, land far apart.
+     */
+    private static long hash(String string) {
+        long hash = FNV_OFFSET_BASIS;
+        
+        for (byte b : string.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,94 @@
+package net.coderodde.mq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class implements the built-in {@link CompressionCodec} on top of the
+ * JDK {@link Deflater}. The fastest compression level is used: the batches 
+ * are compressed on the hot path of the producers.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class DeflateCompressionCodec implements CompressionCodec {
+    
+    /**
+     * The ID of this codec on the wire.
+     */
+    static final byte ID = 1;
+    
+    @Override
+    public byte getId() {
+        return ID;
+    }
+    
+    @Override
+    public String getName() {
+        return "deflate";
+    }
+    
+    @Override
+    public byte[] compress(byte[] input, int offset, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        
+        try {
+            deflater.setInput(input, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream out = 
+                    new ByteArrayOutputStream(Math.max(64, length / 4));
+            byte[] chunk = new byte[Math.min(64 * 1024, length + 64)];
+            
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+    
+    @Override
+    public byte[] decompress(byte[] input, 
+                             int offset, 
+                             int length, 
+                             int decompressedLength) throws IOException {
+        Inflater inflater = new Inflater(true);
+        
+        try {
+            inflater.setInput(input, offset, length);
+            byte[] output = new byte[decompressedLength];
+            int outputLength = 0;
+            
+            while (outputLength < decompressedLength) {
+                int inflatedLength = 
+                        inflater.inflate(output, 
+                                         outputLength, 
+                                         decompressedLength - outputLength);
+                
+                if (inflatedLength == 0 && 
+                        (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                
+                outputLength += inflatedLength;
+            }
+            
+            if (outputLength != decompressedLength) {
+                throw new IOException(
+                        "The compressed batch does not decompress to " + 
+                        decompressedLength + " bytes.");
+            }
+            
+            return output;
+        } catch (DataFormatException ex) {
+            throw new IOException("Malformed compressed batch.", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,802 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * This class implements a {@link MessageStore} persisting the messages in an
+ * append-only log. The log is a directory of fixed-size segment files mapped
+ * into memory. Each record is laid out as the 32-bit message length, the 
+ * 32-bit CRC of the length and the message, and the message itself; a record
+ * failing its CRC marks the end of the data in a segment.
+ * <p>
+ * The read position of the consumers is kept in a small checkpoint file. The
+ * segments and the checkpoint are forced to disk in groups: after a given 
+ * number of appended messages, after a given interval, and upon closing the
+ * store. A crash may thus lose the messages appended since the last sync and
+ * redeliver those consumed since the last sync, but never corrupts the log.
+ * <p>
+ * Upon opening, the store deletes the segments preceding the checkpoint, 
+ * scans the remaining ones for valid records, and wipes the torn tail left
+ * behind by a crash, if any.
+ * <p>
+ * The records may also be removed as {@link FileRegion}s and sent to the 
+ * consumers straight from the segment files. Since the record layout is the
+ * one of the checksummed message frame records, a run of records is a valid
+ * frame body as is.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class DurableMessageStore implements MessageStore {
+    
+    /**
+     * Used for logging status information in a console or another listener.
+     */
+    private static final Logger LOGGER =
+            Logger.getLogger(MagicConstants.LOGGER_BADGE);
+    
+    /**
+     * The file name extension of the segment files.
+     */
+    private static final String SEGMENT_FILE_SUFFIX = ".log";
+    
+    /**
+     * The name of the file holding the read position.
+     */
+    private static final String CHECKPOINT_FILE_NAME = "checkpoint";
+    
+    /**
+     * The number of bytes preceding each message in a segment.
+     */
+    private static final int RECORD_HEADER_BYTES = 4 + 4;
+    
+    /**
+     * The checkpoint is the head segment ID, the read position within it, and
+     * the CRC of the two.
+     */
+    private static final int CHECKPOINT_BYTES = 8 + 4 + 4;
+    
+    /**
+     * Runs the periodic syncs of all the durable stores.
+     */
+    private static final ScheduledExecutorService SYNC_SCHEDULER = 
+            Executors.newSingleThreadScheduledExecutor((runnable) -> {
+                Thread thread = new Thread(runnable, "rodde.mq-log-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+    
+    /**
+     * A single segment file. The write position of a segment is the position
+     * of its buffer.
+     */
+    private static final class Segment {
+        
+        final long id;
+        
+        final Path path;
+        
+        final MappedByteBuffer buffer;
+        
+        int readPosition;
+        
+        /**
+         * The channel the regions of this segment are transferred from, or
+         * {@code null} if not opened yet.
+         */
+        FileChannel channel;
+        
+        /**
+         * The number of regions of this segment not yet released.
+         */
+        int regionCount;
+        
+        /**
+         * Whether this segment has been deleted.
+         */
+        boolean deleted;
+        
+        Segment(long id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+        
+        boolean isDrained() {
+            return readPosition == buffer.position();
+        }
+    }
+    
+    /**
+     * The directory holding the segments and the checkpoint.
+     */
+    private final Path directory;
+    
+    /**
+     * The segments holding the messages, from the head to the tail.
+     */
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    
+    /**
+     * The segments with writes not yet forced to disk.
+     */
+    private final List<MappedByteBuffer> unsyncedBuffers = new ArrayList<>();
+    
+    /**
+     * Guards the segments, the checkpoint and the counters.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    /**
+     * Computes the record checksums. Used only with the lock held.
+     */
+    private final CRC32 crc32 = new CRC32();
+    
+    /**
+     * The memory-mapped checkpoint file.
+     */
+    private final MappedByteBuffer checkpoint;
+    
+    /**
+     * The capacity of a regular segment.
+     */
+    private final int segmentBytes;
+    
+    /**
+     * The number of appended messages after which the log is synced.
+     */
+    private final int syncEveryMessages;
+    
+    /**
+     * The periodic sync task or {@code null} if there is none.
+     */
+    private final ScheduledFuture<?> syncTask;
+    
+    /**
+     * The ID of the next segment to create. The IDs never decrease, so that
+     * a new segment never precedes the checkpoint.
+     */
+    private long nextSegmentId;
+    
+    /**
+     * The number of messages appended since the last sync.
+     */
+    private int unsyncedMessages;
+    
+    /**
+     * The number of messages in this store.
+     */
+    private volatile long size;
+    
+    /**
+     * The number of messages found in the log upon opening.
+     */
+    private long recoveredMessageCount;
+    
+    /**
+     * The number of message bytes found in the log upon opening.
+     */
+    private long recoveredByteCount;
+    
+    /**
+     * Opens the log in the given directory, creating the directory if
+     * necessary, and recovers the messages not yet consumed.
+     * 
+     * @param directory     the log directory.
+     * @param configuration the queue configuration.
+     * @throws IOException if the log cannot be opened.
+     */
+    DurableMessageStore(Path directory, 
+                        MessageQueueConfiguration configuration)
+            throws IOException {
+        this.directory = directory;
+        this.segmentBytes = configuration.getSegmentBytes();
+        this.syncEveryMessages = configuration.getSyncEveryMessages();
+        Files.createDirectories(directory);
+        this.checkpoint = 
+                map(directory.resolve(CHECKPOINT_FILE_NAME), CHECKPOINT_BYTES);
+        recover();
+        
+        long syncIntervalMillis = configuration.getSyncIntervalMillis();
+        this.syncTask = syncIntervalMillis == 0L ? 
+                null : 
+                SYNC_SCHEDULER.scheduleWithFixedDelay(this::sync, 
+                                                      syncIntervalMillis, 
+                                                      syncIntervalMillis,
+                                                      TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public void add(byte[] message) {
+        boolean syncNeeded;
+        lock.lock();
+        
+        try {
+            syncNeeded = append(message);
+        } finally {
+            lock.unlock();
+        }
+        
+        if (syncNeeded) {
+            // The appending thread pays for the sync of the whole group:
+            sync();
+        }
+    }
+    
+    @Override
+    public void addAll(List<byte[]> messages) {
+        boolean syncNeeded = false;
+        lock.lock();
+        
+        try {
+            for (byte[] message : messages) {
+                syncNeeded |= append(message);
+            }
+        } finally {
+            lock.unlock();
+        }
+        
+        if (syncNeeded) {
+            sync();
+        }
+    }
+    
+    @Override
+    public byte[] poll() {
+        lock.lock();
+        
+        try {
+            return size == 0L ? null : readHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public long drainTo(List<byte[]> batch, long maxMessages, long maxBytes) {
+        int drainedMessages = 0;
+        long drainedBytes = 0L;
+        lock.lock();
+        
+        try {
+            while (drainedMessages < maxMessages &&
+                   drainedBytes < maxBytes &&
+                   size > 0L) {
+                byte[] message = readHead();
+                batch.add(message);
+                drainedBytes += message.length;
+                drainedMessages++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        
+        return drainedBytes;
+    }
+    
+    @Override
+    public boolean isFileBacked() {
+        return true;
+    }
+    
+    @Override
+    public FileRegion drainRegion(long maxMessages, long maxBytes) {
+        lock.lock();
+        
+        try {
+            if (size == 0L) {
+                return null;
+            }
+            
+            Segment head = segments.peekFirst();
+            
+            while (head.isDrained()) {
+                deleteSegment(segments.removeFirst());
+                head = segments.peekFirst();
+            }
+            
+            if (!openChannel(head)) {
+                return null;
+            }
+            
+            int startPosition = head.readPosition;
+            int endPosition = startPosition;
+            int messageCount = 0;
+            long byteCount = 0L;
+            
+            while (messageCount < maxMessages &&
+                   byteCount < maxBytes &&
+                   endPosition < head.buffer.position()) {
+                int messageLength = head.buffer.getInt(endPosition);
+                int recordLength = RECORD_HEADER_BYTES + messageLength;
+                
+                if (messageCount > 0 && 
+                        endPosition - startPosition + recordLength > 
+                        MagicConstants.MAX_FRAME_LENGTH - 
+                        MagicConstants.FRAME_HEADER_LENGTH) {
+                    break;
+                }
+                
+                endPosition += recordLength;
+                byteCount += messageLength;
+                messageCount++;
+            }
+            
+            Segment segment = head;
+            segment.readPosition = endPosition;
+            segment.regionCount++;
+            size -= messageCount;
+            
+            if (segment.isDrained() && segments.size() > 1) {
+                deleteSegment(segments.removeFirst());
+            }
+            
+            return new FileRegion(segment.channel, 
+                                  startPosition, 
+                                  endPosition - startPosition,
+                                  messageCount, 
+                                  byteCount,
+                                  () -> releaseRegion(segment));
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public boolean isEmpty() {
+        return size == 0L;
+    }
+    
+    @Override
+    public long getCapacity() {
+        return Long.MAX_VALUE;
+    }
+    
+    @Override
+    public long getRecoveredMessageCount() {
+        return recoveredMessageCount;
+    }
+    
+    @Override
+    public long getRecoveredByteCount() {
+        return recoveredByteCount;
+    }
+    
+    @Override
+    public void close() {
+        if (syncTask != null) {
+            syncTask.cancel(false);
+        }
+        
+        sync();
+        lock.lock();
+        
+        try {
+            for (Segment segment : segments) {
+                if (segment.regionCount == 0) {
+                    closeChannel(segment);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Writes the checkpoint and forces it together with all the unsynced 
+     * segments to disk. The forcing is done without holding the lock, so 
+     * that the appends and reads proceed meanwhile.
+     */
+    void sync() {
+        List<MappedByteBuffer> buffersToForce;
+        lock.lock();
+        
+        try {
+            buffersToForce = new ArrayList<>(unsyncedBuffers);
+            unsyncedBuffers.clear();
+            unsyncedMessages = 0;
+            writeCheckpoint();
+        } finally {
+            lock.unlock();
+        }
+        
+        try {
+            for (MappedByteBuffer buffer : buffersToForce) {
+                buffer.force();
+            }
+            
+            checkpoint.force();
+        } catch (UncheckedIOException ex) {
+            LOGGER.log(Level.SEVERE, 
+                       "Could not sync the log in " + directory + ".", 
+                       ex);
+        }
+    }
+    
+    /**
+     * Appends a message. Must be called with the lock held.
+     * 
+     * @param message the message to append.
+     * @return {@code true} if the group commit size is reached.
+     */
+    private boolean append(byte[] message) {
+        int recordLength = RECORD_HEADER_BYTES + message.length;
+        Segment tail = segments.peekLast();
+        
+        if (tail == null || tail.buffer.remaining() < recordLength) {
+            tail = createSegment(nextSegmentId++, recordLength);
+            segments.addLast(tail);
+        }
+        
+        MappedByteBuffer buffer = tail.buffer;
+        buffer.putInt(message.length);
+        buffer.putInt(checksum(message.length, message));
+        buffer.put(message);
+        size++;
+        
+        if (unsyncedBuffers.isEmpty() || 
+                unsyncedBuffers.get(unsyncedBuffers.size() - 1) != buffer) {
+            unsyncedBuffers.add(buffer);
+        }
+        
+        return ++unsyncedMessages >= syncEveryMessages;
+    }
+    
+    /**
+     * Reads the head message. Must be called with the lock held and the store
+     * being non-empty.
+     * 
+     * @return the head message.
+     */
+    private byte[] readHead() {
+        Segment head = segments.peekFirst();
+        
+        while (head.isDrained()) {
+            deleteSegment(segments.removeFirst());
+            head = segments.peekFirst();
+        }
+        
+        MappedByteBuffer buffer = head.buffer;
+        int messageLength = buffer.getInt(head.readPosition);
+        byte[] message = new byte[messageLength];
+        ByteBuffer view = buffer.duplicate();
+        view.position(head.readPosition + RECORD_HEADER_BYTES);
+        view.get(message);
+        head.readPosition += RECORD_HEADER_BYTES + messageLength;
+        size--;
+        
+        if (head.isDrained() && segments.size() > 1) {
+            deleteSegment(segments.removeFirst());
+        }
+        
+        return message;
+    }
+    
+    /**
+     * Loads the checkpoint and the segments. Called only upon opening.
+     * 
+     * @throws IOException if a segment cannot be read or deleted.
+     */
+    private void recover() throws IOException {
+        long checkpointSegmentId = -1L;
+        int checkpointPosition = 0;
+        
+        if (checkpoint.getInt(8 + 4) == checkpointChecksum()) {
+            checkpointSegmentId = checkpoint.getLong(0);
+            checkpointPosition = checkpoint.getInt(8);
+        }
+        
+        List<Long> segmentIds = listSegmentIds();
+        
+        for (int i = 0; i < segmentIds.size(); i++) {
+            long segmentId = segmentIds.get(i);
+            Path path = getSegmentPath(segmentId);
+            
+            if (segmentId < checkpointSegmentId) {
+                // Already consumed:
+                Files.delete(path);
+                continue;
+            }
+            
+            Segment segment = 
+                    new Segment(segmentId, path, map(path, Files.size(path)));
+            boolean isTail = i == segmentIds.size() - 1;
+            recoverSegment(
+                    segment,
+                    segmentId == checkpointSegmentId ? checkpointPosition : 0,
+                    isTail);
+            segments.addLast(segment);
+        }
+        
+        nextSegmentId = 
+                Math.max(checkpointSegmentId + 1L,
+                         segmentIds.isEmpty() ? 
+                                 0L : 
+                                 segmentIds.get(segmentIds.size() - 1) + 1L);
+        size = recoveredMessageCount;
+        LOGGER.log(Level.FINE, 
+                   "Recovered {0} messages from {1}.", 
+                   new Object[]{ recoveredMessageCount, directory });
+    }
+    
+    /**
+     * Scans the records of the segment and sets its read and write positions.
+     * The bytes following the last valid record of the tail segment are 
+     * wiped, so that the appends never mix with a torn record.
+     * 
+     * @param segment            the segment to scan.
+     * @param checkpointPosition the checkpointed read position.
+     * @param isTail             whether the segment is the last one.
+     */
+    private void recoverSegment(Segment segment, 
+                                int checkpointPosition, 
+                                boolean isTail) {
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        int readPosition = -1;
+        
+        while (true) {
+            if (readPosition < 0 && position >= checkpointPosition) {
+                readPosition = position;
+            }
+            
+            int recordLength = getValidRecordLength(buffer, position);
+            
+            if (recordLength < 0) {
+                break;
+            }
+            
+            if (readPosition >= 0) {
+                recoveredMessageCount++;
+                recoveredByteCount += recordLength - RECORD_HEADER_BYTES;
+            }
+            
+            position += recordLength;
+        }
+        
+        buffer.position(position);
+        // A torn record may precede the checkpoint:
+        segment.readPosition = readPosition < 0 ? position : readPosition;
+        
+        if (isTail && position < buffer.capacity()) {
+            LOGGER.log(Level.FINE, 
+                       "Wiping the tail of {0} from position {1}.", 
+                       new Object[]{ segment.path, position });
+            wipe(buffer, position);
+            unsyncedBuffers.add(buffer);
+        }
+    }
+    
+    private static void wipe(ByteBuffer buffer, int position) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        byte[] zeros = new byte[Math.min(view.remaining(), 64 * 1024)];
+        
+        while (view.hasRemaining()) {
+            view.put(zeros, 0, Math.min(zeros.length, view.remaining()));
+        }
+    }
+    
+    /**
+     * Returns the length of the record at the given position, or -1 if there
+     * is no valid record at the position.
+     */
+    private int getValidRecordLength(ByteBuffer buffer, int position) {
+        if (buffer.capacity() - position < RECORD_HEADER_BYTES) {
+            return -1;
+        }
+        
+        int messageLength = buffer.getInt(position);
+        int payloadPosition = position + RECORD_HEADER_BYTES;
+        
+        if (messageLength < 0 || 
+                messageLength > buffer.capacity() - payloadPosition) {
+            return -1;
+        }
+        
+        ByteBuffer view = buffer.duplicate();
+        view.position(payloadPosition);
+        view.limit(payloadPosition + messageLength);
+        crc32.reset();
+        updateChecksum(messageLength);
+        crc32.update(view);
+        
+        if ((int) crc32.getValue() != buffer.getInt(position + 4)) {
+            return -1;
+        }
+        
+        return RECORD_HEADER_BYTES + messageLength;
+    }
+    
+    private int checksum(int messageLength, byte[] message) {
+        crc32.reset();
+        updateChecksum(messageLength);
+        crc32.update(message);
+        return (int) crc32.getValue();
+    }
+    
+    private void updateChecksum(int value) {
+        crc32.update(value >>> 24);
+        crc32.update(value >>> 16);
+        crc32.update(value >>> 8);
+        crc32.update(value);
+    }
+    
+    private int checkpointChecksum() {
+        crc32.reset();
+        
+        for (int i = 0; i < CHECKPOINT_BYTES - 4; i++) {
+            crc32.update(checkpoint.get(i));
+        }
+        
+        return (int) crc32.getValue();
+    }
+    
+    private void writeCheckpoint() {
+        Segment head = segments.peekFirst();
+        
+        if (head == null) {
+            return;
+        }
+        
+        checkpoint.putLong(0, head.id);
+        checkpoint.putInt(8, head.readPosition);
+        checkpoint.putInt(8 + 4, checkpointChecksum());
+    }
+    
+    private Segment createSegment(long segmentId, int recordLength) {
+        Path path = getSegmentPath(segmentId);
+        
+        try {
+            return new Segment(segmentId, 
+                               path, 
+                               map(path, Math.max(segmentBytes, recordLength)));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(
+                    "Could not create the segment " + path + ".", ex);
+        }
+    }
+    
+    /**
+     * Opens the channel of a segment for transferring its regions, unless 
+     * already open. Must be called with the lock held.
+     * 
+     * @param segment the segment.
+     * @return {@code false} if the channel cannot be opened, in which case
+     *         the records are to be read from the mapping instead.
+     */
+    private boolean openChannel(Segment segment) {
+        if (segment.channel != null) {
+            return true;
+        }
+        
+        try {
+            segment.channel = 
+                    FileChannel.open(segment.path, StandardOpenOption.READ);
+            return true;
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, 
+                       "Could not open the segment " + segment.path + ".",
+                       ex);
+            return false;
+        }
+    }
+    
+    private void releaseRegion(Segment segment) {
+        lock.lock();
+        
+        try {
+            if (--segment.regionCount == 0 && segment.deleted) {
+                closeChannel(segment);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private static void closeChannel(Segment segment) {
+        if (segment.channel == null) {
+            return;
+        }
+        
+        try {
+            segment.channel.close();
+        } catch (IOException ex) {
+            // Nothing to do with it.
+        }
+        
+        segment.channel = null;
+    }
+    
+    /**
+     * Deletes the file of a segment. The channel of the segment is closed
+     * once its last region is released; until then, the deleted file stays
+     * readable through it.
+     */
+    private void deleteSegment(Segment segment) {
+        segment.deleted = true;
+        
+        if (segment.regionCount == 0) {
+            closeChannel(segment);
+        }
+        
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException ex) {
+            // Deleted upon the next recovery as it precedes the checkpoint.
+            LOGGER.log(Level.WARNING, 
+                       "Could not delete the segment " + segment.path + ".",
+                       ex);
+        }
+    }
+    
+    private List<Long> listSegmentIds() throws IOException {
+        List<Long> segmentIds = new ArrayList<>();
+        
+        try (DirectoryStream<Path> stream = 
+                Files.newDirectoryStream(directory, "*" + SEGMENT_FILE_SUFFIX)) {
+            for (Path path : stream) {
+                String fileName = path.getFileName().toString();
+                
+                try {
+                    segmentIds.add(Long.parseLong(
+                            fileName.substring(
+                                    0, 
+                                    fileName.length() - 
+                                            SEGMENT_FILE_SUFFIX.length())));
+                } catch (NumberFormatException ex) {
+                    LOGGER.log(Level.WARNING, 
+                               "Ignoring a foreign file {0}.", 
+                               path);
+                }
+            }
+        }
+        
+        Collections.sort(segmentIds);
+        return segmentIds;
+    }
+    
+    private Path getSegmentPath(long segmentId) {
+        return directory.resolve(
+                String.format("%020d%s", segmentId, SEGMENT_FILE_SUFFIX));
+    }
+    
+    /**
+     * Maps the file into memory, creating and extending it to the given size
+     * if necessary. The mapping outlives the file handle.
+     */
+    private static MappedByteBuffer map(Path path, long size) 
+            throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            if (file.length() < size) {
+                file.setLength(size);
+            }
+            
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 
+                                         0L, 
+                                         size);
+        }
+    }
+}
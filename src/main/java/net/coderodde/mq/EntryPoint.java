@@ -1,6 +1,8 @@
 package net.coderodde.mq;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.logging.Logger;
 import static net.coderodde.mq.MagicConstants.TextResources.ENTRY_SUBSYSTEM_NAME;
 import static net.coderodde.mq.Utilities.checkPortNumber;
@@ -15,50 +17,116 @@ public final class EntryPoint {
     
     private static final Logger LOGGER = Logger.getLogger(ENTRY_SUBSYSTEM_NAME);
     
+    /**
+     * The first argument starting the load generator instead of a handler.
+     */
+    private static final String PERF_COMMAND = "perf";
+    
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals(PERF_COMMAND)) {
+            runPerfTest(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        
         int portNumber = MagicConstants.DEFAULT_PORT_NUMBER;
+        MessageQueueHandler.Mode mode = MessageQueueHandler.Mode.BLOCKING;
         
-        switch (args.length) {
-            case 0:
-                break;
-                
-            case 1:
-                portNumber = checkPortNumber(portNumber);
-                break;
-                
-            default:
-                LOGGER.severe(
-                        String.format(
-                                MagicConstants
-                                .TextResources
-                                .INVALID_ARGUMENT_COUNT_ERROR_MESSAGE_FORMAT, 
-                                args.length));
-                
-                System.out.println(MagicConstants.TextResources.HELP_MESSAGE);
-                System.exit(1);
+        try {
+            switch (args.length) {
+                case 0:
+                    break;
+                    
+                case 1:
+                    portNumber = checkPortNumber(Integer.parseInt(args[0]));
+                    break;
+                    
+                case 2:
+                    mode = parseMode(args[1]);
+                    portNumber = checkPortNumber(Integer.parseInt(args[0]));
+                    break;
+                    
+                default:
+                    LOGGER.severe(
+                            String.format(
+                                    MagicConstants
+                                    .TextResources
+                                    .INVALID_ARGUMENT_COUNT_ERROR_MESSAGE_FORMAT, 
+                                    args.length));
+                    
+                    System.out.println(
+                            MagicConstants.TextResources.HELP_MESSAGE);
+                    System.exit(1);
+            }
+        } catch (IllegalArgumentException ex) {
+            LOGGER.severe(ex.getMessage());
+            System.out.println(MagicConstants.TextResources.HELP_MESSAGE);
+            System.exit(1);
         }
-        LOGGER.info("Using port number " + portNumber + ".");
+        
+        LOGGER.info("Using port number " + portNumber + " in mode " + 
+                    mode + ".");
         MessageQueueHandler messageQueueHandler = null;
 
         try {
-            messageQueueHandler = new MessageQueueHandler(portNumber);
-        } catch (IOException ex) {
-            LOGGER.severe("IOException: " + ex.getMessage());
+            messageQueueHandler = new MessageQueueHandler(portNumber, mode);
+        } catch (IOException | UnsupportedOperationException ex) {
+            LOGGER.severe(ex.getClass().getSimpleName() + ": " + 
+                          ex.getMessage());
             System.exit(1);
         }
 
-        messageQueueHandler.run();
-        MessageQueueConsumer messageQueueConsumer;
+        // Keep the in-memory queues over a restart:
+        messageQueueHandler.setSnapshotFile(
+                Paths.get(MagicConstants.DEFAULT_DATA_DIRECTORY, 
+                          MagicConstants.DEFAULT_SNAPSHOT_FILE_NAME));
+        Runtime.getRuntime().addShutdownHook(
+                new Thread(messageQueueHandler::requestHalt, 
+                           "rodde.mq-shutdown"));
+        messageQueueHandler.start();
+    }
+    
+    /**
+     * Runs the load generator against a running handler.
+     * 
+     * @param args the options following {@code perf}.
+     */
+    private static void runPerfTest(String[] args) {
+        PerfTest perfTest = null;
         
         try {
-            messageQueueConsumer = 
-                    new MessageQueueConsumer("my-queue", 
-                                             "127.0.0.1", 
-                                             portNumber);
-        } catch (IOException ex) {
-            System.out.println("oh shit");
+            perfTest = new PerfTest(args);
+        } catch (IllegalArgumentException ex) {
+            LOGGER.severe(ex.getMessage());
+            System.out.println(MagicConstants.TextResources.PERF_HELP_MESSAGE);
+            System.exit(1);
         }
         
-    }       
+        try {
+            perfTest.run(System.out);
+        } catch (IOException | InterruptedException ex) {
+            LOGGER.severe(ex.getClass().getSimpleName() + ": " + 
+                          ex.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Parses the mode argument, such as {@code non-blocking}.
+     * 
+     * @param modeName the mode argument.
+     * @return the mode.
+     */
+    private static MessageQueueHandler.Mode parseMode(String modeName) {
+        try {
+            return MessageQueueHandler.Mode.valueOf(
+                    modeName.toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException(
+                    String.format(
+                            MagicConstants
+                            .TextResources
+                            .INVALID_MODE_ERROR_MESSAGE_FORMAT,
+                            modeName));
+        }
+    }
 }
-
@@ -0,0 +1,114 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * This class describes a run of consecutive message records taken from a log
+ * segment of a durable queue. The records are sent to a consumer straight
+ * from the segment file with {@link FileChannel#transferTo}, so that the
+ * messages never pass through the Java heap. The segment file stays open
+ * until the region is released, even if the segment is deleted meanwhile.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class FileRegion {
+    
+    /**
+     * The channel of the segment file.
+     */
+    private final FileChannel channel;
+    
+    /**
+     * The file position following the last record.
+     */
+    private final long endPosition;
+    
+    /**
+     * The number of record bytes, including the record headers.
+     */
+    private final int recordBytes;
+    
+    /**
+     * The number of messages in this region.
+     */
+    private final int messageCount;
+    
+    /**
+     * The number of message bytes in this region.
+     */
+    private final long byteCount;
+    
+    /**
+     * Called once the region is released.
+     */
+    private final Runnable releaser;
+    
+    /**
+     * The file position of the first byte not yet transferred.
+     */
+    private long position;
+    
+    FileRegion(FileChannel channel,
+               long position,
+               int recordBytes,
+               int messageCount,
+               long byteCount,
+               Runnable releaser) {
+        this.channel = channel;
+        this.position = position;
+        this.endPosition = position + recordBytes;
+        this.recordBytes = recordBytes;
+        this.messageCount = messageCount;
+        this.byteCount = byteCount;
+        this.releaser = releaser;
+    }
+    
+    int getRecordBytes() {
+        return recordBytes;
+    }
+    
+    int getMessageCount() {
+        return messageCount;
+    }
+    
+    long getByteCount() {
+        return byteCount;
+    }
+    
+    boolean isTransferred() {
+        return position == endPosition;
+    }
+    
+    /**
+     * Transfers as many of the remaining bytes as the target accepts. A
+     * blocking target accepts all of them.
+     * 
+     * @param target the channel to transfer to.
+     * @throws IOException if the I/O fails.
+     */
+    void transferTo(WritableByteChannel target) throws IOException {
+        while (position < endPosition) {
+            long transferred =
+                    channel.transferTo(position,
+                                       endPosition - position,
+                                       target);
+            
+            if (transferred == 0L) {
+                // A non-blocking target is full.
+                return;
+            }
+            
+            position += transferred;
+        }
+    }
+    
+    /**
+     * Releases the segment file. Must be called exactly once.
+     */
+    void release() {
+        releaser.run();
+    }
+}
@@ -0,0 +1,1133 @@
+package net.coderodde.mq;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * This class implements a protocol version 2 frame. On the wire, a frame
+ * looks like:
+ * <pre>
+ *   int32 length    - the number of bytes following this field,
+ *   int8  type      - one of the {@code FRAME_TYPE_*} constants,
+ *   int8  flags     - reserved for the frame type,
+ *   int32 count     - the number of records in the body,
+ *   ...   body      - {@code count} records.
+ * </pre>
+ * For the message frames, each record is an {@code int32} length followed by
+ * the message bytes, so that a single frame carries any number of messages in
+ * one write. A message frame delivered from a retained queue has the
+ * {@link MagicConstants#FRAME_FLAG_OFFSET} flag set, and its body starts with
+ * the {@code int64} offset of its first message. A message frame sent by a
+ * producer to a partitioned queue may have the 
+ * {@link MagicConstants#FRAME_FLAG_KEY} flag set, in which case its body 
+ * starts with the {@code int32} hash of the partition key. A message frame
+ * delivered from the log of a durable queue may have the 
+ * {@link MagicConstants#FRAME_FLAG_CHECKSUMS} flag set, in which case each
+ * record carries the CRC32 of its length and message, verified upon reading.
+ * A message frame with the {@link MagicConstants#FRAME_FLAG_COMPRESSED} flag
+ * set carries its records compressed as a whole by a 
+ * {@link CompressionCodec}, preceded by the {@code int8} codec ID and the
+ * {@code int32} decompressed length; the records are decompressed upon 
+ * reading. A message frame sent by a producer may have the 
+ * {@link MagicConstants#FRAME_FLAG_SCHEDULED} flag set, in which case its 
+ * body carries the delay and the time to live of its messages, following 
+ * the key hash if any.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class Frame {
+    
+    /**
+     * The type of this frame.
+     */
+    private final byte type;
+    
+    /**
+     * The flags of this frame.
+     */
+    private final byte flags;
+    
+    /**
+     * The number of records in the body.
+     */
+    private final int count;
+    
+    /**
+     * The body of this frame.
+     */
+    private final ByteBuffer body;
+    
+    Frame(byte type, byte flags, int count, ByteBuffer body) {
+        this.type = type;
+        this.flags = flags;
+        this.count = count;
+        this.body = body;
+    }
+    
+    byte getType() {
+        return type;
+    }
+    
+    byte getFlags() {
+        return flags;
+    }
+    
+    int getCount() {
+        return count;
+    }
+    
+    ByteBuffer getBody() {
+        return body;
+    }
+    
+    /**
+     * Copies the message records of this frame to the collection.
+     * 
+     * @param messages the collection to append the messages to.
+     * @throws IOException if the frame body is malformed.
+     */
+    void readMessages(Collection<byte[]> messages) throws IOException {
+        ByteBuffer buffer = getRecords();
+        CRC32 crc32 = hasChecksums() ? new CRC32() : null;
+        
+        for (int i = 0; i < count; i++) {
+            int messageLength = readRecordHeader(buffer);
+            byte[] message = new byte[messageLength];
+            buffer.get(message);
+            
+            if (crc32 != null) {
+                checkChecksum(crc32, 
+                              messageLength, 
+                              message, 
+                              buffer.getInt(buffer.position() - 
+                                            messageLength - 4));
+            }
+            
+            messages.add(message);
+        }
+    }
+    
+    /**
+     * Validates the message records of this frame without copying them.
+     * 
+     * @return the total number of message bytes.
+     * @throws IOException if the frame body is malformed.
+     */
+    long countMessageBytes() throws IOException {
+        ByteBuffer buffer = getRecords();
+        long byteCount = 0L;
+        
+        for (int i = 0; i < count; i++) {
+            int messageLength = readRecordHeader(buffer);
+            buffer.position(buffer.position() + messageLength);
+            byteCount += messageLength;
+        }
+        
+        return byteCount;
+    }
+    
+    /**
+     * Returns {@code true} if this message frame carries the offset of its 
+     * first message.
+     * 
+     * @return whether the offset is present.
+     */
+    boolean hasOffset() {
+        return (flags & MagicConstants.FRAME_FLAG_OFFSET) != 0;
+    }
+    
+    /**
+     * Returns the offset of the first message of a message frame delivered 
+     * from a retained queue.
+     * 
+     * @return the offset of the first message.
+     * @throws IOException if the frame body is malformed.
+     */
+    long getFirstOffset() throws IOException {
+        checkBodyLength(8);
+        return body.getLong(0);
+    }
+    
+    /**
+     * Returns {@code true} if this message frame carries the hash of a 
+     * partition key.
+     * 
+     * @return whether the key hash is present.
+     */
+    boolean hasKey() {
+        return (flags & MagicConstants.FRAME_FLAG_KEY) != 0;
+    }
+    
+    /**
+     * Returns {@code true} if the records of this message frame carry 
+     * checksums.
+     * 
+     * @return whether the checksums are present.
+     */
+    boolean hasChecksums() {
+        return (flags & MagicConstants.FRAME_FLAG_CHECKSUMS) != 0;
+    }
+    
+    /**
+     * Returns {@code true} if the records of this message frame are 
+     * compressed.
+     * 
+     * @return whether the records are compressed.
+     */
+    boolean isCompressed() {
+        return (flags & MagicConstants.FRAME_FLAG_COMPRESSED) != 0;
+    }
+    
+    /**
+     * Returns the part of the body of a compressed message frame starting at
+     * the codec ID, without decompressing it.
+     * 
+     * @return the compressed records together with their header.
+     * @throws IOException if the frame body is malformed.
+     */
+    ByteBuffer getCompressedRecords() throws IOException {
+        ByteBuffer buffer = body.duplicate();
+        buffer.position(getRecordsStart());
+        
+        if (buffer.remaining() < MagicConstants.COMPRESSION_HEADER_LENGTH) {
+            throw new IOException("Truncated compression header.");
+        }
+        
+        return buffer.slice();
+    }
+    
+    boolean isScheduled() {
+        return (flags & MagicConstants.FRAME_FLAG_SCHEDULED) != 0;
+    }
+    
+    /**
+     * Returns the number of milliseconds the delivery of the messages of a
+     * scheduled message frame is delayed by.
+     * 
+     * @return the delay, or zero if this frame is not scheduled.
+     * @throws IOException if the frame body is malformed.
+     */
+    long getDelayMillis() throws IOException {
+        return getScheduleField(0);
+    }
+    
+    /**
+     * Returns the number of milliseconds the messages of a scheduled message
+     * frame may wait in the queue.
+     * 
+     * @return the time to live, or zero if there is none.
+     * @throws IOException if the frame body is malformed.
+     */
+    long getTtlMillis() throws IOException {
+        return getScheduleField(8);
+    }
+    
+    /**
+     * Encodes a copy of a message frame marked as scheduled. 
+     * 
+     * @param frame       the encoded message frame, ready for reading.
+     * @param delayMillis the delay of the delivery in milliseconds.
+     * @param ttlMillis   the time to live in milliseconds, or zero for none.
+     * @return the buffer holding the entire scheduled frame, ready for 
+     *         reading.
+     */
+    static ByteBuffer encodeScheduled(ByteBuffer frame, 
+                                      long delayMillis, 
+                                      long ttlMillis) {
+        int length = frame.getInt(frame.position()) + 8 + 8;
+        checkFrameLength(length);
+        byte flags = frame.get(frame.position() + 4 + 1);
+        int prefixLength = 4 + MagicConstants.FRAME_HEADER_LENGTH + 
+                           ((flags & MagicConstants.FRAME_FLAG_KEY) != 0 ? 
+                                   4 : 0);
+        ByteBuffer source = frame.duplicate();
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        source.position(source.position() + 4);
+        buffer.putInt(length)
+              .put(source.get())
+              .put((byte) (source.get() | 
+                           MagicConstants.FRAME_FLAG_SCHEDULED));
+        source.limit(frame.position() + prefixLength);
+        buffer.put(source)
+              .putLong(delayMillis)
+              .putLong(ttlMillis);
+        source.limit(frame.limit());
+        buffer.put(source);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Returns the partition key hash of a keyed message frame.
+     * 
+     * @return the key hash.
+     * @throws IOException if the frame body is malformed.
+     */
+    int getKeyHash() throws IOException {
+        checkBodyLength(4);
+        return body.getInt(0);
+    }
+    
+    /**
+     * Returns the message records of this frame.
+     * 
+     * @return the list of messages.
+     * @throws IOException if the frame body is malformed.
+     */
+    List<byte[]> getMessages() throws IOException {
+        List<byte[]> messages = new ArrayList<>();
+        readMessages(messages);
+        return messages;
+    }
+    
+    /**
+     * Encodes a message frame.
+     * 
+     * @param messages the messages to pack.
+     * @return the buffer holding the entire frame, ready for reading.
+     */
+    static ByteBuffer encodeMessages(List<byte[]> messages) {
+        int length = MagicConstants.FRAME_HEADER_LENGTH + 
+                     countRecordBytes(messages);
+        checkFrameLength(length);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length)
+              .put(MagicConstants.FRAME_TYPE_MESSAGES)
+              .put((byte) 0)
+              .putInt(messages.size());
+        
+        for (byte[] message : messages) {
+            buffer.putInt(message.length).put(message);
+        }
+        
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Encodes a message frame routed to a partition by the key hash.
+     * 
+     * @param keyHash  the hash of the partition key.
+     * @param messages the messages to pack.
+     * @return the buffer holding the entire frame, ready for reading.
+     */
+    static ByteBuffer encodeKeyedMessages(int keyHash, List<byte[]> messages) {
+        int length = MagicConstants.FRAME_HEADER_LENGTH + 4 + 
+                     countRecordBytes(messages);
+        checkFrameLength(length);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length)
+              .put(MagicConstants.FRAME_TYPE_MESSAGES)
+              .put(MagicConstants.FRAME_FLAG_KEY)
+              .putInt(messages.size())
+              .putInt(keyHash);
+        
+        for (byte[] message : messages) {
+            buffer.putInt(message.length).put(message);
+        }
+        
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Encodes a message frame with the records compressed as a whole.
+     * 
+     * @param codec    the codec to compress with.
+     * @param messages the messages to pack.
+     * @return the buffer holding the entire frame, ready for reading.
+     */
+    static ByteBuffer encodeCompressedMessages(CompressionCodec codec,
+                                               List<byte[]> messages) {
+        return encodeCompressedMessages(codec, messages, false, 0);
+    }
+    
+    /**
+     * Encodes a message frame routed to a partition by the key hash, with the
+     * records compressed as a whole.
+     * 
+     * @param keyHash  the hash of the partition key.
+     * @param codec    the codec to compress with.
+     * @param messages the messages to pack.
+     * @return the buffer holding the entire frame, ready for reading.
+     */
+    static ByteBuffer encodeKeyedCompressedMessages(int keyHash,
+                                                    CompressionCodec codec,
+                                                    List<byte[]> messages) {
+        return encodeCompressedMessages(codec, messages, true, keyHash);
+    }
+    
+    /**
+     * Encodes a compressed message frame out of the records compressed 
+     * beforehand.
+     * 
+     * @param messageCount      the number of messages.
+     * @param compressedRecords the array holding the codec ID, the 
+     *                          decompressed length and the compressed 
+     *                          records.
+     * @param offset            the index of the codec ID.
+     * @return the buffer holding the entire frame, ready for reading.
+     */
+    static ByteBuffer encodeCompressedRecords(int messageCount,
+                                              byte[] compressedRecords,
+                                              int offset) {
+        int length = MagicConstants.FRAME_HEADER_LENGTH + 
+                     compressedRecords.length - offset;
+        checkFrameLength(length);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length)
+              .put(MagicConstants.FRAME_TYPE_MESSAGES)
+              .put(MagicConstants.FRAME_FLAG_COMPRESSED)
+              .putInt(messageCount)
+              .put(compressedRecords, 
+                   offset, 
+                   compressedRecords.length - offset);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Packs the messages into records: each message preceded by its 
+     * {@code int32} length.
+     * 
+     * @param messages the messages to pack.
+     * @return the records.
+     */
+    static byte[] encodeRecords(List<byte[]> messages) {
+        int recordBytes = countRecordBytes(messages);
+        checkFrameLength(MagicConstants.FRAME_HEADER_LENGTH + recordBytes);
+        ByteBuffer buffer = ByteBuffer.allocate(recordBytes);
+        
+        for (byte[] message : messages) {
+            buffer.putInt(message.length).put(message);
+        }
+        
+        return buffer.array();
+    }
+    
+    /**
+     * Allocates a message frame carrying the offset of its first message, and
+     * fills in everything but the message records. The records are to be 
+     * put by the caller before flipping the buffer.
+     * 
+     * @param firstOffset  the offset of the first message.
+     * @param messageCount the number of messages.
+     * @param recordBytes  the total length of the message records.
+     * @return the buffer positioned at the first record.
+     */
+    static ByteBuffer allocateOffsetMessages(long firstOffset, 
+                                             int messageCount,
+                                             int recordBytes) {
+        int length = MagicConstants.FRAME_HEADER_LENGTH + 8 + recordBytes;
+        checkFrameLength(length);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length)
+              .put(MagicConstants.FRAME_TYPE_MESSAGES)
+              .put(MagicConstants.FRAME_FLAG_OFFSET)
+              .putInt(messageCount)
+              .putLong(firstOffset);
+        return buffer;
+    }
+    
+    /**
+     * Encodes the header of a message frame of checksummed records. The 
+     * records themselves follow separately, as they are laid out in a log
+     * segment.
+     * 
+     * @param messageCount the number of records.
+     * @param recordBytes  the number of record bytes.
+     * @return the buffer holding the frame header, ready for reading.
+     */
+    static ByteBuffer encodeChecksummedMessagesHeader(int messageCount, 
+                                                      int recordBytes) {
+        int length = MagicConstants.FRAME_HEADER_LENGTH + recordBytes;
+        checkFrameLength(length);
+        ByteBuffer buffer = 
+                ByteBuffer.allocate(4 + MagicConstants.FRAME_HEADER_LENGTH);
+        buffer.putInt(length)
+              .put(MagicConstants.FRAME_TYPE_MESSAGES)
+              .put(MagicConstants.FRAME_FLAG_CHECKSUMS)
+              .putInt(messageCount);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Encodes a frame with no records.
+     * 
+     * @param type the frame type.
+     * @return the buffer holding the entire frame, ready for reading.
+     */
+    static ByteBuffer encodeEmpty(byte type) {
+        ByteBuffer buffer =
+                ByteBuffer.allocate(4 + MagicConstants.FRAME_HEADER_LENGTH);
+        buffer.putInt(MagicConstants.FRAME_HEADER_LENGTH)
+              .put(type)
+              .put((byte) 0)
+              .putInt(0);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Encodes a credit frame.
+     * 
+     * @param messageCredit the number of messages granted.
+     * @param byteCredit    the number of bytes granted.
+     * @return the buffer holding the entire frame, ready for reading.
+     */
+    static ByteBuffer encodeCredit(long messageCredit, long byteCredit) {
+        int length = MagicConstants.FRAME_HEADER_LENGTH + 8 + 8;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length)
+              .put(MagicConstants.FRAME_TYPE_CREDIT)
+              .put((byte) 0)
+              .putInt(0)
+              .putLong(messageCredit)
+              .putLong(byteCredit);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Encodes a seek frame.
+     * 
+     * @param offset the offset to seek to, or one of 
+     *               {@link MagicConstants#EARLIEST_OFFSET} and 
+     *               {@link MagicConstants#LATEST_OFFSET}.
+     * @return the buffer holding the entire frame, ready for reading.
+     */
+    static ByteBuffer encodeSeek(long offset) {
+        int length = MagicConstants.FRAME_HEADER_LENGTH + 8;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length)
+              .put(MagicConstants.FRAME_TYPE_SEEK)
+              .put((byte) 0)
+              .putInt(0)
+              .putLong(offset);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Returns the offset of a seek frame.
+     * 
+     * @return the offset.
+     * @throws IOException if the frame body is malformed.
+     */
+    long getSeekOffset() throws IOException {
+        checkBodyLength(8);
+        return body.getLong(0);
+    }
+    
+    /**
+     * Encodes an acknowledgement frame.
+     * 
+     * @param acknowledgedMessageCount the number of messages acknowledged 
+     *                                 since the first acknowledgement frame.
+     * @return the buffer holding the entire frame, ready for reading.
+     */
+    static ByteBuffer encodeAck(long acknowledgedMessageCount) {
+        int length = MagicConstants.FRAME_HEADER_LENGTH + 8;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length)
+              .put(MagicConstants.FRAME_TYPE_ACK)
+              .put((byte) 0)
+              .putInt(0)
+              .putLong(acknowledgedMessageCount);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Returns the cumulative message count of an acknowledgement frame.
+     * 
+     * @return the number of messages acknowledged since the first 
+     *         acknowledgement frame.
+     * @throws IOException if the frame body is malformed.
+     */
+    long getAcknowledgedMessageCount() throws IOException {
+        checkBodyLength(8);
+        long acknowledgedMessageCount = body.getLong(0);
+        
+        if (acknowledgedMessageCount < 0L) {
+            throw new IOException(
+                    "Negative acknowledged message count: " + 
+                    acknowledgedMessageCount);
+        }
+        
+        return acknowledgedMessageCount;
+    }
+    
+    /**
+     * Encodes a frame opening a channel of a multiplexed connection.
+     * 
+     * @param channelId        the channel ID.
+     * @param roleName         the role of the client of the channel.
+     * @param messageQueueName the name of the queue.
+     * @return the buffer holding the entire frame, ready for reading.
+     */
+    static ByteBuffer encodeOpen(int channelId, 
+                                 String roleName, 
+                                 String messageQueueName) {
+        byte[] roleNameBytes = roleName.getBytes();
+        byte[] messageQueueNameBytes = messageQueueName.getBytes();
+        
+        if (messageQueueNameBytes.length > 255) {
+            throw new IllegalArgumentException(
+                    "The message queue name is too long: " + 
+                    messageQueueNameBytes.length + " bytes.");
+        }
+        
+        int length = MagicConstants.FRAME_HEADER_LENGTH + 
+                     2 + roleNameBytes.length + messageQueueNameBytes.length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length)
+              .put(MagicConstants.FRAME_TYPE_OPEN)
+              .put((byte) 0)
+              .putInt(channelId)
+              .put((byte) roleNameBytes.length)
+              .put(roleNameBytes)
+              .put((byte) messageQueueNameBytes.length)
+              .put(messageQueueNameBytes);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Encodes the reply of the handler confirming the opening of a channel.
+     * 
+     * @param channelId the channel ID.
+     * @param codecId   the ID of the codec chosen for the channel.
+     * @return the buffer holding the entire frame, ready for reading.
+     */
+    static ByteBuffer encodeOpened(int channelId, byte codecId) {
+        int length = MagicConstants.FRAME_HEADER_LENGTH + 1;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length)
+              .put(MagicConstants.FRAME_TYPE_OPEN)
+              .put((byte) 0)
+              .putInt(channelId)
+              .put(codecId);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Encodes a frame carrying the remaining bytes of an entire frame of a 
+     * channel.
+     * 
+     * @param channelId the channel ID.
+     * @param frame     the frame of the channel. Left intact.
+     * @return the buffer holding the entire frame, ready for reading.
+     */
+    static ByteBuffer encodeChannel(int channelId, ByteBuffer frame) {
+        int length = MagicConstants.FRAME_HEADER_LENGTH + frame.remaining();
+        checkFrameLength(length);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length)
+              .put(MagicConstants.FRAME_TYPE_CHANNEL)
+              .put((byte) 0)
+              .putInt(channelId)
+              .put(frame.duplicate());
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Returns the frame of a channel carried by this frame.
+     * 
+     * @return the frame of the channel.
+     * @throws IOException if the carried frame is malformed.
+     */
+    Frame getChannelFrame() throws IOException {
+        ByteBuffer buffer = body.duplicate();
+        Frame frame = decode(buffer);
+        
+        if (frame == null || buffer.hasRemaining()) {
+            throw new IOException("Malformed channel frame.");
+        }
+        
+        return frame;
+    }
+    
+    /**
+     * Encodes a replication frame carrying an entire message frame of a 
+     * retained queue.
+     * 
+     * @param queueName the name of the queue.
+     * @param frame     the message frame with the offset. Left intact.
+     * @return the buffer holding the entire frame, ready for reading.
+     */
+    static ByteBuffer encodeReplicate(String queueName, ByteBuffer frame) {
+        byte[] queueNameBytes = queueName.getBytes(StandardCharsets.UTF_8);
+        int length = MagicConstants.FRAME_HEADER_LENGTH + 
+                     1 + queueNameBytes.length + frame.remaining();
+        checkFrameLength(length);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length)
+              .put(MagicConstants.FRAME_TYPE_REPLICATE)
+              .put((byte) 0)
+              .putInt(0)
+              .put((byte) queueNameBytes.length)
+              .put(queueNameBytes)
+              .put(frame.duplicate());
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Encodes the reply of a follower to a replication frame.
+     * 
+     * @param queueName the name of the queue.
+     * @param endOffset the offset the next message appended to the queue 
+     *                  receives.
+     * @return the buffer holding the entire frame, ready for reading.
+     */
+    static ByteBuffer encodeReplicated(String queueName, long endOffset) {
+        byte[] queueNameBytes = queueName.getBytes(StandardCharsets.UTF_8);
+        int length = MagicConstants.FRAME_HEADER_LENGTH + 
+                     1 + queueNameBytes.length + 8;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length)
+              .put(MagicConstants.FRAME_TYPE_REPLICATED)
+              .put((byte) 0)
+              .putInt(0)
+              .put((byte) queueNameBytes.length)
+              .put(queueNameBytes)
+              .putLong(endOffset);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Returns the queue name of a replication frame or of its reply.
+     * 
+     * @return the name of the queue.
+     * @throws IOException if the frame body is malformed.
+     */
+    String getReplicatedQueueName() throws IOException {
+        checkBodyLength(1);
+        int queueNameLength = body.get(0) & 0xff;
+        checkBodyLength(1 + queueNameLength);
+        byte[] queueNameBytes = new byte[queueNameLength];
+        ByteBuffer buffer = body.duplicate();
+        buffer.position(1);
+        buffer.get(queueNameBytes);
+        return new String(queueNameBytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Returns the message frame carried by a replication frame.
+     * 
+     * @return the message frame with the offset.
+     * @throws IOException if the carried frame is malformed.
+     */
+    Frame getReplicatedFrame() throws IOException {
+        checkBodyLength(1);
+        int position = 1 + (body.get(0) & 0xff);
+        checkBodyLength(position);
+        ByteBuffer buffer = body.duplicate();
+        buffer.position(position);
+        Frame frame = decode(buffer);
+        
+        if (frame == null || 
+                buffer.hasRemaining() || 
+                frame.getType() != MagicConstants.FRAME_TYPE_MESSAGES ||
+                !frame.hasOffset()) {
+            throw new IOException("Malformed replication frame.");
+        }
+        
+        return frame;
+    }
+    
+    /**
+     * Returns the offset of the reply of a follower to a replication frame.
+     * 
+     * @return the offset the next message appended to the queue receives.
+     * @throws IOException if the frame body is malformed.
+     */
+    long getReplicatedEndOffset() throws IOException {
+        checkBodyLength(1);
+        int position = 1 + (body.get(0) & 0xff);
+        checkBodyLength(position + 8);
+        long endOffset = body.getLong(position);
+        
+        if (endOffset < 0L) {
+            throw new IOException("Negative offset: " + endOffset);
+        }
+        
+        return endOffset;
+    }
+    
+    /**
+     * Returns a copy of this frame not sharing its body with the buffer it 
+     * was decoded from.
+     * 
+     * @return the copy.
+     */
+    Frame copy() {
+        ByteBuffer bodyCopy = ByteBuffer.allocate(body.remaining());
+        bodyCopy.put(body.duplicate());
+        bodyCopy.flip();
+        return new Frame(type, flags, count, bodyCopy);
+    }
+    
+    /**
+     * Encodes an error frame.
+     * 
+     * @param rejectedMessageCount the number of rejected messages.
+     * @param reason               the reason of the rejection.
+     * @return the buffer holding the entire frame, ready for reading.
+     */
+    static ByteBuffer encodeError(int rejectedMessageCount, String reason) {
+        byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+        int length = MagicConstants.FRAME_HEADER_LENGTH + reasonBytes.length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length)
+              .put(MagicConstants.FRAME_TYPE_ERROR)
+              .put((byte) 0)
+              .putInt(rejectedMessageCount)
+              .put(reasonBytes);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Returns the reason of an error frame.
+     * 
+     * @return the reason text.
+     */
+    String getErrorReason() {
+        byte[] reasonBytes = new byte[body.limit()];
+        body.duplicate().get(reasonBytes);
+        return new String(reasonBytes, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Returns the message credit of a credit frame.
+     * 
+     * @return the number of messages granted.
+     * @throws IOException if the frame body is malformed.
+     */
+    long getMessageCredit() throws IOException {
+        checkBodyLength(8 + 8);
+        return body.getLong(0);
+    }
+    
+    /**
+     * Returns the byte credit of a credit frame.
+     * 
+     * @return the number of bytes granted.
+     * @throws IOException if the frame body is malformed.
+     */
+    long getByteCredit() throws IOException {
+        checkBodyLength(8 + 8);
+        return body.getLong(8);
+    }
+    
+    /**
+     * Returns the total number of bytes of the frame starting at the current
+     * position of the buffer, or {@code -1} if the length field is not yet
+     * available.
+     * 
+     * @param buffer the buffer in read mode.
+     * @return the frame size including the length field.
+     * @throws IOException if the length field is invalid.
+     */
+    static int peekFrameSize(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            return -1;
+        }
+        
+        int length = buffer.getInt(buffer.position());
+        validateFrameLength(length);
+        return 4 + length;
+    }
+    
+    /**
+     * Decodes a frame from the buffer if it is available in its entirety.
+     * The body of the returned frame shares the content of the buffer, and
+     * so it must be consumed before the buffer is modified.
+     * 
+     * @param buffer the buffer in read mode.
+     * @return the frame or {@code null} if there is not enough data.
+     * @throws IOException if the frame is malformed.
+     */
+    static Frame decode(ByteBuffer buffer) throws IOException {
+        int frameSize = peekFrameSize(buffer);
+        
+        if (frameSize < 0 || buffer.remaining() < frameSize) {
+            return null;
+        }
+        
+        buffer.getInt();
+        return decodeAfterLength(buffer, frameSize - 4);
+    }
+    
+    /**
+     * Reads an entire frame from a blocking stream.
+     * 
+     * @param in the stream to read from.
+     * @return the frame.
+     * @throws IOException if the network I/O fails or the frame is malformed.
+     */
+    static Frame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        validateFrameLength(length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return decodeAfterLength(ByteBuffer.wrap(bytes), length);
+    }
+    
+    private static Frame decodeAfterLength(ByteBuffer buffer, int length) 
+            throws IOException {
+        byte type = buffer.get();
+        byte flags = buffer.get();
+        int count = buffer.getInt();
+        ByteBuffer body = buffer.slice();
+        body.limit(length - MagicConstants.FRAME_HEADER_LENGTH);
+        buffer.position(buffer.position() + body.limit());
+        Frame frame = new Frame(type, flags, count, body);
+        frame.checkCount();
+        return frame;
+    }
+    
+    /**
+     * Checks the count read from the wire. A message frame may not count 
+     * more records than the length fields its records, decompressed if 
+     * necessary, have room for.
+     * 
+     * @throws IOException if the count is negative or too large.
+     */
+    private void checkCount() throws IOException {
+        if (count < 0) {
+            throw new IOException("Negative frame count: " + count);
+        }
+        
+        if (type != MagicConstants.FRAME_TYPE_MESSAGES || count == 0) {
+            return;
+        }
+        
+        int recordBytes = isCompressed() ? 
+                getCompressedRecords().getInt(1) : 
+                body.limit();
+        
+        if (count > recordBytes / 4) {
+            throw new IOException(
+                    "Frame count " + count + " exceeds the " + recordBytes + 
+                    " record bytes.");
+        }
+    }
+    
+    /**
+     * Encodes a message frame with the records compressed as a whole, routed
+     * by the key hash if keyed.
+     * 
+     * @param codec    the codec to compress with.
+     * @param messages the messages to pack.
+     * @param keyed    whether the frame carries the key hash.
+     * @param keyHash  the hash of the partition key, ignored if not keyed.
+     * @return the buffer holding the entire frame, ready for reading.
+     */
+    private static ByteBuffer encodeCompressedMessages(CompressionCodec codec,
+                                                       List<byte[]> messages,
+                                                       boolean keyed,
+                                                       int keyHash) {
+        byte[] records = encodeRecords(messages);
+        byte[] compressedRecords = codec.compress(records, 0, records.length);
+        int length = MagicConstants.FRAME_HEADER_LENGTH + 
+                     (keyed ? 4 : 0) +
+                     MagicConstants.COMPRESSION_HEADER_LENGTH +
+                     compressedRecords.length;
+        checkFrameLength(length);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
+        buffer.putInt(length)
+              .put(MagicConstants.FRAME_TYPE_MESSAGES)
+              .put((byte) (MagicConstants.FRAME_FLAG_COMPRESSED | 
+                           (keyed ? MagicConstants.FRAME_FLAG_KEY : 0)))
+              .putInt(messages.size());
+        
+        if (keyed) {
+            buffer.putInt(keyHash);
+        }
+        
+        buffer.put(codec.getId())
+              .putInt(records.length)
+              .put(compressedRecords);
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Returns the message records of the body, decompressed if necessary.
+     * 
+     * @return the buffer positioned at the first record.
+     * @throws IOException if the frame body is malformed or compressed by an
+     *                     unknown codec.
+     */
+    private ByteBuffer getRecords() throws IOException {
+        if (!isCompressed()) {
+            ByteBuffer buffer = body.duplicate();
+            buffer.position(getRecordsStart());
+            return buffer;
+        }
+        
+        ByteBuffer compressedRecords = getCompressedRecords();
+        byte codecId = compressedRecords.get();
+        int decompressedLength = compressedRecords.getInt();
+        CompressionCodec codec = CompressionCodecs.get(codecId);
+        
+        if (codec == null) {
+            throw new IOException("Unknown compression codec: " + codecId);
+        }
+        
+        if (decompressedLength < 0 || 
+                decompressedLength > MagicConstants.MAX_FRAME_LENGTH) {
+            throw new IOException(
+                    "Bad decompressed length: " + decompressedLength);
+        }
+        
+        byte[] input;
+        int offset;
+        
+        if (compressedRecords.hasArray()) {
+            input = compressedRecords.array();
+            offset = compressedRecords.arrayOffset() + 
+                     compressedRecords.position();
+        } else {
+            input = new byte[compressedRecords.remaining()];
+            offset = 0;
+            compressedRecords.duplicate().get(input);
+        }
+        
+        return ByteBuffer.wrap(codec.decompress(input, 
+                                                offset, 
+                                                compressedRecords.remaining(),
+                                                decompressedLength));
+    }
+    
+    /**
+     * Returns the position of the first message record in the body.
+     * 
+     * @return the number of body bytes preceding the records.
+     * @throws IOException if the frame body is malformed.
+     */
+    private int getRecordsStart() throws IOException {
+        int recordsStart = (hasOffset() ? 8 : 0) + 
+                           (hasKey() ? 4 : 0) + 
+                           (isScheduled() ? 8 + 8 : 0);
+        checkBodyLength(recordsStart);
+        return recordsStart;
+    }
+    
+    /**
+     * Reads a field of the schedule header of a scheduled message frame.
+     * 
+     * @param fieldOffset the offset of the field within the schedule header.
+     * @return the value of the field, or zero if this frame is not scheduled.
+     * @throws IOException if the frame body is malformed.
+     */
+    private long getScheduleField(int fieldOffset) throws IOException {
+        if (!isScheduled()) {
+            return 0L;
+        }
+        
+        int position = (hasKey() ? 4 : 0) + fieldOffset;
+        checkBodyLength(position + 8);
+        long value = body.getLong(position);
+        
+        if (value < 0L) {
+            throw new IOException("Negative schedule field: " + value);
+        }
+        
+        return value;
+    }
+    
+    /**
+     * Reads the header of the next message record and leaves the buffer 
+     * positioned at the message.
+     * 
+     * @param buffer the body positioned at a record.
+     * @return the length of the message.
+     * @throws IOException if the record is malformed.
+     */
+    private int readRecordHeader(ByteBuffer buffer) throws IOException {
+        int recordHeaderBytes = hasChecksums() ? 4 + 4 : 4;
+        
+        if (buffer.remaining() < recordHeaderBytes) {
+            throw new IOException("Truncated message record.");
+        }
+        
+        int messageLength = buffer.getInt();
+        buffer.position(buffer.position() + recordHeaderBytes - 4);
+        
+        if (messageLength < 0 || messageLength > buffer.remaining()) {
+            throw new IOException(
+                    "Bad message record length: " + messageLength);
+        }
+        
+        return messageLength;
+    }
+    
+    /**
+     * Checks the CRC32 of the big-endian message length followed by the 
+     * message, as computed by the durable log.
+     */
+    private static void checkChecksum(CRC32 crc32, 
+                                      int messageLength, 
+                                      byte[] message,
+                                      int expectedChecksum) 
+            throws IOException {
+        crc32.reset();
+        crc32.update(messageLength >>> 24);
+        crc32.update(messageLength >>> 16);
+        crc32.update(messageLength >>> 8);
+        crc32.update(messageLength);
+        crc32.update(message);
+        
+        if ((int) crc32.getValue() != expectedChecksum) {
+            throw new IOException("Message record checksum mismatch.");
+        }
+    }
+    
+    private static int countRecordBytes(List<byte[]> messages) {
+        int recordBytes = 0;
+        
+        for (byte[] message : messages) {
+            recordBytes += 4 + message.length;
+        }
+        
+        return recordBytes;
+    }
+    
+    private void checkBodyLength(int expectedLength) throws IOException {
+        if (body.limit() < expectedLength) {
+            throw new IOException(
+                    "The frame body is too short: " + body.limit() + 
+                    " bytes, expected " + expectedLength + ".");
+        }
+    }
+    
+    private static void validateFrameLength(int length) throws IOException {
+        if (length < MagicConstants.FRAME_HEADER_LENGTH ||
+            length > MagicConstants.MAX_FRAME_LENGTH) {
+            throw new IOException("Bad frame length: " + length);
+        }
+    }
+    
+    private static void checkFrameLength(int length) {
+        if (length < MagicConstants.FRAME_HEADER_LENGTH ||
+            length > MagicConstants.MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException(
+                    "Bad frame length: " + length);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package net.coderodde.mq;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class implements an incremental parser for the connection handshake.
+ * The handshake consists of the role name and the queue name, each preceded by
+ * a single length byte. A client negotiating the protocol version prepends
+ * the {@link MagicConstants#PROTOCOL_VERSION_MARKER} byte and the highest
+ * version it speaks; without it, version 1 is assumed. Since a non-blocking
+ * channel may deliver the handshake in arbitrary pieces, the parser consumes
+ * only complete fields and leaves the rest of the data in the buffer until
+ * more bytes arrive.
+ * <p>
+ * From protocol version 4 on, the client follows the reply of the handler
+ * with the IDs of the compression codecs it has, as a single count byte and
+ * as many ID bytes, and the handler replies with the ID of the chosen codec.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class HandshakeParser {
+    
+    /**
+     * The protocol version requested by the client, or zero if not yet read.
+     */
+    private int requestedProtocolVersion;
+    
+    /**
+     * Whether the client sent the version marker and so expects a reply.
+     */
+    private boolean versionNegotiated;
+    
+    /**
+     * The role name of the remote party, or {@code null} if not yet read.
+     */
+    private String roleName;
+    
+    /**
+     * The name of the queue, or {@code null} if not yet read.
+     */
+    private String queueName;
+    
+    /**
+     * The IDs of the codecs offered by the client, or {@code null} if not 
+     * yet read.
+     */
+    private byte[] offeredCodecIds;
+    
+    /**
+     * Consumes as much of the handshake from {@code buffer} as possible.
+     * 
+     * @param buffer the buffer in read mode.
+     * @return {@code true} if the entire handshake is parsed.
+     */
+    boolean parse(ByteBuffer buffer) {
+        if (requestedProtocolVersion == 0 && !parseVersion(buffer)) {
+            return false;
+        }
+        
+        if (roleName == null) {
+            roleName = readString(buffer);
+            
+            if (roleName == null) {
+                return false;
+            }
+        }
+        
+        if (queueName == null) {
+            queueName = readString(buffer);
+        }
+        
+        return queueName != null;
+    }
+    
+    /**
+     * Returns the protocol version requested by the client.
+     * 
+     * @return the requested version.
+     */
+    int getRequestedProtocolVersion() {
+        return requestedProtocolVersion;
+    }
+    
+    /**
+     * Returns {@code true} if the client expects the handler to reply with
+     * the chosen protocol version.
+     * 
+     * @return whether the version was negotiated.
+     */
+    boolean isVersionNegotiated() {
+        return versionNegotiated;
+    }
+    
+    String getRoleName() {
+        return roleName;
+    }
+    
+    String getQueueName() {
+        return queueName;
+    }
+    
+    /**
+     * Consumes the codec offer following the reply of the handler, if it is
+     * available in its entirety.
+     * 
+     * @param buffer the buffer in read mode.
+     * @return {@code true} if the codec offer is parsed.
+     */
+    boolean parseCodecOffer(ByteBuffer buffer) {
+        if (offeredCodecIds != null) {
+            return true;
+        }
+        
+        if (!buffer.hasRemaining()) {
+            return false;
+        }
+        
+        int count = buffer.get(buffer.position()) & 0xff;
+        
+        if (buffer.remaining() < 1 + count) {
+            return false;
+        }
+        
+        buffer.get();
+        offeredCodecIds = new byte[count];
+        buffer.get(offeredCodecIds);
+        return true;
+    }
+    
+    byte[] getOfferedCodecIds() {
+        return offeredCodecIds;
+    }
+    
+    private boolean parseVersion(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            return false;
+        }
+        
+        if (buffer.get(buffer.position()) != 
+                MagicConstants.PROTOCOL_VERSION_MARKER) {
+            requestedProtocolVersion = MagicConstants.PROTOCOL_VERSION_1;
+            return true;
+        }
+        
+        if (buffer.remaining() < 2) {
+            return false;
+        }
+        
+        buffer.get();
+        requestedProtocolVersion = Math.max(buffer.get() & 0xff, 
+                                            MagicConstants.PROTOCOL_VERSION_1);
+        versionNegotiated = true;
+        return true;
+    }
+    
+    /**
+     * Reads a length-prefixed string from the buffer if it is available in
+     * its entirety.
+     * 
+     * @param buffer the buffer to read from.
+     * @return the string or {@code null} if there is not enough data.
+     */
+    static String readString(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) {
+            return null;
+        }
+        
+        int length = buffer.get(buffer.position()) & 0xff;
+        
+        if (buffer.remaining() < 1 + length) {
+            return null;
+        }
+        
+        buffer.get();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes);
+    }
+}
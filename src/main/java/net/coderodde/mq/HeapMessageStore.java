@@ -0,0 +1,77 @@
+package net.coderodde.mq;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This class implements a {@link MessageStore} keeping each message as a
+ * separate array in a lock-free linked queue.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class HeapMessageStore implements MessageStore {
+    
+    /**
+     * The actual queue storing the messages in FIFO-manner.
+     */
+    private final Queue<byte[]> messages = new ConcurrentLinkedQueue<>();
+    
+    @Override
+    public void add(byte[] message) {
+        messages.add(message);
+    }
+    
+    @Override
+    public void addAll(List<byte[]> messages) {
+        this.messages.addAll(messages);
+    }
+    
+    @Override
+    public byte[] poll() {
+        return messages.poll();
+    }
+    
+    @Override
+    public long drainTo(List<byte[]> batch, long maxMessages, long maxBytes) {
+        int drainedMessages = 0;
+        long drainedBytes = 0L;
+        byte[] message;
+        
+        while (drainedMessages < maxMessages &&
+               drainedBytes < maxBytes &&
+               (message = messages.poll()) != null) {
+            batch.add(message);
+            drainedBytes += message.length;
+            drainedMessages++;
+        }
+        
+        return drainedBytes;
+    }
+    
+    @Override
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+    
+    @Override
+    public long getCapacity() {
+        return Long.MAX_VALUE;
+    }
+    
+    @Override
+    public long getRecoveredMessageCount() {
+        return 0L;
+    }
+    
+    @Override
+    public long getRecoveredByteCount() {
+        return 0L;
+    }
+    
+    @Override
+    public void close() {
+        // Nothing to release.
+    }
+}
@@ -0,0 +1,244 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * This class keeps track of the messages delivered to an acknowledging
+ * consumer and not acknowledged yet. The messages are kept by delivery
+ * frame: each delivery holds the entries drained in one go, the queue they
+ * came from and the time they were sent, so that the bookkeeping costs an
+ * object per frame rather than per message. Since the consumer acknowledges
+ * cumulatively and in the order of delivery, the acknowledged messages are
+ * always removed from the head.
+ * <p>
+ * An entry of a compressed queue stands for a whole batch, and is kept until
+ * all its messages are acknowledged. A redelivered batch may thus repeat a
+ * few messages already acknowledged, as the at-least-once delivery allows.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class InFlightMessages {
+    
+    /**
+     * Used for logging status information in a console or another listener.
+     */
+    private static final Logger LOGGER =
+            Logger.getLogger(MagicConstants.LOGGER_BADGE);
+    
+    /**
+     * Guards the deliveries: they are added by the delivering thread and
+     * acknowledged by the reading one.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    /**
+     * The deliveries not acknowledged in full, the oldest first.
+     */
+    private final Queue<Delivery> deliveries = new ArrayDeque<>();
+    
+    /**
+     * The cumulative number of messages acknowledged by the consumer.
+     */
+    private long acknowledgedMessageCount;
+    
+    /**
+     * The number of messages delivered and not acknowledged.
+     */
+    private long unacknowledgedMessageCount;
+    
+    /**
+     * Records the entries drained from the queue for a delivery frame. Must
+     * be called before the frame is written, so that the entries are
+     * redelivered should the write fail.
+     * 
+     * @param queue   the queue or the partition the entries were drained
+     *                from.
+     * @param entries the entries.
+     */
+    void add(MessageQueue queue, List<byte[]> entries) {
+        Delivery delivery =
+                new Delivery(queue,
+                             entries.toArray(new byte[entries.size()][]),
+                             System.nanoTime());
+        int messageCount = CompressedBatches.countMessages(queue, entries);
+        lock.lock();
+        
+        try {
+            deliveries.add(delivery);
+            unacknowledgedMessageCount += messageCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Removes the acknowledged messages.
+     * 
+     * @param acknowledgedMessageCount the cumulative number of messages
+     *                                 acknowledged by the consumer.
+     * @throws IOException if the count goes back or exceeds the number of
+     *                     the delivered messages.
+     */
+    void acknowledge(long acknowledgedMessageCount) throws IOException {
+        lock.lock();
+        
+        try {
+            long newlyAcknowledged =
+                    acknowledgedMessageCount - this.acknowledgedMessageCount;
+            
+            if (newlyAcknowledged < 0L ||
+                    newlyAcknowledged > unacknowledgedMessageCount) {
+                throw new IOException(
+                        "The consumer acknowledged " +
+                        acknowledgedMessageCount + " message(s), having " +
+                        "received " + (this.acknowledgedMessageCount +
+                                       unacknowledgedMessageCount) + ".");
+            }
+            
+            this.acknowledgedMessageCount = acknowledgedMessageCount;
+            unacknowledgedMessageCount -= newlyAcknowledged;
+            
+            while (newlyAcknowledged > 0L) {
+                Delivery delivery = deliveries.peek();
+                newlyAcknowledged = delivery.acknowledge(newlyAcknowledged);
+                
+                if (delivery.isAcknowledged()) {
+                    deliveries.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Tells whether the oldest unacknowledged delivery was sent longer ago
+     * than the timeout.
+     * 
+     * @param timeoutNanos the acknowledgement timeout in nanoseconds.
+     * @return {@code true} if the consumer is overdue.
+     */
+    boolean isOverdue(long timeoutNanos) {
+        lock.lock();
+        
+        try {
+            Delivery oldest = deliveries.peek();
+            return oldest != null &&
+                   System.nanoTime() - oldest.deliveredNanos > timeoutNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Returns all the unacknowledged entries to the tail of their queues, so
+     * that the other consumers receive them. Called once the consumer is
+     * gone.
+     */
+    void redeliver() {
+        List<Delivery> redeliveries;
+        lock.lock();
+        
+        try {
+            redeliveries = new ArrayList<>(deliveries);
+            deliveries.clear();
+            unacknowledgedMessageCount = 0L;
+        } finally {
+            lock.unlock();
+        }
+        
+        for (Delivery delivery : redeliveries) {
+            List<byte[]> entries =
+                    Arrays.asList(delivery.entries)
+                          .subList(delivery.firstUnacknowledgedIndex,
+                                   delivery.entries.length);
+            int requeuedEntries = delivery.queue.requeue(entries);
+            
+            if (requeuedEntries < entries.size()) {
+                LOGGER.warning(
+                        "Lost " + (entries.size() - requeuedEntries) +
+                        " unacknowledged entries: the queue \"" +
+                        delivery.queue.getName() + "\" is full.");
+            }
+        }
+    }
+    
+    /**
+     * This static inner class holds the entries of a single delivery frame.
+     */
+    private static final class Delivery {
+        
+        /**
+         * The queue or the partition the entries were drained from.
+         */
+        final MessageQueue queue;
+        
+        /**
+         * The entries. The acknowledged ones are cleared.
+         */
+        final byte[][] entries;
+        
+        /**
+         * The {@link System#nanoTime()} of the delivery.
+         */
+        final long deliveredNanos;
+        
+        /**
+         * The index of the first entry not acknowledged in full.
+         */
+        int firstUnacknowledgedIndex;
+        
+        /**
+         * The number of acknowledged messages of a compressed entry at
+         * {@link #firstUnacknowledgedIndex}.
+         */
+        int acknowledgedEntryMessages;
+        
+        Delivery(MessageQueue queue, byte[][] entries, long deliveredNanos) {
+            this.queue = queue;
+            this.entries = entries;
+            this.deliveredNanos = deliveredNanos;
+        }
+        
+        /**
+         * Acknowledges at most the given number of messages from the head of
+         * this delivery.
+         * 
+         * @param messageCount the number of messages to acknowledge.
+         * @return the number of messages left to acknowledge in the
+         *         following deliveries.
+         */
+        long acknowledge(long messageCount) {
+            while (messageCount > 0L && !isAcknowledged()) {
+                int remainingEntryMessages =
+                        CompressedBatches.countMessages(
+                                queue,
+                                entries[firstUnacknowledgedIndex]) -
+                        acknowledgedEntryMessages;
+                
+                if (messageCount < remainingEntryMessages) {
+                    acknowledgedEntryMessages += (int) messageCount;
+                    return 0L;
+                }
+                
+                messageCount -= remainingEntryMessages;
+                entries[firstUnacknowledgedIndex++] = null;
+                acknowledgedEntryMessages = 0;
+            }
+            
+            return messageCount;
+        }
+        
+        boolean isAcknowledged() {
+            return firstUnacknowledgedIndex == entries.length;
+        }
+    }
+}
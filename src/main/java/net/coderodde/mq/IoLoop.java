@@ -0,0 +1,213 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements an I/O loop thread multiplexing any number of client
+ * connections over a single {@link java.nio.channels.Selector}. The message
+ * queue handler runs a small fixed pool of these loops in the non-blocking
+ * mode and distributes the accepted channels among them.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class IoLoop extends Thread {
+    
+    /**
+     * Used for logging status information in a console or another listener.
+     */
+    private static final Logger LOGGER =
+            Logger.getLogger(MagicConstants.LOGGER_BADGE);
+    
+    /**
+     * The selector multiplexing all the connections of this loop.
+     */
+    private final Selector selector;
+    
+    /**
+     * The handler owning this loop.
+     */
+    private final MessageQueueHandler handler;
+    
+    /**
+     * Holds the accepted channels not yet registered with the selector.
+     */
+    private final Queue<SocketChannel> pendingChannels =
+            new ConcurrentLinkedQueue<>();
+    
+    /**
+     * Holds the tasks other threads asked this loop to run.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * Specifies a flag for halting the loop.
+     */
+    private volatile boolean haltRequested; // Default value is false.
+    
+    IoLoop(MessageQueueHandler handler, int index) throws IOException {
+        super("rodde.mq-io-" + index);
+        this.handler = handler;
+        this.selector = Selector.open();
+    }
+    
+    /**
+     * Hands an accepted channel over to this loop. May be called from any
+     * thread.
+     * 
+     * @param channel the accepted channel.
+     */
+    void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+    
+    /**
+     * Hands a multiplexed connection whose handshake was completed by a 
+     * connection thread of a blocking mode over to this loop. May be called
+     * from any thread.
+     * 
+     * @param channel         the connected channel.
+     * @param protocolVersion the protocol version agreed upon.
+     * @param offeredCodecIds the IDs of the codecs offered by the client.
+     */
+    void registerMultiplexed(SocketChannel channel,
+                             int protocolVersion,
+                             byte[] offeredCodecIds) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector,
+                                                    SelectionKey.OP_READ);
+                NioConnection connection = 
+                        new NioConnection(channel, key, this, handler);
+                connection.startMultiplexing(protocolVersion, 
+                                             offeredCodecIds);
+                key.attach(connection);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING,
+                           "Could not register a multiplexed channel.",
+                           ex);
+                closeQuietly(channel);
+            }
+        });
+    }
+    
+    /**
+     * Asks this loop to run the task in the loop thread. May be called from
+     * any thread.
+     * 
+     * @param task the task to run.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+    
+    void requestHalt() {
+        haltRequested = true;
+        selector.wakeup();
+    }
+    
+    @Override
+    public void run() {
+        try {
+            while (!haltRequested) {
+                selector.select();
+                registerPendingChannels();
+                processSelectedKeys();
+                runTasks();
+            }
+        } catch (IOException | ClosedSelectorException ex) {
+            LOGGER.log(Level.SEVERE, "I/O loop failed.", ex);
+        } finally {
+            closeAll();
+        }
+    }
+    
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        
+        while ((channel = pendingChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector,
+                                                    SelectionKey.OP_READ);
+                key.attach(new NioConnection(channel, key, this, handler));
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING,
+                           "Could not register an accepted channel.",
+                           ex);
+                closeQuietly(channel);
+            }
+        }
+    }
+    
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            NioConnection connection = (NioConnection) key.attachment();
+            
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    connection.onReadable();
+                }
+                
+                if (key.isValid() && key.isWritable()) {
+                    connection.onWritable();
+                }
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "Closing a connection.", ex);
+                connection.close();
+            }
+        }
+    }
+    
+    private void runTasks() {
+        Runnable task;
+        
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "An I/O loop task failed.", ex);
+            }
+        }
+    }
+    
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            
+            if (attachment instanceof NioConnection) {
+                ((NioConnection) attachment).close();
+            }
+        }
+        
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Could not close the selector.", ex);
+        }
+    }
+    
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Nothing to do with it.
+        }
+    }
+}
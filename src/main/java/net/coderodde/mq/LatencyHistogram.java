@@ -0,0 +1,202 @@
+package net.coderodde.mq;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class implements a lock-free histogram of latencies in nanoseconds.
+ * The buckets are logarithmic: each power of two is split into
+ * {@code 2^subBucketBits} linear sub-buckets, so that the relative error
+ * of a reported percentile is at most {@code 2^-subBucketBits}: 25% for the
+ * queue metrics, and finer for the benchmarks. Recording a latency increments a
+ * single counter and never allocates, and so the histogram may be recorded to
+ * from any number of threads at full speed.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class LatencyHistogram {
+    
+    /**
+     * The default number of bits splitting each power of two into 
+     * sub-buckets.
+     */
+    private static final int DEFAULT_SUB_BUCKET_BITS = 2;
+    
+    /**
+     * The largest number of bits splitting each power of two into 
+     * sub-buckets.
+     */
+    private static final int MAX_SUB_BUCKET_BITS = 10;
+    
+    /**
+     * The number of bits splitting each power of two into sub-buckets.
+     */
+    private final int subBucketBits;
+    
+    /**
+     * The number of sub-buckets per power of two. The latencies below this 
+     * many nanoseconds share the first buckets linearly.
+     */
+    private final int subBucketCount;
+    
+    /**
+     * The number of recorded latencies per bucket.
+     */
+    private final AtomicLongArray bucketCounts;
+    
+    /**
+     * The number of recorded latencies.
+     */
+    private final AtomicLong totalCount = new AtomicLong();
+    
+    /**
+     * The largest recorded latency.
+     */
+    private final AtomicLong maxNanos = new AtomicLong();
+    
+    /**
+     * Constructs a histogram with the given precision.
+     * 
+     * @param subBucketBits the number of bits splitting each power of two 
+     *                      into sub-buckets.
+     */
+    LatencyHistogram(int subBucketBits) {
+        if (subBucketBits < 1 || subBucketBits > MAX_SUB_BUCKET_BITS) {
+            throw new IllegalArgumentException(
+                    "The sub-bucket bits are out of range: " + 
+                    subBucketBits);
+        }
+        
+        this.subBucketBits = subBucketBits;
+        this.subBucketCount = 1 << subBucketBits;
+        this.bucketCounts = 
+                new AtomicLongArray((Long.SIZE - subBucketBits + 1) * 
+                                    subBucketCount);
+    }
+    
+    /**
+     * Constructs a histogram precise enough for the queue metrics.
+     */
+    LatencyHistogram() {
+        this(DEFAULT_SUB_BUCKET_BITS);
+    }
+    
+    /**
+     * Records a latency.
+     * 
+     * @param nanos the latency in nanoseconds. Negative values count as zero.
+     */
+    void record(long nanos) {
+        if (nanos < 0L) {
+            nanos = 0L;
+        }
+        
+        bucketCounts.incrementAndGet(getBucketIndex(nanos));
+        totalCount.incrementAndGet();
+        long currentMax = maxNanos.get();
+        
+        while (nanos > currentMax &&
+                !maxNanos.compareAndSet(currentMax, nanos)) {
+            currentMax = maxNanos.get();
+        }
+    }
+    
+    long getCount() {
+        return totalCount.get();
+    }
+    
+    long getMaxNanos() {
+        return maxNanos.get();
+    }
+    
+    /**
+     * Returns the upper bound of the bucket holding the given percentile.
+     * 
+     * @param percentile the percentile within {@code [0, 100]}.
+     * @return the latency in nanoseconds, or zero if nothing is recorded.
+     */
+    long getPercentileNanos(double percentile) {
+        long count = totalCount.get();
+        
+        if (count == 0L) {
+            return 0L;
+        }
+        
+        long rank = Math.max(1L, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0L;
+        
+        for (int i = 0; i < bucketCounts.length(); i++) {
+            seen += bucketCounts.get(i);
+            
+            if (seen >= rank) {
+                return Math.min(getBucketUpperBound(i), maxNanos.get());
+            }
+        }
+        
+        // Recorded concurrently with the walk above:
+        return maxNanos.get();
+    }
+    
+    /**
+     * Forgets all the recorded latencies.
+     */
+    void reset() {
+        for (int i = 0; i < bucketCounts.length(); i++) {
+            bucketCounts.set(i, 0L);
+        }
+        
+        totalCount.set(0L);
+        maxNanos.set(0L);
+    }
+    
+    /**
+     * Returns the non-empty buckets, one per line, as the upper bound in
+     * microseconds followed by the count.
+     * 
+     * @return the text representation of the buckets.
+     */
+    String toBucketString() {
+        StringBuilder stringBuilder = new StringBuilder();
+        
+        for (int i = 0; i < bucketCounts.length(); i++) {
+            long bucketCount = bucketCounts.get(i);
+            
+            if (bucketCount != 0L) {
+                stringBuilder.append(String.format(
+                        "<= %.3f us: %d%n",
+                        getBucketUpperBound(i) / 1000.0,
+                        bucketCount));
+            }
+        }
+        
+        return stringBuilder.toString();
+    }
+    
+    private int getBucketIndex(long nanos) {
+        if (nanos < subBucketCount) {
+            return (int) nanos;
+        }
+        
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+        int subBucket =
+                (int) (nanos >>> (exponent - subBucketBits)) &
+                (subBucketCount - 1);
+        
+        return (exponent - subBucketBits + 1) * subBucketCount +
+               subBucket;
+    }
+    
+    private long getBucketUpperBound(int bucketIndex) {
+        if (bucketIndex < subBucketCount) {
+            return bucketIndex;
+        }
+        
+        int exponent = bucketIndex / subBucketCount + subBucketBits - 1;
+        long subBucket = bucketIndex % subBucketCount;
+        long lowerBound = (1L << exponent) +
+                          (subBucket << (exponent - subBucketBits));
+        
+        return lowerBound + (1L << (exponent - subBucketBits)) - 1L;
+    }
+}
@@ -19,11 +19,6 @@ final class MagicConstants {
      */
     static final String CONSUMER_STRING = "consumer";
     
-    /**
-     * Specifies that by default the server accepting socket does not time out.
-     */
-    static final int DEFAULT_SERVER_SOCKET_ACCEPT_TIMEOUT = 0;
-    
     /**
      * Used for identifying which log lines belong to rodde.mq.
      */
@@ -34,11 +29,531 @@ final class MagicConstants {
      */
     static final int DEFAULT_PORT_NUMBER = 18273;
     
+    /**
+     * The default number of I/O loop threads in the non-blocking mode.
+     */
+    static final int DEFAULT_IO_LOOP_COUNT = 
+            Math.min(4, Runtime.getRuntime().availableProcessors());
+    
+    /**
+     * The default capacity of the per-connection read buffer in the 
+     * non-blocking mode.
+     */
+    static final int DEFAULT_READ_BUFFER_CAPACITY = 8192;
+    
+    /**
+     * The number of bytes a paused producer channel of a multiplexed 
+     * connection may hold back before the whole connection stops being read.
+     */
+    static final int MAX_PAUSED_CHANNEL_BYTES = 4 * 1024 * 1024;
+    
     /**
      * The string specifying that a new connection comes from a producer.
      */
     static final String PRODUCER_STRING = "producer";
     
+    /**
+     * The string specifying that a new connection comes from a topic 
+     * publisher.
+     */
+    static final String PUBLISHER_STRING = "publisher";
+    
+    /**
+     * The string specifying that a new connection comes from a topic 
+     * subscriber.
+     */
+    static final String SUBSCRIBER_STRING = "subscriber";
+    
+    /**
+     * The string specifying that a new connection carries the channels of 
+     * several clients. The queue name of such a handshake is empty.
+     */
+    static final String MULTIPLEXED_STRING = "multiplexed";
+    
+    /**
+     * The number of milliseconds a multiplexed connection may take to connect
+     * to a handler.
+     */
+    static final int MULTIPLEXED_CONNECT_TIMEOUT_MILLISECONDS = 5000;
+    
+    /**
+     * The number of milliseconds a multiplexed connection waits for each 
+     * handshake reply of the handler.
+     */
+    static final int MULTIPLEXED_HANDSHAKE_TIMEOUT_MILLISECONDS = 5000;
+    
+    /**
+     * The string specifying that a new connection is a replication link from 
+     * a leader handler. The queue name of such a handshake is empty.
+     */
+    static final String REPLICATOR_STRING = "replicator";
+    
+    /**
+     * The default number of bytes after which an asynchronous producer sends
+     * its batch.
+     */
+    static final int DEFAULT_BATCH_BYTES = 64 * 1024;
+    
+    /**
+     * The default number of milliseconds an asynchronous producer waits for a
+     * batch to fill up.
+     */
+    static final int DEFAULT_LINGER_MILLISECONDS = 5;
+    
+    /**
+     * The default maximum number of messages an asynchronous producer accepts 
+     * without having written them.
+     */
+    static final int DEFAULT_MAX_IN_FLIGHT_MESSAGES = 10_000;
+    
+    /**
+     * The number of bytes after which the handler stops packing messages into
+     * a single delivery frame.
+     */
+    static final int DEFAULT_DELIVERY_BATCH_BYTES = 64 * 1024;
+    
+    /**
+     * The default number of points each handler of a cluster takes on the
+     * consistent hash ring of the client.
+     */
+    static final int DEFAULT_VIRTUAL_NODE_COUNT = 160;
+    
+    /**
+     * The default size of the messages sent in a performance test, in bytes.
+     */
+    static final int DEFAULT_PERF_MESSAGE_BYTES = 100;
+    
+    /**
+     * The default target rate of a performance test, in messages per second
+     * over all the producers.
+     */
+    static final long DEFAULT_PERF_RATE = 10_000L;
+    
+    /**
+     * The default duration of a performance test, in seconds.
+     */
+    static final long DEFAULT_PERF_DURATION_SECONDS = 10L;
+    
+    /**
+     * The number of milliseconds a performance test waits for the consumers 
+     * to receive the rest of the messages once the producers are done.
+     */
+    static final long PERF_DRAIN_MILLISECONDS = 10_000L;
+    
+    /**
+     * The number of bits splitting each power of two into sub-buckets in the
+     * latency histogram of a performance test, for an error within 3%.
+     */
+    static final int PERF_HISTOGRAM_SUB_BUCKET_BITS = 5;
+    
+    /**
+     * The maximum number of messages a lagging producer of a performance 
+     * test catches up with in a single frame, and a consumer takes at once.
+     */
+    static final int PERF_MAX_BATCH_MESSAGES = 1000;
+    
+    /**
+     * The default number of messages a consumer lets the handler send ahead.
+     */
+    static final int DEFAULT_PREFETCH_MESSAGES = 1000;
+    
+    /**
+     * The default number of message bytes a consumer lets the handler send
+     * ahead.
+     */
+    static final long DEFAULT_PREFETCH_BYTES = 16L * 1024 * 1024;
+    
+    /**
+     * The default number of acknowledged messages after which an 
+     * acknowledging consumer sends an acknowledgement frame.
+     */
+    static final int DEFAULT_ACK_BATCH_MESSAGES = 100;
+    
+    /**
+     * The default number of milliseconds an acknowledging consumer holds 
+     * back an acknowledgement before sending it.
+     */
+    static final long DEFAULT_ACK_INTERVAL_MILLISECONDS = 100L;
+    
+    /**
+     * The default number of milliseconds a consumer may keep the oldest 
+     * delivered message unacknowledged before the handler closes its 
+     * connection and redelivers the messages.
+     */
+    static final long DEFAULT_ACK_TIMEOUT_MILLISECONDS = 30_000L;
+    
+    /**
+     * The resolution of the timing wheel scheduling the delayed messages.
+     */
+    static final long TIMER_TICK_MILLISECONDS = 10L;
+    
+    /**
+     * The number of slots of each level of the timing wheel, as a power of 
+     * two.
+     */
+    static final int TIMER_WHEEL_BITS = 8;
+    
+    /**
+     * The number of levels of the timing wheel. With 10 ms ticks, the four 
+     * levels of 256 slots cover well over a year.
+     */
+    static final int TIMER_WHEEL_LEVELS = 4;
+    
+    /**
+     * The number of milliseconds after which a delayed message that found its
+     * queue full is offered again.
+     */
+    static final long DELAYED_DELIVERY_RETRY_MILLISECONDS = 100L;
+    
+    /**
+     * The longest delay and time to live honoured: a century, which keeps the
+     * deadlines in nanoseconds from overflowing. A longer time to live counts
+     * as none, and a longer delay as a century.
+     */
+    static final long MAX_SCHEDULE_MILLISECONDS = 
+            100L * 365L * 24L * 3600L * 1000L;
+    
+    /**
+     * The maximum number of messages of a retained queue a leader ships to a 
+     * follower ahead of its acknowledgements.
+     */
+    static final int REPLICATION_WINDOW_MESSAGES = 16 * 1024;
+    
+    /**
+     * The number of bytes after which a replication frame is cut.
+     */
+    static final int REPLICATION_BATCH_BYTES = 256 * 1024;
+    
+    /**
+     * The number of milliseconds a leader waits before connecting again to a
+     * follower it has lost.
+     */
+    static final long REPLICATION_RECONNECT_MILLISECONDS = 1000L;
+    
+    /**
+     * The number of milliseconds after which an idle replication link looks
+     * for new retained queues.
+     */
+    static final long REPLICATION_IDLE_MILLISECONDS = 100L;
+    
+    /**
+     * The number of milliseconds a halting handler waits for the connections
+     * to stop producing before it writes the snapshot.
+     */
+    static final long HALT_PRODUCERS_MILLISECONDS = 5000L;
+    
+    /**
+     * The first handshake byte announcing that the client negotiates the 
+     * protocol version. Since a version 1 handshake starts with the length of
+     * a non-empty role name, the value never collides with it.
+     */
+    static final int PROTOCOL_VERSION_MARKER = 0;
+    
+    /**
+     * The original protocol with single-byte message lengths.
+     */
+    static final int PROTOCOL_VERSION_1 = 1;
+    
+    /**
+     * The protocol with 32-bit length-prefixed multi-message frames.
+     */
+    static final int PROTOCOL_VERSION_2 = 2;
+    
+    /**
+     * The protocol in which the message frames delivered to a consumer may 
+     * carry checksummed records, sent straight from the log segments of a
+     * durable queue.
+     */
+    static final int PROTOCOL_VERSION_3 = 3;
+    
+    /**
+     * The protocol in which the client offers its compression codecs in the
+     * handshake, and the handler replies with the one chosen for the queue.
+     */
+    static final int PROTOCOL_VERSION_4 = 4;
+    
+    /**
+     * The protocol in which a single connection may carry the channels of 
+     * several clients.
+     */
+    static final int PROTOCOL_VERSION_5 = 5;
+    
+    /**
+     * The protocol in which a consumer may acknowledge the messages it has
+     * processed, so that the handler redelivers the rest if the consumer 
+     * fails.
+     */
+    static final int PROTOCOL_VERSION_6 = 6;
+    
+    /**
+     * The protocol in which a producer may delay the delivery of the messages
+     * and give them a time to live.
+     */
+    static final int PROTOCOL_VERSION_7 = 7;
+    
+    /**
+     * The protocol in which a leader replicates its retained queues to the 
+     * followers, and a producer may ask for the confirmation of its messages.
+     */
+    static final int PROTOCOL_VERSION_8 = 8;
+    
+    /**
+     * The latest protocol version the handler speaks.
+     */
+    static final int LATEST_PROTOCOL_VERSION = PROTOCOL_VERSION_8;
+    
+    /**
+     * The codec ID telling in the handshake that no compression is used.
+     */
+    static final byte NO_COMPRESSION_CODEC_ID = 0;
+    
+    /**
+     * The number of bytes in a frame header following the length field: the
+     * frame type, the frame flags and the record count.
+     */
+    static final int FRAME_HEADER_LENGTH = 1 + 1 + 4;
+    
+    /**
+     * The maximum number of bytes in a frame following the length field.
+     */
+    static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    
+    /**
+     * The frame type carrying a batch of messages.
+     */
+    static final byte FRAME_TYPE_MESSAGES = 1;
+    
+    /**
+     * The frame type announcing that the sender is closing.
+     */
+    static final byte FRAME_TYPE_CLOSE = 2;
+    
+    /**
+     * The frame type by which a consumer grants the handler the credit for
+     * sending more messages. The body holds the {@code int64} message credit
+     * and the {@code int64} byte credit, both added to the current credit.
+     */
+    static final byte FRAME_TYPE_CREDIT = 3;
+    
+    /**
+     * The frame type by which the handler tells a producer that some of its
+     * messages were rejected. The record count is the number of rejected 
+     * messages, and the body holds the reason as text.
+     */
+    static final byte FRAME_TYPE_ERROR = 4;
+    
+    /**
+     * The frame type by which a consumer of a retained queue moves its read
+     * position. The body holds the {@code int64} offset. The handler echoes
+     * the frame with the resolved offset before the first message read from 
+     * the new position.
+     */
+    static final byte FRAME_TYPE_SEEK = 5;
+    
+    /**
+     * The frame type by which a client opens a channel of a multiplexed 
+     * connection. The record count is the channel ID, and the body holds the
+     * role name and the queue name, each preceded by a length byte. The 
+     * handler echoes the frame with the ID of the compression codec chosen
+     * for the channel as the body, or refuses the channel with an error frame
+     * sent over it.
+     */
+    static final byte FRAME_TYPE_OPEN = 6;
+    
+    /**
+     * The frame type carrying a frame of a channel of a multiplexed 
+     * connection. The record count is the channel ID, and the body holds the
+     * entire frame of the channel, including its length field. A close frame
+     * sent over a channel closes only the channel.
+     */
+    static final byte FRAME_TYPE_CHANNEL = 7;
+    
+    /**
+     * The frame type by which a consumer acknowledges the messages it has 
+     * processed. The body holds the {@code int64} number of messages 
+     * acknowledged since the first acknowledgement frame, which turns on the
+     * tracking of the delivered messages and is sent before any credit. From
+     * protocol version 8 on, a producer sending the first acknowledgement 
+     * frame asks for confirmations: the handler replies with acknowledgement
+     * frames holding the number of its messages settled so far.
+     */
+    static final byte FRAME_TYPE_ACK = 8;
+    
+    /**
+     * The frame type by which a leader ships the messages of a retained queue
+     * to a follower. The body holds the {@code int8} length of the queue name
+     * followed by the name and by an entire message frame carrying the 
+     * offset of its first message.
+     */
+    static final byte FRAME_TYPE_REPLICATE = 9;
+    
+    /**
+     * The frame type by which a follower tells the leader how far it holds a
+     * retained queue. The body holds the {@code int8} length of the queue 
+     * name followed by the name and by the {@code int64} offset the next 
+     * message appended to the queue receives.
+     */
+    static final byte FRAME_TYPE_REPLICATED = 10;
+    
+    /**
+     * The message frame flag telling that the body starts with the offset of
+     * the first message.
+     */
+    static final byte FRAME_FLAG_OFFSET = 1;
+    
+    /**
+     * The message frame flag telling that the body starts with the 
+     * {@code int32} hash of the partition key of all its messages.
+     */
+    static final byte FRAME_FLAG_KEY = 2;
+    
+    /**
+     * The message frame flag telling that each record has the {@code int32}
+     * CRC32 of the message length and the message between the two, as laid
+     * out in the log segments of a durable queue.
+     */
+    static final byte FRAME_FLAG_CHECKSUMS = 4;
+    
+    /**
+     * The message frame flag telling that the records are compressed as a 
+     * whole. The records are preceded by the {@code int8} codec ID and the
+     * {@code int32} length of the decompressed records.
+     */
+    static final byte FRAME_FLAG_COMPRESSED = 8;
+    
+    /**
+     * The message frame flag telling that the body starts, after the key hash
+     * if any, with the {@code int64} delay and the {@code int64} time to live
+     * of all the messages, both in milliseconds. A zero time to live means 
+     * none.
+     */
+    static final byte FRAME_FLAG_SCHEDULED = 16;
+    
+    /**
+     * The number of bytes preceding the compressed records: the codec ID and
+     * the decompressed length.
+     */
+    static final int COMPRESSION_HEADER_LENGTH = 1 + 4;
+    
+    /**
+     * Separates the name of a partitioned queue from the partition index in
+     * the names of its partitions.
+     */
+    static final char PARTITION_NAME_SEPARATOR = '#';
+    
+    /**
+     * The maximum number of partitions of a queue.
+     */
+    static final int MAX_PARTITION_COUNT = 1024;
+    
+    /**
+     * The seek offset denoting the oldest retained message.
+     */
+    static final long EARLIEST_OFFSET = -2L;
+    
+    /**
+     * The seek offset denoting the message following the newest one.
+     */
+    static final long LATEST_OFFSET = -1L;
+    
+    /**
+     * The default size of the ring of a retained queue in bytes.
+     */
+    static final int DEFAULT_RETAINED_BYTES = 64 * 1024 * 1024;
+    
+    /**
+     * The default size of an off-heap slab in bytes.
+     */
+    static final int DEFAULT_SLAB_BYTES = 4 * 1024 * 1024;
+    
+    /**
+     * The number of emptied slabs an off-heap store keeps for reuse.
+     */
+    static final int MAX_POOLED_SLABS = 4;
+    
+    /**
+     * The default number of slots of a ring buffer queue.
+     */
+    static final int DEFAULT_RING_BUFFER_CAPACITY = 64 * 1024;
+    
+    /**
+     * The capacity of the smallest pooled topic frame buffer.
+     */
+    static final int MIN_POOLED_FRAME_BUFFER_BYTES = 4 * 1024;
+    
+    /**
+     * The capacity of the largest pooled topic frame buffer. The larger frames
+     * get buffers of their own.
+     */
+    static final int MAX_POOLED_FRAME_BUFFER_BYTES = 1024 * 1024;
+    
+    /**
+     * The number of released topic frame buffers of each capacity a topic 
+     * keeps for reuse.
+     */
+    static final int MAX_POOLED_FRAME_BUFFERS = 16;
+    
+    /**
+     * The default size of a durable log segment file in bytes.
+     */
+    static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    
+    /**
+     * The default number of appended messages after which a durable log is
+     * forced to disk.
+     */
+    static final int DEFAULT_SYNC_EVERY_MESSAGES = 1000;
+    
+    /**
+     * The default interval at which a durable log is forced to disk.
+     */
+    static final long DEFAULT_SYNC_INTERVAL_MILLISECONDS = 100L;
+    
+    /**
+     * The default directory holding the durable queue logs.
+     */
+    static final String DEFAULT_DATA_DIRECTORY = "rodde.mq-data";
+    
+    /**
+     * The name of the file, within the data directory, holding the snapshot
+     * of the in-memory queues taken upon a graceful shutdown.
+     */
+    static final String DEFAULT_SNAPSHOT_FILE_NAME = "queues.snapshot";
+    
+    /**
+     * The size of the windows of a queue snapshot mapped into memory at a 
+     * time, while writing or reading it.
+     */
+    static final int SNAPSHOT_WINDOW_BYTES = 64 * 1024 * 1024;
+    
+    /**
+     * The maximum number of messages drained from a queue at a time while
+     * writing its snapshot.
+     */
+    static final int SNAPSHOT_DRAIN_BATCH_MESSAGES = 4096;
+    
+    /**
+     * The domain of the MBeans registered by rodde.mq.
+     */
+    static final String MBEAN_DOMAIN = "net.coderodde.mq";
+    
+    /**
+     * Only every this many messages of a queue are timestamped for measuring
+     * the dispatch latency.
+     */
+    static final int LATENCY_SAMPLE_INTERVAL = 16;
+    
+    /**
+     * The number of latency samples of a queue in flight at a time. Must be a
+     * power of two.
+     */
+    static final int LATENCY_SAMPLE_SLOTS = 4096;
+    
+    /**
+     * The interval at which the queue rates are computed.
+     */
+    static final long METRICS_TICK_MILLISECONDS = 1000L;
+    
     /**
      * Groups all the string constants.
      */
@@ -53,12 +568,46 @@ final class MagicConstants {
          * Defines the help message.
          */
         static final String HELP_MESSAGE = 
-                "Usage: java -jar rodde.mq.1.6.jar [PORT]";
+                "Usage: java -jar rodde.mq.1.6.jar [PORT " + 
+                "[blocking | non-blocking | virtual-threads]]\n" +
+                "       java -jar rodde.mq.1.6.jar perf [OPTION...]";
+        
+        /**
+         * Defines the help message of the performance test.
+         */
+        static final String PERF_HELP_MESSAGE = 
+                "Usage: java -jar rodde.mq.1.6.jar perf [OPTION...]\n" +
+                "  --host=HOST       the handler host (localhost)\n" +
+                "  --port=PORT       the handler port (" + 
+                DEFAULT_PORT_NUMBER + ")\n" +
+                "  --queue=NAME      the queue to load (perf)\n" +
+                "  --producers=N     the number of producers (1)\n" +
+                "  --consumers=M     the number of consumers (1)\n" +
+                "  --size=BYTES      the message size, at least 8 (" + 
+                DEFAULT_PERF_MESSAGE_BYTES + ")\n" +
+                "  --rate=MSGS       the target rate per second over all " +
+                "the producers (" + DEFAULT_PERF_RATE + ")\n" +
+                "  --duration=SECS   the duration of the sending (" + 
+                DEFAULT_PERF_DURATION_SECONDS + ")\n" +
+                "  --histogram       prints the latency histogram as well";
+        
+        /**
+         * The message format for logging an invalid performance test option.
+         */
+        static final String INVALID_PERF_OPTION_ERROR_MESSAGE_FORMAT = 
+                "Invalid option: %s.";
         
         /**
          * The message format for logging the wrong number of arguments.
          */
         static final String INVALID_ARGUMENT_COUNT_ERROR_MESSAGE_FORMAT = 
-                "At most one argument (port number) is allowed. %d received.";
+                "At most two arguments (port number and mode) are allowed. " + 
+                "%d received.";
+        
+        /**
+         * The message format for logging an unknown mode.
+         */
+        static final String INVALID_MODE_ERROR_MESSAGE_FORMAT = 
+                "Unknown mode: %s.";
     }
 }
@@ -0,0 +1,112 @@
+package net.coderodde.mq;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class implements the broker-wide budget of the message bytes held in
+ * all the queues of a handler.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class MemoryBudget {
+    
+    /**
+     * The number of bytes currently reserved.
+     */
+    private final AtomicLong usedBytes = new AtomicLong();
+    
+    /**
+     * The producers waiting for the budget to free up.
+     */
+    private final Queue<Runnable> spaceWaiters = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * The maximum number of bytes that may be reserved.
+     */
+    private volatile long maxBytes = Long.MAX_VALUE;
+    
+    long getMaxBytes() {
+        return maxBytes;
+    }
+    
+    void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        signalSpaceWaiters();
+    }
+    
+    long getUsedBytes() {
+        return usedBytes.get();
+    }
+    
+    /**
+     * Reserves the bytes if they fit in the budget. A failed reservation
+     * wakes up no waiting producer: it frees nothing the producer could use,
+     * and the producers woken would only fail and wake one another in turn.
+     * 
+     * @param bytes the number of bytes to reserve.
+     * @return {@code true} if reserved.
+     */
+    boolean tryReserve(long bytes) {
+        if (usedBytes.addAndGet(bytes) > maxBytes) {
+            usedBytes.addAndGet(-bytes);
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Reserves the bytes regardless of the budget. Used for the messages a 
+     * queue already holds when it is created.
+     * 
+     * @param bytes the number of bytes to reserve.
+     */
+    void forceReserve(long bytes) {
+        usedBytes.addAndGet(bytes);
+    }
+    
+    /**
+     * Returns the bytes to the budget and wakes up the waiting producers.
+     * 
+     * @param bytes the number of bytes to release.
+     */
+    void release(long bytes) {
+        usedBytes.addAndGet(-bytes);
+        
+        if (!spaceWaiters.isEmpty()) {
+            signalSpaceWaiters();
+        }
+    }
+    
+    /**
+     * Returns {@code true} if the bytes currently fit in the budget.
+     * 
+     * @param bytes the number of bytes.
+     * @return whether the bytes fit.
+     */
+    boolean hasRoomFor(long bytes) {
+        return usedBytes.get() + bytes <= maxBytes;
+    }
+    
+    /**
+     * Registers a task to run upon the next release of bytes. The caller is
+     * responsible for checking whether the room appeared before the 
+     * registration.
+     * 
+     * @param waiter the task to run.
+     */
+    void addSpaceWaiter(Runnable waiter) {
+        spaceWaiters.add(waiter);
+    }
+    
+    private void signalSpaceWaiters() {
+        Runnable waiter;
+        
+        while ((waiter = spaceWaiters.poll()) != null) {
+            waiter.run();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package net.coderodde.mq;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * This class keeps the deadlines of the messages of a queue honouring their
+ * time to live. Since all the messages of a producer frame share their time
+ * to live, the deadlines are kept by run: each run holds the number of
+ * consecutive messages expiring at the same moment, so that the bookkeeping
+ * costs an object per frame rather than per message. The runs follow the
+ * order of the messages in the store, so the queue appends and removes the
+ * messages and their deadlines under a single lock.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class MessageDeadlines {
+    
+    /**
+     * The deadline of the messages without a time to live.
+     */
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+    
+    /**
+     * The runs of the messages in the queue, the head first.
+     */
+    private final Deque<Run> runs = new ArrayDeque<>();
+    
+    /**
+     * Constructs the deadlines of a queue holding the given number of
+     * messages without a time to live, such as those recovered from disk.
+     * 
+     * @param messageCount the number of the messages already in the queue.
+     */
+    MessageDeadlines(long messageCount) {
+        append(messageCount, NO_DEADLINE);
+    }
+    
+    /**
+     * Converts a time to live into a deadline counting from now.
+     * 
+     * @param ttlMillis the time to live in milliseconds, or zero for none.
+     * @return the deadline as a {@link System#nanoTime()} value, or
+     *         {@link #NO_DEADLINE}.
+     */
+    static long toDeadlineNanos(long ttlMillis) {
+        // A time to live beyond a century may as well be none:
+        if (ttlMillis <= 0L || 
+                ttlMillis > MagicConstants.MAX_SCHEDULE_MILLISECONDS) {
+            return NO_DEADLINE;
+        }
+        
+        return System.nanoTime() + ttlMillis * 1_000_000L;
+    }
+    
+    /**
+     * Records the deadline of the messages appended to the tail of the queue.
+     * 
+     * @param messageCount  the number of the messages appended.
+     * @param deadlineNanos their deadline.
+     */
+    void append(long messageCount, long deadlineNanos) {
+        if (messageCount == 0L) {
+            return;
+        }
+        
+        Run tail = runs.peekLast();
+        
+        if (tail != null && tail.deadlineNanos == deadlineNanos) {
+            tail.messageCount += messageCount;
+        } else {
+            runs.addLast(new Run(messageCount, deadlineNanos));
+        }
+    }
+    
+    /**
+     * Returns the number of the messages at the head of the queue sharing the
+     * deadline of the head message.
+     * 
+     * @return the length of the head run, or zero if the queue is empty.
+     */
+    long getHeadRunLength() {
+        Run head = runs.peekFirst();
+        return head == null ? 0L : head.messageCount;
+    }
+    
+    /**
+     * Tells whether the head message of the queue has expired.
+     * 
+     * @param nowNanos the current {@link System#nanoTime()}.
+     * @return {@code true} if the head message is past its deadline.
+     */
+    boolean isHeadExpired(long nowNanos) {
+        Run head = runs.peekFirst();
+        return head != null &&
+               head.deadlineNanos != NO_DEADLINE &&
+               nowNanos - head.deadlineNanos >= 0L;
+    }
+    
+    /**
+     * Forgets the deadlines of the messages removed from the head of the
+     * queue.
+     * 
+     * @param messageCount the number of the messages removed.
+     */
+    void remove(long messageCount) {
+        while (messageCount > 0L) {
+            Run head = runs.peekFirst();
+            
+            if (head.messageCount > messageCount) {
+                head.messageCount -= messageCount;
+                return;
+            }
+            
+            messageCount -= head.messageCount;
+            runs.removeFirst();
+        }
+    }
+    
+    /**
+     * This static inner class holds a run of consecutive messages expiring at
+     * the same moment.
+     */
+    private static final class Run {
+        
+        /**
+         * The number of the messages in this run.
+         */
+        long messageCount;
+        
+        /**
+         * The deadline of the messages as a {@link System#nanoTime()} value.
+         */
+        final long deadlineNanos;
+        
+        Run(long messageCount, long deadlineNanos) {
+            this.messageCount = messageCount;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+}
@@ -0,0 +1,718 @@
+package net.coderodde.mq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class implements a named message queue together with the consumers
+ * waiting for it to become non-empty. Whenever a message is added, one of the
+ * waiting consumers is signalled immediately, so that no consumer needs to
+ * poll the queue.
+ * <p>
+ * The queue keeps track of its message count and byte size with atomic
+ * counters, and refuses the messages exceeding either the limits of its
+ * {@link MessageQueueConfiguration} or the broker-wide {@link MemoryBudget}.
+ * The messages themselves are kept in a {@link MessageStore} chosen by the
+ * handler according to the configuration.
+ * <p>
+ * A queue honouring the time to live of the messages keeps their deadlines
+ * in {@link MessageDeadlines}, and drops the expired messages lazily as they
+ * come up for delivery.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class MessageQueue {
+    
+    /**
+     * Describes the outcome of offering a message to a queue.
+     */
+    enum OfferResult {
+        
+        /**
+         * The message was added.
+         */
+        ACCEPTED,
+        
+        /**
+         * The message does not fit at the moment.
+         */
+        FULL,
+        
+        /**
+         * The message exceeds the limits on its own and will never fit.
+         */
+        TOO_LARGE
+    }
+    
+    /**
+     * The actual storage of the messages.
+     */
+    private final MessageStore messages;
+    
+    /**
+     * The ring of a retained queue, or {@code null} if this queue is not 
+     * retained.
+     */
+    private final RetainedLog retainedLog;
+    
+    /**
+     * The consumers waiting for messages.
+     */
+    private final Queue<MessageQueueListener> waitingListeners =
+            new ConcurrentLinkedQueue<>();
+    
+    /**
+     * The producers waiting for the queue to make room.
+     */
+    private final Queue<Runnable> spaceWaiters = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * The number of messages in this queue.
+     */
+    private final AtomicLong messageCount = new AtomicLong();
+    
+    /**
+     * The number of message bytes in this queue.
+     */
+    private final AtomicLong byteCount = new AtomicLong();
+    
+    /**
+     * The name of this queue.
+     */
+    private final String name;
+    
+    /**
+     * The settings of this queue.
+     */
+    private final MessageQueueConfiguration configuration;
+    
+    /**
+     * The broker-wide memory budget.
+     */
+    private final MemoryBudget memoryBudget;
+    
+    /**
+     * The maximum number of messages: the configured limit or the capacity of
+     * the store, whichever is smaller.
+     */
+    private final long maxMessages;
+    
+    /**
+     * The metrics of this queue.
+     */
+    private final MessageQueueMetrics metrics;
+    
+    /**
+     * The codec compressing the batches of this queue, or {@code null}. Kept
+     * apart from the configuration, since the stored batches depend on it.
+     */
+    private final CompressionCodec compressionCodec;
+    
+    /**
+     * The deadlines of the messages, or {@code null} if this queue ignores 
+     * their time to live.
+     */
+    private final MessageDeadlines deadlines;
+    
+    /**
+     * Keeps {@link #deadlines} aligned with the messages: taken around every
+     * append and removal if this queue honours the time to live.
+     */
+    private final ReentrantLock deadlineLock = new ReentrantLock();
+    
+    MessageQueue(String name,
+                 MessageQueueConfiguration configuration,
+                 MemoryBudget memoryBudget,
+                 MessageStore messages) {
+        this.name = name;
+        this.configuration = configuration;
+        this.memoryBudget = memoryBudget;
+        this.messages = messages;
+        this.compressionCodec = configuration.getCompressionCodec();
+        this.maxMessages = Math.min(configuration.getMaxMessages(),
+                                    messages.getCapacity());
+        this.retainedLog = configuration.getRetainedMessages() == 0 ?
+                null :
+                new RetainedLog(configuration.getRetainedMessages(),
+                                configuration.getRetainedBytes());
+        this.deadlines = 
+                configuration.isMessageTtlEnabled() && retainedLog == null ?
+                        new MessageDeadlines(
+                                messages.getRecoveredMessageCount()) :
+                        null;
+        this.messageCount.set(messages.getRecoveredMessageCount());
+        this.byteCount.set(messages.getRecoveredByteCount());
+        memoryBudget.forceReserve(messages.getRecoveredByteCount());
+        this.metrics = new MessageQueueMetrics(
+                this, 
+                messages.getRecoveredMessageCount(), 
+                retainedLog == null);
+    }
+    
+    String getName() {
+        return name;
+    }
+    
+    MessageQueueConfiguration getConfiguration() {
+        return configuration;
+    }
+    
+    RetainedLog getRetainedLog() {
+        return retainedLog;
+    }
+    
+    MessageQueueMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Appends a message if it fits and signals a waiting consumer, if any. A
+     * retained queue appends the message to its ring instead.
+     * Under the {@link MessageQueueConfiguration.OverflowPolicy#DROP_OLDEST}
+     * policy, the oldest messages are dropped until the message fits.
+     * 
+     * @param message the message to append.
+     * @return the outcome.
+     */
+    OfferResult offer(byte[] message) {
+        return offer(message, 0L);
+    }
+    
+    /**
+     * Appends a message with a time to live if it fits.
+     * 
+     * @param message   the message to append.
+     * @param ttlMillis the time to live in milliseconds, or zero for none.
+     * @return the outcome.
+     * @see #offer(byte[])
+     */
+    OfferResult offer(byte[] message, long ttlMillis) {
+        if (retainedLog != null) {
+            if (!retainedLog.append(message)) {
+                return OfferResult.TOO_LARGE;
+            }
+            
+            metrics.onEnqueued(1);
+            return OfferResult.ACCEPTED;
+        }
+        
+        if (message.length > configuration.getMaxBytes() ||
+            message.length > memoryBudget.getMaxBytes()) {
+            return OfferResult.TOO_LARGE;
+        }
+        
+        lockDeadlines();
+        
+        try {
+            while (!tryReserve(message.length)) {
+                if (configuration.getOverflowPolicy() !=
+                        MessageQueueConfiguration.OverflowPolicy.DROP_OLDEST ||
+                        evict() == null) {
+                    return OfferResult.FULL;
+                }
+            }
+            
+            try {
+                messages.add(message);
+            } catch (RuntimeException ex) {
+                release(1L, message.length);
+                throw ex;
+            }
+            
+            if (deadlines != null) {
+                deadlines.append(1L, 
+                                 MessageDeadlines.toDeadlineNanos(ttlMillis));
+            }
+        } finally {
+            unlockDeadlines();
+        }
+        
+        metrics.onEnqueued(1);
+        signalWaitingListener();
+        return OfferResult.ACCEPTED;
+    }
+    
+    /**
+     * Appends the messages starting at the given index in one batch, as long
+     * as they fit, and signals as many waiting consumers. Neither evicts nor
+     * waits: the caller offers the first message not appended, if any, one
+     * by one under the overflow policy.
+     * 
+     * @param messageList the messages to append.
+     * @param index       the index of the first message to append.
+     * @return the index of the first message not appended.
+     */
+    int offerAll(List<byte[]> messageList, int index) {
+        return offerAll(messageList, index, 0L);
+    }
+    
+    /**
+     * Appends the messages with a common time to live in one batch, as long 
+     * as they fit.
+     * 
+     * @param messageList the messages to append.
+     * @param index       the index of the first message to append.
+     * @param ttlMillis   the time to live in milliseconds, or zero for none.
+     * @return the index of the first message not appended.
+     * @see #offerAll(List, int)
+     */
+    int offerAll(List<byte[]> messageList, int index, long ttlMillis) {
+        if (retainedLog != null) {
+            return index;
+        }
+        
+        int end = index;
+        long reservedBytes = 0L;
+        
+        while (end < messageList.size()) {
+            byte[] message = messageList.get(end);
+            
+            if (message.length > configuration.getMaxBytes() ||
+                    !tryReserve(message.length)) {
+                break;
+            }
+            
+            reservedBytes += message.length;
+            end++;
+        }
+        
+        if (end == index) {
+            return index;
+        }
+        
+        lockDeadlines();
+        
+        try {
+            messages.addAll(messageList.subList(index, end));
+            
+            if (deadlines != null) {
+                deadlines.append(end - index, 
+                                 MessageDeadlines.toDeadlineNanos(ttlMillis));
+            }
+        } catch (RuntimeException ex) {
+            release(end - index, reservedBytes);
+            throw ex;
+        } finally {
+            unlockDeadlines();
+        }
+        
+        metrics.onEnqueued(end - index);
+        
+        for (int i = index; i < end && !waitingListeners.isEmpty(); i++) {
+            signalWaitingListener();
+        }
+        
+        return end;
+    }
+    
+    /**
+     * Appends the entries delivered to a consumer that failed to acknowledge
+     * them, and signals as many waiting consumers. The entries were admitted
+     * once already, and so are held neither to the limits of the
+     * configuration nor to the memory budget, but only to the capacity of
+     * the store. They go to the tail, behind the messages produced since, 
+     * and without a time to live.
+     * 
+     * @param entries the entries to append.
+     * @return the number of entries appended; the rest did not fit in the
+     *         store.
+     */
+    int requeue(List<byte[]> entries) {
+        int end = 0;
+        long reservedBytes = 0L;
+        
+        while (end < entries.size()) {
+            if (messageCount.incrementAndGet() > messages.getCapacity()) {
+                messageCount.decrementAndGet();
+                break;
+            }
+            
+            reservedBytes += entries.get(end++).length;
+        }
+        
+        byteCount.addAndGet(reservedBytes);
+        memoryBudget.forceReserve(reservedBytes);
+        
+        lockDeadlines();
+        
+        try {
+            messages.addAll(entries.subList(0, end));
+            
+            if (deadlines != null) {
+                deadlines.append(end, MessageDeadlines.NO_DEADLINE);
+            }
+        } catch (RuntimeException ex) {
+            release(end, reservedBytes);
+            throw ex;
+        } finally {
+            unlockDeadlines();
+        }
+        
+        metrics.onEnqueued(end);
+        
+        for (int i = 0; i < end && !waitingListeners.isEmpty(); i++) {
+            signalWaitingListener();
+        }
+        
+        return end;
+    }
+    
+    /**
+     * Appends the messages a leader replicated to the retained log of this 
+     * queue, keeping their offsets.
+     * 
+     * @param firstOffset the offset of the first message.
+     * @param messages    the messages.
+     * @return the offset the next message appended to the log receives.
+     * @see RetainedLog#appendAt(long, List)
+     */
+    long appendReplicated(long firstOffset, List<byte[]> messages) {
+        int appendedMessages = retainedLog.appendAt(firstOffset, messages);
+        
+        if (appendedMessages > 0) {
+            metrics.onEnqueued(appendedMessages);
+        }
+        
+        return retainedLog.getEndOffset();
+    }
+    
+    /**
+     * Removes the head message of this queue.
+     * 
+     * @return the head message or {@code null} if this queue is empty.
+     */
+    byte[] poll() {
+        byte[] message = removeHead();
+        
+        if (message != null) {
+            release(1L, message.length);
+            metrics.onDequeued(1, true);
+        }
+        
+        return message;
+    }
+    
+    /**
+     * Drops the head message of this queue to make room.
+     * 
+     * @return the dropped message or {@code null} if this queue is empty.
+     */
+    private byte[] evict() {
+        byte[] message = removeHead();
+        
+        if (message != null) {
+            release(1L, message.length);
+            metrics.onDequeued(1, false);
+        }
+        
+        return message;
+    }
+    
+    private byte[] removeHead() {
+        lockDeadlines();
+        
+        try {
+            byte[] message = messages.poll();
+            
+            if (message != null && deadlines != null) {
+                deadlines.remove(1L);
+            }
+            
+            return message;
+        } finally {
+            unlockDeadlines();
+        }
+    }
+    
+    /**
+     * Moves messages from the head of this queue to the list until the list
+     * receives {@code maxMessages} messages, at least {@code maxBytes} bytes,
+     * or this queue becomes empty. A compressed queue moves a single batch.
+     * The expired messages met on the way are dropped.
+     * 
+     * @param batch       the list to append the messages to.
+     * @param maxMessages the maximum number of messages to move.
+     * @param maxBytes    the number of bytes after which to stop.
+     * @return the number of messages moved.
+     */
+    int drainTo(List<byte[]> batch, long maxMessages, long maxBytes) {
+        if (compressionCodec != null) {
+            // Each entry is a whole batch, delivered in a frame of its own:
+            maxMessages = Math.min(maxMessages, 1L);
+        }
+        
+        if (deadlines != null) {
+            return drainUnexpiredTo(batch, maxMessages, maxBytes);
+        }
+        
+        int sizeBefore = batch.size();
+        long drainedBytes = messages.drainTo(batch, maxMessages, maxBytes);
+        int drainedMessages = batch.size() - sizeBefore;
+        
+        if (drainedMessages > 0) {
+            release(drainedMessages, drainedBytes);
+            metrics.onDequeued(drainedMessages, true);
+        }
+        
+        return drainedMessages;
+    }
+    
+    /**
+     * Drains the messages run by run, so that each run is either dropped as
+     * expired or delivered as a whole.
+     */
+    private int drainUnexpiredTo(List<byte[]> batch, 
+                                 long maxMessages, 
+                                 long maxBytes) {
+        long nowNanos = System.nanoTime();
+        List<byte[]> expiredMessages = new ArrayList<>(0);
+        long expiredBytes = 0L;
+        int sizeBefore = batch.size();
+        long drainedBytes = 0L;
+        deadlineLock.lock();
+        
+        try {
+            while (batch.size() - sizeBefore < maxMessages && 
+                    drainedBytes < maxBytes) {
+                long runLength = deadlines.getHeadRunLength();
+                
+                if (runLength == 0L) {
+                    break;
+                }
+                
+                if (deadlines.isHeadExpired(nowNanos)) {
+                    int expiredBefore = expiredMessages.size();
+                    expiredBytes += messages.drainTo(expiredMessages, 
+                                                     runLength, 
+                                                     Long.MAX_VALUE);
+                    deadlines.remove(expiredMessages.size() - expiredBefore);
+                    continue;
+                }
+                
+                int runBefore = batch.size();
+                drainedBytes += 
+                        messages.drainTo(
+                                batch, 
+                                Math.min(runLength, 
+                                         maxMessages - 
+                                         (batch.size() - sizeBefore)),
+                                maxBytes - drainedBytes);
+                
+                if (batch.size() == runBefore) {
+                    break;
+                }
+                
+                deadlines.remove(batch.size() - runBefore);
+            }
+        } finally {
+            deadlineLock.unlock();
+        }
+        
+        if (!expiredMessages.isEmpty()) {
+            release(expiredMessages.size(), expiredBytes);
+            metrics.onDequeued(expiredMessages.size(), false);
+        }
+        
+        int drainedMessages = batch.size() - sizeBefore;
+        
+        if (drainedMessages > 0) {
+            release(drainedMessages, drainedBytes);
+            metrics.onDequeued(drainedMessages, true);
+        }
+        
+        return drainedMessages;
+    }
+    
+    /**
+     * Removes messages from the head of this queue as a region of a log 
+     * segment file, for sending them without copying.
+     * 
+     * @param maxMessages the maximum number of messages to remove.
+     * @param maxBytes    the number of bytes after which to stop.
+     * @return the region or {@code null} if this queue is empty or not 
+     *         durable.
+     * @see MessageStore#drainRegion(long, long)
+     */
+    FileRegion drainRegion(long maxMessages, long maxBytes) {
+        FileRegion region = messages.drainRegion(maxMessages, maxBytes);
+        
+        if (region != null) {
+            release(region.getMessageCount(), region.getByteCount());
+            metrics.onDequeued(region.getMessageCount(), true);
+        }
+        
+        return region;
+    }
+    
+    /**
+     * Returns {@code true} if the messages of this queue may be delivered
+     * as {@link FileRegion}s.
+     * 
+     * @return whether {@link #drainRegion(long, long)} is supported.
+     */
+    boolean isFileBacked() {
+        return retainedLog == null && 
+               compressionCodec == null && 
+               deadlines == null && 
+               messages.isFileBacked();
+    }
+    
+    /**
+     * Returns the codec compressing the batches of this queue.
+     * 
+     * @return the codec or {@code null} if the messages are kept as is.
+     * @see CompressedBatches
+     */
+    CompressionCodec getCompressionCodec() {
+        return compressionCodec;
+    }
+    
+    boolean isEmpty() {
+        return messages.isEmpty();
+    }
+    
+    long size() {
+        return retainedLog != null ? retainedLog.size() : messageCount.get();
+    }
+    
+    long getByteCount() {
+        return retainedLog != null ? 
+                retainedLog.getByteCount() : 
+                byteCount.get();
+    }
+    
+    /**
+     * Returns {@code true} if this queue keeps its messages in a durable log,
+     * and so does not lose them when the handler halts.
+     * 
+     * @return whether this queue is durable.
+     */
+    boolean isDurable() {
+        return messages.isFileBacked();
+    }
+    
+    /**
+     * Releases the storage of this queue.
+     */
+    void close() {
+        messages.close();
+    }
+    
+    /**
+     * Registers the listener to be signalled once this queue has messages. If
+     * it already has, the listener is signalled right away. A listener must
+     * not be registered again before it is signalled.
+     * 
+     * @param listener the listener to register.
+     */
+    void awaitMessages(MessageQueueListener listener) {
+        waitingListeners.add(listener);
+        
+        // A message added before the registration would go unnoticed:
+        if (!messages.isEmpty()) {
+            signalWaitingListener();
+        }
+    }
+    
+    /**
+     * Unregisters the listener. If the listener was already signalled but
+     * will not consume, the signal is passed on to another waiting consumer.
+     * 
+     * @param listener the listener to unregister.
+     */
+    void cancelAwait(MessageQueueListener listener) {
+        waitingListeners.remove(listener);
+        
+        if (!messages.isEmpty()) {
+            signalWaitingListener();
+        }
+    }
+    
+    /**
+     * Registers a task to run once a message of given length may fit. Runs it
+     * right away if it already may. The task may be called from any thread,
+     * and so must not block.
+     * 
+     * @param messageLength the length of the waiting message.
+     * @param waiter        the task to run.
+     */
+    void awaitSpace(int messageLength, Runnable waiter) {
+        // Run the waiter only once even if both the queue and the budget
+        // free up:
+        AtomicBoolean done = new AtomicBoolean();
+        Runnable onceWaiter = () -> {
+            if (done.compareAndSet(false, true)) {
+                waiter.run();
+            }
+        };
+        
+        spaceWaiters.add(onceWaiter);
+        memoryBudget.addSpaceWaiter(onceWaiter);
+        
+        // Room made before the registration would go unnoticed:
+        if (messageCount.get() < maxMessages &&
+            byteCount.get() + messageLength <= configuration.getMaxBytes() &&
+            memoryBudget.hasRoomFor(messageLength)) {
+            onceWaiter.run();
+        }
+    }
+    
+    private boolean tryReserve(int messageLength) {
+        long newMessageCount = messageCount.incrementAndGet();
+        long newByteCount = byteCount.addAndGet(messageLength);
+        
+        if (newMessageCount > maxMessages ||
+            newByteCount > configuration.getMaxBytes() ||
+            !memoryBudget.tryReserve(messageLength)) {
+            messageCount.decrementAndGet();
+            byteCount.addAndGet(-messageLength);
+            return false;
+        }
+        
+        return true;
+    }
+    
+    private void release(long releasedMessages, long releasedBytes) {
+        messageCount.addAndGet(-releasedMessages);
+        byteCount.addAndGet(-releasedBytes);
+        memoryBudget.release(releasedBytes);
+        
+        if (!spaceWaiters.isEmpty()) {
+            signalSpaceWaiters();
+        }
+    }
+    
+    private void lockDeadlines() {
+        if (deadlines != null) {
+            deadlineLock.lock();
+        }
+    }
+    
+    private void unlockDeadlines() {
+        if (deadlines != null) {
+            deadlineLock.unlock();
+        }
+    }
+    
+    private void signalSpaceWaiters() {
+        Runnable waiter;
+        
+        while ((waiter = spaceWaiters.poll()) != null) {
+            waiter.run();
+        }
+    }
+    
+    private void signalWaitingListener() {
+        MessageQueueListener listener = waitingListeners.poll();
+        
+        if (listener != null) {
+            listener.onMessagesAvailable();
+        }
+    }
+}
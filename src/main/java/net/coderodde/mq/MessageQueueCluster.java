@@ -0,0 +1,207 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import static net.coderodde.mq.Utilities.checkPortNumber;
+
+/**
+ * This class implements a client-side view of a cluster of message queue
+ * handlers, each serving its own share of the queues. The queues are placed
+ * on the handlers by a consistent hash ring of their names, so that adding a
+ * handler takes over only the queues falling on its points of the ring, and
+ * removing a handler moves only its own queues; all the clients of the
+ * cluster with the same handlers place every queue the same way.
+ * <p>
+ * Each partition of a partitioned queue has a name of its own, and so is
+ * placed apart from the other partitions: a queue is spread over the cluster
+ * by producing to and consuming from its partitions, the partition of a
+ * keyed message given by {@link #getPartitionName(String, byte[], int)}.
+ * <p>
+ * The producers and the consumers created here are multiplexed: all the
+ * clients of this JVM talking to the same handler share a single pooled
+ * connection. The clients created before a change of the cluster stay
+ * connected to the handlers they were created for.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public final class MessageQueueCluster {
+    
+    /**
+     * Separates the host name from the port number in a node.
+     */
+    private static final char PORT_SEPARATOR = ':';
+    
+    /**
+     * The ring of the handlers, each denoted by its host and port.
+     */
+    private final ConsistentHashRing ring;
+    
+    /**
+     * Constructs an empty cluster with the given number of points per
+     * handler on the ring. More points spread the queues more evenly, at the
+     * expense of the memory of the ring.
+     * 
+     * @param virtualNodeCount the number of points of each handler.
+     */
+    public MessageQueueCluster(int virtualNodeCount) {
+        this.ring = new ConsistentHashRing(virtualNodeCount);
+    }
+    
+    /**
+     * Constructs an empty cluster.
+     */
+    public MessageQueueCluster() {
+        this(MagicConstants.DEFAULT_VIRTUAL_NODE_COUNT);
+    }
+    
+    /**
+     * Constructs a cluster of the given handlers.
+     * 
+     * @param endpoints the handlers, each as {@code host:port}.
+     */
+    public MessageQueueCluster(List<String> endpoints) {
+        this();
+        
+        for (String endpoint : endpoints) {
+            int separatorIndex = endpoint.lastIndexOf(PORT_SEPARATOR);
+            
+            if (separatorIndex < 1) {
+                throw new IllegalArgumentException(
+                        "The endpoint is not of the form host:port: " +
+                        endpoint);
+            }
+            
+            addNode(endpoint.substring(0, separatorIndex),
+                    Integer.parseInt(endpoint.substring(separatorIndex + 1)));
+        }
+    }
+    
+    /**
+     * Adds a handler to this cluster. The queues placed on the handler from
+     * now on are the ones taken over from the other handlers; moving their
+     * messages is up to the application.
+     * 
+     * @param hostName   the host of the handler.
+     * @param portNumber the port of the handler.
+     * @return {@code false} if the handler is in this cluster already.
+     */
+    public boolean addNode(String hostName, int portNumber) {
+        return ring.add(toNode(hostName, portNumber));
+    }
+    
+    /**
+     * Removes a handler from this cluster. Its queues are spread over the
+     * remaining handlers.
+     * 
+     * @param hostName   the host of the handler.
+     * @param portNumber the port of the handler.
+     * @return {@code false} if the handler is not in this cluster.
+     */
+    public boolean removeNode(String hostName, int portNumber) {
+        return ring.remove(toNode(hostName, portNumber));
+    }
+    
+    /**
+     * Returns the handlers of this cluster.
+     * 
+     * @return the handlers, each as {@code host:port}.
+     */
+    public List<String> getNodes() {
+        return new ArrayList<>(ring.getNodes());
+    }
+    
+    /**
+     * Returns the handler a queue is placed on.
+     * 
+     * @param messageQueueName the name of the queue or of a partition.
+     * @return the handler as {@code host:port}.
+     * @throws IllegalStateException if this cluster has no handlers.
+     */
+    public String getNode(String messageQueueName) {
+        Objects.requireNonNull(messageQueueName,
+                               "The input message queue name is null.");
+        String node = ring.get(messageQueueName);
+        
+        if (node == null) {
+            throw new IllegalStateException("The cluster has no handlers.");
+        }
+        
+        return node;
+    }
+    
+    /**
+     * Returns the name of the partition receiving the messages with the
+     * given key. The partitions are chosen the same way a handler chooses
+     * them for the keyed messages sent to a partitioned queue.
+     * 
+     * @param messageQueueName the name of the queue.
+     * @param key              the partition key.
+     * @param partitionCount   the number of partitions of the queue.
+     * @return the name of the partition.
+     */
+    public String getPartitionName(String messageQueueName,
+                                   byte[] key,
+                                   int partitionCount) {
+        Objects.requireNonNull(key, "The input key is null.");
+        
+        if (partitionCount < 1 ||
+                partitionCount > MagicConstants.MAX_PARTITION_COUNT) {
+            throw new IllegalArgumentException(
+                    "The partition count is out of range: " +
+                    partitionCount);
+        }
+        
+        return PartitionedQueue.getPartitionName(
+                messageQueueName,
+                Math.floorMod(Utilities.hashKey(key), partitionCount));
+    }
+    
+    /**
+     * Constructs a producer connected to the handler of the queue.
+     * 
+     * @param messageQueueName the name of the queue or of a partition.
+     * @return the connected producer.
+     * @throws IOException if network I/O fails or the handler refuses the
+     *                     channel.
+     */
+    public MessageQueueProducer createProducer(String messageQueueName)
+            throws IOException {
+        String node = getNode(messageQueueName);
+        return MessageQueueProducer.multiplexed(messageQueueName,
+                                                getHostName(node),
+                                                getPortNumber(node));
+    }
+    
+    /**
+     * Constructs a consumer connected to the handler of the queue.
+     * 
+     * @param messageQueueName the name of the queue or of a partition.
+     * @return the connected consumer.
+     * @throws IOException if network I/O fails or the handler refuses the
+     *                     channel.
+     */
+    public MessageQueueConsumer createConsumer(String messageQueueName)
+            throws IOException {
+        String node = getNode(messageQueueName);
+        return MessageQueueConsumer.multiplexed(messageQueueName,
+                                                getHostName(node),
+                                                getPortNumber(node));
+    }
+    
+    private static String toNode(String hostName, int portNumber) {
+        Objects.requireNonNull(hostName, "The input host name is null.");
+        return hostName + PORT_SEPARATOR + checkPortNumber(portNumber);
+    }
+    
+    private static String getHostName(String node) {
+        return node.substring(0, node.lastIndexOf(PORT_SEPARATOR));
+    }
+    
+    private static int getPortNumber(String node) {
+        return Integer.parseInt(
+                node.substring(node.lastIndexOf(PORT_SEPARATOR) + 1));
+    }
+}
@@ -0,0 +1,423 @@
+package net.coderodde.mq;
+
+import java.util.Objects;
+
+/**
+ * This class holds the settings of a single message queue. A configuration
+ * is bound to a queue name via
+ * {@link MessageQueueHandler#setQueueConfiguration(String, MessageQueueConfiguration)}
+ * before the queue is created, that is, before the first client connects to
+ * it.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public final class MessageQueueConfiguration {
+    
+    /**
+     * Specifies what happens to a message that does not fit in a full queue.
+     */
+    public enum OverflowPolicy {
+        
+        /**
+         * The producer is paused until the consumers make room.
+         */
+        BLOCK,
+        
+        /**
+         * The message is rejected and the producer is sent an error frame.
+         */
+        REJECT,
+        
+        /**
+         * The oldest messages are dropped in order to make room.
+         */
+        DROP_OLDEST
+    }
+    
+    /**
+     * Specifies where the queue keeps its messages.
+     */
+    public enum StorageType {
+        
+        /**
+         * Each message is a separate array on the Java heap.
+         */
+        HEAP,
+        
+        /**
+         * The messages are packed into direct buffer slabs outside of the 
+         * Java heap.
+         */
+        OFF_HEAP,
+        
+        /**
+         * The messages are appended to a memory-mapped log on disk and 
+         * survive a restart of the handler.
+         */
+        DURABLE,
+        
+        /**
+         * The messages are kept in a bounded lock-free ring buffer. The 
+         * message count limit of the queue is capped by the ring capacity.
+         */
+        RING_BUFFER
+    }
+    
+    /**
+     * The maximum number of messages in the queue.
+     */
+    private long maxMessages = Long.MAX_VALUE;
+    
+    /**
+     * The maximum number of message bytes in the queue.
+     */
+    private long maxBytes = Long.MAX_VALUE;
+    
+    /**
+     * The policy applied when the queue or the broker memory budget is full.
+     */
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    
+    /**
+     * The storage of the queue.
+     */
+    private StorageType storageType = StorageType.HEAP;
+    
+    /**
+     * The size of a slab in bytes when the storage is off-heap.
+     */
+    private int slabBytes = MagicConstants.DEFAULT_SLAB_BYTES;
+    
+    /**
+     * The number of slots of the ring buffer storage.
+     */
+    private int ringBufferCapacity = 
+            MagicConstants.DEFAULT_RING_BUFFER_CAPACITY;
+    
+    /**
+     * The number of messages a retained queue keeps, or zero if the queue is
+     * not retained.
+     */
+    private int retainedMessages;
+    
+    /**
+     * The size of the ring of a retained queue in bytes.
+     */
+    private int retainedBytes = MagicConstants.DEFAULT_RETAINED_BYTES;
+    
+    /**
+     * The size of a log segment file in bytes when the storage is durable.
+     */
+    private int segmentBytes = MagicConstants.DEFAULT_SEGMENT_BYTES;
+    
+    /**
+     * The number of appended messages after which the log is synced.
+     */
+    private int syncEveryMessages = MagicConstants.DEFAULT_SYNC_EVERY_MESSAGES;
+    
+    /**
+     * The interval at which the log is synced, or zero for none.
+     */
+    private long syncIntervalMillis = 
+            MagicConstants.DEFAULT_SYNC_INTERVAL_MILLISECONDS;
+    
+    /**
+     * The number of partitions of the queue.
+     */
+    private int partitionCount = 1;
+    
+    /**
+     * The codec compressing the batches of the queue, or {@code null}.
+     */
+    private CompressionCodec compressionCodec;
+    
+    /**
+     * Tells whether the queue honours the time to live of the messages.
+     */
+    private boolean messageTtlEnabled;
+    
+    public long getMaxMessages() {
+        return maxMessages;
+    }
+    
+    /**
+     * Sets the maximum number of messages in the queue.
+     * 
+     * @param maxMessages the message count limit.
+     */
+    public void setMaxMessages(long maxMessages) {
+        if (maxMessages < 1L) {
+            throw new IllegalArgumentException(
+                    "The message count limit is too small: " + maxMessages);
+        }
+        
+        this.maxMessages = maxMessages;
+    }
+    
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+    
+    /**
+     * Sets the maximum number of message bytes in the queue.
+     * 
+     * @param maxBytes the byte limit.
+     */
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes < 1L) {
+            throw new IllegalArgumentException(
+                    "The byte limit is too small: " + maxBytes);
+        }
+        
+        this.maxBytes = maxBytes;
+    }
+    
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+    
+    /**
+     * Sets the policy applied when the queue is full.
+     * 
+     * @param overflowPolicy the overflow policy.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy =
+                Objects.requireNonNull(
+                        overflowPolicy,
+                        "The input overflow policy is null.");
+    }
+    
+    public StorageType getStorageType() {
+        return storageType;
+    }
+    
+    /**
+     * Sets the storage of the queue.
+     * 
+     * @param storageType the storage type.
+     */
+    public void setStorageType(StorageType storageType) {
+        this.storageType =
+                Objects.requireNonNull(
+                        storageType,
+                        "The input storage type is null.");
+    }
+    
+    public int getSlabBytes() {
+        return slabBytes;
+    }
+    
+    /**
+     * Sets the size of the off-heap slabs. Messages longer than a slab are 
+     * still accepted, each in a dedicated slab.
+     * 
+     * @param slabBytes the slab size in bytes.
+     */
+    public void setSlabBytes(int slabBytes) {
+        if (slabBytes < 1024) {
+            throw new IllegalArgumentException(
+                    "The slab size is too small: " + slabBytes);
+        }
+        
+        this.slabBytes = slabBytes;
+    }
+    
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+    
+    /**
+     * Sets the size of the durable log segment files. Messages longer than a
+     * segment are still accepted, each in a segment of its own.
+     * 
+     * @param segmentBytes the segment size in bytes.
+     */
+    public void setSegmentBytes(int segmentBytes) {
+        if (segmentBytes < 1024) {
+            throw new IllegalArgumentException(
+                    "The segment size is too small: " + segmentBytes);
+        }
+        
+        this.segmentBytes = segmentBytes;
+    }
+    
+    public int getSyncEveryMessages() {
+        return syncEveryMessages;
+    }
+    
+    /**
+     * Sets the number of messages after which the durable log is forced to 
+     * disk. The value of 1 syncs every message.
+     * 
+     * @param syncEveryMessages the group commit size.
+     */
+    public void setSyncEveryMessages(int syncEveryMessages) {
+        if (syncEveryMessages < 1) {
+            throw new IllegalArgumentException(
+                    "The group commit size is too small: " + 
+                    syncEveryMessages);
+        }
+        
+        this.syncEveryMessages = syncEveryMessages;
+    }
+    
+    public long getSyncIntervalMillis() {
+        return syncIntervalMillis;
+    }
+    
+    /**
+     * Sets the interval at which the durable log and the consumer checkpoint
+     * are forced to disk. The value of zero disables the periodic sync.
+     * 
+     * @param syncIntervalMillis the sync interval in milliseconds.
+     */
+    public void setSyncIntervalMillis(long syncIntervalMillis) {
+        if (syncIntervalMillis < 0L) {
+            throw new IllegalArgumentException(
+                    "The sync interval is negative: " + syncIntervalMillis);
+        }
+        
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+    
+    public int getRetainedMessages() {
+        return retainedMessages;
+    }
+    
+    /**
+     * Turns the queue into a retained one keeping the last 
+     * {@code retainedMessages} messages. The consumers of a retained queue do
+     * not compete for the messages: each reads the whole stream at an offset
+     * of its own and may seek back to the oldest retained message. A retained
+     * queue never blocks nor rejects its producers, but evicts the oldest 
+     * messages instead, and ignores the storage type. The value of zero turns
+     * the retention off.
+     * 
+     * @param retainedMessages the number of retained messages.
+     */
+    public void setRetainedMessages(int retainedMessages) {
+        if (retainedMessages < 0) {
+            throw new IllegalArgumentException(
+                    "The retained message count is negative: " + 
+                    retainedMessages);
+        }
+        
+        this.retainedMessages = retainedMessages;
+    }
+    
+    public int getRetainedBytes() {
+        return retainedBytes;
+    }
+    
+    /**
+     * Sets the size of the ring of a retained queue. The ring is allocated 
+     * in its entirety upon the creation of the queue. Each message takes 
+     * four bytes on top of its length.
+     * 
+     * @param retainedBytes the size of the ring in bytes.
+     */
+    public void setRetainedBytes(int retainedBytes) {
+        if (retainedBytes < 1024) {
+            throw new IllegalArgumentException(
+                    "The retained byte count is too small: " + retainedBytes);
+        }
+        
+        this.retainedBytes = retainedBytes;
+    }
+    
+    public int getRingBufferCapacity() {
+        return ringBufferCapacity;
+    }
+    
+    /**
+     * Sets the number of slots of the ring buffer storage. The capacity is 
+     * rounded up to a power of two.
+     * 
+     * @param ringBufferCapacity the ring capacity.
+     */
+    public void setRingBufferCapacity(int ringBufferCapacity) {
+        if (ringBufferCapacity < 1 || ringBufferCapacity > 1 << 30) {
+            throw new IllegalArgumentException(
+                    "The ring buffer capacity is out of range: " + 
+                    ringBufferCapacity);
+        }
+        
+        this.ringBufferCapacity = ringBufferCapacity;
+    }
+    
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+    
+    /**
+     * Splits the queue into independent partitions, each with a storage and
+     * limits of its own. The messages produced with a key go to the partition
+     * the key hashes to, and the rest go to a partition chosen per producer
+     * connection, so that the order is kept within each partition. Every 
+     * partition is delivered to only one consumer at a time, the partitions
+     * being spread evenly among the connected consumers. A partitioned queue
+     * cannot be retained.
+     * 
+     * @param partitionCount the number of partitions.
+     */
+    public void setPartitionCount(int partitionCount) {
+        if (partitionCount < 1 || 
+                partitionCount > MagicConstants.MAX_PARTITION_COUNT) {
+            throw new IllegalArgumentException(
+                    "The partition count is out of range: " + 
+                    partitionCount);
+        }
+        
+        this.partitionCount = partitionCount;
+    }
+    
+    public CompressionCodec getCompressionCodec() {
+        return compressionCodec;
+    }
+    
+    /**
+     * Makes the queue keep its messages compressed by the codec, a whole
+     * producer batch per entry. The producers and the consumers negotiating 
+     * the codec in the handshake send and receive the batches compressed, 
+     * and the handler stores and forwards them without decompressing; the 
+     * batches of the other clients are compressed and decompressed by the 
+     * handler. The message count limit and the byte limit of a compressed 
+     * queue apply to the batches and their compressed size. A retained queue
+     * cannot be compressed, and a durable queue must keep its codec across
+     * the restarts. The value of {@code null} turns the compression
+     * off.
+     * 
+     * @param compressionCodec the codec or {@code null}.
+     */
+    public void setCompressionCodec(CompressionCodec compressionCodec) {
+        if (compressionCodec != null) {
+            CompressionCodecs.register(compressionCodec);
+        }
+        
+        this.compressionCodec = compressionCodec;
+    }
+    
+    public boolean isMessageTtlEnabled() {
+        return messageTtlEnabled;
+    }
+    
+    /**
+     * Makes the queue honour the time to live the producers give their 
+     * messages. The time to live counts from the moment a message enters the
+     * queue, and the messages past it are dropped when they come up for 
+     * delivery rather than delivered. The queue then serializes its appends
+     * and removals in order to keep the deadlines aligned with the messages, 
+     * and so its durable storage stops delivering straight from the log 
+     * files. The time to live of the messages produced to the other queues is
+     * ignored, as is that of the messages recovered from disk or redelivered
+     * after a missing acknowledgement. A retained queue keeps its messages 
+     * by count and size regardless.
+     * 
+     * @param messageTtlEnabled whether the time to live is honoured.
+     */
+    public void setMessageTtlEnabled(boolean messageTtlEnabled) {
+        this.messageTtlEnabled = messageTtlEnabled;
+    }
+}
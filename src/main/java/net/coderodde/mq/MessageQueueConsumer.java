@@ -1,22 +1,40 @@
 package net.coderodde.mq;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
-import java.util.logging.Logger;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class implements a type instances of which provide means for receiving
  * binary messages from any producers writing to the specified queue.
+ * <p>
+ * By default, a message is gone from the queue once delivered. An 
+ * {@link #acknowledging(String, String, int) acknowledging} consumer tells 
+ * the handler which messages it has processed instead, and the handler 
+ * redelivers the rest to the other consumers should the consumer fail.
  * 
  * @author Rodion "rodde" Efremov
  * @version 1.6 (Feb 27, 2019)
  */
 public final class MessageQueueConsumer implements AutoCloseable {
     
+    /**
+     * The seek offset denoting the oldest message retained by a queue.
+     */
+    public static final long EARLIEST_OFFSET = MagicConstants.EARLIEST_OFFSET;
+    
+    /**
+     * The seek offset denoting the message following the newest one retained
+     * by a queue.
+     */
+    public static final long LATEST_OFFSET = MagicConstants.LATEST_OFFSET;
+    
     /**
      * The string representing the IP address of the message queue handler host.
      */
@@ -28,80 +46,676 @@ public final class MessageQueueConsumer implements AutoCloseable {
     private final int portNumber;
     
     /**
-     * The socket connected to the message queue handler host.
+     * The link to the message queue handler host: a socket of its own, or a
+     * channel of a multiplexed connection.
      */
-    private final Socket socket;
+    private final ClientLink link;
     
     /**
-     * The logger object used for reporting exceptions.
+     * Holds the messages received but not yet consumed.
      */
-    private Logger logger;
+    private final Queue<byte[]> receivedMessages = new ArrayDeque<>();
     
+    /**
+     * Describes the received messages with consecutive offsets: each entry
+     * holds the offset of the first message not yet consumed and the number
+     * of such messages.
+     */
+    private final Queue<long[]> receivedOffsetRuns = new ArrayDeque<>();
+    
+    /**
+     * The offset of the next message to consume, or -1 if not known.
+     */
+    private long offset = -1L;
+    
+    /**
+     * The number of seeks not yet acknowledged by the handler.
+     */
+    private int pendingSeeks;
+    
+    /**
+     * The maximum number of messages the handler may send ahead.
+     */
+    private final int prefetchMessages;
+    
+    /**
+     * The maximum number of message bytes the handler may send ahead.
+     */
+    private final long prefetchBytes;
+    
+    /**
+     * The number of messages consumed but not yet reported back as credit.
+     */
+    private int unreportedMessages;
+    
+    /**
+     * The number of message bytes consumed but not yet reported back as 
+     * credit.
+     */
+    private long unreportedBytes;
+    
+    /**
+     * Whether this consumer acknowledges the processed messages.
+     */
+    private final boolean acknowledging;
+    
+    /**
+     * The number of acknowledged messages after which an acknowledgement is
+     * sent.
+     */
+    private int ackBatchMessages = MagicConstants.DEFAULT_ACK_BATCH_MESSAGES;
+    
+    /**
+     * The maximum number of milliseconds an acknowledgement is held back 
+     * while the consumer keeps consuming.
+     */
+    private long ackIntervalMillis = 
+            MagicConstants.DEFAULT_ACK_INTERVAL_MILLISECONDS;
+    
+    /**
+     * The number of messages consumed so far.
+     */
+    private long consumedMessageCount;
+    
+    /**
+     * The number of messages acknowledged so far.
+     */
+    private long acknowledgedMessageCount;
+    
+    /**
+     * The number of acknowledged messages the handler was told of.
+     */
+    private long reportedAckCount;
+    
+    /**
+     * The {@link System#nanoTime()} of the oldest acknowledgement the 
+     * handler was not told of yet.
+     */
+    private long unreportedAckNanos;
+    
+    /**
+     * Constructs this message queue consumer and connects it to a specified
+     * message queue handler. The handler streams the messages ahead into a
+     * local buffer as long as the consumer has prefetch credit left: at most
+     * {@code prefetchMessages} messages and roughly {@code prefetchBytes} 
+     * bytes. The credit is topped up as the messages are consumed.
+     * 
+     * @param messageQueueName the name of the queue this consumer listens to.
+     * @param hostName         the IP address of the message queue handler.
+     * @param portNumber       the port number to use.
+     * @param prefetchMessages the prefetch window in messages.
+     * @param prefetchBytes    the prefetch window in bytes.
+     * @throws IOException if network I/O fails.
+     */
     public MessageQueueConsumer(String messageQueueName,
                                 String hostName,
-                                int portNumber) throws IOException {
+                                int portNumber,
+                                int prefetchMessages,
+                                long prefetchBytes) throws IOException {
+        this(MagicConstants.CONSUMER_STRING,
+             messageQueueName,
+             hostName,
+             portNumber,
+             prefetchMessages,
+             prefetchBytes,
+             false,
+             false);
+    }
+    
+    /**
+     * Constructs a consumer subscribed to a topic instead of a queue. The
+     * subscriber receives every message published to the topic after it has
+     * connected. A subscriber lagging behind by more than the limits of the
+     * topic configuration loses the oldest messages it has not received yet.
+     * The subscribers cannot {@link #seek(long) seek}.
+     * 
+     * @param topicName        the name of the topic to subscribe to.
+     * @param hostName         the IP address of the message queue handler.
+     * @param portNumber       the port number to use.
+     * @param prefetchMessages the prefetch window in messages.
+     * @param prefetchBytes    the prefetch window in bytes.
+     * @return the connected subscriber.
+     * @throws IOException if network I/O fails.
+     */
+    public static MessageQueueConsumer forTopic(String topicName,
+                                                String hostName,
+                                                int portNumber,
+                                                int prefetchMessages,
+                                                long prefetchBytes) 
+            throws IOException {
+        return new MessageQueueConsumer(MagicConstants.SUBSCRIBER_STRING,
+                                        topicName,
+                                        hostName,
+                                        portNumber,
+                                        prefetchMessages,
+                                        prefetchBytes,
+                                        false,
+                                        false);
+    }
+    
+    /**
+     * Constructs a consumer subscribed to a topic with the default prefetch
+     * window.
+     * 
+     * @param topicName  the name of the topic to subscribe to.
+     * @param hostName   the IP address of the message queue handler.
+     * @param portNumber the port number to use.
+     * @return the connected subscriber.
+     * @throws IOException if network I/O fails.
+     */
+    public static MessageQueueConsumer forTopic(String topicName,
+                                                String hostName,
+                                                int portNumber) 
+            throws IOException {
+        return forTopic(topicName, 
+                        hostName, 
+                        portNumber, 
+                        MagicConstants.DEFAULT_PREFETCH_MESSAGES,
+                        MagicConstants.DEFAULT_PREFETCH_BYTES);
+    }
+    
+    /**
+     * Constructs a consumer sharing a single pooled connection with all the
+     * other multiplexed producers and consumers of this JVM talking to the
+     * same handler. The consumer gets a channel of its own, closed along 
+     * with it, and its prefetch window applies to the channel alone.
+     * 
+     * @param messageQueueName the name of the queue to listen to.
+     * @param hostName         the IP address of the message queue handler.
+     * @param portNumber       the port number to use.
+     * @param prefetchMessages the prefetch window in messages.
+     * @param prefetchBytes    the prefetch window in bytes.
+     * @return the connected consumer.
+     * @throws IOException if network I/O fails or the handler refuses the 
+     *                     channel.
+     */
+    public static MessageQueueConsumer multiplexed(String messageQueueName,
+                                                   String hostName,
+                                                   int portNumber,
+                                                   int prefetchMessages,
+                                                   long prefetchBytes) 
+            throws IOException {
+        return new MessageQueueConsumer(MagicConstants.CONSUMER_STRING,
+                                        messageQueueName,
+                                        hostName,
+                                        portNumber,
+                                        prefetchMessages,
+                                        prefetchBytes,
+                                        true,
+                                        false);
+    }
+    
+    /**
+     * Constructs a multiplexed consumer with the default prefetch window.
+     * 
+     * @param messageQueueName the name of the queue to listen to.
+     * @param hostName         the IP address of the message queue handler.
+     * @param portNumber       the port number to use.
+     * @return the connected consumer.
+     * @throws IOException if network I/O fails or the handler refuses the 
+     *                     channel.
+     */
+    public static MessageQueueConsumer multiplexed(String messageQueueName,
+                                                   String hostName,
+                                                   int portNumber) 
+            throws IOException {
+        return multiplexed(messageQueueName,
+                           hostName,
+                           portNumber,
+                           MagicConstants.DEFAULT_PREFETCH_MESSAGES,
+                           MagicConstants.DEFAULT_PREFETCH_BYTES);
+    }
+    
+    /**
+     * Constructs a consumer acknowledging the messages it has processed. The 
+     * handler keeps track of the messages delivered to the consumer, and 
+     * returns the unacknowledged ones to the queue once the consumer closes
+     * or fails, or keeps the oldest of them unacknowledged past the timeout
+     * of the handler. The redelivered messages go behind the messages 
+     * produced meanwhile. Since a message processed but not yet acknowledged
+     * is redelivered as well, the consumers must cope with duplicates.
+     * <p>
+     * The acknowledgements are cumulative and batched: a single frame 
+     * acknowledges all the messages {@link #acknowledge() acknowledged} since
+     * the previous one, and is sent after {@link #setAckBatchMessages(int)} 
+     * messages or {@link #setAckIntervalMillis(long)} milliseconds, or as 
+     * soon as the consumer waits for more messages. The acknowledging 
+     * consumers are available for the non-retained queues only.
+     * 
+     * @param messageQueueName the name of the queue to listen to.
+     * @param hostName         the IP address of the message queue handler.
+     * @param portNumber       the port number to use.
+     * @param prefetchMessages the prefetch window in messages.
+     * @param prefetchBytes    the prefetch window in bytes.
+     * @return the connected consumer.
+     * @throws IOException if network I/O fails or the handler does not 
+     *                     support the acknowledgements.
+     */
+    public static MessageQueueConsumer acknowledging(String messageQueueName,
+                                                     String hostName,
+                                                     int portNumber,
+                                                     int prefetchMessages,
+                                                     long prefetchBytes) 
+            throws IOException {
+        return new MessageQueueConsumer(MagicConstants.CONSUMER_STRING,
+                                        messageQueueName,
+                                        hostName,
+                                        portNumber,
+                                        prefetchMessages,
+                                        prefetchBytes,
+                                        false,
+                                        true);
+    }
+    
+    /**
+     * Constructs an acknowledging consumer with the default prefetch window.
+     * 
+     * @param messageQueueName the name of the queue to listen to.
+     * @param hostName         the IP address of the message queue handler.
+     * @param portNumber       the port number to use.
+     * @return the connected consumer.
+     * @throws IOException if network I/O fails or the handler does not 
+     *                     support the acknowledgements.
+     */
+    public static MessageQueueConsumer acknowledging(String messageQueueName,
+                                                     String hostName,
+                                                     int portNumber) 
+            throws IOException {
+        return acknowledging(messageQueueName,
+                             hostName,
+                             portNumber,
+                             MagicConstants.DEFAULT_PREFETCH_MESSAGES,
+                             MagicConstants.DEFAULT_PREFETCH_BYTES);
+    }
+    
+    private MessageQueueConsumer(String roleName,
+                                 String messageQueueName,
+                                 String hostName,
+                                 int portNumber,
+                                 int prefetchMessages,
+                                 long prefetchBytes,
+                                 boolean multiplexed,
+                                 boolean acknowledging) throws IOException {
         this.hostName = 
                 Objects.requireNonNull(
                         hostName, 
                         "The input host name is null.");
         
         this.portNumber = checkPortNumber(portNumber);
-        this.socket = preamble();
+        this.prefetchMessages = checkPrefetchMessages(prefetchMessages);
+        this.prefetchBytes = checkPrefetchBytes(prefetchBytes);
+        this.acknowledging = acknowledging;
+        
+        // Send the role of this consumer and the name of the queue it listens
+        // to to the queue handler:
+        if (multiplexed) {
+            this.link = MultiplexedConnection.openChannel(hostName,
+                                                          portNumber,
+                                                          roleName,
+                                                          messageQueueName);
+        } else if (acknowledging) {
+            this.link = new SocketLink(preamble(), 
+                                       roleName, 
+                                       messageQueueName, 
+                                       MagicConstants.PROTOCOL_VERSION_6);
+            // Turn on the tracking before any message is delivered:
+            link.write(Frame.encodeAck(0L));
+        } else {
+            this.link = new SocketLink(preamble(), roleName, messageQueueName);
+        }
         
-        try (OutputStream out = socket.getOutputStream()) {
+        // Announce the initial prefetch window:
+        sendCredit(prefetchMessages, prefetchBytes);
+    }
+    
+    /**
+     * Constructs this message queue consumer with the default prefetch 
+     * window.
+     * 
+     * @param messageQueueName the name of the queue this consumer listens to.
+     * @param hostName         the IP address of the message queue handler.
+     * @param portNumber       the port number to use.
+     * @throws IOException if network I/O fails.
+     */
+    public MessageQueueConsumer(String messageQueueName,
+                                String hostName,
+                                int portNumber) throws IOException {
+        this(messageQueueName, 
+             hostName, 
+             portNumber, 
+             MagicConstants.DEFAULT_PREFETCH_MESSAGES,
+             MagicConstants.DEFAULT_PREFETCH_BYTES);
+    }
+    
+    /**
+     * Receives a single message. The message is taken from the local prefetch
+     * buffer, and the network is read only if the buffer is empty.
+     * 
+     * @return the message data.
+     * @throws IOException if the network I/O fails.
+     */
+    public byte[] consume() throws IOException {
+        fillPrefetchBuffer();
+        byte[] message = receivedMessages.remove();
+        advanceOffset(1);
+        acknowledgeConsumption(1, message.length);
+        consumedMessageCount++;
+        sendAckIfOverdue();
+        return message;
+    }
+    
+    /**
+     * Receives a batch of at most {@code max} messages. Blocks until at least
+     * one message is available, and then drains the local prefetch buffer 
+     * without waiting for more.
+     * 
+     * @param max the maximum number of messages to return.
+     * @return the list of message data.
+     * @throws IOException if the network I/O fails.
+     */
+    public List<byte[]> consume(int max) throws IOException {
+        if (max < 1) {
+            throw new IllegalArgumentException(
+                    "The maximum batch size is too small: " + max);
+        }
+        
+        fillPrefetchBuffer();
+        int messageCount = Math.min(max, receivedMessages.size());
+        List<byte[]> messages = new ArrayList<>(messageCount);
+        long byteCount = 0L;
+        
+        for (int i = 0; i < messageCount; i++) {
+            byte[] message = receivedMessages.remove();
+            messages.add(message);
+            byteCount += message.length;
+        }
+        
+        advanceOffset(messageCount);
+        acknowledgeConsumption(messageCount, byteCount);
+        consumedMessageCount += messageCount;
+        sendAckIfOverdue();
+        return messages;
+    }
+    
+    /**
+     * Acknowledges all the messages consumed so far. The acknowledgement is
+     * sent to the handler in a batch with the following ones.
+     * 
+     * @throws IOException if the network I/O fails.
+     * @throws IllegalStateException if this consumer is not an 
+     *                               {@link #acknowledging(String, String, int)
+     *                               acknowledging} one.
+     */
+    public void acknowledge() throws IOException {
+        checkAcknowledging();
+        
+        if (acknowledgedMessageCount == consumedMessageCount) {
+            return;
+        }
+        
+        if (acknowledgedMessageCount == reportedAckCount) {
+            unreportedAckNanos = System.nanoTime();
+        }
+        
+        acknowledgedMessageCount = consumedMessageCount;
+        
+        if (acknowledgedMessageCount - reportedAckCount >= ackBatchMessages) {
+            sendAck();
+        } else {
+            sendAckIfOverdue();
+        }
+    }
+    
+    /**
+     * Sets the number of acknowledged messages after which the 
+     * acknowledgement is sent to the handler.
+     * 
+     * @param ackBatchMessages the acknowledgement batch size in messages.
+     */
+    public void setAckBatchMessages(int ackBatchMessages) {
+        if (ackBatchMessages < 1) {
+            throw new IllegalArgumentException(
+                    "The acknowledgement batch size is too small: " + 
+                    ackBatchMessages);
+        }
+        
+        this.ackBatchMessages = ackBatchMessages;
+    }
+    
+    /**
+     * Sets the maximum time an acknowledgement is held back while this 
+     * consumer keeps consuming. The value of zero sends each acknowledgement
+     * right away.
+     * 
+     * @param ackIntervalMillis the acknowledgement interval in milliseconds.
+     */
+    public void setAckIntervalMillis(long ackIntervalMillis) {
+        if (ackIntervalMillis < 0L) {
+            throw new IllegalArgumentException(
+                    "The acknowledgement interval is negative: " + 
+                    ackIntervalMillis);
+        }
+        
+        this.ackIntervalMillis = ackIntervalMillis;
+    }
+    
+    /**
+     * Moves the read position within a retained queue. A new consumer of a 
+     * retained queue starts at {@link #LATEST_OFFSET}, that is, receives only
+     * the messages produced after it connected. A consumer resuming after a 
+     * reconnection seeks to the {@link #getOffset() offset} it reached 
+     * before. The offsets outside of the retained range are clamped to it.
+     * The handler closes the connection if the queue is not retained.
+     * 
+     * @param offset the offset of the next message to consume, or one of 
+     *               {@link #EARLIEST_OFFSET} and {@link #LATEST_OFFSET}.
+     * @throws IOException if the network I/O fails.
+     */
+    public void seek(long offset) throws IOException {
+        if (offset < 0L && 
+                offset != EARLIEST_OFFSET && 
+                offset != LATEST_OFFSET) {
+            throw new IllegalArgumentException(
+                    "The input offset is invalid: " + offset);
+        }
+        
+        ByteBuffer frame = Frame.encodeSeek(offset);
+        link.write(frame);
+        pendingSeeks++;
+        // The messages read from the previous position are void:
+        acknowledgeConsumption(receivedMessages.size(), 
+                               Utilities.countBytes(receivedMessages));
+        receivedMessages.clear();
+        receivedOffsetRuns.clear();
+    }
+    
+    /**
+     * Returns the offset of the next message to consume from a retained 
+     * queue, that is, the offset following the last consumed message. 
+     * Storing it and passing it to {@link #seek(long)} upon a reconnection 
+     * resumes the consumption where it left off.
+     * 
+     * @return the offset or -1 if not known yet.
+     */
+    public long getOffset() {
+        return offset;
+    }
+    
+    /**
+     * Blocks until the prefetch buffer has at least one message.
+     * 
+     * @throws IOException if the network I/O fails.
+     */
+    private void fillPrefetchBuffer() throws IOException {
+        while (receivedMessages.isEmpty()) {
+            if (!link.hasFrame()) {
+                // Do not keep the acknowledgements back while waiting:
+                flushAcks();
+            }
             
-            // Send the role of this consumer to the queue handler:
-            byte[] roleNameBytes = MagicConstants.CONSUMER_STRING.getBytes();
-            out.write(roleNameBytes.length);
-            out.write(roleNameBytes);
+            Frame frame = link.read();
             
-            // Send the name of the queue this consumer listens to:
-            byte[] messageQueueNameBytes = messageQueueName.getBytes();
-            out.write(messageQueueNameBytes.length);
-            out.write(messageQueueNameBytes);
+            switch (frame.getType()) {
+                case MagicConstants.FRAME_TYPE_MESSAGES:
+                    receiveMessages(frame);
+                    break;
+                    
+                case MagicConstants.FRAME_TYPE_SEEK:
+                    if (--pendingSeeks == 0) {
+                        offset = frame.getSeekOffset();
+                    }
+                    
+                    break;
+                    
+                default:
+                    throw new IOException(
+                            "Unexpected frame type: " + frame.getType());
+            }
         }
     }
     
-    public byte[] consume() throws IOException {
-        try (InputStream in = socket.getInputStream()) {
-            int bytesLength = in.read();
-            byte[] message = new byte[bytesLength];
-            in.read(message);
-            return message;
+    private void receiveMessages(Frame frame) throws IOException {
+        if (pendingSeeks > 0) {
+            // Sent from the position preceding a seek:
+            List<byte[]> voidMessages = frame.getMessages();
+            acknowledgeConsumption(voidMessages.size(),
+                                   Utilities.countBytes(voidMessages));
+            return;
+        }
+        
+        frame.readMessages(receivedMessages);
+        
+        if (frame.hasOffset()) {
+            receivedOffsetRuns.add(
+                    new long[]{ frame.getFirstOffset(), frame.getCount() });
+        }
+    }
+    
+    /**
+     * Updates the offset after consuming the given number of messages.
+     * 
+     * @param messageCount the number of consumed messages.
+     */
+    private void advanceOffset(int messageCount) {
+        long[] run;
+        
+        while (messageCount > 0 && (run = receivedOffsetRuns.peek()) != null) {
+            int runMessages = (int) Math.min(messageCount, run[1]);
+            run[0] += runMessages;
+            run[1] -= runMessages;
+            messageCount -= runMessages;
+            offset = run[0];
+            
+            if (run[1] == 0L) {
+                receivedOffsetRuns.remove();
+            }
+        }
+    }
+    
+    /**
+     * Tops up the credit once half of the prefetch window is consumed, so 
+     * that the handler can keep streaming while the rest is processed.
+     * 
+     * @param messageCount the number of consumed messages.
+     * @param byteCount    the number of consumed bytes.
+     * @throws IOException if the network I/O fails.
+     */
+    private void acknowledgeConsumption(int messageCount, long byteCount) 
+            throws IOException {
+        unreportedMessages += messageCount;
+        unreportedBytes += byteCount;
+        
+        if (unreportedMessages >= Math.max(1, prefetchMessages / 2) ||
+            unreportedBytes >= prefetchBytes / 2) {
+            sendCredit(unreportedMessages, unreportedBytes);
+            unreportedMessages = 0;
+            unreportedBytes = 0L;
+        }
+    }
+    
+    private void sendCredit(int messageCredit, long byteCredit) 
+            throws IOException {
+        ByteBuffer frame = Frame.encodeCredit(messageCredit, byteCredit);
+        link.write(frame);
+    }
+    
+    /**
+     * Sends the acknowledgements held back for longer than the 
+     * acknowledgement interval.
+     * 
+     * @throws IOException if the network I/O fails.
+     */
+    private void sendAckIfOverdue() throws IOException {
+        if (acknowledgedMessageCount > reportedAckCount &&
+                System.nanoTime() - unreportedAckNanos >= 
+                TimeUnit.MILLISECONDS.toNanos(ackIntervalMillis)) {
+            sendAck();
+        }
+    }
+    
+    private void flushAcks() throws IOException {
+        if (acknowledgedMessageCount > reportedAckCount) {
+            sendAck();
+        }
+    }
+    
+    private void sendAck() throws IOException {
+        link.write(Frame.encodeAck(acknowledgedMessageCount));
+        reportedAckCount = acknowledgedMessageCount;
+    }
+    
+    private void checkAcknowledging() {
+        if (!acknowledging) {
+            throw new IllegalStateException(
+                    "The consumer does not acknowledge.");
         }
     }
     
     @Override
     public void close() throws Exception {
-        try (OutputStream out = socket.getOutputStream();
-             InputStream in = socket.getInputStream()) {
-            out.write(MagicConstants.CLOSE_SENTINEL);
-            out.close();
-            in.close();
-            socket.close();
+        try {
+            flushAcks();
+            ByteBuffer frame = 
+                    Frame.encodeEmpty(MagicConstants.FRAME_TYPE_CLOSE);
+            link.write(frame);
+        } finally {
+            link.close();
         }
     }
     
-    private Socket preamble() {
-        Socket socket = null;
+    private Socket preamble() throws IOException {
+        Socket socket = new Socket(hostName, portNumber);
         
         try {
-            socket = new Socket(hostName, portNumber);
-        } catch (UnknownHostException ex) {
-            if (logger != null) {
-                logger.severe("Failed upon socket creation: " +
-                              ex.getMessage());
-            }
+            // Small frames must not wait for the delayed acknowledgements:
+            socket.setTcpNoDelay(true);
         } catch (IOException ex) {
-            if (logger != null) {
-                logger.severe("Failed upon socket creation: " + 
-                              ex.getMessage());
-            }
+            socket.close();
+            throw ex;
         }
         
         return socket;
     }
- 
+    
+    static int checkPrefetchMessages(int prefetchMessages) {
+        if (prefetchMessages < 1) {
+            throw new IllegalArgumentException(
+                    "The prefetch message count is too small: " + 
+                    prefetchMessages);
+        }
+        
+        return prefetchMessages;
+    }
+    
+    static long checkPrefetchBytes(long prefetchBytes) {
+        if (prefetchBytes < 1L) {
+            throw new IllegalArgumentException(
+                    "The prefetch byte count is too small: " + prefetchBytes);
+        }
+        
+        return prefetchBytes;
+    }
+    
     private int checkPortNumber(int portNumber) {
         if (portNumber < 0) {
             throw new IllegalArgumentException(
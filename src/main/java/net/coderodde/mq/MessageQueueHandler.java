@@ -1,26 +1,91 @@
 package net.coderodde.mq;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.ServerSocket;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.net.URLDecoder;
+import java.lang.management.ManagementFactory;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
+ * This class implements the message queue handler accepting the producer and
+ * consumer connections. The handler may run in the blocking mode, in which 
+ * each connection is served by a dedicated thread, in the virtual thread mode,
+ * in which that thread is a virtual one, or in the non-blocking mode, in which
+ * a small fixed pool of {@link IoLoop} threads multiplexes all the 
+ * connections.
+ * <p>
+ * The state shared by the connection threads is guarded by concurrent 
+ * collections and {@link ReentrantLock}s rather than by {@code synchronized},
+ * which would pin a virtual thread to its carrier thread.
  * 
  * @author Rodion "rodde" Efremov
  * @version 1.6 (Feb 26, 2019)
  */
 public final class MessageQueueHandler extends Thread {
     
+    /**
+     * Specifies how the client connections are served.
+     */
+    public enum Mode {
+        
+        /**
+         * Each connection is served by a dedicated thread.
+         */
+        BLOCKING,
+        
+        /**
+         * All the connections are multiplexed over a pool of selector loops.
+         */
+        NON_BLOCKING,
+        
+        /**
+         * Each connection is served by a dedicated virtual thread, so that the
+         * blocking connection code scales to tens of thousands of 
+         * connections. Requires Java 21 or later at run time.
+         */
+        VIRTUAL_THREADS
+    }
     
     /**
      * Used for logging status information in a console or another listener.
@@ -31,14 +96,70 @@ public final class MessageQueueHandler extends Thread {
     /**
      * Specifies a flag for halting the inner service loop.
      */
-    private boolean haltRequested; // Default value is false.
+    private volatile boolean haltRequested; // Default value is false.
     
     /**
      * Maps queue names to their actual queues.
      */
-    private final Map<String, Queue<byte[]>>
+    private final Map<String, MessageQueue>
             queueNameToLinkedQeueueMap = new ConcurrentHashMap<>();
     
+    /**
+     * Maps the names of the partitioned queues to the queues. Their 
+     * partitions are kept in {@link #queueNameToLinkedQeueueMap}.
+     */
+    private final Map<String, PartitionedQueue> 
+            queueNameToPartitionedQueueMap = new ConcurrentHashMap<>();
+    
+    /**
+     * Maps topic names to their actual topics.
+     */
+    private final Map<String, Topic> topicNameToTopicMap = 
+            new ConcurrentHashMap<>();
+    
+    /**
+     * Maps queue names to the settings used when the queues are created. The
+     * topics are configured the same way.
+     */
+    private final Map<String, MessageQueueConfiguration> 
+            queueNameToConfigurationMap = new ConcurrentHashMap<>();
+    
+    /**
+     * The settings of the queues not listed in 
+     * {@link #queueNameToConfigurationMap}.
+     */
+    private volatile MessageQueueConfiguration defaultQueueConfiguration = 
+            new MessageQueueConfiguration();
+    
+    /**
+     * The budget of the message bytes held in all the queues.
+     */
+    private final MemoryBudget memoryBudget = new MemoryBudget();
+    
+    /**
+     * The directory holding the logs of the durable queues.
+     */
+    private volatile Path dataDirectory = 
+            Paths.get(MagicConstants.DEFAULT_DATA_DIRECTORY);
+    
+    /**
+     * The file holding the snapshot of the in-memory queues, or {@code null}
+     * if the queues are not snapshotted.
+     */
+    private volatile Path snapshotFile; // Default value is null.
+    
+    /**
+     * The snapshot read upon starting, serving the queues restored from it.
+     */
+    private volatile QueueSnapshot snapshot;
+    
+    /**
+     * Set once the snapshot is read upon starting, and cleared once the 
+     * snapshot is written upon halting, so that a handler never started does
+     * not wipe out the snapshot of an earlier one.
+     */
+    private final AtomicBoolean snapshotPending = new AtomicBoolean();
+    
     /**
      * Maps each socket to the name of the queue.
      */
@@ -46,15 +167,153 @@ public final class MessageQueueHandler extends Thread {
             new ConcurrentHashMap<>();
     
     /**
-     * The listening server socket.
+     * The listening server socket channel.
      */
-    private final ServerSocket serverSocket;
+    private final ServerSocketChannel serverSocketChannel;
     
     /**
      * The port number this handler listens to.
      */
     private final int portNumber;
     
+    /**
+     * The connection serving mode.
+     */
+    private final Mode mode;
+    
+    /**
+     * The I/O loops used in the non-blocking mode.
+     */
+    private final IoLoop[] ioLoops;
+    
+    /**
+     * The I/O loop serving the multiplexed connections in the blocking modes.
+     * Started upon the first such connection.
+     */
+    private IoLoop multiplexingIoLoop;
+    
+    /**
+     * Guards the creation of {@link #multiplexingIoLoop}.
+     */
+    private final ReentrantLock multiplexingIoLoopLock = new ReentrantLock();
+    
+    /**
+     * Creates the connection threads in the blocking modes.
+     */
+    private final ThreadFactory connectionThreadFactory;
+    
+    /**
+     * Serializes the creation of the queues. Taken only when a queue does not
+     * exist yet.
+     */
+    private final ReentrantLock queueCreationLock = new ReentrantLock();
+    
+    /**
+     * Updates the queue rates, dumps the metrics and checks the 
+     * acknowledgement timeouts.
+     */
+    private final ScheduledExecutorService metricsScheduler = 
+            Executors.newSingleThreadScheduledExecutor((runnable) -> {
+                Thread thread = new Thread(runnable, "rodde.mq-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+    
+    /**
+     * The interval at which the metrics of all the queues are logged, or zero
+     * if they are not.
+     */
+    private volatile long metricsDumpIntervalMillis; // Default value is 0.
+    
+    /**
+     * The time an acknowledging consumer may keep its oldest delivered 
+     * message unacknowledged.
+     */
+    private volatile long ackTimeoutMillis = 
+            MagicConstants.DEFAULT_ACK_TIMEOUT_MILLISECONDS;
+    
+    /**
+     * Holds the delayed messages until they are due.
+     */
+    private final TimingWheel timingWheel = new TimingWheel();
+    
+    /**
+     * The threads shipping the retained queues to the followers.
+     */
+    private final List<Replicator> replicators = new CopyOnWriteArrayList<>();
+    
+    /**
+     * The number of replicas, this handler included, that must hold a 
+     * message of a retained queue before its producer is confirmed.
+     */
+    private volatile int replicationQuorum = 1;
+    
+    /**
+     * Maps the retained queues to the trackers of their confirmations. Used
+     * only if the quorum includes followers.
+     */
+    private final Map<MessageQueue, QuorumTracker> queueToQuorumTrackerMap =
+            new ConcurrentHashMap<>();
+    
+    /**
+     * The sockets of the leaders replicating to this handler in the blocking
+     * modes. Closed upon halting, so that the leaders notice.
+     */
+    private final Set<Socket> replicaSockets = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * The tasks serving the producers and the publishers in the blocking 
+     * modes. Halted before the snapshot is written, so that no message is 
+     * accepted past it.
+     */
+    private final Set<ProducerTask> producerTasks = 
+            ConcurrentHashMap.newKeySet();
+    
+    /**
+     * Constructs a message queue handler using a particular port and mode.
+     * 
+     * @param portNumber  the number of the port to listen for.
+     * @param mode        the connection serving mode.
+     * @param ioLoopCount the number of I/O loop threads used in the 
+     *                    non-blocking mode.
+     * @throws IOException if network I/O fails.
+     * @throws UnsupportedOperationException if the virtual threads are
+     *                                       requested but not available.
+     */
+    public MessageQueueHandler(int portNumber, Mode mode, int ioLoopCount) 
+            throws IOException {
+        this.portNumber = checkPortNumber(portNumber);
+        this.mode = Objects.requireNonNull(mode, "The input mode is null.");
+        
+        if (ioLoopCount < 1) {
+            throw new IllegalArgumentException(
+                    "The I/O loop count is too small: " + ioLoopCount);
+        }
+        
+        this.connectionThreadFactory = mode == Mode.VIRTUAL_THREADS ? 
+                Utilities.newVirtualThreadFactory("rodde.mq-connection-") :
+                Thread::new;
+        this.serverSocketChannel = ServerSocketChannel.open();
+        this.serverSocketChannel.bind(new InetSocketAddress(this.portNumber));
+        this.ioLoops = 
+                new IoLoop[mode == Mode.NON_BLOCKING ? ioLoopCount : 0];
+        
+        for (int i = 0; i < ioLoops.length; i++) {
+            ioLoops[i] = new IoLoop(this, i);
+        }
+    }
+    
+    /**
+     * Constructs a message queue handler using a particular port and mode.
+     * 
+     * @param portNumber the number of the port to listen for.
+     * @param mode       the connection serving mode.
+     * @throws IOException if network I/O fails.
+     */
+    public MessageQueueHandler(int portNumber, Mode mode) throws IOException {
+        this(portNumber, mode, MagicConstants.DEFAULT_IO_LOOP_COUNT);
+    }
+    
     /**
      * Constructs a message queue handler using a particular port.
      * 
@@ -62,192 +321,2191 @@ public final class MessageQueueHandler extends Thread {
      * @throws IOException if network I/O fails.
      */
     public MessageQueueHandler(int portNumber) throws IOException {
-        this.portNumber = checkPortNumber(portNumber);
-        this.serverSocket = new ServerSocket(checkPortNumber(portNumber));
+        this(portNumber, Mode.BLOCKING);
     }
     
     public MessageQueueHandler() throws IOException {
         this(MagicConstants.DEFAULT_PORT_NUMBER);
     }
     
-    @Override
-    public void run() {
-        ServerSocket serverSocket = null;
-        
-        try {
-            serverSocket = new ServerSocket(portNumber);                    
-        } catch (IOException ex) {
-            Utilities.reportAndThrowIOException(ex, LOGGER);
-        }
-        
-        try {
-            serverSocket.setSoTimeout(
-                    MagicConstants.DEFAULT_SERVER_SOCKET_ACCEPT_TIMEOUT);
-        } catch (SocketException ex) {
-            Utilities.reportAndThrowSocketException(ex, LOGGER);
+    /**
+     * Sets the configuration of the queue with the given name. Takes effect 
+     * only if the queue does not exist yet.
+     * 
+     * @param messageQueueName the name of the queue.
+     * @param configuration    the configuration of the queue.
+     */
+    public void setQueueConfiguration(
+            String messageQueueName,
+            MessageQueueConfiguration configuration) {
+        queueNameToConfigurationMap.put(
+                Objects.requireNonNull(
+                        messageQueueName, 
+                        "The input message queue name is null."),
+                Objects.requireNonNull(
+                        configuration, 
+                        "The input configuration is null."));
+    }
+    
+    /**
+     * Sets the configuration of all the queues without a configuration of 
+     * their own. Takes effect only for the queues created afterwards.
+     * 
+     * @param configuration the default configuration.
+     */
+    public void setDefaultQueueConfiguration(
+            MessageQueueConfiguration configuration) {
+        this.defaultQueueConfiguration = 
+                Objects.requireNonNull(
+                        configuration, 
+                        "The input configuration is null.");
+    }
+    
+    /**
+     * Sets the maximum number of message bytes held in all the queues of this
+     * handler together.
+     * 
+     * @param maxBytes the broker memory budget in bytes.
+     */
+    public void setMemoryBudget(long maxBytes) {
+        if (maxBytes < 1L) {
+            throw new IllegalArgumentException(
+                    "The memory budget is too small: " + maxBytes);
         }
         
-        while (!haltRequested) {
-            Socket socket;
-            
-            try {
-                // New client connected:
-                socket = serverSocket.accept();
-                
-                // Read the type name:
-                int typeNameBytesLength = socket.getInputStream().read();
-                byte[] typeNameBytes = new byte[typeNameBytesLength];
-                socket.getInputStream().read(typeNameBytes);
-                String typeName = new String(typeNameBytes);
-                System.out.println("Type name: " + typeName);
-                
-                // Read the message queue name:
-                int messageQueueNameLength = socket.getInputStream().read();
-                byte[] messageQueueNameBytes = new byte[messageQueueNameLength];
-                socket.getInputStream().read(messageQueueNameBytes);
-                String messageQueueName = new String(messageQueueNameBytes);
-                System.out.println("Queue name: " + messageQueueName);
-                
-                switch (typeName) {
-                    case MagicConstants.PRODUCER_STRING:
-                        socketToQueueNameMap.put(socket, messageQueueName);
-                        
-                        if (!queueNameToLinkedQeueueMap
-                                .containsKey(messageQueueName)) {
-                            queueNameToLinkedQeueueMap.put(
-                                        messageQueueName, 
-                                        new ConcurrentLinkedQueue<>());
-                        }
-                        
-                        handleProducerThread(
-                                socket,
-                                queueNameToLinkedQeueueMap.get(messageQueueName));
-                        break;
-                        
-                    case MagicConstants.CONSUMER_STRING:
-                        handleConsumerThread(socket);
-                        break;
-                        
-                    default:
-                        throw new RuntimeException(
-                                "Unknown client type name: " + typeName);
-                }
-            } catch (IOException ex) {
-                Utilities.reportAndThrowIOException(ex, LOGGER);
-            }
-        }
+        memoryBudget.setMaxBytes(maxBytes);
+    }
+    
+    /**
+     * Sets the directory holding the logs of the durable queues. Each queue
+     * has a subdirectory of its own. Must be called before this handler is
+     * started.
+     * 
+     * @param dataDirectory the data directory.
+     */
+    public void setDataDirectory(Path dataDirectory) {
+        this.dataDirectory = 
+                Objects.requireNonNull(
+                        dataDirectory, 
+                        "The input data directory is null.");
     }
     
-    private void setTimeout(int milliseconds) throws SocketException {
-        serverSocket.setSoTimeout(milliseconds);
+    /**
+     * Sets the file the in-memory queues are drained to upon halting, and
+     * restored from upon the next start. Opening the snapshot reads its index
+     * only; each queue reads its messages from the mapped file as they are
+     * consumed, once the queue is first used, so that the start takes the 
+     * same time however long the backlog. The durable and the retained queues
+     * are left out. Must be called before this handler is started.
+     * 
+     * @param snapshotFile the snapshot file.
+     */
+    public void setSnapshotFile(Path snapshotFile) {
+        this.snapshotFile = 
+                Objects.requireNonNull(
+                        snapshotFile, 
+                        "The input snapshot file is null.");
     }
     
-    private void handleProducerThread(Socket socket, Queue<byte[]> queue) {
-        ProducerThread pt = new ProducerThread(socket, queue);
-        pt.start();
+    /**
+     * Sets the interval at which the metrics of all the queues are logged at
+     * the {@code INFO} level. Zero turns the dump off, which is the default.
+     * Must be called before this handler is started.
+     * 
+     * @param intervalMillis the dump interval in milliseconds.
+     */
+    public void setMetricsDumpInterval(long intervalMillis) {
+        if (intervalMillis < 0L) {
+            throw new IllegalArgumentException(
+                    "The metrics dump interval is negative: " + 
+                    intervalMillis);
+        }
         
-        try {
-            pt.join();
-        } catch (InterruptedException ex) {
-            // Do nothing since we do not expect any InterruptedException.
+        this.metricsDumpIntervalMillis = intervalMillis;
+    }
+    
+    /**
+     * Sets the time an acknowledging consumer may keep the oldest message 
+     * delivered to it unacknowledged. Once the time is up, the connection of
+     * the consumer is closed and its unacknowledged messages are redelivered
+     * to the other consumers. Takes effect for the consumers connecting 
+     * afterwards.
+     * 
+     * @param timeoutMillis the acknowledgement timeout in milliseconds.
+     */
+    public void setAckTimeout(long timeoutMillis) {
+        if (timeoutMillis < 1L) {
+            throw new IllegalArgumentException(
+                    "The acknowledgement timeout is too small: " + 
+                    timeoutMillis);
         }
+        
+        this.ackTimeoutMillis = timeoutMillis;
+    }
+    
+    /**
+     * Adds a follower handler this handler replicates its retained queues 
+     * to. The follower must configure the same queues as retained; its 
+     * consumers may then replay them from any offset the follower holds. The
+     * follower is connected to once this handler starts, and again whenever
+     * the link fails. Must be called before this handler is started.
+     * 
+     * @param hostName   the host of the follower.
+     * @param portNumber the port of the follower.
+     */
+    public void addFollower(String hostName, int portNumber) {
+        Replicator replicator = 
+                new Replicator(this,
+                               Objects.requireNonNull(
+                                       hostName, 
+                                       "The input host name is null."),
+                               checkPortNumber(portNumber));
+        replicators.add(replicator);
     }
     
-    private void handleConsumerThread(Socket socket) {
+    /**
+     * Sets the number of replicas, this handler included, that must hold a
+     * message of a retained queue before the confirming producer of the 
+     * message is confirmed. The default of one confirms the messages as soon
+     * as this handler appends them. Must be called before this handler is 
+     * started.
+     * 
+     * @param quorum the replication quorum.
+     */
+    public void setReplicationQuorum(int quorum) {
+        if (quorum < 1) {
+            throw new IllegalArgumentException(
+                    "The replication quorum is too small: " + quorum);
+        }
         
+        this.replicationQuorum = quorum;
     }
     
     /**
-     * This inner class implements a server thread listening to a producer 
-     * client. 
+     * Requests this handler to stop accepting new connections. The durable
+     * queues are synced to disk, and the in-memory ones are drained to the
+     * snapshot file, if any.
      */
-    private static final class ProducerThread extends Thread {
+    public void requestHalt() {
+        haltRequested = true;
         
-        /**
-         * The socket connected to a producer client.
-         */
-        private final Socket socket;
+        for (IoLoop ioLoop : ioLoops) {
+            ioLoop.requestHalt();
+        }
         
-        /**
-         * The actual queue storing the messages in FIFO-manner.
-         */
-        private final Queue<byte[]> queue;
+        multiplexingIoLoopLock.lock();
         
-        /**
-         * Is used to halt the execution of this thread's queue in FIFO-order.
-         */
-        private boolean haltRequested; // Default value is 'false'.
+        try {
+            if (multiplexingIoLoop != null) {
+                multiplexingIoLoop.requestHalt();
+            }
+        } finally {
+            multiplexingIoLoopLock.unlock();
+        }
         
-        ProducerThread(Socket socket, Queue<byte[]> queue) {
-            this.socket = socket;
-            this.queue = queue;
+        try {
+            serverSocketChannel.close();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Could not close the server socket.", ex);
         }
         
-        public void requestHalt() {
-            this.haltRequested = true;
+        metricsScheduler.shutdownNow();
+        timingWheel.requestHalt();
+        
+        for (Replicator replicator : replicators) {
+            replicator.requestHalt();
         }
         
-        @Override
-        public void run() {
-            while (!haltRequested) {
-                try (InputStream in = socket.getInputStream()) {
-                    int messageBytesLength = in.read();
-                    byte[] messageBytes = new byte[messageBytesLength];
-                    in.read(messageBytes);
-                    queue.add(messageBytes);
-                } catch (IOException ex) {
-                    Logger.getLogger(MessageQueueHandler.class.getName())
-                          .log(Level.SEVERE, 
-                               "Could not produce a message.", 
-                               ex);
-                }
-            }
+        for (Socket socket : replicaSockets) {
+            closeQuietly(socket);
+        }
+        
+        haltProducers();
+        writeSnapshot();
+        
+        for (MessageQueue queue : queueNameToLinkedQeueueMap.values()) {
+            queue.close();
+            unregisterMetrics(queue);
         }
     }
     
-    private static final class ConsumerThread extends Thread {
+    @Override
+    public void run() {
+        openSnapshot();
+        recoverQueues();
+        metricsScheduler.scheduleAtFixedRate(
+                this::tickMetrics, 
+                MagicConstants.METRICS_TICK_MILLISECONDS,
+                MagicConstants.METRICS_TICK_MILLISECONDS, 
+                TimeUnit.MILLISECONDS);
         
-        /**
-         * The default number of milliseconds for waiting upon an empty queue.
-         */
-        private static final int DEFAULT_EMPTY_QUEUE_SLEEP_DURATION = 1_000;
+        if (metricsDumpIntervalMillis > 0L) {
+            metricsScheduler.scheduleAtFixedRate(this::dumpMetrics, 
+                                                 metricsDumpIntervalMillis,
+                                                 metricsDumpIntervalMillis,
+                                                 TimeUnit.MILLISECONDS);
+        }
         
-        /**
-         * The number of milliseconds to wait for an empty queue..
-         */
-        private int emptyQueueSleepDuration =
-                DEFAULT_EMPTY_QUEUE_SLEEP_DURATION;
+        timingWheel.start();
         
-        private final Socket socket;
+        for (IoLoop ioLoop : ioLoops) {
+            ioLoop.start();
+        }
         
-        private final Queue<byte[]> queue;
+        for (Replicator replicator : replicators) {
+            replicator.start();
+        }
         
-        private boolean haltRequested;
+        int nextIoLoopIndex = 0;
         
-        ConsumerThread(Socket socket, Queue<byte[]> queue) {
-            this.socket = socket;
-            this.queue = queue;
+        while (!haltRequested) {
+            SocketChannel socketChannel = null;
+            
+            try {
+                // New client connected:
+                socketChannel = serverSocketChannel.accept();
+                socketChannel.socket().setTcpNoDelay(true);
+            } catch (ClosedChannelException ex) {
+                // requestHalt() closed the server socket channel.
+                break;
+            } catch (IOException ex) {
+                // Such as running out of file descriptors, which may pass:
+                LOGGER.log(Level.SEVERE, "Could not accept a client.", ex);
+                
+                if (socketChannel != null) {
+                    closeQuietly(socketChannel.socket());
+                }
+                
+                continue;
+            }
+            
+            if (mode == Mode.NON_BLOCKING) {
+                // The handshake is parsed incrementally by the I/O loop:
+                ioLoops[nextIoLoopIndex].register(socketChannel);
+                nextIoLoopIndex = (nextIoLoopIndex + 1) % ioLoops.length;
+            } else {
+                // Do not handshake here: the accept loop must keep serving
+                // other clients.
+                Socket socket = socketChannel.socket();
+                connectionThreadFactory.newThread(
+                        () -> serveBlockingConnection(socket)).start();
+            }
         }
+    }
+    
+    /**
+     * Returns the queue with the given name, creating it if necessary.
+     * 
+     * @param messageQueueName the name of the queue.
+     * @return the queue.
+     * @throws IOException if the log of a durable queue cannot be opened.
+     */
+    MessageQueue getQueue(String messageQueueName) throws IOException {
+        MessageQueue queue = queueNameToLinkedQeueueMap.get(messageQueueName);
         
-        public void requestHalt() {
-            this.haltRequested = true;
+        if (queue != null) {
+            return queue;
         }
         
-        @Override
-        public void run() {
-            while (!haltRequested) {
-                if (queue.isEmpty()) {
-                    try {
-                        Thread.sleep(emptyQueueSleepDuration);
-                    } catch (InterruptedException ex) {
-                        
-                    }
-                }
+        // Not computeIfAbsent(): it would hold a monitor during the creation,
+        // which may open a durable log.
+        queueCreationLock.lock();
+        
+        try {
+            queue = queueNameToLinkedQeueueMap.get(messageQueueName);
+            
+            if (queue == null) {
+                queue = createQueue(messageQueueName);
+                queueNameToLinkedQeueueMap.put(messageQueueName, queue);
             }
+            
+            return queue;
+        } finally {
+            queueCreationLock.unlock();
         }
+    }
+    
+    /**
+     * Returns the partitioned queue with the given name, creating it and its
+     * partitions if necessary.
+     * 
+     * @param messageQueueName the name of the queue.
+     * @return the partitioned queue or {@code null} if the queue is not
+     *         configured with more than one partition.
+     * @throws IOException if the log of a durable partition cannot be opened
+     *                     or the queue is also configured as retained.
+     */
+    PartitionedQueue getPartitionedQueue(String messageQueueName) 
+            throws IOException {
+        PartitionedQueue partitionedQueue = 
+                queueNameToPartitionedQueueMap.get(messageQueueName);
         
-        void setEmptyQueueWaitMilliseconds(int milliseconds) {
-            
+        if (partitionedQueue != null) {
+            return partitionedQueue;
+        }
+        
+        MessageQueueConfiguration configuration = 
+                getConfiguration(messageQueueName);
+        
+        if (configuration.getPartitionCount() == 1 || 
+                PartitionedQueue.getParentName(messageQueueName) != null) {
+            // Partitions are not partitioned any further.
+            return null;
+        }
+        
+        if (configuration.getRetainedMessages() > 0) {
+            throw new IOException(
+                    "The queue \"" + messageQueueName + 
+                    "\" cannot be both partitioned and retained.");
+        }
+        
+        queueCreationLock.lock();
+        
+        try {
+            partitionedQueue = 
+                    queueNameToPartitionedQueueMap.get(messageQueueName);
+            
+            if (partitionedQueue == null) {
+                MessageQueue[] partitions = 
+                        new MessageQueue[configuration.getPartitionCount()];
+                
+                for (int i = 0; i < partitions.length; i++) {
+                    partitions[i] = getQueue(
+                            PartitionedQueue.getPartitionName(
+                                    messageQueueName, i));
+                }
+                
+                partitionedQueue = 
+                        new PartitionedQueue(messageQueueName, partitions);
+                queueNameToPartitionedQueueMap.put(messageQueueName, 
+                                                   partitionedQueue);
+            }
+            
+            return partitionedQueue;
+        } finally {
+            queueCreationLock.unlock();
+        }
+    }
+    
+    /**
+     * Returns the topic with the given name, creating it if necessary. The 
+     * topics live in a namespace of their own, apart from the queues.
+     * 
+     * @param topicName the name of the topic.
+     * @return the topic.
+     */
+    Topic getTopic(String topicName) {
+        Topic topic = topicNameToTopicMap.get(topicName);
+        
+        if (topic != null) {
+            return topic;
+        }
+        
+        // A topic is cheap to create, so a racing thread may create one in 
+        // vain rather than lock:
+        Topic newTopic = new Topic(topicName, 
+                                   getConfiguration(topicName), 
+                                   memoryBudget);
+        topic = topicNameToTopicMap.putIfAbsent(topicName, newTopic);
+        return topic != null ? topic : newTopic;
+    }
+    
+    void registerSocket(Socket socket, String messageQueueName) {
+        socketToQueueNameMap.put(socket, messageQueueName);
+    }
+    
+    void unregisterSocket(Socket socket) {
+        socketToQueueNameMap.remove(socket);
+    }
+    
+    /**
+     * Starts checking periodically whether an acknowledging consumer keeps
+     * its oldest delivered message unacknowledged past the timeout.
+     * 
+     * @param inFlightMessages the messages delivered to the consumer.
+     * @param onTimeout        closes the connection of the consumer. Runs
+     *                         once, on the scheduler thread.
+     * @return the check to cancel once the consumer is gone.
+     */
+    ScheduledFuture<?> scheduleAckTimeoutCheck(
+            InFlightMessages inFlightMessages,
+            Runnable onTimeout) {
+        long timeoutMillis = ackTimeoutMillis;
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long checkIntervalMillis = Math.max(1L, timeoutMillis / 4L);
+        AtomicBoolean timedOut = new AtomicBoolean();
+        return metricsScheduler.scheduleWithFixedDelay(() -> {
+            if (inFlightMessages.isOverdue(timeoutNanos) &&
+                    timedOut.compareAndSet(false, true)) {
+                LOGGER.warning(
+                        "A consumer did not acknowledge its messages " +
+                        "within " + timeoutMillis + " ms. Redelivering.");
+                onTimeout.run();
+            }
+        }, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Offers the entries of a scheduled frame to the queue once their delay
+     * passes. The delayed entries are held in memory apart from the queue,
+     * and so count against neither its limits nor the memory budget until 
+     * due, and are lost if the handler halts before.
+     * 
+     * @param queue       the queue or the partition to offer the entries to.
+     * @param entries     the messages, or the compressed batch, to enqueue.
+     * @param delayMillis the delay in milliseconds.
+     * @param ttlMillis   the time to live of the messages once enqueued, in 
+     *                    milliseconds, or zero for none.
+     */
+    void scheduleDelivery(MessageQueue queue, 
+                          List<byte[]> entries, 
+                          long delayMillis,
+                          long ttlMillis) {
+        timingWheel.schedule(
+                delayMillis, 
+                () -> deliverDelayed(queue, entries, 0, ttlMillis));
+    }
+    
+    /**
+     * Offers the due entries to the queue. The producer may be long gone, so 
+     * a full queue is retried a little later unless it rejects the overflow,
+     * in which case the entries are dropped like the ones that never fit.
+     * Runs in the ticker thread of the timing wheel.
+     */
+    private void deliverDelayed(MessageQueue queue, 
+                                List<byte[]> entries, 
+                                int index,
+                                long ttlMillis) {
+        boolean retrying = 
+                queue.getConfiguration().getOverflowPolicy() != 
+                MessageQueueConfiguration.OverflowPolicy.REJECT;
+        int droppedMessageCount = 0;
+        
+        for (index = queue.offerAll(entries, index, ttlMillis);
+                index < entries.size(); 
+                index++) {
+            byte[] entry = entries.get(index);
+            MessageQueue.OfferResult result = queue.offer(entry, ttlMillis);
+            
+            if (result == MessageQueue.OfferResult.FULL && retrying) {
+                int retryIndex = index;
+                timingWheel.schedule(
+                        MagicConstants.DELAYED_DELIVERY_RETRY_MILLISECONDS,
+                        () -> deliverDelayed(queue, 
+                                             entries, 
+                                             retryIndex, 
+                                             ttlMillis));
+                break;
+            }
+            
+            if (result != MessageQueue.OfferResult.ACCEPTED) {
+                droppedMessageCount += 
+                        CompressedBatches.countMessages(queue, entry);
+            }
+        }
+        
+        if (droppedMessageCount > 0) {
+            LOGGER.warning("Dropped " + droppedMessageCount + 
+                           " delayed message(s): the queue \"" + 
+                           queue.getName() + "\" is full or the message " + 
+                           "exceeds its limits.");
+        }
+    }
+    
+    /**
+     * Returns the retained queues of this handler, which are the ones 
+     * replicated to the followers.
+     * 
+     * @return the retained queues.
+     */
+    List<MessageQueue> getRetainedQueues() {
+        List<MessageQueue> retainedQueues = new ArrayList<>();
+        
+        for (MessageQueue queue : queueNameToLinkedQeueueMap.values()) {
+            if (queue.getRetainedLog() != null) {
+                retainedQueues.add(queue);
+            }
+        }
+        
+        return retainedQueues;
+    }
+    
+    /**
+     * Runs the task once the replication quorum holds all the messages 
+     * appended to the queue so far. Runs it right away if the queue is not 
+     * retained or the quorum is this handler alone.
+     * 
+     * @param queue         the queue the messages were appended to.
+     * @param onReplicated  the task to run. Must not block.
+     */
+    void awaitReplication(MessageQueue queue, Runnable onReplicated) {
+        RetainedLog log = queue.getRetainedLog();
+        
+        if (log == null || replicationQuorum == 1) {
+            onReplicated.run();
+            return;
+        }
+        
+        getQuorumTracker(queue).awaitCommit(log.getEndOffset(), 
+                                            onReplicated);
+    }
+    
+    /**
+     * Records how far a follower holds a retained queue. Called from the 
+     * reader thread of the replicator.
+     * 
+     * @param queue      the queue.
+     * @param follower   the replicator of the follower.
+     * @param endOffset  the offset the next message appended to the queue of
+     *                   the follower receives.
+     */
+    void onReplicated(MessageQueue queue, 
+                      Replicator follower, 
+                      long endOffset) {
+        if (replicationQuorum > 1) {
+            getQuorumTracker(queue).acknowledge(follower, endOffset);
+        }
+    }
+    
+    private QuorumTracker getQuorumTracker(MessageQueue queue) {
+        QuorumTracker quorumTracker = queueToQuorumTrackerMap.get(queue);
+        
+        if (quorumTracker != null) {
+            return quorumTracker;
+        }
+        
+        QuorumTracker newQuorumTracker = new QuorumTracker(replicationQuorum);
+        quorumTracker = 
+                queueToQuorumTrackerMap.putIfAbsent(queue, newQuorumTracker);
+        return quorumTracker != null ? quorumTracker : newQuorumTracker;
+    }
+    
+    /**
+     * Appends the messages of a replication frame of the leader to the 
+     * retained queue of this handler, the follower.
+     * 
+     * @param frame the replication frame.
+     * @return the reply to the leader.
+     * @throws IOException if the frame is malformed or the queue is not 
+     *                     retained here.
+     */
+    ByteBuffer applyReplicatedFrame(Frame frame) throws IOException {
+        String messageQueueName = frame.getReplicatedQueueName();
+        Frame messageFrame = frame.getReplicatedFrame();
+        MessageQueue queue = getQueue(messageQueueName);
+        
+        if (queue.getRetainedLog() == null) {
+            throw new IOException(
+                    "The replicated queue \"" + messageQueueName + 
+                    "\" is not retained here.");
+        }
+        
+        long endOffset = 
+                queue.appendReplicated(messageFrame.getFirstOffset(), 
+                                       messageFrame.getMessages());
+        return Frame.encodeReplicated(messageQueueName, endOffset);
+    }
+    
+    /**
+     * Returns the configuration of the queue with the given name. A partition
+     * without a configuration of its own inherits the configuration of its
+     * partitioned queue.
+     */
+    private MessageQueueConfiguration getConfiguration(
+            String messageQueueName) {
+        MessageQueueConfiguration configuration = 
+                queueNameToConfigurationMap.get(messageQueueName);
+        
+        if (configuration != null) {
+            return configuration;
+        }
+        
+        String parentName = PartitionedQueue.getParentName(messageQueueName);
+        
+        if (parentName != null) {
+            return queueNameToConfigurationMap.getOrDefault(
+                    parentName, 
+                    defaultQueueConfiguration);
+        }
+        
+        return defaultQueueConfiguration;
+    }
+    
+    private MessageQueue createQueue(String messageQueueName) 
+            throws IOException {
+        MessageQueueConfiguration configuration = 
+                getConfiguration(messageQueueName);
+        
+        if (configuration.getRetainedMessages() > 0 && 
+                configuration.getCompressionCodec() != null) {
+            throw new IOException(
+                    "The retained queue \"" + messageQueueName + 
+                    "\" cannot be compressed.");
+        }
+        
+        MessageStore store = createMessageStore(messageQueueName, 
+                                                configuration);
+        QueueSnapshot currentSnapshot = snapshot;
+        
+        if (currentSnapshot != null) {
+            store = currentSnapshot.restore(messageQueueName, 
+                                            configuration, 
+                                            store);
+        }
+        
+        MessageQueue queue = 
+                new MessageQueue(messageQueueName, 
+                                 configuration, 
+                                 memoryBudget,
+                                 store);
+        registerMetrics(queue);
+        return queue;
+    }
+    
+    /**
+     * Publishes the metrics of a queue as an MBean. A failure is logged but
+     * does not prevent the queue from being used.
+     * 
+     * @param queue the queue whose metrics to publish.
+     */
+    private void registerMetrics(MessageQueue queue) {
+        try {
+            MBeanServer mBeanServer = 
+                    ManagementFactory.getPlatformMBeanServer();
+            mBeanServer.registerMBean(
+                    new StandardMBean(queue.getMetrics(), 
+                                      MessageQueueMetricsMBean.class),
+                    getMetricsObjectName(queue));
+        } catch (JMException ex) {
+            LOGGER.log(Level.WARNING, 
+                       "Could not register the metrics of queue \"" + 
+                               queue.getName() + "\".", 
+                       ex);
+        }
+    }
+    
+    private void unregisterMetrics(MessageQueue queue) {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                             .unregisterMBean(getMetricsObjectName(queue));
+        } catch (JMException ex) {
+            // Never registered.
+        }
+    }
+    
+    /**
+     * Returns the MBean name of the metrics of a queue. The name includes the
+     * port, so that several handlers may run in the same JVM.
+     */
+    private ObjectName getMetricsObjectName(MessageQueue queue) 
+            throws JMException {
+        return new ObjectName(MagicConstants.MBEAN_DOMAIN + 
+                              ":type=MessageQueue,port=" + portNumber + 
+                              ",name=" + ObjectName.quote(queue.getName()));
+    }
+    
+    private void tickMetrics() {
+        for (MessageQueue queue : queueNameToLinkedQeueueMap.values()) {
+            queue.getMetrics().tick();
+        }
+    }
+    
+    private void dumpMetrics() {
+        if (queueNameToLinkedQeueueMap.isEmpty()) {
+            return;
+        }
+        
+        StringBuilder stringBuilder = 
+                new StringBuilder("Queue metrics on port ")
+                        .append(portNumber)
+                        .append(':');
+        
+        for (MessageQueue queue : queueNameToLinkedQeueueMap.values()) {
+            stringBuilder.append(System.lineSeparator())
+                         .append(queue.getMetrics().toSummaryString());
+        }
+        
+        LOGGER.info(stringBuilder.toString());
+    }
+    
+    /**
+     * Returns the queues a producer or a consumer connection counts against:
+     * all the partitions of a partitioned queue, or the queue itself.
+     * 
+     * @param queue            the queue of the connection.
+     * @param partitionedQueue the partitioned queue of the connection, or 
+     *                         {@code null}.
+     * @return the queues.
+     */
+    static MessageQueue[] getMeteredQueues(MessageQueue queue, 
+                                           PartitionedQueue partitionedQueue) {
+        return partitionedQueue != null ? 
+                partitionedQueue.getPartitions() : 
+                new MessageQueue[]{ queue };
+    }
+    
+    /**
+     * Creates the storage of a new queue. A queue with a log left behind by a
+     * previous run is always durable, so that no messages are lost.
+     */
+    private MessageStore createMessageStore(
+            String messageQueueName,
+            MessageQueueConfiguration configuration) throws IOException {
+        if (configuration.getRetainedMessages() > 0) {
+            // The messages live in the ring of the queue; the store is unused.
+            return new HeapMessageStore();
+        }
+        
+        Path queueDirectory = 
+                dataDirectory.resolve(toDirectoryName(messageQueueName));
+        
+        if (configuration.getStorageType() == 
+                MessageQueueConfiguration.StorageType.DURABLE ||
+                Files.isDirectory(queueDirectory)) {
+            return new DurableMessageStore(queueDirectory, configuration);
+        }
+        
+        switch (configuration.getStorageType()) {
+            case OFF_HEAP:
+                return new SlabMessageStore(configuration.getSlabBytes());
+                
+            case RING_BUFFER:
+                return new RingBufferMessageStore(
+                        configuration.getRingBufferCapacity());
+                
+            default:
+                return new HeapMessageStore();
+        }
+    }
+    
+    /**
+     * Recreates the durable queues found in the data directory.
+     */
+    private void recoverQueues() {
+        if (!Files.isDirectory(dataDirectory)) {
+            return;
+        }
+        
+        try (DirectoryStream<Path> stream = 
+                Files.newDirectoryStream(dataDirectory, Files::isDirectory)) {
+            for (Path queueDirectory : stream) {
+                String messageQueueName = 
+                        fromDirectoryName(
+                                queueDirectory.getFileName().toString());
+                
+                try {
+                    MessageQueue queue = getQueue(messageQueueName);
+                    LOGGER.info("Recovered queue \"" + messageQueueName + 
+                                "\" with " + queue.size() + " messages.");
+                } catch (IOException ex) {
+                    LOGGER.log(Level.SEVERE, 
+                               "Could not recover queue \"" + 
+                                       messageQueueName + "\".",
+                               ex);
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, 
+                       "Could not scan the data directory " + 
+                               dataDirectory + ".", 
+                       ex);
+        }
+    }
+    
+    /**
+     * Opens the snapshot left behind by the last graceful shutdown, if any.
+     * The queues are restored from it once first used.
+     */
+    private void openSnapshot() {
+        Path file = snapshotFile;
+        
+        if (file == null) {
+            return;
+        }
+        
+        try {
+            snapshot = QueueSnapshot.open(file);
+            
+            if (snapshot != null) {
+                LOGGER.info("Opened the snapshot " + file + " of " + 
+                            snapshot.getQueueNames().size() + " queue(s).");
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, 
+                       "Could not open the snapshot " + file + ".", 
+                       ex);
+        }
+        
+        snapshotPending.set(true);
+    }
+    
+    /**
+     * Drains the in-memory queues to the snapshot file. The queues of the 
+     * previous snapshot never used since the start are carried over.
+     */
+    private void writeSnapshot() {
+        if (!snapshotPending.compareAndSet(true, false)) {
+            return;
+        }
+        
+        QueueSnapshot previousSnapshot = snapshot;
+        
+        if (previousSnapshot != null) {
+            for (String messageQueueName : 
+                    previousSnapshot.getQueueNames()) {
+                try {
+                    getQueue(messageQueueName);
+                } catch (IOException ex) {
+                    LOGGER.log(Level.SEVERE, 
+                               "Could not restore queue \"" + 
+                                       messageQueueName + "\".",
+                               ex);
+                }
+            }
+        }
+        
+        List<MessageQueue> queues = new ArrayList<>();
+        
+        for (MessageQueue queue : queueNameToLinkedQeueueMap.values()) {
+            if (queue.getRetainedLog() == null && !queue.isDurable()) {
+                queues.add(queue);
+            }
+        }
+        
+        try {
+            long messageCount = QueueSnapshot.write(snapshotFile, queues);
+            LOGGER.info("Wrote " + messageCount + " messages to the " + 
+                        "snapshot " + snapshotFile + ".");
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, 
+                       "Could not write the snapshot " + snapshotFile + ".",
+                       ex);
+        } finally {
+            if (previousSnapshot != null) {
+                previousSnapshot.close();
+            }
+        }
+    }
+    
+    /**
+     * Halts the producer tasks and waits for them and for the I/O loops, 
+     * whose halt is already requested, to finish, so that the queues take no
+     * more messages. Gives up on the ones still running after 
+     * {@link MagicConstants#HALT_PRODUCERS_MILLISECONDS}.
+     */
+    private void haltProducers() {
+        for (ProducerTask producerTask : producerTasks) {
+            producerTask.requestHalt();
+        }
+        
+        List<Thread> threads = new ArrayList<>(Arrays.asList(ioLoops));
+        multiplexingIoLoopLock.lock();
+        
+        try {
+            if (multiplexingIoLoop != null) {
+                threads.add(multiplexingIoLoop);
+            }
+        } finally {
+            multiplexingIoLoopLock.unlock();
+        }
+        
+        for (ProducerTask producerTask : producerTasks) {
+            threads.add(producerTask.thread);
+        }
+        
+        long deadlineNanos = 
+                System.nanoTime() + 
+                TimeUnit.MILLISECONDS.toNanos(
+                        MagicConstants.HALT_PRODUCERS_MILLISECONDS);
+        
+        try {
+            for (Thread thread : threads) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(
+                        deadlineNanos - System.nanoTime());
+                
+                if (thread != Thread.currentThread() && 
+                        remainingMillis > 0L) {
+                    thread.join(remainingMillis);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        
+        if (!producerTasks.isEmpty()) {
+            LOGGER.warning(producerTasks.size() + " producer(s) did not " + 
+                           "halt in time; their last messages may miss " + 
+                           "the snapshot.");
+        }
+    }
+    
+    /**
+     * Escapes the queue name into a safe file name.
+     */
+    private static String toDirectoryName(String messageQueueName) {
+        try {
+            return URLEncoder.encode(messageQueueName, "UTF-8")
+                             .replace(".", "%2E");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    private static String fromDirectoryName(String directoryName) {
+        try {
+            return URLDecoder.decode(directoryName, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * Serves a connection in one of the blocking modes until it closes. Runs
+     * in the connection thread.
+     * 
+     * @param socket the client socket.
+     */
+    private void serveBlockingConnection(Socket socket) {
+        try {
+            handleBlockingConnection(socket);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Could not complete the handshake.", ex);
+            closeQuietly(socket);
+        }
+    }
+    
+    private void handleBlockingConnection(Socket socket) throws IOException {
+        DataInputStream in = 
+                new DataInputStream(Utilities.getInputStream(socket));
+        int protocolVersion = MagicConstants.PROTOCOL_VERSION_1;
+        int typeNameBytesLength = in.readUnsignedByte();
+        boolean versionNegotiated = 
+                typeNameBytesLength == MagicConstants.PROTOCOL_VERSION_MARKER;
+        
+        if (versionNegotiated) {
+            // Negotiate the protocol version:
+            protocolVersion = 
+                    Math.max(MagicConstants.PROTOCOL_VERSION_1,
+                             Math.min(in.readUnsignedByte(), 
+                                      MagicConstants.LATEST_PROTOCOL_VERSION));
+            typeNameBytesLength = in.readUnsignedByte();
+        }
+        
+        // Read the type name:
+        byte[] typeNameBytes = new byte[typeNameBytesLength];
+        in.readFully(typeNameBytes);
+        String typeName = new String(typeNameBytes);
+        
+        // Read the message queue name:
+        byte[] messageQueueNameBytes = new byte[in.readUnsignedByte()];
+        in.readFully(messageQueueNameBytes);
+        String messageQueueName = new String(messageQueueNameBytes);
+        
+        LOGGER.fine("Accepted a " + typeName + " for queue \"" + 
+                    messageQueueName + "\".");
+        
+        CompressionCodec compressionCodec = null;
+        byte[] offeredCodecIds = new byte[0];
+        
+        if (versionNegotiated) {
+            Utilities.getOutputStream(socket).write(protocolVersion);
+        }
+        
+        if (protocolVersion >= MagicConstants.PROTOCOL_VERSION_4) {
+            // Read the offered codecs and reply with the chosen one:
+            offeredCodecIds = new byte[in.readUnsignedByte()];
+            in.readFully(offeredCodecIds);
+            compressionCodec = negotiateCompressionCodec(typeName, 
+                                                         messageQueueName, 
+                                                         offeredCodecIds);
+            Utilities.getOutputStream(socket).write(
+                    compressionCodec == null ? 
+                            MagicConstants.NO_COMPRESSION_CODEC_ID : 
+                            compressionCodec.getId());
+        }
+        
+        switch (typeName) {
+            case MagicConstants.PRODUCER_STRING:
+                registerSocket(socket, messageQueueName);
+                PartitionedQueue producedQueue = 
+                        getPartitionedQueue(messageQueueName);
+                
+                if (producedQueue != null) {
+                    serveProducer(socket, 
+                                  producedQueue.nextProducerPartition(),
+                                  producedQueue,
+                                  protocolVersion);
+                } else {
+                    serveProducer(socket, 
+                                  getQueue(messageQueueName), 
+                                  null,
+                                  protocolVersion);
+                }
+                
+                break;
+                
+            case MagicConstants.PUBLISHER_STRING:
+                if (protocolVersion == MagicConstants.PROTOCOL_VERSION_1) {
+                    throw new IOException(
+                            "Publishers require protocol version 2.");
+                }
+                
+                registerSocket(socket, messageQueueName);
+                servePublisher(socket, getTopic(messageQueueName));
+                break;
+                
+            case MagicConstants.SUBSCRIBER_STRING:
+                if (protocolVersion == MagicConstants.PROTOCOL_VERSION_1) {
+                    throw new IOException(
+                            "Subscribers require protocol version 2.");
+                }
+                
+                registerSocket(socket, messageQueueName);
+                serveSubscriber(socket, 
+                                getTopic(messageQueueName), 
+                                protocolVersion);
+                break;
+                
+            case MagicConstants.CONSUMER_STRING:
+                if (protocolVersion == MagicConstants.PROTOCOL_VERSION_1) {
+                    throw new IOException(
+                            "Consumers require protocol version 2.");
+                }
+                
+                registerSocket(socket, messageQueueName);
+                PartitionedQueue consumedQueue = 
+                        getPartitionedQueue(messageQueueName);
+                
+                if (consumedQueue != null) {
+                    serveConsumer(socket, 
+                                  null, 
+                                  consumedQueue, 
+                                  protocolVersion,
+                                  compressionCodec);
+                } else {
+                    serveConsumer(socket, 
+                                  getQueue(messageQueueName), 
+                                  null, 
+                                  protocolVersion,
+                                  compressionCodec);
+                }
+                
+                break;
+                
+            case MagicConstants.MULTIPLEXED_STRING:
+                if (protocolVersion < MagicConstants.PROTOCOL_VERSION_5) {
+                    throw new IOException(
+                            "Multiplexed connections require protocol " + 
+                            "version 5.");
+                }
+                
+                // The channels are served by an I/O loop rather than by a 
+                // thread each:
+                registerSocket(socket, messageQueueName);
+                getMultiplexingIoLoop().registerMultiplexed(socket.getChannel(),
+                                                            protocolVersion,
+                                                            offeredCodecIds);
+                break;
+                
+            case MagicConstants.REPLICATOR_STRING:
+                if (protocolVersion < MagicConstants.PROTOCOL_VERSION_8) {
+                    throw new IOException(
+                            "Replicators require protocol version 8.");
+                }
+                
+                registerSocket(socket, messageQueueName);
+                serveReplicator(socket);
+                break;
+                
+            default:
+                throw new IOException("Unknown client type name: " + typeName);
+        }
+    }
+    
+    /**
+     * Returns the I/O loop serving the multiplexed connections in the 
+     * blocking modes, starting it if necessary.
+     * 
+     * @return the loop.
+     * @throws IOException if the selector of the loop cannot be opened.
+     */
+    private IoLoop getMultiplexingIoLoop() throws IOException {
+        multiplexingIoLoopLock.lock();
+        
+        try {
+            if (multiplexingIoLoop == null) {
+                multiplexingIoLoop = new IoLoop(this, ioLoops.length);
+                multiplexingIoLoop.setDaemon(true);
+                multiplexingIoLoop.start();
+            }
+            
+            return multiplexingIoLoop;
+        } finally {
+            multiplexingIoLoopLock.unlock();
+        }
+    }
+    
+    /**
+     * Chooses the codec for the batches exchanged with a producer or a 
+     * consumer: the codec of the queue if the client offered it.
+     * 
+     * @param roleName         the role of the client.
+     * @param messageQueueName the name of the queue.
+     * @param offeredCodecIds  the IDs of the codecs the client has.
+     * @return the codec or {@code null} if the batches go uncompressed.
+     */
+    CompressionCodec negotiateCompressionCodec(String roleName,
+                                               String messageQueueName,
+                                               byte[] offeredCodecIds) {
+        if (!MagicConstants.PRODUCER_STRING.equals(roleName) &&
+                !MagicConstants.CONSUMER_STRING.equals(roleName)) {
+            return null;
+        }
+        
+        CompressionCodec codec = 
+                getConfiguration(messageQueueName).getCompressionCodec();
+        
+        if (codec == null) {
+            return null;
+        }
+        
+        for (byte offeredCodecId : offeredCodecIds) {
+            if (offeredCodecId == codec.getId()) {
+                return codec;
+            }
+        }
+        
+        return null;
+    }
+    
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Nothing to do with it.
+        }
+    }
+    
+    private void serveProducer(Socket socket, 
+                               MessageQueue queue,
+                               PartitionedQueue partitionedQueue,
+                               int protocolVersion) {
+        MessageQueue[] meteredQueues = 
+                getMeteredQueues(queue, partitionedQueue);
+        
+        for (MessageQueue meteredQueue : meteredQueues) {
+            meteredQueue.getMetrics().onProducerConnected();
+        }
+        
+        try {
+            new ProducerTask(this, 
+                             socket, 
+                             queue, 
+                             partitionedQueue, 
+                             null, 
+                             protocolVersion).run();
+        } finally {
+            for (MessageQueue meteredQueue : meteredQueues) {
+                meteredQueue.getMetrics().onProducerDisconnected();
+            }
+        }
+    }
+    
+    private void servePublisher(Socket socket, Topic topic) {
+        new ProducerTask(this, 
+                         socket, 
+                         null, 
+                         null,
+                         topic, 
+                         MagicConstants.PROTOCOL_VERSION_2).run();
+    }
+    
+    private void serveConsumer(Socket socket, 
+                               MessageQueue queue,
+                               PartitionedQueue partitionedQueue,
+                               int protocolVersion,
+                               CompressionCodec compressionCodec) {
+        MessageQueue[] meteredQueues = 
+                getMeteredQueues(queue, partitionedQueue);
+        
+        for (MessageQueue meteredQueue : meteredQueues) {
+            meteredQueue.getMetrics().onConsumerConnected();
+        }
+        
+        try {
+            new ConsumerTask(this, 
+                             socket, 
+                             queue, 
+                             partitionedQueue, 
+                             null,
+                             protocolVersion,
+                             compressionCodec).run();
+        } finally {
+            for (MessageQueue meteredQueue : meteredQueues) {
+                meteredQueue.getMetrics().onConsumerDisconnected();
+            }
+        }
+    }
+    
+    private void serveSubscriber(Socket socket, 
+                                 Topic topic, 
+                                 int protocolVersion) {
+        new ConsumerTask(this, 
+                         socket, 
+                         null, 
+                         null, 
+                         topic.subscribe(), 
+                         protocolVersion,
+                         null).run();
+    }
+    
+    /**
+     * Serves the leader replicating its retained queues to this handler: 
+     * appends each replication frame to its queue and replies with the end 
+     * offset of the queue. Runs in the connection thread.
+     * 
+     * @param socket the socket connected to the leader.
+     */
+    private void serveReplicator(Socket socket) {
+        replicaSockets.add(socket);
+        
+        if (haltRequested) {
+            closeQuietly(socket);
+        }
+        
+        try (DataInputStream in = 
+                new DataInputStream(
+                        new BufferedInputStream(
+                                Utilities.getInputStream(socket)))) {
+            OutputStream out = Utilities.getOutputStream(socket);
+            Frame frame;
+            
+            while ((frame = Frame.read(in)).getType() != 
+                    MagicConstants.FRAME_TYPE_CLOSE) {
+                if (frame.getType() != MagicConstants.FRAME_TYPE_REPLICATE) {
+                    throw new IOException(
+                            "Unknown frame type: " + frame.getType());
+                }
+                
+                ByteBuffer reply = applyReplicatedFrame(frame);
+                out.write(reply.array(), 0, reply.limit());
+            }
+        } catch (EOFException ex) {
+            // The leader disconnected.
+        } catch (IOException ex) {
+            if (haltRequested) {
+                // requestHalt() closed the socket.
+                return;
+            }
+            
+            LOGGER.log(Level.WARNING, "Could not replicate a frame.", ex);
+            
+            try {
+                // Tell the leader why:
+                ByteBuffer frame = 
+                        Frame.encodeError(0, String.valueOf(ex.getMessage()));
+                Utilities.getOutputStream(socket)
+                      .write(frame.array(), 0, frame.limit());
+            } catch (IOException | RuntimeException ex2) {
+                // The link is gone anyway.
+            }
+        } finally {
+            replicaSockets.remove(socket);
+            unregisterSocket(socket);
+            closeQuietly(socket);
+        }
+    }
+    
+    /**
+     * This inner class implements the server task listening to a producer 
+     * client or a topic publisher. Runs in the connection thread.
+     */
+    private static final class ProducerTask implements Runnable {
+        
+        /**
+         * The handler owning this task.
+         */
+        private final MessageQueueHandler handler;
+        
+        /**
+         * The socket connected to a producer client.
+         */
+        private final Socket socket;
+        
+        /**
+         * The actual queue storing the messages in FIFO-manner, or 
+         * {@code null} if this task serves a publisher. For a partitioned 
+         * queue, the partition receiving the messages without a key.
+         */
+        private final MessageQueue queue;
+        
+        /**
+         * The partitioned queue routing the keyed messages, or {@code null}.
+         */
+        private final PartitionedQueue partitionedQueue;
+        
+        /**
+         * The topic to publish the messages to, or {@code null} if this task
+         * serves a producer.
+         */
+        private final Topic topic;
+        
+        /**
+         * The protocol version agreed upon in the handshake.
+         */
+        private final int protocolVersion;
+        
+        /**
+         * Is used to halt the execution of this thread's queue in FIFO-order.
+         */
+        private volatile boolean haltRequested; // Default value is 'false'.
+        
+        /**
+         * Set whenever the queue signals that it has made room.
+         */
+        private volatile boolean spaceAvailable;
+        
+        /**
+         * The thread running this task.
+         */
+        private volatile Thread thread;
+        
+        /**
+         * Keeps the error frames and the confirmations whole on the wire.
+         */
+        private final ReentrantLock writeLock = new ReentrantLock();
+        
+        /**
+         * Set once the producer asks for the confirmations of its messages.
+         */
+        private boolean confirming;
+        
+        /**
+         * The number of the messages received from the producer.
+         */
+        private long receivedMessageCount;
+        
+        ProducerTask(MessageQueueHandler handler,
+                     Socket socket, 
+                     MessageQueue queue,
+                     PartitionedQueue partitionedQueue,
+                     Topic topic,
+                     int protocolVersion) {
+            this.handler = handler;
+            this.socket = socket;
+            this.queue = queue;
+            this.partitionedQueue = partitionedQueue;
+            this.topic = topic;
+            this.protocolVersion = protocolVersion;
+        }
+        
+        /**
+         * Stops this task. Closing the socket unblocks the read; a task 
+         * waiting for room in the queue is unparked.
+         */
+        public void requestHalt() {
+            this.haltRequested = true;
+            LockSupport.unpark(thread);
+            closeQuietly(socket);
+        }
+        
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            handler.producerTasks.add(this);
+            
+            // The handler halts the tasks it finds registered after raising
+            // its flag, so a task registered too late must halt itself:
+            if (handler.haltRequested) {
+                haltRequested = true;
+            }
+            
+            try (DataInputStream in = 
+                    new DataInputStream(
+                            new BufferedInputStream(
+                                    Utilities.getInputStream(socket)))) {
+                if (protocolVersion == MagicConstants.PROTOCOL_VERSION_1) {
+                    readVersion1(in);
+                } else {
+                    readFrames(in);
+                }
+            } catch (EOFException ex) {
+                // The producer disconnected without the close sentinel.
+            } catch (IOException | UncheckedIOException ex) {
+                if (!haltRequested) {
+                    Logger.getLogger(MessageQueueHandler.class.getName())
+                          .log(Level.SEVERE, 
+                               "Could not produce a message.", 
+                               ex);
+                }
+            } finally {
+                handler.unregisterSocket(socket);
+                closeQuietly(socket);
+                handler.producerTasks.remove(this);
+            }
+        }
+        
+        private void readVersion1(DataInputStream in) throws IOException {
+            while (!haltRequested) {
+                int messageBytesLength = in.readUnsignedByte();
+                
+                if (messageBytesLength == 
+                        (MagicConstants.CLOSE_SENTINEL & 0xff)) {
+                    return;
+                }
+                
+                byte[] messageBytes = new byte[messageBytesLength];
+                in.readFully(messageBytes);
+                enqueue(queue, 
+                        CompressedBatches.toEntries(
+                                queue, 
+                                Collections.singletonList(messageBytes)),
+                        0L);
+            }
+        }
+        
+        private void readFrames(DataInputStream in) throws IOException {
+            while (!haltRequested) {
+                Frame frame = Frame.read(in);
+                
+                switch (frame.getType()) {
+                    case MagicConstants.FRAME_TYPE_MESSAGES:
+                        if (topic != null) {
+                            topic.publish(frame);
+                        } else {
+                            MessageQueue target = getTargetQueue(frame);
+                            List<byte[]> entries = 
+                                    CompressedBatches.toEntries(target, 
+                                                                frame);
+                        
+                            if (frame.getDelayMillis() > 0L) {
+                                handler.scheduleDelivery(
+                                        target, 
+                                        entries, 
+                                        frame.getDelayMillis(), 
+                                        frame.getTtlMillis());
+                            } else {
+                                enqueue(target, 
+                                        entries, 
+                                        frame.getTtlMillis());
+                            }
+                        
+                            if (confirming) {
+                                receivedMessageCount += frame.getCount();
+                                confirm(target, receivedMessageCount);
+                            }
+                        }
+                        
+                        break;
+                        
+                    case MagicConstants.FRAME_TYPE_ACK:
+                        // The producer asks for the confirmations:
+                        if (topic != null || 
+                                protocolVersion < 
+                                MagicConstants.PROTOCOL_VERSION_8) {
+                            throw new IOException(
+                                    "Confirmations require a producer of " +
+                                    "protocol version 8.");
+                        }
+                        
+                        confirming = true;
+                        break;
+                        
+                    case MagicConstants.FRAME_TYPE_CLOSE:
+                        return;
+                        
+                    default:
+                        throw new IOException(
+                                "Unknown frame type: " + frame.getType());
+                }
+            }
+        }
+        
+        /**
+         * Returns the queue receiving the messages of the frame: the 
+         * partition the key hash maps to if the frame is keyed and the queue
+         * is partitioned, and the queue of this task otherwise.
+         * 
+         * @param frame the message frame.
+         * @return the target queue.
+         * @throws IOException if the frame body is malformed.
+         */
+        private MessageQueue getTargetQueue(Frame frame) throws IOException {
+            return partitionedQueue != null && frame.hasKey() ? 
+                    partitionedQueue.getPartition(frame.getKeyHash()) :
+                    queue;
+        }
+        
+        /**
+         * Offers the messages to the queue under its overflow policy. Under
+         * the blocking policy, this task stops reading the socket until the
+         * queue makes room, which pushes back on the producer via TCP.
+         * 
+         * @param queue     the queue to offer the messages to.
+         * @param messages  the messages, or the compressed batches, to 
+         *                  enqueue.
+         * @param ttlMillis the time to live of the messages in milliseconds,
+         *                  or zero for none.
+         * @throws IOException if the network I/O fails.
+         */
+        private void enqueue(MessageQueue queue, 
+                             List<byte[]> messages, 
+                             long ttlMillis) throws IOException {
+            boolean blocking = 
+                    queue.getConfiguration().getOverflowPolicy() == 
+                    MessageQueueConfiguration.OverflowPolicy.BLOCK;
+            int rejectedMessageCount = 0;
+            
+            // Append what fits in one batch, then go one by one:
+            for (int index = queue.offerAll(messages, 0, ttlMillis); 
+                    index < messages.size(); 
+                    index++) {
+                byte[] message = messages.get(index);
+                MessageQueue.OfferResult result;
+                
+                while ((result = queue.offer(message, ttlMillis)) == 
+                        MessageQueue.OfferResult.FULL 
+                        && blocking && !haltRequested) {
+                    awaitSpace(queue, message.length);
+                }
+                
+                if (result != MessageQueue.OfferResult.ACCEPTED) {
+                    rejectedMessageCount += 
+                            CompressedBatches.countMessages(queue, message);
+                }
+            }
+            
+            if (rejectedMessageCount > 0) {
+                reject(queue, rejectedMessageCount);
+            }
+        }
+        
+        private void awaitSpace(MessageQueue queue, int messageLength) {
+            spaceAvailable = false;
+            queue.awaitSpace(messageLength, () -> {
+                spaceAvailable = true;
+                LockSupport.unpark(thread);
+            });
+            
+            while (!spaceAvailable && !haltRequested) {
+                LockSupport.park(this);
+            }
+        }
+        
+        private void reject(MessageQueue queue, int rejectedMessageCount) 
+                throws IOException {
+            String reason = "The queue \"" + queue.getName() + 
+                            "\" is full or the message exceeds its limits.";
+            
+            if (protocolVersion == MagicConstants.PROTOCOL_VERSION_1) {
+                Logger.getLogger(MessageQueueHandler.class.getName())
+                      .warning("Dropped " + rejectedMessageCount + 
+                               " message(s): " + reason);
+                return;
+            }
+            
+            write(Frame.encodeError(rejectedMessageCount, reason));
+        }
+        
+        /**
+         * Confirms the messages received so far once the replication quorum
+         * holds them. The rejected messages are confirmed along with the 
+         * others, after their error frames, and the delayed messages once 
+         * scheduled.
+         * 
+         * @param queue                 the queue the last messages went to.
+         * @param confirmedMessageCount the number of the messages received
+         *                              so far.
+         */
+        private void confirm(MessageQueue queue, long confirmedMessageCount) {
+            handler.awaitReplication(queue, () -> {
+                try {
+                    write(Frame.encodeAck(confirmedMessageCount));
+                } catch (IOException ex) {
+                    // The producer is gone; its task notices.
+                    closeQuietly(socket);
+                }
+            });
+        }
+        
+        private void write(ByteBuffer frame) throws IOException {
+            writeLock.lock();
+            
+            try {
+                Utilities.getOutputStream(socket)
+                      .write(frame.array(), 0, frame.limit());
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * This inner class implements the server task delivering messages to a
+     * consumer client. The task parks while the queue is empty and is woken
+     * up by the queue as soon as a producer adds a message. It also parks 
+     * while the consumer has no prefetch credit left, until the consumer 
+     * tops it up. A consumer of a partitioned queue is served from the 
+     * partitions assigned to it, in a round-robin manner. A topic subscriber
+     * is served the same way, except that the frames come from its 
+     * subscription and are written to the socket channel straight from the
+     * shared buffers. A consumer of a durable queue speaking protocol 
+     * version 3 is sent the records straight from the log segment files. The
+     * batches of a compressed queue are sent one per frame, as stored if the
+     * consumer negotiated the codec of the queue. The batches delivered to an
+     * acknowledging consumer are tracked until acknowledged, and redelivered
+     * to the other consumers once the task ends.
+     */
+    private static final class ConsumerTask 
+            implements Runnable, MessageQueueListener {
+        
+        /**
+         * The handler owning this task.
+         */
+        private final MessageQueueHandler handler;
+        
+        /**
+         * The socket connected to a consumer client.
+         */
+        private final Socket socket;
+        
+        /**
+         * The queue to deliver the messages from, or {@code null} if this task
+         * serves a subscriber or a consumer of a partitioned queue.
+         */
+        private final MessageQueue queue;
+        
+        /**
+         * The partitioned queue to deliver the messages from, or 
+         * {@code null}.
+         */
+        private final PartitionedQueue partitionedQueue;
+        
+        /**
+         * The partitions assigned to this consumer of a partitioned queue.
+         */
+        private PartitionedQueue.Assignment assignment;
+        
+        /**
+         * The partitions this task waits on.
+         */
+        private MessageQueue[] awaitedPartitions;
+        
+        /**
+         * The index of the assigned partition to drain first.
+         */
+        private int nextPartitionIndex;
+        
+        /**
+         * The subscription to deliver the frames from, or {@code null} if this
+         * task serves a consumer.
+         */
+        private final TopicSubscription subscription;
+        
+        /**
+         * The ring of the queue if it is retained, or {@code null}.
+         */
+        private final RetainedLog retainedLog;
+        
+        /**
+         * Whether the messages are sent as regions of the log segment files.
+         * Never to an acknowledging consumer, since the regions cannot be 
+         * redelivered.
+         */
+        private final boolean fileRegionsEnabled;
+        
+        /**
+         * The protocol version agreed upon with the consumer.
+         */
+        private final int protocolVersion;
+        
+        /**
+         * The messages delivered and not yet acknowledged, or {@code null} if
+         * the consumer does not acknowledge. Set by the reader thread before
+         * the consumer grants any credit.
+         */
+        private volatile InFlightMessages inFlightMessages;
+        
+        /**
+         * The periodic check of the acknowledgement timeout, or {@code null}.
+         */
+        private volatile ScheduledFuture<?> ackTimeoutCheck;
+        
+        /**
+         * The codec negotiated by the consumer, or {@code null}.
+         */
+        private final CompressionCodec compressionCodec;
+        
+        /**
+         * The seek offsets received but not yet processed.
+         */
+        private final Queue<Long> seekRequests = new ConcurrentLinkedQueue<>();
+        
+        /**
+         * The offset of the next message to deliver from a retained queue.
+         */
+        private long readOffset;
+        
+        /**
+         * Set whenever the queue signals this task.
+         */
+        private volatile boolean signalled;
+        
+        /**
+         * The thread running this task.
+         */
+        private volatile Thread thread;
+        
+        /**
+         * The number of messages the consumer is willing to receive.
+         */
+        private final AtomicLong messageCredit = new AtomicLong();
+        
+        /**
+         * The number of bytes the consumer is willing to receive.
+         */
+        private final AtomicLong byteCredit = new AtomicLong();
+        
+        /**
+         * Is used to halt the delivery.
+         */
+        private volatile boolean haltRequested; // Default value is 'false'.
+        
+        ConsumerTask(MessageQueueHandler handler, 
+                     Socket socket, 
+                     MessageQueue queue,
+                     PartitionedQueue partitionedQueue,
+                     TopicSubscription subscription,
+                     int protocolVersion,
+                     CompressionCodec compressionCodec) {
+            this.handler = handler;
+            this.socket = socket;
+            this.queue = queue;
+            this.partitionedQueue = partitionedQueue;
+            this.subscription = subscription;
+            this.compressionCodec = compressionCodec;
+            this.protocolVersion = protocolVersion;
+            this.retainedLog = queue == null ? null : queue.getRetainedLog();
+            this.fileRegionsEnabled = 
+                    protocolVersion >= MagicConstants.PROTOCOL_VERSION_3 &&
+                    queue != null && 
+                    queue.isFileBacked();
+            
+            if (retainedLog != null) {
+                this.readOffset = retainedLog.getEndOffset();
+            }
+        }
+        
+        public void requestHalt() {
+            this.haltRequested = true;
+            LockSupport.unpark(thread);
+        }
+        
+        /**
+         * Requests a seek of a retained queue consumer. Called from the reader
+         * thread.
+         * 
+         * @param offset the requested offset.
+         */
+        void requestSeek(long offset) {
+            seekRequests.add(offset);
+            LockSupport.unpark(thread);
+        }
+        
+        /**
+         * Removes the acknowledged messages. The first acknowledgement turns
+         * on the tracking of the delivered messages. Called from the reader
+         * thread.
+         * 
+         * @param acknowledgedMessageCount the cumulative number of messages
+         *                                 acknowledged.
+         * @throws IOException if the consumer may not acknowledge, or the
+         *                     count is invalid.
+         */
+        void acknowledge(long acknowledgedMessageCount) throws IOException {
+            if (inFlightMessages == null) {
+                if (protocolVersion < MagicConstants.PROTOCOL_VERSION_6) {
+                    throw new IOException(
+                            "Acknowledgements require protocol version 6.");
+                }
+                
+                if (subscription != null || retainedLog != null) {
+                    throw new IOException(
+                            "Only the consumers of a non-retained queue " + 
+                            "can acknowledge.");
+                }
+                
+                if (acknowledgedMessageCount != 0L || hasCredit()) {
+                    throw new IOException(
+                            "The first acknowledgement must precede the " + 
+                            "credit.");
+                }
+                
+                InFlightMessages messages = new InFlightMessages();
+                ackTimeoutCheck = 
+                        handler.scheduleAckTimeoutCheck(
+                                messages, 
+                                () -> closeQuietly(socket));
+                inFlightMessages = messages;
+            }
+            
+            inFlightMessages.acknowledge(acknowledgedMessageCount);
+        }
+        
+        @Override
+        public void onMessagesAvailable() {
+            signalled = true;
+            LockSupport.unpark(thread);
+        }
+        
+        /**
+         * Adds to the prefetch credit of the consumer. Called from the reader
+         * thread.
+         * 
+         * @param messages the number of messages granted.
+         * @param bytes    the number of bytes granted.
+         */
+        void grantCredit(long messages, long bytes) {
+            messageCredit.addAndGet(messages);
+            byteCredit.addAndGet(bytes);
+            LockSupport.unpark(thread);
+        }
+        
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            
+            if (partitionedQueue != null) {
+                assignment = partitionedQueue.join(this);
+            }
+            
+            handler.connectionThreadFactory.newThread(
+                    new ConsumerReaderTask(socket, this)).start();
+            List<byte[]> batch = new ArrayList<>();
+            
+            try {
+                OutputStream out = Utilities.getOutputStream(socket);
+                
+                while (!haltRequested) {
+                    Long seekOffset;
+                    
+                    while ((seekOffset = seekRequests.poll()) != null) {
+                        seek(seekOffset, out);
+                    }
+                    
+                    if (!hasCredit()) {
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    
+                    if (subscription != null) {
+                        deliverSubscribed();
+                        continue;
+                    }
+                    
+                    if (retainedLog != null) {
+                        deliverRetained(out);
+                        continue;
+                    }
+                    
+                    if (fileRegionsEnabled && 
+                            inFlightMessages == null && 
+                            deliverRegion()) {
+                        continue;
+                    }
+                    
+                    MessageQueue drainedQueue = drainTo(batch);
+                    
+                    if (batch.isEmpty()) {
+                        awaitMessages();
+                        continue;
+                    }
+                    
+                    ByteBuffer frame = 
+                            CompressedBatches.encodeFrame(drainedQueue, 
+                                                          batch, 
+                                                          compressionCodec);
+                    
+                    if (inFlightMessages != null) {
+                        inFlightMessages.add(drainedQueue, batch);
+                    }
+                    
+                    out.write(frame.array(), 0, frame.limit());
+                    messageCredit.addAndGet(
+                            -CompressedBatches.countMessages(drainedQueue, 
+                                                             batch));
+                    byteCredit.addAndGet(
+                            -CompressedBatches.countMessageBytes(drainedQueue, 
+                                                                 batch));
+                    batch.clear();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(MessageQueueHandler.class.getName())
+                      .log(Level.SEVERE, 
+                           "Could not deliver " + batch.size() + 
+                           " message(s).", 
+                           ex);
+            } finally {
+                if (subscription != null) {
+                    subscription.cancelAwait(this);
+                    subscription.close();
+                } else if (assignment != null) {
+                    partitionedQueue.leave(assignment);
+                } else if (retainedLog != null) {
+                    retainedLog.cancelAwait(this);
+                } else {
+                    queue.cancelAwait(this);
+                }
+                
+                if (inFlightMessages != null) {
+                    ackTimeoutCheck.cancel(false);
+                    inFlightMessages.redeliver();
+                }
+                
+                handler.unregisterSocket(socket);
+                closeQuietly(socket);
+            }
+        }
+        
+        /**
+         * Moves as many messages as the credit allows from the queue, or from
+         * the first non-empty partition assigned to this consumer, to the 
+         * batch.
+         * 
+         * @param batch the list to append the messages to.
+         * @return the queue or the partition the messages were moved from, or
+         *         {@code null} if there were none.
+         */
+        private MessageQueue drainTo(List<byte[]> batch) {
+            long maxBytes = Math.min(
+                    byteCredit.get(), 
+                    MagicConstants.DEFAULT_DELIVERY_BATCH_BYTES);
+            
+            if (assignment == null) {
+                queue.drainTo(batch, messageCredit.get(), maxBytes);
+                return queue;
+            }
+            
+            MessageQueue[] partitions = assignment.getPartitions();
+            MessageQueue drainedPartition = null;
+            
+            for (int i = 0; i < partitions.length && batch.isEmpty(); i++) {
+                // Start from a different partition each time for fairness:
+                drainedPartition = 
+                        partitions[(nextPartitionIndex + i) % 
+                                   partitions.length];
+                drainedPartition.drainTo(batch, messageCredit.get(), maxBytes);
+            }
+            
+            nextPartitionIndex++;
+            return drainedPartition;
+        }
+        
+        /**
+         * Sends a single frame of the records taken from the head segment of
+         * a durable queue. The frame header is written from the heap, and 
+         * the records are transferred from the segment file to the socket 
+         * without copying.
+         * 
+         * @return {@code false} if the queue is empty.
+         * @throws IOException if the network I/O fails.
+         */
+        private boolean deliverRegion() throws IOException {
+            FileRegion region = 
+                    queue.drainRegion(
+                            messageCredit.get(),
+                            Math.min(
+                                    byteCredit.get(),
+                                    MagicConstants.DEFAULT_DELIVERY_BATCH_BYTES));
+            
+            if (region == null) {
+                return false;
+            }
+            
+            try {
+                ByteBuffer header = 
+                        Frame.encodeChecksummedMessagesHeader(
+                                region.getMessageCount(),
+                                region.getRecordBytes());
+                
+                while (header.hasRemaining()) {
+                    socket.getChannel().write(header);
+                }
+                
+                region.transferTo(socket.getChannel());
+                
+                if (!region.isTransferred()) {
+                    throw new IOException(
+                            "Could not transfer the records of the queue \"" +
+                            queue.getName() + "\".");
+                }
+            } finally {
+                region.release();
+            }
+            
+            messageCredit.addAndGet(-region.getMessageCount());
+            byteCredit.addAndGet(-region.getByteCount());
+            return true;
+        }
+        
+        /**
+         * Writes a single frame read from the ring of a retained queue, or 
+         * waits for the messages if there is nothing to read.
+         * 
+         * @param out the socket output stream.
+         * @throws IOException if the network I/O fails.
+         */
+        private void deliverRetained(OutputStream out) throws IOException {
+            RetainedLog.ReadResult result = 
+                    retainedLog.read(
+                            readOffset,
+                            messageCredit.get(),
+                            Math.min(
+                                    byteCredit.get(),
+                                    MagicConstants.DEFAULT_DELIVERY_BATCH_BYTES));
+            
+            if (result == null) {
+                awaitMessages();
+                return;
+            }
+            
+            out.write(result.frame.array(), 0, result.frame.limit());
+            messageCredit.addAndGet(-result.messageCount);
+            byteCredit.addAndGet(-result.byteCount);
+            readOffset = result.getNextOffset();
+        }
+        
+        /**
+         * Writes the oldest frame of the subscription, or waits for the 
+         * frames if there is none. The frame goes through the socket channel
+         * as is, without being copied for this subscriber.
+         * 
+         * @throws IOException if the network I/O fails.
+         */
+        private void deliverSubscribed() throws IOException {
+            SharedFrame frame = subscription.poll();
+            
+            if (frame == null) {
+                awaitMessages();
+                return;
+            }
+            
+            try {
+                ByteBuffer buffer = frame.duplicate();
+                
+                while (buffer.hasRemaining()) {
+                    socket.getChannel().write(buffer);
+                }
+            } finally {
+                frame.release();
+            }
+            
+            messageCredit.addAndGet(-frame.getMessageCount());
+            byteCredit.addAndGet(-frame.getByteCount());
+        }
+        
+        private void seek(long offset, OutputStream out) throws IOException {
+            if (subscription != null) {
+                throw new IOException("The topic subscribers cannot seek.");
+            }
+            
+            if (retainedLog == null) {
+                throw new IOException(
+                        "Only the consumers of a retained queue can seek.");
+            }
+            
+            retainedLog.cancelAwait(this);
+            readOffset = retainedLog.resolveOffset(offset);
+            ByteBuffer frame = Frame.encodeSeek(readOffset);
+            out.write(frame.array(), 0, frame.limit());
+        }
+        
+        private boolean hasCredit() {
+            return messageCredit.get() > 0L && byteCredit.get() > 0L;
+        }
+        
+        private void awaitMessages() {
+            signalled = false;
+            
+            if (subscription != null) {
+                subscription.awaitFrames(this);
+            } else if (assignment != null) {
+                // Also signalled whenever the assignment changes:
+                awaitedPartitions = assignment.getPartitions();
+                
+                for (MessageQueue partition : awaitedPartitions) {
+                    partition.awaitMessages(this);
+                }
+            } else if (retainedLog != null) {
+                retainedLog.awaitAppend(this, readOffset);
+            } else {
+                queue.awaitMessages(this);
+            }
+            
+            while (!signalled && !haltRequested && seekRequests.isEmpty()) {
+                LockSupport.park(this);
+            }
+            
+            if (awaitedPartitions != null) {
+                for (MessageQueue partition : awaitedPartitions) {
+                    partition.cancelAwait(this);
+                }
+                
+                awaitedPartitions = null;
+            }
+        }
+    }
+    
+    /**
+     * This inner class implements the task reading the consumer client 
+     * frames: the credit frames, the seek frames, the acknowledgement frames
+     * and the close frame. It blocks reading while the consumer task writes
+     * to the same socket, and so reads from the channel of the socket 
+     * directly: the stream of the socket would hold the blocking lock of the
+     * channel on Java 8, locking the writer out.
+     */
+    private static final class ConsumerReaderTask implements Runnable {
+        
+        /**
+         * The socket connected to a consumer client.
+         */
+        private final Socket socket;
+        
+        /**
+         * The task delivering to the same consumer.
+         */
+        private final ConsumerTask consumerTask;
+        
+        ConsumerReaderTask(Socket socket, ConsumerTask consumerTask) {
+            this.socket = socket;
+            this.consumerTask = consumerTask;
+        }
+        
+        @Override
+        public void run() {
+            try (DataInputStream in = 
+                    new DataInputStream(Utilities.getInputStream(socket))) {
+                Frame frame;
+                
+                while ((frame = Frame.read(in)).getType() != 
+                        MagicConstants.FRAME_TYPE_CLOSE) {
+                    if (frame.getType() == MagicConstants.FRAME_TYPE_CREDIT) {
+                        consumerTask.grantCredit(frame.getMessageCredit(),
+                                                   frame.getByteCredit());
+                    } else if (frame.getType() == 
+                            MagicConstants.FRAME_TYPE_SEEK) {
+                        consumerTask.requestSeek(frame.getSeekOffset());
+                    } else if (frame.getType() == 
+                            MagicConstants.FRAME_TYPE_ACK) {
+                        consumerTask.acknowledge(
+                                frame.getAcknowledgedMessageCount());
+                    }
+                }
+            } catch (IOException ex) {
+                // The consumer disconnected without the close frame.
+            } finally {
+                consumerTask.requestHalt();
+            }
         }
     }
     
@@ -0,0 +1,18 @@
+package net.coderodde.mq;
+
+/**
+ * This interface defines the API for the consumers waiting on an empty
+ * {@link MessageQueue}.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+interface MessageQueueListener {
+    
+    /**
+     * Called once after the listener was registered via
+     * {@link MessageQueue#awaitMessages(MessageQueueListener)} and the queue
+     * has messages. May be called from any thread, and so must not block.
+     */
+    void onMessagesAvailable();
+}
@@ -0,0 +1,338 @@
+package net.coderodde.mq;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class implements the metrics of a single {@link MessageQueue}. The
+ * counters are atomics updated by the connection threads, and nothing here
+ * allocates while recording, so that the metrics may stay on in production.
+ * <p>
+ * The stores hold bare messages, so the enqueue time of a message is not
+ * kept with the message itself. Instead, the enqueued and the dequeued
+ * messages are numbered in the queue order, and every
+ * {@link MagicConstants#LATENCY_SAMPLE_INTERVAL}th message is timestamped in
+ * a slot of a fixed ring. The dequeuer of a sampled message takes its
+ * timestamp out and records the latency. A sample finding its slot taken is
+ * skipped rather than overwriting the older one, so that the messages
+ * waiting the longest are always measured.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class MessageQueueMetrics implements MessageQueueMetricsMBean {
+    
+    /**
+     * Marks a free sample slot.
+     */
+    private static final long FREE_SLOT = -1L;
+    
+    /**
+     * Maps the number of a sampled message to its slot.
+     */
+    private static final int SLOT_MASK =
+            MagicConstants.LATENCY_SAMPLE_SLOTS - 1;
+    
+    /**
+     * The queue measured.
+     */
+    private final MessageQueue queue;
+    
+    /**
+     * Whether the dispatch latencies are measured. The retained queues are
+     * read by offset rather than dequeued, and so are not.
+     */
+    private final boolean latencyMeasured;
+    
+    /**
+     * The number of messages enqueued so far. Starts at the number of the
+     * recovered messages, so that the numbering matches the dequeues.
+     */
+    private final AtomicLong enqueuedMessages = new AtomicLong();
+    
+    /**
+     * The number of messages dequeued or evicted so far.
+     */
+    private final AtomicLong dequeuedMessages = new AtomicLong();
+    
+    /**
+     * The numbers of the sampled messages in flight, or {@link #FREE_SLOT}.
+     */
+    private final AtomicLongArray sampleNumbers =
+            new AtomicLongArray(MagicConstants.LATENCY_SAMPLE_SLOTS);
+    
+    /**
+     * The enqueue times of the sampled messages in flight.
+     */
+    private final AtomicLongArray sampleTimes =
+            new AtomicLongArray(MagicConstants.LATENCY_SAMPLE_SLOTS);
+    
+    /**
+     * The enqueue-to-dispatch latencies.
+     */
+    private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+    
+    /**
+     * The number of the connected producers.
+     */
+    private final AtomicInteger producerCount = new AtomicInteger();
+    
+    /**
+     * The number of the connected consumers.
+     */
+    private final AtomicInteger consumerCount = new AtomicInteger();
+    
+    /**
+     * The number of the messages recovered from a previous run.
+     */
+    private final long recoveredMessages;
+    
+    /**
+     * The counts and the time of the last tick.
+     */
+    private long lastEnqueuedMessages;
+    
+    private long lastDequeuedMessages;
+    
+    private long lastTickNanos = System.nanoTime();
+    
+    private volatile double enqueueRate;
+    
+    private volatile double dequeueRate;
+    
+    MessageQueueMetrics(MessageQueue queue,
+                        long recoveredMessages,
+                        boolean latencyMeasured) {
+        this.queue = queue;
+        this.recoveredMessages = recoveredMessages;
+        this.latencyMeasured = latencyMeasured;
+        this.enqueuedMessages.set(recoveredMessages);
+        this.lastEnqueuedMessages = recoveredMessages;
+        
+        for (int i = 0; i < MagicConstants.LATENCY_SAMPLE_SLOTS; i++) {
+            sampleNumbers.set(i, FREE_SLOT);
+        }
+    }
+    
+    /**
+     * Records the enqueueing of consecutive messages.
+     * 
+     * @param count the number of the messages.
+     */
+    void onEnqueued(int count) {
+        long first = enqueuedMessages.getAndAdd(count);
+        
+        if (!latencyMeasured) {
+            return;
+        }
+        
+        long now = System.nanoTime();
+        
+        for (long number = firstSampled(first);
+                number < first + count;
+                number += MagicConstants.LATENCY_SAMPLE_INTERVAL) {
+            int slot = getSlot(number);
+            
+            if (sampleNumbers.get(slot) == FREE_SLOT) {
+                // Publish the time before the number claims the slot:
+                sampleTimes.set(slot, now);
+                sampleNumbers.compareAndSet(slot, FREE_SLOT, number);
+            }
+        }
+    }
+    
+    /**
+     * Records the removal of consecutive messages from the head of the
+     * queue.
+     * 
+     * @param count      the number of the messages.
+     * @param dispatched whether the messages were dispatched to a consumer
+     *                   rather than evicted.
+     */
+    void onDequeued(int count, boolean dispatched) {
+        long first = dequeuedMessages.getAndAdd(count);
+        
+        if (!latencyMeasured) {
+            return;
+        }
+        
+        long now = System.nanoTime();
+        
+        for (long number = firstSampled(first);
+                number < first + count;
+                number += MagicConstants.LATENCY_SAMPLE_INTERVAL) {
+            int slot = getSlot(number);
+            long sampleNumber = sampleNumbers.get(slot);
+            
+            if (sampleNumber > number || sampleNumber == FREE_SLOT) {
+                // Not sampled, or sampled only after this message left:
+                continue;
+            }
+            
+            long enqueueNanos = sampleTimes.get(slot);
+            
+            // A sample older than this message is stale; free it silently.
+            if (sampleNumbers.compareAndSet(slot, sampleNumber, FREE_SLOT) &&
+                    sampleNumber == number &&
+                    dispatched) {
+                latencyHistogram.record(now - enqueueNanos);
+            }
+        }
+    }
+    
+    void onProducerConnected() {
+        producerCount.incrementAndGet();
+    }
+    
+    void onProducerDisconnected() {
+        producerCount.decrementAndGet();
+    }
+    
+    void onConsumerConnected() {
+        consumerCount.incrementAndGet();
+    }
+    
+    void onConsumerDisconnected() {
+        consumerCount.decrementAndGet();
+    }
+    
+    /**
+     * Updates the rates. Called periodically by a single thread.
+     */
+    void tick() {
+        long now = System.nanoTime();
+        long enqueued = enqueuedMessages.get();
+        long dequeued = dequeuedMessages.get();
+        double seconds = (now - lastTickNanos) / 1e9;
+        
+        if (seconds > 0.0) {
+            enqueueRate = (enqueued - lastEnqueuedMessages) / seconds;
+            dequeueRate = (dequeued - lastDequeuedMessages) / seconds;
+        }
+        
+        lastEnqueuedMessages = enqueued;
+        lastDequeuedMessages = dequeued;
+        lastTickNanos = now;
+    }
+    
+    @Override
+    public String getQueueName() {
+        return queue.getName();
+    }
+    
+    @Override
+    public long getDepth() {
+        return queue.size();
+    }
+    
+    @Override
+    public long getByteCount() {
+        return queue.getByteCount();
+    }
+    
+    @Override
+    public long getEnqueuedMessageCount() {
+        return enqueuedMessages.get() - recoveredMessages;
+    }
+    
+    @Override
+    public long getDequeuedMessageCount() {
+        return dequeuedMessages.get();
+    }
+    
+    @Override
+    public double getEnqueueRate() {
+        return enqueueRate;
+    }
+    
+    @Override
+    public double getDequeueRate() {
+        return dequeueRate;
+    }
+    
+    @Override
+    public int getProducerCount() {
+        return producerCount.get();
+    }
+    
+    @Override
+    public int getConsumerCount() {
+        return consumerCount.get();
+    }
+    
+    @Override
+    public long getLatencySampleCount() {
+        return latencyHistogram.getCount();
+    }
+    
+    @Override
+    public double getLatencyMedianMicros() {
+        return latencyHistogram.getPercentileNanos(50.0) / 1000.0;
+    }
+    
+    @Override
+    public double getLatency99thPercentileMicros() {
+        return latencyHistogram.getPercentileNanos(99.0) / 1000.0;
+    }
+    
+    @Override
+    public double getLatency999thPercentileMicros() {
+        return latencyHistogram.getPercentileNanos(99.9) / 1000.0;
+    }
+    
+    @Override
+    public double getLatencyMaxMicros() {
+        return latencyHistogram.getMaxNanos() / 1000.0;
+    }
+    
+    @Override
+    public String getLatencyHistogram() {
+        return latencyHistogram.toBucketString();
+    }
+    
+    @Override
+    public void resetLatencyHistogram() {
+        latencyHistogram.reset();
+    }
+    
+    /**
+     * Returns a single line summarizing these metrics, used by the periodic
+     * text dump.
+     * 
+     * @return the summary.
+     */
+    String toSummaryString() {
+        return String.format(
+                "queue \"%s\": depth=%d bytes=%d enqueued/s=%.1f " +
+                "dequeued/s=%.1f producers=%d consumers=%d " +
+                "latency us p50=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+                getQueueName(),
+                getDepth(),
+                getByteCount(),
+                getEnqueueRate(),
+                getDequeueRate(),
+                getProducerCount(),
+                getConsumerCount(),
+                getLatencyMedianMicros(),
+                getLatency99thPercentileMicros(),
+                getLatency999thPercentileMicros(),
+                getLatencyMaxMicros());
+    }
+    
+    /**
+     * Returns the number of the first sampled message not before the given
+     * one.
+     */
+    private static long firstSampled(long number) {
+        long remainder = number % MagicConstants.LATENCY_SAMPLE_INTERVAL;
+        return remainder == 0L ?
+                number :
+                number + MagicConstants.LATENCY_SAMPLE_INTERVAL - remainder;
+    }
+    
+    private static int getSlot(long number) {
+        return (int) (number / MagicConstants.LATENCY_SAMPLE_INTERVAL) &
+               SLOT_MASK;
+    }
+}
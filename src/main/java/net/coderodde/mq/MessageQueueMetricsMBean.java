@@ -0,0 +1,54 @@
+package net.coderodde.mq;
+
+/**
+ * This interface defines the management view of a single message queue, as
+ * registered with the platform MBean server under the name
+ * {@code net.coderodde.mq:type=MessageQueue,port=<port>,name="<queue>"}.
+ * The rates are per second over the last second; the latencies measure the
+ * time from the enqueueing of a message until its dispatch to a consumer.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public interface MessageQueueMetricsMBean {
+    
+    String getQueueName();
+    
+    long getDepth();
+    
+    long getByteCount();
+    
+    long getEnqueuedMessageCount();
+    
+    long getDequeuedMessageCount();
+    
+    double getEnqueueRate();
+    
+    double getDequeueRate();
+    
+    int getProducerCount();
+    
+    int getConsumerCount();
+    
+    long getLatencySampleCount();
+    
+    double getLatencyMedianMicros();
+    
+    double getLatency99thPercentileMicros();
+    
+    double getLatency999thPercentileMicros();
+    
+    double getLatencyMaxMicros();
+    
+    /**
+     * Returns the non-empty buckets of the latency histogram, one per line.
+     * 
+     * @return the histogram text.
+     */
+    String getLatencyHistogram();
+    
+    /**
+     * Forgets the latencies recorded so far.
+     */
+    void resetLatencyHistogram();
+}
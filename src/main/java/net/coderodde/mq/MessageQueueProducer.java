@@ -1,16 +1,27 @@
 package net.coderodde.mq;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 import static net.coderodde.mq.Utilities.checkPortNumber;
 
 /**
  * This class implements a type instances of which provide means for sending 
  * binary messages to any of the consumer reading from the specified queue.
+ * Messages may be sent either synchronously via {@link #produce(byte[])}, or
+ * asynchronously via {@link #produceAsync(byte[])}, in which case they are 
+ * collected into batches each sent in a single frame.
  * 
  * @author Rodion "rodde" Efremov
  * @version 1.6 (Feb 29, 2019)
@@ -29,9 +40,113 @@ public final class MessageQueueProducer implements AutoCloseable {
     private final int portNumber;
     
     /**
-     * The socket connected to the message queue handler.
+     * The link to the message queue handler: a socket of its own, or a 
+     * channel of a multiplexed connection. The handler sends error frames
+     * over it.
      */
-    private final Socket socket;
+    private final ClientLink link;
+    
+    /**
+     * The codec compressing the batches, as chosen by the handler, or 
+     * {@code null}.
+     */
+    private final CompressionCodec compressionCodec;
+    
+    /**
+     * Whether each send waits for the handler to confirm the messages.
+     */
+    private final boolean confirming;
+    
+    /**
+     * The number of messages sent so far. Guarded by {@link #writeLock}.
+     */
+    private long sentMessageCount;
+    
+    /**
+     * The number of messages the handler has confirmed so far. Guarded by 
+     * {@link #writeLock}.
+     */
+    private long confirmedMessageCount;
+    
+    /**
+     * The total number of messages the handler rejected.
+     */
+    private final AtomicLong rejectedMessageCount = new AtomicLong();
+    
+    /**
+     * Serializes the writes of the synchronous and the asynchronous paths.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    
+    /**
+     * Guards the batch under construction.
+     */
+    private final ReentrantLock batchLock = new ReentrantLock();
+    
+    /**
+     * Signalled whenever the batch grows or this producer closes.
+     */
+    private final Condition batchChanged = batchLock.newCondition();
+    
+    /**
+     * Signalled whenever a batch is written and the in-flight window shrinks.
+     */
+    private final Condition windowOpened = batchLock.newCondition();
+    
+    /**
+     * The messages of the batch under construction.
+     */
+    private List<byte[]> batchMessages = new ArrayList<>();
+    
+    /**
+     * The futures of the messages in the batch under construction.
+     */
+    private List<CompletableFuture<Void>> batchFutures = new ArrayList<>();
+    
+    /**
+     * The number of message bytes in the batch under construction.
+     */
+    private int batchByteCount;
+    
+    /**
+     * The value of {@link System#nanoTime()} when the first message of the 
+     * current batch was added.
+     */
+    private long batchStartNanos;
+    
+    /**
+     * The number of messages accepted by {@link #produceAsync(byte[])} but not
+     * yet written to the socket.
+     */
+    private int inFlightMessages;
+    
+    /**
+     * The batch is sent as soon as it holds at least this many bytes.
+     */
+    private int batchBytes = MagicConstants.DEFAULT_BATCH_BYTES;
+    
+    /**
+     * The batch is sent at latest this many milliseconds after its first
+     * message was added.
+     */
+    private int lingerMs = MagicConstants.DEFAULT_LINGER_MILLISECONDS;
+    
+    /**
+     * The maximum number of in-flight messages.
+     */
+    private int maxInFlightMessages = 
+            MagicConstants.DEFAULT_MAX_IN_FLIGHT_MESSAGES;
+    
+    /**
+     * The thread sending the batches. Started upon the first asynchronous
+     * send.
+     */
+    private SenderThread senderThread;
+    
+    /**
+     * Set when this producer is closing.
+     */
+    private boolean closed;
     
     /**
      * The logger object used for reporting exceptions.
@@ -52,6 +167,107 @@ public final class MessageQueueProducer implements AutoCloseable {
     public MessageQueueProducer(String messageQueueName,
                                 String hostName, 
                                 int portNumber) 
+    throws UnknownHostException,
+           IOException {
+        this(MagicConstants.PRODUCER_STRING, 
+             messageQueueName, 
+             hostName, 
+             portNumber,
+             false,
+             false);
+    }
+    
+    /**
+     * Constructs a producer publishing to a topic instead of a queue. Every 
+     * message published is delivered to every subscriber of the topic 
+     * connected at the time.
+     * 
+     * @param topicName  the name of the topic to publish to.
+     * @param hostName   the IP address of the message queue handler.
+     * @param portNumber the port number to use.
+     * @return the connected publisher.
+     * @throws UnknownHostException if could not reach the message queue 
+     *                              handler.
+     * @throws IOException if network I/O fails.
+     */
+    public static MessageQueueProducer forTopic(String topicName,
+                                                String hostName,
+                                                int portNumber) 
+    throws UnknownHostException,
+           IOException {
+        return new MessageQueueProducer(MagicConstants.PUBLISHER_STRING,
+                                        topicName,
+                                        hostName,
+                                        portNumber,
+                                        false,
+                                        false);
+    }
+    
+    /**
+     * Constructs a producer sharing a single pooled connection with all the
+     * other multiplexed producers and consumers of this JVM talking to the 
+     * same handler. The producer gets a channel of its own, closed along 
+     * with it.
+     * 
+     * @param messageQueueName the name of the queue to produce.
+     * @param hostName         the IP address of the message queue handler.
+     * @param portNumber       the port number to use.
+     * @return the connected producer.
+     * @throws UnknownHostException if could not reach the message queue 
+     *                              handler.
+     * @throws IOException if network I/O fails or the handler refuses the 
+     *                     channel.
+     */
+    public static MessageQueueProducer multiplexed(String messageQueueName,
+                                                   String hostName,
+                                                   int portNumber) 
+    throws UnknownHostException,
+           IOException {
+        return new MessageQueueProducer(MagicConstants.PRODUCER_STRING,
+                                        messageQueueName,
+                                        hostName,
+                                        portNumber,
+                                        true,
+                                        false);
+    }
+    
+    /**
+     * Constructs a producer whose sends return only once the handler 
+     * confirms the messages: as soon as they are enqueued, or, for a retained
+     * queue of a handler replicating to followers, once the replication 
+     * quorum holds them. The asynchronous sends complete their futures upon
+     * the confirmation as well. Requires a handler speaking protocol version
+     * 8.
+     * 
+     * @param messageQueueName the name of the queue to produce.
+     * @param hostName         the IP address of the message queue handler.
+     * @param portNumber       the port number to use.
+     * @return the connected producer.
+     * @throws UnknownHostException if could not reach the message queue 
+     *                              handler.
+     * @throws IOException if network I/O fails or the handler does not 
+     *                     support the confirmations.
+     * @see MessageQueueHandler#setReplicationQuorum(int)
+     */
+    public static MessageQueueProducer confirming(String messageQueueName,
+                                                  String hostName,
+                                                  int portNumber) 
+    throws UnknownHostException,
+           IOException {
+        return new MessageQueueProducer(MagicConstants.PRODUCER_STRING,
+                                        messageQueueName,
+                                        hostName,
+                                        portNumber,
+                                        false,
+                                        true);
+    }
+    
+    private MessageQueueProducer(String roleName,
+                                 String messageQueueName,
+                                 String hostName, 
+                                 int portNumber,
+                                 boolean multiplexed,
+                                 boolean confirming) 
     throws UnknownHostException,
            IOException {
         this.hostName = 
@@ -60,18 +276,31 @@ public final class MessageQueueProducer implements AutoCloseable {
                         "The input host name is null.");
         
         this.portNumber = checkPortNumber(portNumber);
-        this.socket = preamble();
         
-        try (OutputStream out = socket.getOutputStream()) {
-            // Send the role of this producer to the queue handler:
-            byte[] roleNameBytes = MagicConstants.PRODUCER_STRING.getBytes();
-            out.write(roleNameBytes.length);
-            out.write(roleNameBytes);
-            
-            // Send the name of the queue this producer operates on:
-            byte[] messageQueueNameBytes = messageQueueName.getBytes();
-            out.write(messageQueueNameBytes.length);
-            out.write(messageQueueNameBytes);
+        // Send the role of this producer and the name of the queue it operates
+        // on to the queue handler:
+        this.link = multiplexed ?
+                MultiplexedConnection.openChannel(hostName,
+                                                  portNumber,
+                                                  roleName,
+                                                  messageQueueName) :
+                new SocketLink(preamble(), 
+                               roleName, 
+                               messageQueueName,
+                               confirming ? 
+                                       MagicConstants.PROTOCOL_VERSION_8 :
+                                       MagicConstants.PROTOCOL_VERSION_2);
+        this.compressionCodec = link.getCompressionCodec();
+        this.confirming = confirming;
+        
+        if (confirming) {
+            // Ask for the confirmations:
+            try {
+                link.write(Frame.encodeAck(0L));
+            } catch (IOException ex) {
+                link.close();
+                throw ex;
+            }
         }
     }
     
@@ -83,23 +312,335 @@ public final class MessageQueueProducer implements AutoCloseable {
      * @throws IOException if the network I/O fails.
      */
     public void produce(byte[] bytes) throws IOException {
-        try (OutputStream out = socket.getOutputStream()) {
-            out.write(bytes.length);
-            out.write(bytes);
+        produce(Collections.singletonList(bytes));
+    }
+    
+    /**
+     * Sends a batch of binary messages to the message queue handler this 
+     * producer is connected to. The entire batch is packed in a single frame
+     * and written at once.
+     * 
+     * @param messages the list of message data.
+     * @throws IOException if the network I/O fails.
+     */
+    public void produce(List<byte[]> messages) throws IOException {
+        send(encodeMessages(messages), messages.size());
+    }
+    
+    /**
+     * Sends a binary message with a partition key. All the messages with 
+     * equal keys go to the same partition of a partitioned queue, and so are
+     * consumed in the order they were produced. The key is ignored by the 
+     * queues that are not partitioned.
+     * 
+     * @param key   the partition key.
+     * @param bytes the message data.
+     * @throws IOException if the network I/O fails.
+     */
+    public void produce(byte[] key, byte[] bytes) throws IOException {
+        produce(key, Collections.singletonList(bytes));
+    }
+    
+    /**
+     * Sends a batch of binary messages with a common partition key in a 
+     * single frame.
+     * 
+     * @param key      the partition key.
+     * @param messages the list of message data.
+     * @throws IOException if the network I/O fails.
+     */
+    public void produce(byte[] key, List<byte[]> messages) 
+            throws IOException {
+        Objects.requireNonNull(key, "The input key is null.");
+        int keyHash = Utilities.hashKey(key);
+        send(compressionCodec == null || messages.isEmpty() ?
+                Frame.encodeKeyedMessages(keyHash, messages) :
+                Frame.encodeKeyedCompressedMessages(keyHash, 
+                                                    compressionCodec, 
+                                                    messages),
+             messages.size());
+    }
+    
+    /**
+     * Sends a binary message whose delivery is delayed, or whose wait in the
+     * queue is limited.
+     * 
+     * @param bytes       the message data.
+     * @param delayMillis the delay of the delivery in milliseconds, or zero.
+     * @param ttlMillis   the time to live in milliseconds, or zero for none.
+     * @throws IOException if the network I/O fails or the handler does not 
+     *                     support scheduling.
+     * @see #produce(List, long, long)
+     */
+    public void produce(byte[] bytes, long delayMillis, long ttlMillis) 
+            throws IOException {
+        produce(Collections.singletonList(bytes), delayMillis, ttlMillis);
+    }
+    
+    /**
+     * Sends a batch of binary messages whose delivery is delayed, or whose 
+     * wait in the queue is limited, in a single frame. The handler holds the
+     * delayed messages aside until due and then enqueues them, so they reach
+     * the consumers after the messages sent later without a delay. The time 
+     * to live counts from the moment the messages enter the queue, and is
+     * honoured only by the queues configured to do so, which drop the 
+     * messages waiting longer instead of delivering them. Requires a handler 
+     * speaking protocol version 7; not supported when publishing to a topic.
+     * 
+     * @param messages    the list of message data.
+     * @param delayMillis the delay of the delivery in milliseconds, or zero.
+     * @param ttlMillis   the time to live in milliseconds, or zero for none.
+     * @throws IOException if the network I/O fails or the handler does not 
+     *                     support scheduling.
+     * @see MessageQueueConfiguration#setMessageTtlEnabled(boolean)
+     */
+    public void produce(List<byte[]> messages, 
+                        long delayMillis, 
+                        long ttlMillis) throws IOException {
+        if (delayMillis < 0L || ttlMillis < 0L) {
+            throw new IllegalArgumentException(
+                    "Negative delay or time to live: " + delayMillis + 
+                    ", " + ttlMillis);
+        }
+        
+        if (delayMillis == 0L && ttlMillis == 0L) {
+            produce(messages);
+            return;
+        }
+        
+        if (link.getProtocolVersion() < MagicConstants.PROTOCOL_VERSION_7) {
+            throw new IOException(
+                    "The handler does not support the scheduled messages.");
+        }
+        
+        send(Frame.encodeScheduled(encodeMessages(messages), 
+                                   delayMillis, 
+                                   ttlMillis),
+             messages.size());
+    }
+    
+    /**
+     * Encodes a message frame, compressed if the handler chose a codec.
+     * 
+     * @param messages the messages to pack.
+     * @return the buffer holding the entire frame.
+     */
+    private ByteBuffer encodeMessages(List<byte[]> messages) {
+        return compressionCodec == null || messages.isEmpty() ?
+                Frame.encodeMessages(messages) :
+                Frame.encodeCompressedMessages(compressionCodec, messages);
+    }
+    
+    /**
+     * Writes a message frame right away, and waits for the confirmation if
+     * this producer is confirming.
+     * 
+     * @param frame        the encoded frame.
+     * @param messageCount the number of the messages in the frame.
+     * @throws IOException if the network I/O fails or the handler rejects 
+     *                     any of the messages.
+     */
+    private void send(ByteBuffer frame, int messageCount) throws IOException {
+        writeLock.lock();
+        
+        try {
+            // Keep the order with respect to the asynchronous messages:
+            sendBatch();
+            link.write(frame);
+            sentMessageCount += messageCount;
+            int rejectedMessages = readFrames();
+            
+            if (rejectedMessages > 0) {
+                throw newRejectionException(rejectedMessages);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    private static IOException newRejectionException(int rejectedMessages) {
+        return new IOException("The handler rejected " + rejectedMessages + 
+                               " message(s).");
+    }
+    
+    /**
+     * Returns the total number of messages the handler has rejected so far
+     * because a queue limit was reached. The rejections are noticed upon the
+     * subsequent sends.
+     * 
+     * @return the number of rejected messages.
+     */
+    public long getRejectedMessageCount() {
+        return rejectedMessageCount.get();
+    }
+    
+    /**
+     * Adds a binary message to the current batch. The batch is sent once it 
+     * holds at least {@code batchBytes} bytes, or once {@code lingerMs}
+     * milliseconds have passed since its first message was added, whichever
+     * comes first. If the number of in-flight messages reaches its maximum,
+     * this method blocks until a batch is written.
+     * 
+     * @param bytes the message data.
+     * @return the future completed once the message is written to the socket,
+     *         or once confirmed if this producer is confirming. The future
+     *         fails with an {@link IOException} if the handler rejected any
+     *         message noticed upon sending the batch of the message, the same
+     *         way a synchronous send fails.
+     * @throws InterruptedException if interrupted while waiting for the 
+     *                              in-flight window.
+     */
+    public CompletableFuture<Void> produceAsync(byte[] bytes) 
+            throws InterruptedException {
+        Objects.requireNonNull(bytes, "The input message is null.");
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        batchLock.lock();
+        
+        try {
+            while (!closed && inFlightMessages >= maxInFlightMessages) {
+                windowOpened.await();
+            }
+            
+            if (closed) {
+                future.completeExceptionally(
+                        new IllegalStateException("The producer is closed."));
+                return future;
+            }
+            
+            if (senderThread == null) {
+                senderThread = new SenderThread();
+                senderThread.start();
+            }
+            
+            if (batchMessages.isEmpty()) {
+                batchStartNanos = System.nanoTime();
+            }
+            
+            batchMessages.add(bytes);
+            batchFutures.add(future);
+            batchByteCount += bytes.length;
+            inFlightMessages++;
+            batchChanged.signal();
+        } finally {
+            batchLock.unlock();
+        }
+        
+        return future;
+    }
+    
+    /**
+     * Sends the current batch immediately.
+     * 
+     * @throws IOException if the network I/O fails.
+     */
+    public void flush() throws IOException {
+        writeLock.lock();
+        
+        try {
+            sendBatch();
+        } finally {
+            writeLock.unlock();
         }
     }
     
     /**
-     * Closes the I/O facilities this producer relies on.
+     * Closes the I/O facilities this producer relies on. The pending batch is
+     * sent first.
      * 
      * @throws Exception 
      */
     @Override
     public void close() throws Exception {
-        try (OutputStream out = socket.getOutputStream()) {
-            out.write(MagicConstants.CLOSE_SENTINEL);
-            out.close();
-            socket.close();
+        batchLock.lock();
+        
+        try {
+            closed = true;
+            batchChanged.signal();
+            windowOpened.signalAll();
+        } finally {
+            batchLock.unlock();
+        }
+        
+        try {
+            if (senderThread != null) {
+                senderThread.join();
+            }
+            
+            writeLock.lock();
+            
+            try {
+                sendBatch();
+                ByteBuffer frame = 
+                        Frame.encodeEmpty(MagicConstants.FRAME_TYPE_CLOSE);
+                link.write(frame);
+            } finally {
+                writeLock.unlock();
+            }
+        } finally {
+            link.close();
+        }
+    }
+    
+    /**
+     * Sets the number of bytes after which a batch is sent.
+     * 
+     * @param batchBytes the batch size limit in bytes.
+     */
+    public void setBatchBytes(int batchBytes) {
+        if (batchBytes < 1) {
+            throw new IllegalArgumentException(
+                    "The batch size is too small: " + batchBytes);
+        }
+        
+        batchLock.lock();
+        
+        try {
+            this.batchBytes = batchBytes;
+        } finally {
+            batchLock.unlock();
+        }
+    }
+    
+    /**
+     * Sets the maximum number of milliseconds a message waits in a batch.
+     * 
+     * @param lingerMs the linger time in milliseconds.
+     */
+    public void setLingerMs(int lingerMs) {
+        if (lingerMs < 0) {
+            throw new IllegalArgumentException(
+                    "The linger time is negative: " + lingerMs);
+        }
+        
+        batchLock.lock();
+        
+        try {
+            this.lingerMs = lingerMs;
+        } finally {
+            batchLock.unlock();
+        }
+    }
+    
+    /**
+     * Sets the maximum number of messages accepted by 
+     * {@link #produceAsync(byte[])} but not yet written.
+     * 
+     * @param maxInFlightMessages the in-flight limit.
+     */
+    public void setMaxInFlightMessages(int maxInFlightMessages) {
+        if (maxInFlightMessages < 1) {
+            throw new IllegalArgumentException(
+                    "The in-flight limit is too small: " + 
+                    maxInFlightMessages);
+        }
+        
+        batchLock.lock();
+        
+        try {
+            this.maxInFlightMessages = maxInFlightMessages;
+            windowOpened.signalAll();
+        } finally {
+            batchLock.unlock();
         }
     }
     
@@ -114,27 +655,217 @@ public final class MessageQueueProducer implements AutoCloseable {
     }
     
     /**
-     * Connects the socket to a specified host.
+     * Takes the current batch and writes it in a single frame. Must be called
+     * while holding the write lock so that the batches leave in order.
      * 
-     * @return the communication socket.
+     * @throws IOException if the network I/O fails.
      */
-    private Socket preamble() {
-        Socket socket = null;
+    private void sendBatch() throws IOException {
+        List<byte[]> messages;
+        List<CompletableFuture<Void>> futures;
+        batchLock.lock();
         
         try {
-            socket = new Socket(hostName, portNumber);
-        } catch (UnknownHostException ex) {
-            if (logger != null) {
-                logger.severe("Failed upon socket creation: " +
-                              ex.getMessage());
+            if (batchMessages.isEmpty()) {
+                return;
             }
-        } catch (IOException ex) {
+            
+            messages = batchMessages;
+            futures = batchFutures;
+            batchMessages = new ArrayList<>();
+            batchFutures = new ArrayList<>();
+            batchByteCount = 0;
+        } finally {
+            batchLock.unlock();
+        }
+        
+        try {
+            ByteBuffer frame = encodeMessages(messages);
+            link.write(frame);
+            sentMessageCount += messages.size();
+            int rejectedMessages = readFrames();
+            // The error frames do not tell which messages were rejected, so 
+            // the whole batch fails, as a synchronous send would:
+            IOException rejection = rejectedMessages > 0 ? 
+                    newRejectionException(rejectedMessages) : 
+                    null;
+            
+            for (CompletableFuture<Void> future : futures) {
+                if (rejection == null) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(rejection);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (CompletableFuture<Void> future : futures) {
+                future.completeExceptionally(ex);
+            }
+            
+            throw ex;
+        } finally {
+            batchLock.lock();
+            
+            try {
+                inFlightMessages -= messages.size();
+                windowOpened.signalAll();
+            } finally {
+                batchLock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Reads the error frames and the confirmations the handler has sent so 
+     * far. Does not block when there are none, unless this producer is 
+     * confirming and some of the messages sent are not confirmed yet. Must be
+     * called while holding the write lock.
+     * 
+     * @return the number of messages rejected in the frames read.
+     * @throws IOException if the network I/O fails.
+     */
+    private int readFrames() throws IOException {
+        int rejectedMessages = 0;
+        
+        while (link.hasFrame() || 
+                (confirming && confirmedMessageCount < sentMessageCount)) {
+            Frame frame = link.read();
+            
+            if (frame.getType() == MagicConstants.FRAME_TYPE_ACK && 
+                    confirming) {
+                // The confirmations are cumulative:
+                confirmedMessageCount = 
+                        Math.max(confirmedMessageCount, 
+                                 frame.getAcknowledgedMessageCount());
+                continue;
+            }
+            
+            if (frame.getType() != MagicConstants.FRAME_TYPE_ERROR) {
+                throw new IOException(
+                        "Unexpected frame type: " + frame.getType());
+            }
+            
+            rejectedMessages += frame.getCount();
+            
             if (logger != null) {
-                logger.severe("Failed upon socket creation: " + 
-                              ex.getMessage());
+                logger.warning("The handler rejected " + frame.getCount() + 
+                               " message(s): " + frame.getErrorReason());
             }
         }
         
+        rejectedMessageCount.addAndGet(rejectedMessages);
+        return rejectedMessages;
+    }
+    
+    /**
+     * Connects the socket to a specified host.
+     * 
+     * @return the communication socket.
+     * @throws IOException if the connection cannot be established.
+     */
+    private Socket preamble() throws IOException {
+        Socket socket = new Socket(hostName, portNumber);
+        
+        try {
+            // Small frames must not wait for the delayed acknowledgements:
+            socket.setTcpNoDelay(true);
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        
         return socket;
     }
+    
+    /**
+     * This inner class implements the thread sending the batches once they
+     * are full or their linger time expires.
+     */
+    private final class SenderThread extends Thread {
+        
+        SenderThread() {
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (awaitBatch()) {
+                    writeLock.lock();
+                    
+                    try {
+                        sendBatch();
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // Exit quietly; close() sends the rest.
+            } catch (IOException ex) {
+                if (logger != null) {
+                    logger.severe("Could not send a batch: " + 
+                                  ex.getMessage());
+                }
+                
+                abandonBatch(ex);
+            }
+        }
+        
+        /**
+         * Fails all the messages not yet sent and refuses any new ones.
+         * 
+         * @param cause the reason of the failure.
+         */
+        private void abandonBatch(IOException cause) {
+            batchLock.lock();
+            
+            try {
+                closed = true;
+                
+                for (CompletableFuture<Void> future : batchFutures) {
+                    future.completeExceptionally(cause);
+                }
+                
+                inFlightMessages -= batchMessages.size();
+                batchMessages.clear();
+                batchFutures.clear();
+                batchByteCount = 0;
+                windowOpened.signalAll();
+            } finally {
+                batchLock.unlock();
+            }
+        }
+        
+        /**
+         * Waits until the current batch is full or its linger time expires.
+         * 
+         * @return {@code false} if this producer is closing.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        private boolean awaitBatch() throws InterruptedException {
+            batchLock.lock();
+            
+            try {
+                while (!closed && batchMessages.isEmpty()) {
+                    batchChanged.await();
+                }
+                
+                while (!closed && batchByteCount < batchBytes) {
+                    long remainingNanos = 
+                            TimeUnit.MILLISECONDS.toNanos(lingerMs) - 
+                            (System.nanoTime() - batchStartNanos);
+                    
+                    if (remainingNanos <= 0L || batchMessages.isEmpty()) {
+                        break;
+                    }
+                    
+                    batchChanged.awaitNanos(remainingNanos);
+                }
+                
+                return !closed;
+            } finally {
+                batchLock.unlock();
+            }
+        }
+    }
 }
@@ -0,0 +1,103 @@
+package net.coderodde.mq;
+
+import java.util.List;
+
+/**
+ * This interface defines the API for the storage backing a 
+ * {@link MessageQueue}. A store keeps the messages in FIFO-order and must be
+ * safe to use from several threads at a time. The accounting of the message
+ * counts and sizes is left to the queue.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+interface MessageStore {
+    
+    /**
+     * Appends a message to the tail of this store.
+     * 
+     * @param message the message to append.
+     */
+    void add(byte[] message);
+    
+    /**
+     * Appends all the messages to the tail of this store in one batch.
+     * 
+     * @param messages the messages to append.
+     */
+    void addAll(List<byte[]> messages);
+    
+    /**
+     * Removes the head message of this store.
+     * 
+     * @return the head message or {@code null} if this store is empty.
+     */
+    byte[] poll();
+    
+    /**
+     * Moves messages from the head of this store to the list until the list
+     * receives {@code maxMessages} messages, at least {@code maxBytes} bytes,
+     * or this store becomes empty.
+     * 
+     * @param batch       the list to append the messages to.
+     * @param maxMessages the maximum number of messages to move.
+     * @param maxBytes    the number of bytes after which to stop.
+     * @return the number of bytes moved.
+     */
+    long drainTo(List<byte[]> batch, long maxMessages, long maxBytes);
+    
+    /**
+     * Returns {@code true} if this store keeps the messages in files from
+     * which they may be sent as {@link FileRegion}s.
+     * 
+     * @return whether {@link #drainRegion(long, long)} is supported.
+     */
+    default boolean isFileBacked() {
+        return false;
+    }
+    
+    /**
+     * Removes messages from the head of this store as a single region of a 
+     * file, until the region holds {@code maxMessages} messages, at least 
+     * {@code maxBytes} bytes, or reaches the end of its file. The caller
+     * must release the region once done with it.
+     * 
+     * @param maxMessages the maximum number of messages to remove.
+     * @param maxBytes    the number of bytes after which to stop.
+     * @return the region or {@code null} if this store is empty or not 
+     *         backed by files.
+     */
+    default FileRegion drainRegion(long maxMessages, long maxBytes) {
+        return null;
+    }
+    
+    boolean isEmpty();
+    
+    /**
+     * Returns the maximum number of messages this store is able to hold. The
+     * queue never adds more.
+     * 
+     * @return the capacity of this store.
+     */
+    long getCapacity();
+    
+    /**
+     * Returns the number of messages this store already held upon opening.
+     * 
+     * @return the number of recovered messages.
+     */
+    long getRecoveredMessageCount();
+    
+    /**
+     * Returns the number of message bytes this store already held upon 
+     * opening.
+     * 
+     * @return the number of recovered message bytes.
+     */
+    long getRecoveredByteCount();
+    
+    /**
+     * Releases the resources of this store. Called once the handler halts.
+     */
+    void close();
+}
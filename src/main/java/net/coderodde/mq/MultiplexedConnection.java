@@ -0,0 +1,504 @@
+package net.coderodde.mq;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a client connection shared by any number of
+ * producers and consumers talking to the same handler. Each client gets a
+ * channel of its own, bound to its queue and role when opened, and its
+ * frames travel wrapped in channel frames tagged with the channel ID. A
+ * single reader thread per connection sorts the received frames into the
+ * channels.
+ * <p>
+ * The connections are pooled per host and port within the JVM: a channel
+ * opens over the pooled connection if there is one, and the connection is
+ * closed along with its last channel. A connection is established outside
+ * the pool lock, so that a handler slow to answer holds up only the channels
+ * opening to it.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class MultiplexedConnection {
+    
+    /**
+     * Used for logging status information in a console or another listener.
+     */
+    private static final Logger LOGGER =
+            Logger.getLogger(MagicConstants.LOGGER_BADGE);
+    
+    /**
+     * Marks the end of the frames of a channel whose connection failed.
+     */
+    private static final Frame END_OF_FRAMES =
+            new Frame((byte) 0, (byte) 0, 0, ByteBuffer.allocate(0));
+    
+    /**
+     * Maps the host and port to the pooled connection, completed once the 
+     * connection is established.
+     */
+    private static final 
+            Map<String, CompletableFuture<MultiplexedConnection>> POOL =
+                    new HashMap<>();
+    
+    /**
+     * Guards the pool and the channel counts of the connections.
+     */
+    private static final ReentrantLock POOL_LOCK = new ReentrantLock();
+    
+    /**
+     * The key of this connection in the pool.
+     */
+    private final String poolKey;
+    
+    /**
+     * The socket connected to the handler.
+     */
+    private final Socket socket;
+    
+    /**
+     * The output stream of the socket.
+     */
+    private final OutputStream out;
+    
+    /**
+     * The buffered input stream of the socket.
+     */
+    private final DataInputStream in;
+    
+    /**
+     * Keeps the frames of the channels whole on the wire.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    
+    /**
+     * Maps the IDs to the open channels.
+     */
+    private final Map<Integer, Channel> channels = new ConcurrentHashMap<>();
+    
+    /**
+     * The protocol version confirmed in the handshake, shared by all the
+     * channels.
+     */
+    private final int protocolVersion;
+    
+    /**
+     * The ID of the most recently opened channel.
+     */
+    private int lastChannelId;
+    
+    /**
+     * The number of the channels opened and not yet closed.
+     */
+    private int channelCount;
+    
+    /**
+     * The reason the connection failed, or {@code null}.
+     */
+    private volatile IOException failure;
+    
+    private MultiplexedConnection(String poolKey,
+                                  String hostName,
+                                  int portNumber) throws IOException {
+        this.poolKey = poolKey;
+        this.socket = new Socket();
+        
+        try {
+            socket.connect(
+                    new InetSocketAddress(hostName, portNumber),
+                    MagicConstants.MULTIPLEXED_CONNECT_TIMEOUT_MILLISECONDS);
+            // Small frames must not wait for the delayed acknowledgements:
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(
+                    MagicConstants.MULTIPLEXED_HANDSHAKE_TIMEOUT_MILLISECONDS);
+            this.protocolVersion = 
+                    Utilities.handshake(socket,
+                                        MagicConstants.MULTIPLEXED_STRING,
+                                        "",
+                                        MagicConstants.PROTOCOL_VERSION_5);
+            // Each channel learns its own codec when opened:
+            Utilities.negotiateCodec(socket);
+            // The reader thread waits for the frames as long as it takes:
+            socket.setSoTimeout(0);
+            this.out = socket.getOutputStream();
+            this.in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        
+        Thread readerThread = new Thread(this::readFrames,
+                                         "rodde.mq-mux-" + poolKey);
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+    
+    /**
+     * Opens a channel over the pooled connection to the handler, connecting
+     * first if there is none.
+     * 
+     * @param hostName         the host of the handler.
+     * @param portNumber       the port of the handler.
+     * @param roleName         the role of the client of the channel.
+     * @param messageQueueName the name of the queue.
+     * @return the open channel.
+     * @throws IOException if the network I/O fails or the handler refuses
+     *                     the channel.
+     */
+    static ClientLink openChannel(String hostName,
+                                  int portNumber,
+                                  String roleName,
+                                  String messageQueueName)
+            throws IOException {
+        String poolKey = hostName + ":" + portNumber;
+        MultiplexedConnection connection = null;
+        int channelId = 0;
+        
+        while (connection == null) {
+            CompletableFuture<MultiplexedConnection> pooled;
+            boolean connecting = false;
+            POOL_LOCK.lock();
+            
+            try {
+                pooled = POOL.get(poolKey);
+                MultiplexedConnection pooledConnection = 
+                        pooled == null ? null : pooled.getNow(null);
+                
+                if (pooled == null || 
+                        (pooledConnection != null && 
+                         pooledConnection.failure != null)) {
+                    // Connect on behalf of all the channels opening now:
+                    pooled = new CompletableFuture<>();
+                    POOL.put(poolKey, pooled);
+                    connecting = true;
+                } else if (pooledConnection != null) {
+                    connection = pooledConnection;
+                    connection.channelCount++;
+                    channelId = ++connection.lastChannelId;
+                }
+            } finally {
+                POOL_LOCK.unlock();
+            }
+            
+            if (connecting) {
+                connect(pooled, poolKey, hostName, portNumber);
+            } else if (connection == null) {
+                await(pooled);
+            }
+        }
+        
+        try {
+            return connection.open(channelId, roleName, messageQueueName);
+        } catch (IOException | RuntimeException ex) {
+            connection.release();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Establishes the pooled connection and completes its pool entry. Called
+     * without holding the pool lock.
+     * 
+     * @param pooled     the pool entry of the connection.
+     * @param poolKey    the key of the entry.
+     * @param hostName   the host of the handler.
+     * @param portNumber the port of the handler.
+     * @throws IOException if the connection cannot be established.
+     */
+    private static void connect(CompletableFuture<MultiplexedConnection> pooled,
+                                String poolKey,
+                                String hostName,
+                                int portNumber) throws IOException {
+        try {
+            pooled.complete(new MultiplexedConnection(poolKey, 
+                                                      hostName, 
+                                                      portNumber));
+        } catch (IOException | RuntimeException ex) {
+            POOL_LOCK.lock();
+            
+            try {
+                POOL.remove(poolKey, pooled);
+            } finally {
+                POOL_LOCK.unlock();
+            }
+            
+            pooled.completeExceptionally(ex);
+            throw ex;
+        }
+    }
+    
+    /**
+     * Waits for the pooled connection established by another thread.
+     * 
+     * @param pooled the pool entry of the connection.
+     * @throws IOException if the connection could not be established.
+     */
+    private static void await(CompletableFuture<MultiplexedConnection> pooled)
+            throws IOException {
+        try {
+            pooled.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting.", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+    
+    private Channel open(int channelId,
+                         String roleName,
+                         String messageQueueName) throws IOException {
+        Channel channel = new Channel(channelId);
+        channels.put(channelId, channel);
+        
+        if (failure != null) {
+            channels.remove(channelId);
+            throw new IOException("The connection failed.", failure);
+        }
+        
+        write(Frame.encodeOpen(channelId, roleName, messageQueueName));
+        byte codecId;
+        
+        try {
+            codecId = channel.opened.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            channel.close();
+            throw new IOException("Interrupted while opening a channel.", ex);
+        } catch (ExecutionException ex) {
+            channels.remove(channelId);
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
+        }
+        
+        try {
+            channel.compressionCodec = Utilities.toCompressionCodec(codecId);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        
+        return channel;
+    }
+    
+    private void write(ByteBuffer frame) throws IOException {
+        writeLock.lock();
+        
+        try {
+            out.write(frame.array(), 0, frame.limit());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * Closes the connection once its last channel is closed.
+     */
+    private void release() {
+        POOL_LOCK.lock();
+        
+        try {
+            if (--channelCount > 0) {
+                return;
+            }
+            
+            CompletableFuture<MultiplexedConnection> pooled = 
+                    POOL.get(poolKey);
+            
+            if (pooled != null && pooled.getNow(null) == this) {
+                POOL.remove(poolKey);
+            }
+        } finally {
+            POOL_LOCK.unlock();
+        }
+        
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // Nothing to do with it.
+        }
+    }
+    
+    /**
+     * Sorts the received frames into the channels until the connection
+     * fails or is closed. Runs in the reader thread.
+     */
+    private void readFrames() {
+        try {
+            while (true) {
+                Frame frame = Frame.read(in);
+                Channel channel = channels.get(frame.getCount());
+                
+                switch (frame.getType()) {
+                    case MagicConstants.FRAME_TYPE_OPEN:
+                        if (channel != null) {
+                            channel.opened.complete(frame.getBody().get(0));
+                        }
+                        
+                        break;
+                        
+                    case MagicConstants.FRAME_TYPE_CHANNEL:
+                        // A closed channel may still receive a few frames:
+                        if (channel != null) {
+                            channel.receive(frame.getChannelFrame());
+                        }
+                        
+                        break;
+                        
+                    default:
+                        throw new IOException(
+                                "Unexpected frame type: " + frame.getType());
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            failure = ex instanceof IOException ?
+                    (IOException) ex :
+                    new IOException(ex);
+            
+            if (!socket.isClosed()) {
+                LOGGER.log(Level.WARNING,
+                           "The multiplexed connection failed.",
+                           ex);
+            }
+            
+            for (Channel channel : channels.values()) {
+                channel.opened.completeExceptionally(failure);
+                channel.frames.add(END_OF_FRAMES);
+            }
+        }
+    }
+    
+    /**
+     * This inner class implements a single channel of the connection.
+     */
+    private final class Channel implements ClientLink {
+        
+        /**
+         * The ID of this channel.
+         */
+        private final int channelId;
+        
+        /**
+         * Completed with the codec ID once the handler opens this channel.
+         */
+        private final CompletableFuture<Byte> opened =
+                new CompletableFuture<>();
+        
+        /**
+         * Holds the frames received but not yet read.
+         */
+        private final BlockingQueue<Frame> frames =
+                new LinkedBlockingQueue<>();
+        
+        /**
+         * The codec chosen for this channel, or {@code null}.
+         */
+        private CompressionCodec compressionCodec;
+        
+        /**
+         * Set once this channel is closed.
+         */
+        private final AtomicBoolean closed = new AtomicBoolean();
+        
+        Channel(int channelId) {
+            this.channelId = channelId;
+        }
+        
+        /**
+         * Takes a frame received for this channel. Called from the reader
+         * thread.
+         * 
+         * @param frame the frame of this channel.
+         */
+        void receive(Frame frame) {
+            if (!opened.isDone() &&
+                    frame.getType() == MagicConstants.FRAME_TYPE_ERROR) {
+                // The handler refused the channel:
+                channels.remove(channelId);
+                opened.completeExceptionally(
+                        new IOException(frame.getErrorReason()));
+                return;
+            }
+            
+            frames.add(frame);
+        }
+        
+        @Override
+        public void write(ByteBuffer frame) throws IOException {
+            if (failure != null) {
+                throw new IOException("The connection failed.", failure);
+            }
+            
+            MultiplexedConnection.this.write(
+                    Frame.encodeChannel(channelId, frame));
+        }
+        
+        @Override
+        public Frame read() throws IOException {
+            Frame frame;
+            
+            try {
+                frame = frames.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading.", ex);
+            }
+            
+            if (frame == END_OF_FRAMES) {
+                // Fail the subsequent reads as well:
+                frames.add(END_OF_FRAMES);
+                throw new IOException("The connection failed.", failure);
+            }
+            
+            if (frame.getType() == MagicConstants.FRAME_TYPE_CLOSE) {
+                frames.add(frame);
+                throw new EOFException("The handler closed the channel.");
+            }
+            
+            return frame;
+        }
+        
+        @Override
+        public boolean hasFrame() {
+            return !frames.isEmpty();
+        }
+        
+        @Override
+        public CompressionCodec getCompressionCodec() {
+            return compressionCodec;
+        }
+        
+        @Override
+        public int getProtocolVersion() {
+            return protocolVersion;
+        }
+        
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            
+            channels.remove(channelId);
+            release();
+        }
+    }
+}
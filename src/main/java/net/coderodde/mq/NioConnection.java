@@ -0,0 +1,1516 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class holds the state of a single client connection served by an
+ * {@link IoLoop}. All the methods except 
+ * {@link #onMessagesAvailable()} are invoked from the owning loop thread only.
+ * <p>
+ * A multiplexed connection carries the channels of several clients. Each 
+ * channel is served by a connection object of its own, which reads the 
+ * frames unwrapped by the multiplexed connection and writes its frames 
+ * wrapped through it.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class NioConnection implements MessageQueueListener {
+    
+    /**
+     * Used for logging status information in a console or another listener.
+     */
+    private static final Logger LOGGER =
+            Logger.getLogger(MagicConstants.LOGGER_BADGE);
+    
+    /**
+     * The client channel.
+     */
+    private final SocketChannel channel;
+    
+    /**
+     * The selection key of the channel.
+     */
+    private final SelectionKey key;
+    
+    /**
+     * The loop serving this connection.
+     */
+    private final IoLoop ioLoop;
+    
+    /**
+     * The handler owning the queues.
+     */
+    private final MessageQueueHandler handler;
+    
+    /**
+     * The multiplexed connection carrying this channel, or {@code null} if 
+     * this connection is not a channel.
+     */
+    private final NioConnection parent;
+    
+    /**
+     * The ID of this channel within its multiplexed connection.
+     */
+    private final int channelId;
+    
+    /**
+     * Accumulates the bytes not yet parsed. Kept in write mode between the
+     * reads. Grows whenever a frame does not fit in it. Unused by a channel.
+     */
+    private ByteBuffer readBuffer;
+    
+    /**
+     * Holds the buffers not yet written to the channel.
+     */
+    private final Queue<ByteBuffer> outputBuffers = new ArrayDeque<>();
+    
+    /**
+     * Parses the handshake. Set to {@code null} once the handshake is done.
+     */
+    private HandshakeParser handshakeParser;
+    
+    /**
+     * The IDs of the codecs offered in the handshake.
+     */
+    private byte[] offeredCodecIds;
+    
+    /**
+     * Maps the IDs to the open channels of a multiplexed connection, or 
+     * {@code null} if this connection is not multiplexed.
+     */
+    private Map<Integer, NioConnection> channels;
+    
+    /**
+     * Holds the frames received by a channel while its reading is paused.
+     */
+    private final Queue<Frame> pausedFrames = new ArrayDeque<>();
+    
+    /**
+     * The number of body bytes in the paused frames.
+     */
+    private long pausedBytes;
+    
+    /**
+     * The protocol version agreed upon in the handshake.
+     */
+    private int protocolVersion;
+    
+    /**
+     * The role of the remote party.
+     */
+    private String roleName;
+    
+    /**
+     * The queue the remote party operates on. For a producer of a partitioned
+     * queue, the partition receiving the messages without a key.
+     */
+    private MessageQueue queue;
+    
+    /**
+     * The partitioned queue the remote party operates on, or {@code null}.
+     */
+    private PartitionedQueue partitionedQueue;
+    
+    /**
+     * The partitions assigned to a consumer of a partitioned queue.
+     */
+    private PartitionedQueue.Assignment assignment;
+    
+    /**
+     * The queues whose metrics count this connection, or {@code null} if not
+     * counted.
+     */
+    private MessageQueue[] meteredQueues;
+    
+    /**
+     * The partitions a consumer waits on.
+     */
+    private MessageQueue[] awaitedPartitions;
+    
+    /**
+     * The index of the assigned partition to drain first.
+     */
+    private int nextPartitionIndex;
+    
+    /**
+     * The topic a publisher publishes to.
+     */
+    private Topic topic;
+    
+    /**
+     * The subscription of a subscriber.
+     */
+    private TopicSubscription subscription;
+    
+    /**
+     * The shared frame still being written to a subscriber. Released once it
+     * leaves the output buffers.
+     */
+    private SharedFrame pendingFrame;
+    
+    /**
+     * The log segment region still being transferred to a consumer. Sent 
+     * once the output buffers, holding its frame header, are written.
+     */
+    private FileRegion pendingRegion;
+    
+    /**
+     * Whether the messages are sent to a consumer as regions of the log 
+     * segment files.
+     */
+    private boolean fileRegionsEnabled;
+    
+    /**
+     * The codec negotiated by a consumer, or {@code null}.
+     */
+    private CompressionCodec compressionCodec;
+    
+    /**
+     * The messages delivered to an acknowledging consumer and not yet 
+     * acknowledged, or {@code null} if the consumer does not acknowledge.
+     */
+    private InFlightMessages inFlightMessages;
+    
+    /**
+     * The periodic check of the acknowledgement timeout, or {@code null}.
+     */
+    private ScheduledFuture<?> ackTimeoutCheck;
+    
+    /**
+     * The number of messages the consumer is willing to receive.
+     */
+    private long messageCredit;
+    
+    /**
+     * The number of bytes the consumer is willing to receive.
+     */
+    private long byteCredit;
+    
+    /**
+     * The offset of the next message to deliver from a retained queue.
+     */
+    private long readOffset;
+    
+    /**
+     * Whether the reading is paused until the queue makes room.
+     */
+    private boolean readPaused;
+    
+    /**
+     * Whether this consumer connection is registered as waiting on the queue.
+     */
+    private boolean waiting;
+    
+    /**
+     * Whether this connection is closed.
+     */
+    private boolean closed;
+    
+    /**
+     * Whether the producer asked for the confirmations of its messages.
+     */
+    private boolean confirming;
+    
+    /**
+     * The number of the messages received from a confirming producer.
+     */
+    private long receivedMessageCount;
+    
+    /**
+     * Reused for collecting the messages of a delivery frame.
+     */
+    private final List<byte[]> deliveryBatch = new ArrayList<>();
+    
+    NioConnection(SocketChannel channel,
+                  SelectionKey key,
+                  IoLoop ioLoop,
+                  MessageQueueHandler handler) {
+        this.channel = channel;
+        this.key = key;
+        this.ioLoop = ioLoop;
+        this.handler = handler;
+        this.parent = null;
+        this.channelId = 0;
+        this.readBuffer = 
+                ByteBuffer.allocate(
+                        MagicConstants.DEFAULT_READ_BUFFER_CAPACITY);
+        this.handshakeParser = new HandshakeParser();
+    }
+    
+    /**
+     * Constructs a channel of a multiplexed connection.
+     * 
+     * @param parent    the multiplexed connection.
+     * @param channelId the ID of the channel.
+     */
+    private NioConnection(NioConnection parent, int channelId) {
+        this.channel = parent.channel;
+        this.key = parent.key;
+        this.ioLoop = parent.ioLoop;
+        this.handler = parent.handler;
+        this.parent = parent;
+        this.channelId = channelId;
+        this.protocolVersion = parent.protocolVersion;
+    }
+    
+    /**
+     * Makes this connection a multiplexed one whose handshake was completed
+     * by a connection thread of a blocking mode.
+     * 
+     * @param protocolVersion the protocol version agreed upon.
+     * @param offeredCodecIds the IDs of the codecs offered by the client.
+     */
+    void startMultiplexing(int protocolVersion, byte[] offeredCodecIds) {
+        this.handshakeParser = null;
+        this.protocolVersion = protocolVersion;
+        this.roleName = MagicConstants.MULTIPLEXED_STRING;
+        this.offeredCodecIds = offeredCodecIds;
+        this.channels = new HashMap<>();
+    }
+    
+    @Override
+    public void onMessagesAvailable() {
+        ioLoop.execute(() -> {
+            waiting = false;
+            
+            try {
+                deliver();
+            } catch (IOException ex) {
+                close();
+            }
+        });
+    }
+    
+    /**
+     * Reads whatever is available in the channel and processes all the
+     * complete pieces of data.
+     * 
+     * @throws IOException if the network I/O fails.
+     */
+    void onReadable() throws IOException {
+        if (channel.read(readBuffer) == -1) {
+            close();
+            return;
+        }
+        
+        processReadBuffer();
+    }
+    
+    /**
+     * Processes all the complete pieces of data in the read buffer unless 
+     * the reading is paused.
+     * 
+     * @throws IOException if the data is malformed or the network I/O fails.
+     */
+    private void processReadBuffer() throws IOException {
+        readBuffer.flip();
+        
+        try {
+            if (handshakeParser != null && !completeHandshake()) {
+                return;
+            }
+            
+            if (protocolVersion == MagicConstants.PROTOCOL_VERSION_1) {
+                readVersion1();
+            } else {
+                readFrames();
+            }
+        } finally {
+            readBuffer.compact();
+        }
+    }
+    
+    /**
+     * Writes as much of the pending output as the channel accepts.
+     * 
+     * @throws IOException if the network I/O fails.
+     */
+    void onWritable() throws IOException {
+        while (!outputBuffers.isEmpty()) {
+            ByteBuffer buffer = outputBuffers.peek();
+            channel.write(buffer);
+            
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            
+            outputBuffers.remove();
+        }
+        
+        if (pendingRegion != null && !transferPendingRegion()) {
+            return;
+        }
+        
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        releasePendingFrame();
+        
+        if (isConsumer()) {
+            deliver();
+        } else if (channels != null) {
+            deliverChannels();
+        }
+    }
+    
+    /**
+     * Resumes the delivery to the consumer channels of a multiplexed 
+     * connection once its output is written.
+     */
+    private void deliverChannels() {
+        for (NioConnection child : new ArrayList<>(channels.values())) {
+            if (isOutputPending()) {
+                return;
+            }
+            
+            if (child.isConsumer()) {
+                try {
+                    child.deliver();
+                } catch (IOException ex) {
+                    child.close();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Schedules the buffer for writing. The data is written immediately if
+     * nothing else is pending, and the rest is left for the loop.
+     * 
+     * @param buffer the buffer in read mode.
+     * @throws IOException if the network I/O fails.
+     */
+    void write(ByteBuffer buffer) throws IOException {
+        if (parent != null) {
+            parent.write(Frame.encodeChannel(channelId, buffer));
+            return;
+        }
+        
+        if (outputBuffers.isEmpty()) {
+            channel.write(buffer);
+            
+            if (!buffer.hasRemaining()) {
+                return;
+            }
+            
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+        
+        outputBuffers.add(buffer);
+    }
+    
+    /**
+     * Returns {@code true} if some output waits for the channel to become 
+     * writable. The output of a channel waits in its multiplexed connection.
+     * 
+     * @return whether any output is pending.
+     */
+    private boolean isOutputPending() {
+        return parent != null ? 
+                parent.isOutputPending() : 
+                !outputBuffers.isEmpty();
+    }
+    
+    void close() {
+        if (closed) {
+            return;
+        }
+        
+        closed = true;
+        
+        if (subscription != null) {
+            subscription.cancelAwait(this);
+            subscription.close();
+            releasePendingFrame();
+        } else if (assignment != null) {
+            cancelAwaitPartitions();
+            partitionedQueue.leave(assignment);
+        } else if (isConsumer()) {
+            releasePendingRegion();
+            
+            if (queue.getRetainedLog() != null) {
+                queue.getRetainedLog().cancelAwait(this);
+            } else {
+                queue.cancelAwait(this);
+            }
+        }
+        
+        if (inFlightMessages != null) {
+            ackTimeoutCheck.cancel(false);
+            inFlightMessages.redeliver();
+        }
+        
+        if (meteredQueues != null) {
+            countConnection(-1);
+        }
+        
+        if (parent != null) {
+            closeChannel();
+            return;
+        }
+        
+        if (channels != null) {
+            for (NioConnection child : new ArrayList<>(channels.values())) {
+                child.close();
+            }
+        }
+        
+        handler.unregisterSocket(channel.socket());
+        key.cancel();
+        
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Nothing to do with it.
+        }
+    }
+    
+    /**
+     * Detaches this channel from its multiplexed connection and tells the 
+     * client the channel is closed.
+     */
+    private void closeChannel() {
+        parent.channels.remove(channelId);
+        pausedFrames.clear();
+        
+        if (parent.closed) {
+            return;
+        }
+        
+        try {
+            parent.write(
+                    Frame.encodeChannel(
+                            channelId,
+                            Frame.encodeEmpty(
+                                    MagicConstants.FRAME_TYPE_CLOSE)));
+        } catch (IOException ex) {
+            parent.close();
+            return;
+        }
+        
+        if (parent.readPaused) {
+            // The connection may have been paused by this channel:
+            ioLoop.execute(parent::resumeChannels);
+        }
+    }
+    
+    Socket getSocket() {
+        return channel.socket();
+    }
+    
+    private static ByteBuffer encodeByte(int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        buffer.put((byte) value);
+        buffer.flip();
+        return buffer;
+    }
+    
+    private boolean completeHandshake() throws IOException {
+        if (roleName == null) {
+            if (!handshakeParser.parse(readBuffer)) {
+                return false;
+            }
+            
+            roleName = handshakeParser.getRoleName();
+            protocolVersion =
+                    Math.min(handshakeParser.getRequestedProtocolVersion(),
+                             MagicConstants.LATEST_PROTOCOL_VERSION);
+            
+            if (handshakeParser.isVersionNegotiated()) {
+                write(encodeByte(protocolVersion));
+            }
+        }
+        
+        String queueName = handshakeParser.getQueueName();
+        
+        if (protocolVersion >= MagicConstants.PROTOCOL_VERSION_4) {
+            // The client offers its codecs only after the reply:
+            if (!handshakeParser.parseCodecOffer(readBuffer)) {
+                return false;
+            }
+            
+            offeredCodecIds = handshakeParser.getOfferedCodecIds();
+            CompressionCodec codec = 
+                    handler.negotiateCompressionCodec(roleName, 
+                                                      queueName, 
+                                                      offeredCodecIds);
+            write(encodeByte(codec == null ? 
+                                MagicConstants.NO_COMPRESSION_CODEC_ID : 
+                                codec.getId()));
+            
+            if (MagicConstants.CONSUMER_STRING.equals(roleName)) {
+                compressionCodec = codec;
+            }
+        }
+        
+        handshakeParser = null;
+        startRole(queueName);
+        return true;
+    }
+    
+    /**
+     * Sets up the connection or the channel for its role once the role and
+     * the queue name are known.
+     * 
+     * @param queueName the name of the queue or the topic.
+     * @throws IOException if the role is unknown or not available in the 
+     *                     protocol version, or the queue cannot be opened.
+     */
+    private void startRole(String queueName) throws IOException {
+        switch (roleName) {
+            case MagicConstants.PRODUCER_STRING:
+                registerSocket(queueName);
+                partitionedQueue = handler.getPartitionedQueue(queueName);
+                queue = partitionedQueue != null ? 
+                        partitionedQueue.nextProducerPartition() :
+                        handler.getQueue(queueName);
+                countConnection(1);
+                return;
+                
+            case MagicConstants.CONSUMER_STRING:
+                if (protocolVersion == MagicConstants.PROTOCOL_VERSION_1) {
+                    throw new IOException(
+                            "Consumers require protocol version 2.");
+                }
+                
+                registerSocket(queueName);
+                partitionedQueue = handler.getPartitionedQueue(queueName);
+                
+                // The delivery starts once the consumer grants credit:
+                if (partitionedQueue != null) {
+                    assignment = partitionedQueue.join(this);
+                    countConnection(1);
+                    return;
+                }
+                
+                queue = handler.getQueue(queueName);
+                countConnection(1);
+                // A channel shares the socket, so it cannot transfer files:
+                fileRegionsEnabled = 
+                        parent == null &&
+                        protocolVersion >= MagicConstants.PROTOCOL_VERSION_3 &&
+                        queue.isFileBacked();
+                
+                if (queue.getRetainedLog() != null) {
+                    readOffset = queue.getRetainedLog().getEndOffset();
+                }
+                
+                return;
+                
+            case MagicConstants.PUBLISHER_STRING:
+            case MagicConstants.SUBSCRIBER_STRING:
+                if (protocolVersion == MagicConstants.PROTOCOL_VERSION_1) {
+                    throw new IOException(
+                            "Topic clients require protocol version 2.");
+                }
+                
+                registerSocket(queueName);
+                topic = handler.getTopic(queueName);
+                
+                if (MagicConstants.SUBSCRIBER_STRING.equals(roleName)) {
+                    // The delivery starts once the subscriber grants credit:
+                    subscription = topic.subscribe();
+                }
+                
+                return;
+                
+            case MagicConstants.MULTIPLEXED_STRING:
+                if (parent != null) {
+                    throw new IOException("A channel cannot be multiplexed.");
+                }
+                
+                if (protocolVersion < MagicConstants.PROTOCOL_VERSION_5) {
+                    throw new IOException(
+                            "Multiplexed connections require protocol " + 
+                            "version 5.");
+                }
+                
+                registerSocket(queueName);
+                startMultiplexing(protocolVersion, offeredCodecIds);
+                return;
+                
+            case MagicConstants.REPLICATOR_STRING:
+                if (parent != null) {
+                    throw new IOException("A channel cannot replicate.");
+                }
+                
+                if (protocolVersion < MagicConstants.PROTOCOL_VERSION_8) {
+                    throw new IOException(
+                            "Replicators require protocol version 8.");
+                }
+                
+                registerSocket(queueName);
+                return;
+                
+            default:
+                throw new IOException("Unknown client type name: " + roleName);
+        }
+    }
+    
+    /**
+     * Registers the socket with the handler. The socket of a channel is 
+     * registered by its multiplexed connection.
+     */
+    private void registerSocket(String queueName) {
+        if (parent == null) {
+            handler.registerSocket(channel.socket(), queueName);
+        }
+    }
+    
+    /**
+     * Enqueues all the complete version 1 messages in the read buffer.
+     * 
+     * @throws IOException if the network I/O fails.
+     */
+    private void readVersion1() throws IOException {
+        while (!readPaused && readBuffer.hasRemaining()) {
+            int messageBytesLength =
+                    readBuffer.get(readBuffer.position()) & 0xff;
+            
+            if (messageBytesLength == (MagicConstants.CLOSE_SENTINEL & 0xff)) {
+                close();
+                return;
+            }
+            
+            if (readBuffer.remaining() < 1 + messageBytesLength) {
+                return;
+            }
+            
+            readBuffer.get();
+            byte[] messageBytes = new byte[messageBytesLength];
+            readBuffer.get(messageBytes);
+            enqueue(queue, 
+                    CompressedBatches.toEntries(
+                            queue, 
+                            Collections.singletonList(messageBytes)), 
+                    0,
+                    0L);
+        }
+    }
+    
+    /**
+     * Processes all the complete frames in the read buffer.
+     * 
+     * @throws IOException if a frame is malformed.
+     */
+    private void readFrames() throws IOException {
+        Frame frame;
+        
+        while (!closed && 
+                !readPaused && 
+                (frame = Frame.decode(readBuffer)) != null) {
+            processFrame(frame);
+        }
+        
+        ensureReadCapacity(Frame.peekFrameSize(readBuffer));
+    }
+    
+    /**
+     * Processes a single frame received over the connection or the channel.
+     * 
+     * @param frame the frame.
+     * @throws IOException if the frame is malformed or unexpected, or the 
+     *                     network I/O fails.
+     */
+    private void processFrame(Frame frame) throws IOException {
+        switch (frame.getType()) {
+            case MagicConstants.FRAME_TYPE_MESSAGES:
+                if (MagicConstants.PUBLISHER_STRING.equals(roleName)) {
+                    topic.publish(frame);
+                    break;
+                }
+                
+                if (!MagicConstants.PRODUCER_STRING.equals(roleName)) {
+                    throw new IOException(
+                            "Messages received from a " + roleName + ".");
+                }
+                
+                MessageQueue target = 
+                        partitionedQueue != null && frame.hasKey() ? 
+                                partitionedQueue.getPartition(
+                                        frame.getKeyHash()) : 
+                                queue;
+                List<byte[]> entries = 
+                        CompressedBatches.toEntries(target, frame);
+                
+                if (frame.getDelayMillis() > 0L) {
+                    handler.scheduleDelivery(target, 
+                                             entries, 
+                                             frame.getDelayMillis(), 
+                                             frame.getTtlMillis());
+                } else {
+                    enqueue(target, entries, 0, frame.getTtlMillis());
+                }
+                
+                if (confirming) {
+                    receivedMessageCount += frame.getCount();
+                
+                    // A paused producer is confirmed once resumed:
+                    if (!readPaused) {
+                        confirm(target);
+                    }
+                }
+                
+                break;
+                
+            case MagicConstants.FRAME_TYPE_CREDIT:
+                if (!isConsumer()) {
+                    throw new IOException(
+                            "Credit received from a " + roleName + ".");
+                }
+                
+                messageCredit += frame.getMessageCredit();
+                byteCredit += frame.getByteCredit();
+                deliver();
+                break;
+                
+            case MagicConstants.FRAME_TYPE_SEEK:
+                if (!isConsumer()) {
+                    throw new IOException(
+                            "Seek received from a " + roleName + ".");
+                }
+                
+                seek(frame.getSeekOffset());
+                break;
+                
+            case MagicConstants.FRAME_TYPE_ACK:
+                if (MagicConstants.PRODUCER_STRING.equals(roleName) &&
+                        protocolVersion >= MagicConstants.PROTOCOL_VERSION_8) {
+                    // The producer asks for the confirmations:
+                    confirming = true;
+                    break;
+                }
+                
+                if (!isConsumer()) {
+                    throw new IOException(
+                            "Acknowledgement received from a " + roleName + 
+                            ".");
+                }
+                
+                acknowledge(frame.getAcknowledgedMessageCount());
+                break;
+                
+            case MagicConstants.FRAME_TYPE_REPLICATE:
+                if (!MagicConstants.REPLICATOR_STRING.equals(roleName)) {
+                    throw new IOException(
+                            "Replication received from a " + roleName + ".");
+                }
+                
+                write(handler.applyReplicatedFrame(frame));
+                break;
+                
+            case MagicConstants.FRAME_TYPE_CLOSE:
+                close();
+                break;
+                
+            case MagicConstants.FRAME_TYPE_OPEN:
+                openChannel(frame);
+                break;
+                
+            case MagicConstants.FRAME_TYPE_CHANNEL:
+                dispatchChannelFrame(frame);
+                break;
+                
+            default:
+                throw new IOException(
+                        "Unknown frame type: " + frame.getType());
+        }
+    }
+    
+    /**
+     * Opens a channel of a multiplexed connection for the role and the queue
+     * named in the open frame, and tells the client the chosen codec. A 
+     * channel the handler cannot serve is refused with an error frame sent 
+     * over it, leaving the other channels intact.
+     * 
+     * @param frame the open frame.
+     * @throws IOException if the frame is malformed or unexpected, or the 
+     *                     network I/O fails.
+     */
+    private void openChannel(Frame frame) throws IOException {
+        if (channels == null) {
+            throw new IOException("Open received from a " + roleName + ".");
+        }
+        
+        int childChannelId = frame.getCount();
+        
+        if (channels.containsKey(childChannelId)) {
+            throw new IOException(
+                    "The channel " + childChannelId + " is already open.");
+        }
+        
+        ByteBuffer body = frame.getBody().duplicate();
+        String childRoleName = HandshakeParser.readString(body);
+        String queueName = HandshakeParser.readString(body);
+        
+        if (childRoleName == null || queueName == null || body.hasRemaining()) {
+            throw new IOException("Malformed open frame.");
+        }
+        
+        NioConnection child = new NioConnection(this, childChannelId);
+        child.roleName = childRoleName;
+        CompressionCodec codec = 
+                handler.negotiateCompressionCodec(childRoleName, 
+                                                  queueName, 
+                                                  offeredCodecIds);
+        
+        if (MagicConstants.CONSUMER_STRING.equals(childRoleName)) {
+            child.compressionCodec = codec;
+        }
+        
+        try {
+            child.startRole(queueName);
+        } catch (IOException ex) {
+            LOGGER.log(Level.FINE, "Refused a channel.", ex);
+            write(Frame.encodeChannel(
+                    childChannelId, 
+                    Frame.encodeError(0, String.valueOf(ex.getMessage()))));
+            return;
+        }
+        
+        channels.put(childChannelId, child);
+        write(Frame.encodeOpened(childChannelId, 
+                                 codec == null ? 
+                                         MagicConstants.NO_COMPRESSION_CODEC_ID :
+                                         codec.getId()));
+    }
+    
+    /**
+     * Hands the frame carried by a channel frame over to its channel. The 
+     * frames of a paused channel are held back; once a channel holds back 
+     * too much, the whole connection stops being read until the channel
+     * resumes.
+     * 
+     * @param frame the channel frame.
+     * @throws IOException if the frame is malformed or unexpected.
+     */
+    private void dispatchChannelFrame(Frame frame) throws IOException {
+        if (channels == null) {
+            throw new IOException("Channel frame received from a " + 
+                                  roleName + ".");
+        }
+        
+        NioConnection child = channels.get(frame.getCount());
+        
+        if (child == null) {
+            // The client has not learned yet that the channel is closed.
+            return;
+        }
+        
+        Frame channelFrame = frame.getChannelFrame();
+        
+        if (child.readPaused) {
+            // The body shares the read buffer:
+            child.pausedFrames.add(channelFrame.copy());
+            child.pausedBytes += channelFrame.getBody().remaining();
+            
+            if (child.pausedBytes > MagicConstants.MAX_PAUSED_CHANNEL_BYTES) {
+                readPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            
+            return;
+        }
+        
+        try {
+            child.processFrame(channelFrame);
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Closing a channel.", ex);
+            child.close();
+        }
+    }
+    
+    /**
+     * Processes the frames a channel held back while paused, and resumes the
+     * reading of its multiplexed connection once they are all processed.
+     * 
+     * @throws IOException if a frame is malformed or unexpected.
+     */
+    private void processPausedFrames() throws IOException {
+        Frame frame;
+        
+        while (!closed && 
+                !readPaused && 
+                (frame = pausedFrames.poll()) != null) {
+            pausedBytes -= frame.getBody().remaining();
+            processFrame(frame);
+        }
+        
+        if (pausedFrames.isEmpty()) {
+            parent.resumeChannels();
+        }
+    }
+    
+    /**
+     * Resumes the reading of a multiplexed connection paused by one of its
+     * channels.
+     */
+    private void resumeChannels() {
+        if (closed || !readPaused) {
+            return;
+        }
+        
+        readPaused = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        
+        try {
+            processReadBuffer();
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Closing a connection.", ex);
+            close();
+        }
+    }
+    
+    /**
+     * Offers the messages to the queue under its overflow policy. Under the
+     * blocking policy, a message that does not fit pauses the reading of the
+     * channel until the queue makes room, which pushes back on the producer
+     * via TCP.
+     * 
+     * @param queue     the queue to offer the messages to.
+     * @param messages  the messages, or the compressed batches, to enqueue.
+     * @param index     the index of the first message to enqueue.
+     * @param ttlMillis the time to live of the messages in milliseconds, or 
+     *                  zero for none.
+     * @throws IOException if the network I/O fails.
+     */
+    private void enqueue(MessageQueue queue, 
+                         List<byte[]> messages, 
+                         int index,
+                         long ttlMillis) throws IOException {
+        boolean blocking = 
+                queue.getConfiguration().getOverflowPolicy() == 
+                MessageQueueConfiguration.OverflowPolicy.BLOCK;
+        int rejectedMessageCount = 0;
+        
+        // Append what fits in one batch, then go one by one:
+        for (index = queue.offerAll(messages, index, ttlMillis); 
+                index < messages.size(); 
+                index++) {
+            byte[] message = messages.get(index);
+            MessageQueue.OfferResult result = queue.offer(message, ttlMillis);
+            
+            if (result == MessageQueue.OfferResult.FULL && blocking) {
+                pauseReading(queue, messages, index, ttlMillis);
+                break;
+            }
+            
+            if (result != MessageQueue.OfferResult.ACCEPTED) {
+                rejectedMessageCount += 
+                        CompressedBatches.countMessages(queue, message);
+            }
+        }
+        
+        if (rejectedMessageCount > 0) {
+            reject(queue, rejectedMessageCount);
+        }
+    }
+    
+    private void pauseReading(MessageQueue queue, 
+                              List<byte[]> messages, 
+                              int index,
+                              long ttlMillis) {
+        readPaused = true;
+        
+        // A channel holds its frames back instead:
+        if (parent == null) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        
+        queue.awaitSpace(messages.get(index).length, () -> {
+            ioLoop.execute(() -> {
+                try {
+                    resumeReading(queue, messages, index, ttlMillis);
+                } catch (IOException ex) {
+                    close();
+                }
+            });
+        });
+    }
+    
+    private void resumeReading(MessageQueue queue, 
+                               List<byte[]> messages, 
+                               int index,
+                               long ttlMillis) throws IOException {
+        if (closed) {
+            return;
+        }
+        
+        readPaused = false;
+        enqueue(queue, messages, index, ttlMillis);
+        
+        if (readPaused) {
+            return;
+        }
+        
+        if (confirming) {
+            confirm(queue);
+        }
+        
+        if (parent != null) {
+            processPausedFrames();
+            return;
+        }
+        
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        // Process the data received before the pause:
+        processReadBuffer();
+    }
+    
+    /**
+     * Confirms the messages received so far once the replication quorum 
+     * holds them. The rejected messages are confirmed along with the others,
+     * after their error frames, and the delayed messages once scheduled.
+     * 
+     * @param queue the queue the last messages went to.
+     */
+    private void confirm(MessageQueue queue) {
+        long confirmedMessageCount = receivedMessageCount;
+        handler.awaitReplication(queue, () -> {
+            // May run in the reader thread of a replicator:
+            ioLoop.execute(() -> {
+                if (closed) {
+                    return;
+                }
+                
+                try {
+                    write(Frame.encodeAck(confirmedMessageCount));
+                } catch (IOException ex) {
+                    close();
+                }
+            });
+        });
+    }
+    
+    private void reject(MessageQueue queue, int rejectedMessageCount) 
+            throws IOException {
+        String reason = "The queue \"" + queue.getName() + 
+                        "\" is full or the message exceeds its limits.";
+        
+        if (protocolVersion == MagicConstants.PROTOCOL_VERSION_1) {
+            LOGGER.warning("Dropped " + rejectedMessageCount + 
+                           " message(s): " + reason);
+            return;
+        }
+        
+        write(Frame.encodeError(rejectedMessageCount, reason));
+    }
+    
+    /**
+     * Moves the read position of a consumer of a retained queue and 
+     * acknowledges the seek with the resolved offset.
+     * 
+     * @param offset the requested offset.
+     * @throws IOException if the queue is not retained or the network I/O 
+     *                     fails.
+     */
+    private void seek(long offset) throws IOException {
+        if (subscription != null) {
+            throw new IOException("The topic subscribers cannot seek.");
+        }
+        
+        RetainedLog retainedLog = queue == null ? null : queue.getRetainedLog();
+        
+        if (retainedLog == null) {
+            throw new IOException(
+                    "Only the consumers of a retained queue can seek.");
+        }
+        
+        if (waiting) {
+            retainedLog.cancelAwait(this);
+            waiting = false;
+        }
+        
+        readOffset = retainedLog.resolveOffset(offset);
+        write(Frame.encodeSeek(readOffset));
+        deliver();
+    }
+    
+    /**
+     * Removes the acknowledged messages. The first acknowledgement turns on
+     * the tracking of the messages delivered to the consumer, and closes the
+     * connection if the consumer keeps a message unacknowledged past the 
+     * timeout.
+     * 
+     * @param acknowledgedMessageCount the cumulative number of messages 
+     *                                 acknowledged.
+     * @throws IOException if the consumer may not acknowledge, or the count
+     *                     is invalid.
+     */
+    private void acknowledge(long acknowledgedMessageCount) 
+            throws IOException {
+        if (inFlightMessages == null) {
+            if (protocolVersion < MagicConstants.PROTOCOL_VERSION_6) {
+                throw new IOException(
+                        "Acknowledgements require protocol version 6.");
+            }
+            
+            if (subscription != null || 
+                    (queue != null && queue.getRetainedLog() != null)) {
+                throw new IOException(
+                        "Only the consumers of a non-retained queue can " + 
+                        "acknowledge.");
+            }
+            
+            if (acknowledgedMessageCount != 0L || 
+                    messageCredit > 0L || 
+                    byteCredit > 0L) {
+                throw new IOException(
+                        "The first acknowledgement must precede the credit.");
+            }
+            
+            inFlightMessages = new InFlightMessages();
+            // The file regions cannot be redelivered:
+            fileRegionsEnabled = false;
+            ackTimeoutCheck = 
+                    handler.scheduleAckTimeoutCheck(
+                            inFlightMessages, 
+                            () -> ioLoop.execute(this::close));
+        }
+        
+        inFlightMessages.acknowledge(acknowledgedMessageCount);
+    }
+    
+    /**
+     * Writes message frames to a consumer until the queue is empty, the 
+     * consumer runs out of credit, or the socket send buffer is full. In the
+     * first case, the connection waits for the queue to signal; in the 
+     * second, for a credit frame; in the last, for the channel to become 
+     * writable.
+     * 
+     * @throws IOException if the network I/O fails.
+     */
+    private void deliver() throws IOException {
+        if (closed || waiting || isOutputPending() || 
+                pendingRegion != null) {
+            return;
+        }
+        
+        if (subscription != null) {
+            deliverSubscribed();
+            return;
+        }
+        
+        if (assignment != null) {
+            deliverPartitioned();
+            return;
+        }
+        
+        if (queue.getRetainedLog() != null) {
+            deliverRetained(queue.getRetainedLog());
+            return;
+        }
+        
+        while (messageCredit > 0L && byteCredit > 0L) {
+            if (fileRegionsEnabled) {
+                FileRegion region = 
+                        queue.drainRegion(
+                                messageCredit,
+                                Math.min(
+                                    byteCredit, 
+                                    MagicConstants.DEFAULT_DELIVERY_BATCH_BYTES));
+                
+                if (region != null) {
+                    messageCredit -= region.getMessageCount();
+                    byteCredit -= region.getByteCount();
+                    
+                    if (!writeRegion(region)) {
+                        return;
+                    }
+                    
+                    continue;
+                }
+            }
+            
+            queue.drainTo(deliveryBatch, 
+                          messageCredit,
+                          Math.min(byteCredit, 
+                                   MagicConstants.DEFAULT_DELIVERY_BATCH_BYTES));
+            
+            if (deliveryBatch.isEmpty()) {
+                waiting = true;
+                queue.awaitMessages(this);
+                return;
+            }
+            
+            writeBatch(queue);
+            
+            if (isOutputPending()) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Writes the delivery batch drained from the queue as a message frame 
+     * and charges it to the credit of the consumer.
+     * 
+     * @param drainedQueue the queue or the partition the batch was drained
+     *                     from.
+     * @throws IOException if a compressed batch is malformed or the network
+     *                     I/O fails.
+     */
+    private void writeBatch(MessageQueue drainedQueue) throws IOException {
+        ByteBuffer frame = CompressedBatches.encodeFrame(drainedQueue, 
+                                                         deliveryBatch, 
+                                                         compressionCodec);
+        
+        if (inFlightMessages != null) {
+            inFlightMessages.add(drainedQueue, deliveryBatch);
+        }
+        
+        messageCredit -= CompressedBatches.countMessages(drainedQueue, 
+                                                         deliveryBatch);
+        byteCredit -= CompressedBatches.countMessageBytes(drainedQueue, 
+                                                          deliveryBatch);
+        deliveryBatch.clear();
+        write(frame);
+    }
+    
+    /**
+     * Writes the frames read from the ring of a retained queue. The messages
+     * stay in the ring for the other consumers.
+     * 
+     * @param retainedLog the ring to read from.
+     * @throws IOException if the network I/O fails.
+     */
+    private void deliverRetained(RetainedLog retainedLog) throws IOException {
+        while (messageCredit > 0L && byteCredit > 0L) {
+            RetainedLog.ReadResult result = 
+                    retainedLog.read(
+                            readOffset,
+                            messageCredit,
+                            Math.min(
+                                    byteCredit,
+                                    MagicConstants.DEFAULT_DELIVERY_BATCH_BYTES));
+            
+            if (result == null) {
+                waiting = true;
+                retainedLog.awaitAppend(this, readOffset);
+                return;
+            }
+            
+            messageCredit -= result.messageCount;
+            byteCredit -= result.byteCount;
+            readOffset = result.getNextOffset();
+            write(result.frame);
+            
+            if (isOutputPending()) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Writes the messages of the partitions assigned to a consumer of a 
+     * partitioned queue. Once all of them are empty, the connection waits on
+     * all of them, and also for the assignment to change.
+     * 
+     * @throws IOException if the network I/O fails.
+     */
+    private void deliverPartitioned() throws IOException {
+        cancelAwaitPartitions();
+        
+        while (messageCredit > 0L && byteCredit > 0L) {
+            MessageQueue[] partitions = assignment.getPartitions();
+            MessageQueue drainedPartition = null;
+            
+            for (int i = 0; 
+                    i < partitions.length && deliveryBatch.isEmpty(); 
+                    i++) {
+                // Start from a different partition each time for fairness:
+                drainedPartition = 
+                        partitions[(nextPartitionIndex + i) % 
+                                   partitions.length];
+                drainedPartition.drainTo(
+                        deliveryBatch, 
+                        messageCredit,
+                        Math.min(byteCredit, 
+                                 MagicConstants.DEFAULT_DELIVERY_BATCH_BYTES));
+            }
+            
+            nextPartitionIndex++;
+            
+            if (deliveryBatch.isEmpty()) {
+                waiting = true;
+                awaitedPartitions = partitions;
+                
+                for (MessageQueue partition : partitions) {
+                    partition.awaitMessages(this);
+                }
+                
+                return;
+            }
+            
+            writeBatch(drainedPartition);
+            
+            if (isOutputPending()) {
+                return;
+            }
+        }
+    }
+    
+    private void cancelAwaitPartitions() {
+        if (awaitedPartitions != null) {
+            for (MessageQueue partition : awaitedPartitions) {
+                partition.cancelAwait(this);
+            }
+            
+            awaitedPartitions = null;
+        }
+    }
+    
+    /**
+     * Writes the frames of the subscription of a subscriber. Each frame is 
+     * written from its shared buffer, and held until it is written in its
+     * entirety.
+     * 
+     * @throws IOException if the network I/O fails.
+     */
+    private void deliverSubscribed() throws IOException {
+        while (messageCredit > 0L && byteCredit > 0L) {
+            SharedFrame frame = subscription.poll();
+            
+            if (frame == null) {
+                waiting = true;
+                subscription.awaitFrames(this);
+                return;
+            }
+            
+            messageCredit -= frame.getMessageCount();
+            byteCredit -= frame.getByteCount();
+            pendingFrame = frame;
+            write(frame.duplicate());
+            
+            // The frame of a channel is written from a copy:
+            if (parent == null && isOutputPending()) {
+                return;
+            }
+            
+            releasePendingFrame();
+            
+            if (isOutputPending()) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Writes the header of a frame of checksummed records followed by the
+     * records of the region, transferred straight from the segment file.
+     * 
+     * @param region the region to send.
+     * @return {@code true} if the frame was written in its entirety.
+     * @throws IOException if the network I/O fails.
+     */
+    private boolean writeRegion(FileRegion region) throws IOException {
+        pendingRegion = region;
+        write(Frame.encodeChecksummedMessagesHeader(region.getMessageCount(),
+                                                    region.getRecordBytes()));
+        
+        // Otherwise the header is still pending, and onWritable() takes 
+        // over:
+        return outputBuffers.isEmpty() && transferPendingRegion();
+    }
+    
+    /**
+     * Transfers as much of the pending region as the channel accepts, and 
+     * releases the region once it is transferred.
+     * 
+     * @return {@code true} if the region was transferred in its entirety.
+     * @throws IOException if the network I/O fails.
+     */
+    private boolean transferPendingRegion() throws IOException {
+        pendingRegion.transferTo(channel);
+        
+        if (!pendingRegion.isTransferred()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return false;
+        }
+        
+        releasePendingRegion();
+        return true;
+    }
+    
+    private void releasePendingRegion() {
+        if (pendingRegion != null) {
+            pendingRegion.release();
+            pendingRegion = null;
+        }
+    }
+    
+    private void releasePendingFrame() {
+        if (pendingFrame != null) {
+            pendingFrame.release();
+            pendingFrame = null;
+        }
+    }
+    
+    /**
+     * Counts this producer or consumer connection in or out of the metrics
+     * of its queues.
+     * 
+     * @param delta one when connected, minus one when closed.
+     */
+    private void countConnection(int delta) {
+        if (meteredQueues == null) {
+            meteredQueues = MessageQueueHandler.getMeteredQueues(
+                    queue, 
+                    partitionedQueue);
+        }
+        
+        boolean producer = MagicConstants.PRODUCER_STRING.equals(roleName);
+        
+        for (MessageQueue meteredQueue : meteredQueues) {
+            MessageQueueMetrics metrics = meteredQueue.getMetrics();
+            
+            if (delta > 0) {
+                if (producer) {
+                    metrics.onProducerConnected();
+                } else {
+                    metrics.onConsumerConnected();
+                }
+            } else if (producer) {
+                metrics.onProducerDisconnected();
+            } else {
+                metrics.onConsumerDisconnected();
+            }
+        }
+    }
+    
+    private boolean isConsumer() {
+        return (MagicConstants.CONSUMER_STRING.equals(roleName) && 
+                (queue != null || assignment != null)) || 
+               subscription != null;
+    }
+    
+    /**
+     * Makes sure the read buffer is able to hold a frame of given size.
+     * 
+     * @param frameSize the size of the next frame, or a negative value if not
+     *                  known.
+     */
+    private void ensureReadCapacity(int frameSize) {
+        if (frameSize <= readBuffer.capacity()) {
+            return;
+        }
+        
+        ByteBuffer largerBuffer = ByteBuffer.allocate(frameSize);
+        largerBuffer.put(readBuffer);
+        largerBuffer.flip();
+        readBuffer = largerBuffer;
+    }
+}
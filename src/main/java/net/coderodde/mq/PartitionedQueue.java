@@ -0,0 +1,218 @@
+package net.coderodde.mq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class implements a queue split into independent partitions. Each
+ * partition is an ordinary {@link MessageQueue} named after the queue and
+ * the partition index, so that the partitions have their own storage and the
+ * producers and the consumers of different partitions never contend. The
+ * producers route the messages by the partition key hash; the consumers are
+ * assigned disjoint sets of partitions, and each partition is drained by the
+ * thread serving its consumer only.
+ * <p>
+ * Whenever a consumer joins or leaves, the partitions are spread over the
+ * consumers anew: the partition {@code i} goes to the consumer
+ * {@code i mod n} in the order of joining.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class PartitionedQueue {
+    
+    /**
+     * Describes the partitions currently assigned to a single consumer.
+     */
+    static final class Assignment {
+        
+        /**
+         * Signalled whenever the assigned partitions change.
+         */
+        private final MessageQueueListener listener;
+        
+        /**
+         * The partitions assigned to the consumer.
+         */
+        private volatile MessageQueue[] partitions = new MessageQueue[0];
+        
+        Assignment(MessageQueueListener listener) {
+            this.listener = listener;
+        }
+        
+        MessageQueue[] getPartitions() {
+            return partitions;
+        }
+    }
+    
+    /**
+     * The partitions of this queue.
+     */
+    private final MessageQueue[] partitions;
+    
+    /**
+     * The assignments of the connected consumers in the order of joining.
+     */
+    private final List<Assignment> assignments = new ArrayList<>();
+    
+    /**
+     * Guards the assignments.
+     */
+    private final ReentrantLock assignmentLock = new ReentrantLock();
+    
+    /**
+     * Used for spreading the producers without a key over the partitions.
+     */
+    private final AtomicInteger nextProducerPartition = new AtomicInteger();
+    
+    /**
+     * The name of this queue.
+     */
+    private final String name;
+    
+    PartitionedQueue(String name, MessageQueue[] partitions) {
+        this.name = name;
+        this.partitions = partitions;
+    }
+    
+    String getName() {
+        return name;
+    }
+    
+    int getPartitionCount() {
+        return partitions.length;
+    }
+    
+    MessageQueue[] getPartitions() {
+        return partitions.clone();
+    }
+    
+    /**
+     * Returns the partition the key hash maps to.
+     * 
+     * @param keyHash the hash of the partition key.
+     * @return the partition.
+     */
+    MessageQueue getPartition(int keyHash) {
+        return partitions[Math.floorMod(keyHash, partitions.length)];
+    }
+    
+    /**
+     * Returns the partition receiving the messages without a key from a new
+     * producer connection. The producers are spread over the partitions in
+     * a round-robin manner.
+     * 
+     * @return the partition.
+     */
+    MessageQueue nextProducerPartition() {
+        return partitions[Math.floorMod(
+                nextProducerPartition.getAndIncrement(),
+                partitions.length)];
+    }
+    
+    /**
+     * Adds a consumer and reassigns the partitions.
+     * 
+     * @param listener signalled whenever the assignment of the consumer
+     *                 changes. Must not block.
+     * @return the assignment of the consumer.
+     */
+    Assignment join(MessageQueueListener listener) {
+        Assignment assignment = new Assignment(listener);
+        assignmentLock.lock();
+        
+        try {
+            assignments.add(assignment);
+            reassign();
+        } finally {
+            assignmentLock.unlock();
+        }
+        
+        return assignment;
+    }
+    
+    /**
+     * Removes a consumer and hands its partitions over to the others.
+     * 
+     * @param assignment the assignment of the leaving consumer.
+     */
+    void leave(Assignment assignment) {
+        assignmentLock.lock();
+        
+        try {
+            if (assignments.remove(assignment)) {
+                assignment.partitions = new MessageQueue[0];
+                reassign();
+            }
+        } finally {
+            assignmentLock.unlock();
+        }
+    }
+    
+    /**
+     * Spreads the partitions over the consumers and signals the consumers
+     * whose partitions changed. Called while holding the assignment lock.
+     */
+    private void reassign() {
+        int consumerCount = assignments.size();
+        
+        for (int i = 0; i < consumerCount; i++) {
+            Assignment assignment = assignments.get(i);
+            List<MessageQueue> assignedPartitions = new ArrayList<>();
+            
+            for (int p = i; p < partitions.length; p += consumerCount) {
+                assignedPartitions.add(partitions[p]);
+            }
+            
+            MessageQueue[] newPartitions =
+                    assignedPartitions.toArray(new MessageQueue[0]);
+            
+            if (!Arrays.equals(newPartitions, assignment.partitions)) {
+                assignment.partitions = newPartitions;
+                assignment.listener.onMessagesAvailable();
+            }
+        }
+    }
+    
+    /**
+     * Returns the name of a partition.
+     * 
+     * @param messageQueueName the name of the partitioned queue.
+     * @param partitionIndex   the index of the partition.
+     * @return the name of the partition.
+     */
+    static String getPartitionName(String messageQueueName,
+                                   int partitionIndex) {
+        return messageQueueName + MagicConstants.PARTITION_NAME_SEPARATOR +
+               partitionIndex;
+    }
+    
+    /**
+     * Returns the name of the partitioned queue the given queue is a
+     * partition of.
+     * 
+     * @param messageQueueName the name of a queue.
+     * @return the name of the partitioned queue or {@code null} if the queue
+     *         is not a partition.
+     */
+    static String getParentName(String messageQueueName) {
+        int separatorIndex = messageQueueName.lastIndexOf(
+                MagicConstants.PARTITION_NAME_SEPARATOR);
+        
+        if (separatorIndex < 0 ||
+                separatorIndex == messageQueueName.length() - 1) {
+            return null;
+        }
+        
+        for (int i = separatorIndex + 1; i < messageQueueName.length(); i++) {
+            if (!Character.isDigit(messageQueueName.charAt(i))) {
+                return null;
+            }
+        }
+        
+        return messageQueueName.substring(0, separatorIndex);
+    }
+}
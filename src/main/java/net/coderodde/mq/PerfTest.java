@@ -0,0 +1,395 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import static net.coderodde.mq.Utilities.checkPortNumber;
+
+/**
+ * This class implements the load generator started by
+ * {@code java -jar rodde.mq.jar perf}. It connects producers and consumers
+ * to a running handler, has the producers send at a fixed target rate for a
+ * while, and reports the throughput and the end-to-end latencies.
+ * <p>
+ * The load is open-loop: each message has its send time fixed in advance by
+ * the rate, and carries that intended time in its first eight bytes. A
+ * producer held up by the handler does not send less; it catches up with
+ * the overdue messages in a single frame, and their latency counts from the
+ * moment they were due. The latencies thus include the queueing the handler
+ * causes, and are free from the coordinated omission of the closed-loop
+ * tests. The producers and the consumers share the clock of this JVM.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class PerfTest {
+    
+    /**
+     * Used for logging status information in a console or another listener.
+     */
+    private static final Logger LOGGER =
+            Logger.getLogger(MagicConstants.LOGGER_BADGE);
+    
+    /**
+     * The number of bytes of the send time at the start of each message.
+     */
+    private static final int TIMESTAMP_BYTES = 8;
+    
+    /**
+     * The delay before the producers start, so that they all start in step.
+     */
+    private static final long START_DELAY_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(100L);
+    
+    private String hostName = "localhost";
+    private int portNumber = MagicConstants.DEFAULT_PORT_NUMBER;
+    private String messageQueueName = "perf";
+    private int producerCount = 1;
+    private int consumerCount = 1;
+    private int messageBytes = MagicConstants.DEFAULT_PERF_MESSAGE_BYTES;
+    private long rate = MagicConstants.DEFAULT_PERF_RATE;
+    private long durationSeconds =
+            MagicConstants.DEFAULT_PERF_DURATION_SECONDS;
+    private boolean histogramPrinted;
+    
+    /**
+     * The end-to-end latencies of the received messages.
+     */
+    private final LatencyHistogram latencyHistogram =
+            new LatencyHistogram(
+                    MagicConstants.PERF_HISTOGRAM_SUB_BUCKET_BITS);
+    
+    /**
+     * The number of the messages sent by all the producers.
+     */
+    private final AtomicLong sentMessageCount = new AtomicLong();
+    
+    /**
+     * The number of the messages received by all the consumers.
+     */
+    private final AtomicLong receivedMessageCount = new AtomicLong();
+    
+    /**
+     * The value of {@link System#nanoTime()} when the last message was
+     * received.
+     */
+    private final AtomicLong lastReceiveNanos = new AtomicLong();
+    
+    /**
+     * The value of {@link System#nanoTime()} when the first message is due.
+     */
+    private long startNanos;
+    
+    /**
+     * Parses the options following {@code perf} on the command line.
+     * 
+     * @param args the options, each as {@code --name=value}.
+     * @throws IllegalArgumentException if an option is unknown or invalid.
+     */
+    PerfTest(String[] args) {
+        for (String arg : args) {
+            int separatorIndex = arg.indexOf('=');
+            String name = separatorIndex < 0 ?
+                    arg :
+                    arg.substring(0, separatorIndex);
+            String value = separatorIndex < 0 ?
+                    null :
+                    arg.substring(separatorIndex + 1);
+            
+            try {
+                parseOption(name, value);
+            } catch (IllegalArgumentException | NullPointerException ex) {
+                throw new IllegalArgumentException(
+                        String.format(
+                                MagicConstants
+                                .TextResources
+                                .INVALID_PERF_OPTION_ERROR_MESSAGE_FORMAT,
+                                arg),
+                        ex);
+            }
+        }
+    }
+    
+    private void parseOption(String name, String value) {
+        switch (name) {
+            case "--host":
+                hostName = value.trim();
+                break;
+                
+            case "--port":
+                portNumber = checkPortNumber(Integer.parseInt(value));
+                break;
+                
+            case "--queue":
+                messageQueueName = value;
+                break;
+                
+            case "--producers":
+                producerCount = checkPositive(Integer.parseInt(value));
+                break;
+                
+            case "--consumers":
+                consumerCount = checkPositive(Integer.parseInt(value));
+                break;
+                
+            case "--size":
+                messageBytes = Integer.parseInt(value);
+                
+                if (messageBytes < TIMESTAMP_BYTES) {
+                    throw new IllegalArgumentException();
+                }
+                
+                break;
+                
+            case "--rate":
+                rate = checkPositive(Long.parseLong(value));
+                break;
+                
+            case "--duration":
+                durationSeconds = checkPositive(Long.parseLong(value));
+                break;
+                
+            case "--histogram":
+                if (value != null) {
+                    throw new IllegalArgumentException();
+                }
+                
+                histogramPrinted = true;
+                break;
+                
+            default:
+                throw new IllegalArgumentException();
+        }
+    }
+    
+    private static int checkPositive(int value) {
+        return (int) checkPositive((long) value);
+    }
+    
+    private static long checkPositive(long value) {
+        if (value < 1L) {
+            throw new IllegalArgumentException();
+        }
+        
+        return value;
+    }
+    
+    /**
+     * Runs the test and prints the report.
+     * 
+     * @param out the stream to print the report to.
+     * @throws IOException if a client cannot connect.
+     * @throws InterruptedException if interrupted while waiting for the
+     *                              clients.
+     */
+    void run(PrintStream out) throws IOException, InterruptedException {
+        // The consumers first, so that no message waits for them:
+        List<MessageQueueConsumer> consumers = new ArrayList<>();
+        List<MessageQueueProducer> producers = new ArrayList<>();
+        
+        try {
+            for (int i = 0; i < consumerCount; i++) {
+                consumers.add(new MessageQueueConsumer(messageQueueName,
+                                                       hostName,
+                                                       portNumber));
+            }
+            
+            for (int i = 0; i < producerCount; i++) {
+                producers.add(new MessageQueueProducer(messageQueueName,
+                                                       hostName,
+                                                       portNumber));
+            }
+            
+            for (int i = 0; i < consumerCount; i++) {
+                MessageQueueConsumer consumer = consumers.get(i);
+                Thread thread = new Thread(() -> consume(consumer),
+                                           "rodde.mq-perf-consumer-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            
+            startNanos = System.nanoTime() + START_DELAY_NANOS;
+            List<Thread> producerThreads = new ArrayList<>();
+            
+            for (int i = 0; i < producerCount; i++) {
+                MessageQueueProducer producer = producers.get(i);
+                int producerIndex = i;
+                Thread thread = new Thread(() -> produce(producer,
+                                                         producerIndex),
+                                           "rodde.mq-perf-producer-" + i);
+                thread.start();
+                producerThreads.add(thread);
+            }
+            
+            for (Thread thread : producerThreads) {
+                thread.join();
+            }
+            
+            long sendEndNanos = System.nanoTime();
+            awaitDrain();
+            printReport(out, sendEndNanos);
+        } finally {
+            for (MessageQueueProducer producer : producers) {
+                closeQuietly(producer);
+            }
+            
+            for (MessageQueueConsumer consumer : consumers) {
+                closeQuietly(consumer);
+            }
+        }
+    }
+    
+    /**
+     * Sends the share of a producer at the target rate. Runs in the thread
+     * of the producer.
+     * 
+     * @param producer      the producer.
+     * @param producerIndex the index of the producer, staggering its
+     *                      schedule against the others.
+     */
+    private void produce(MessageQueueProducer producer, int producerIndex) {
+        double intervalNanos = 1e9 * producerCount / rate;
+        long firstNanos =
+                startNanos + (long)(intervalNanos * producerIndex /
+                                    producerCount);
+        long messageCount =
+                (rate * durationSeconds + producerCount - 1 - producerIndex) /
+                producerCount;
+        List<byte[]> batch = new ArrayList<>();
+        long sent = 0L;
+        
+        try {
+            while (sent < messageCount) {
+                long nextDueNanos = firstNanos + (long)(sent * intervalNanos);
+                long nowNanos = System.nanoTime();
+                
+                if (nowNanos - nextDueNanos < 0L) {
+                    LockSupport.parkNanos(nextDueNanos - nowNanos);
+                    continue;
+                }
+                
+                // Send all the messages due by now, as they would be sent by
+                // independent users:
+                long dueCount = Math.min(
+                        messageCount,
+                        (long)((nowNanos - firstNanos) / intervalNanos) + 1L);
+                int batchSize =
+                        (int) Math.min(dueCount - sent,
+                                       MagicConstants.PERF_MAX_BATCH_MESSAGES);
+                batch.clear();
+                
+                for (int i = 0; i < batchSize; i++) {
+                    long dueNanos = firstNanos +
+                                    (long)((sent + i) * intervalNanos);
+                    batch.add(ByteBuffer.allocate(messageBytes)
+                                        .putLong(0, dueNanos)
+                                        .array());
+                }
+                
+                producer.produce(batch);
+                sent += batchSize;
+                sentMessageCount.addAndGet(batchSize);
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, "A producer failed.", ex);
+        }
+    }
+    
+    /**
+     * Records the latencies of the received messages until the consumer is
+     * closed. Runs in the thread of the consumer.
+     * 
+     * @param consumer the consumer.
+     */
+    private void consume(MessageQueueConsumer consumer) {
+        try {
+            while (true) {
+                List<byte[]> messages =
+                        consumer.consume(
+                                MagicConstants.PERF_MAX_BATCH_MESSAGES);
+                long nowNanos = System.nanoTime();
+                
+                for (byte[] message : messages) {
+                    latencyHistogram.record(
+                            nowNanos - ByteBuffer.wrap(message).getLong());
+                }
+                
+                lastReceiveNanos.set(nowNanos);
+                receivedMessageCount.addAndGet(messages.size());
+            }
+        } catch (IOException | RuntimeException ex) {
+            // Closed at the end of the test.
+        }
+    }
+    
+    /**
+     * Waits until the consumers receive all the messages sent, or the drain
+     * timeout passes.
+     */
+    private void awaitDrain() throws InterruptedException {
+        long deadlineNanos =
+                System.nanoTime() +
+                TimeUnit.MILLISECONDS.toNanos(
+                        MagicConstants.PERF_DRAIN_MILLISECONDS);
+        
+        while (receivedMessageCount.get() < sentMessageCount.get() &&
+                System.nanoTime() - deadlineNanos < 0L) {
+            Thread.sleep(10L);
+        }
+    }
+    
+    private void printReport(PrintStream out, long sendEndNanos) {
+        long sent = sentMessageCount.get();
+        long received = receivedMessageCount.get();
+        double sendSeconds = (sendEndNanos - startNanos) / 1e9;
+        double receiveSeconds =
+                Math.max(lastReceiveNanos.get() - startNanos, 1L) / 1e9;
+        
+        out.printf("Sent %d messages of %d bytes in %.3f s: %.0f msg/s, " +
+                   "%.2f MiB/s (target %d msg/s).%n",
+                   sent,
+                   messageBytes,
+                   sendSeconds,
+                   sent / sendSeconds,
+                   sent * messageBytes / sendSeconds / (1024.0 * 1024.0),
+                   rate);
+        out.printf("Received %d messages in %.3f s: %.0f msg/s, " +
+                   "%.2f MiB/s.%n",
+                   received,
+                   receiveSeconds,
+                   received / receiveSeconds,
+                   received * messageBytes / receiveSeconds /
+                   (1024.0 * 1024.0));
+        
+        if (received < sent) {
+            out.printf("Lost or late: %d messages.%n", sent - received);
+        }
+        
+        out.printf("End-to-end latency (us): p50=%.1f p90=%.1f p99=%.1f " +
+                   "p99.9=%.1f max=%.1f%n",
+                   latencyHistogram.getPercentileNanos(50.0) / 1000.0,
+                   latencyHistogram.getPercentileNanos(90.0) / 1000.0,
+                   latencyHistogram.getPercentileNanos(99.0) / 1000.0,
+                   latencyHistogram.getPercentileNanos(99.9) / 1000.0,
+                   latencyHistogram.getMaxNanos() / 1000.0);
+        
+        if (histogramPrinted) {
+            out.print(latencyHistogram.toBucketString());
+        }
+    }
+    
+    private static void closeQuietly(AutoCloseable client) {
+        try {
+            client.close();
+        } catch (Exception ex) {
+            // Nothing to do with it.
+        }
+    }
+}
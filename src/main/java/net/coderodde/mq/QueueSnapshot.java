@@ -0,0 +1,467 @@
+package net.coderodde.mq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * This class implements the snapshot of the in-memory queues written upon a
+ * graceful shutdown and read upon the next start, so that a restart keeps
+ * their messages without draining them first.
+ * <p>
+ * The snapshot is a single file: the records of each queue one after
+ * another, each laid out as the 32-bit message length and the message, then
+ * an index of the queues, and finally a trailer locating the index. The file
+ * is written sequentially through large mapped windows and renamed into
+ * place once complete. Opening it reads the trailer and the index only, so
+ * the start takes the same time however many messages the snapshot holds;
+ * the records of a queue are read once the queue is first used, as its
+ * consumers remove them.
+ * <p>
+ * The file is deleted as soon as it is opened: the handler keeps reading it
+ * through the open channel, and a crash after the restart does not bring
+ * back the messages consumed since. The delayed messages not due yet and the
+ * time to live of the messages are not recorded.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class QueueSnapshot implements AutoCloseable {
+    
+    /**
+     * Used for logging status information in a console or another listener.
+     */
+    private static final Logger LOGGER =
+            Logger.getLogger(MagicConstants.LOGGER_BADGE);
+    
+    /**
+     * Marks the end of a complete snapshot file.
+     */
+    private static final int MAGIC = 0x524d5153; // "RMQS"
+    
+    /**
+     * The version of the snapshot layout.
+     */
+    private static final int VERSION = 1;
+    
+    /**
+     * The trailer is the offset of the index, the CRC of the index, the
+     * version and the magic number.
+     */
+    private static final int TRAILER_BYTES = 8 + 4 + 4 + 4;
+    
+    /**
+     * The suffix of the file the snapshot is written to before the rename.
+     */
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    
+    /**
+     * Describes the records of a single queue.
+     */
+    private static final class Section {
+        
+        final String compressionCodecName;
+        final long position;
+        final long messageCount;
+        final long byteCount;
+        
+        Section(String compressionCodecName,
+                long position,
+                long messageCount,
+                long byteCount) {
+            this.compressionCodecName = compressionCodecName;
+            this.position = position;
+            this.messageCount = messageCount;
+            this.byteCount = byteCount;
+        }
+    }
+    
+    /**
+     * Writes a file sequentially through mapped windows.
+     */
+    private static final class MappedWriter {
+        
+        private final FileChannel channel;
+        private MappedByteBuffer window;
+        private long windowStart;
+        private long position;
+        
+        MappedWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+        
+        void putRecord(byte[] message) throws IOException {
+            map(Integer.BYTES + (long) message.length);
+            window.putInt(message.length);
+            window.put(message);
+            position += Integer.BYTES + message.length;
+        }
+        
+        void put(byte[] bytes) throws IOException {
+            map(bytes.length);
+            window.put(bytes);
+            position += bytes.length;
+        }
+        
+        long getPosition() {
+            return position;
+        }
+        
+        /**
+         * Cuts the file to the bytes written and forces it to disk.
+         */
+        void finish() throws IOException {
+            if (window != null) {
+                window.force();
+                window = null;
+            }
+            
+            channel.truncate(position);
+            channel.force(true);
+        }
+        
+        /**
+         * Makes sure the window has room for the given number of bytes at
+         * the position, mapping a new window starting at the position if it
+         * does not. The file grows with the windows.
+         */
+        private void map(long bytes) throws IOException {
+            if (window != null &&
+                    position + bytes <= windowStart + window.capacity()) {
+                return;
+            }
+            
+            if (window != null) {
+                window.force();
+            }
+            
+            window = channel.map(
+                    FileChannel.MapMode.READ_WRITE,
+                    position,
+                    Math.max(bytes, MagicConstants.SNAPSHOT_WINDOW_BYTES));
+            windowStart = position;
+        }
+    }
+    
+    /**
+     * The snapshot file, deleted but still open.
+     */
+    private final FileChannel channel;
+    
+    /**
+     * Maps the names of the queues not restored yet to their records.
+     */
+    private final Map<String, Section> queueNameToSectionMap;
+    
+    private QueueSnapshot(FileChannel channel,
+                          Map<String, Section> queueNameToSectionMap) {
+        this.channel = channel;
+        this.queueNameToSectionMap = queueNameToSectionMap;
+    }
+    
+    /**
+     * Drains the queues into a new snapshot file, replacing the previous
+     * snapshot, if any. The empty queues are left out.
+     * 
+     * @param file   the snapshot file.
+     * @param queues the queues to drain.
+     * @return the number of the messages written.
+     * @throws IOException if the file cannot be written. The messages
+     *                     drained so far are lost.
+     */
+    static long write(Path file, List<MessageQueue> queues)
+            throws IOException {
+        Path temporaryFile =
+                file.resolveSibling(file.getFileName() +
+                                    TEMPORARY_FILE_SUFFIX);
+        
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(indexBytes);
+        index.writeInt(0); // The queue count, set once known.
+        List<byte[]> batch = new ArrayList<>();
+        int queueCount = 0;
+        long totalMessageCount = 0L;
+        
+        try (FileChannel channel =
+                FileChannel.open(temporaryFile,
+                                 StandardOpenOption.CREATE,
+                                 StandardOpenOption.TRUNCATE_EXISTING,
+                                 StandardOpenOption.READ,
+                                 StandardOpenOption.WRITE)) {
+            MappedWriter writer = new MappedWriter(channel);
+            
+            for (MessageQueue queue : queues) {
+                long position = writer.getPosition();
+                long messageCount = 0L;
+                long byteCount = 0L;
+                
+                while (queue.drainTo(
+                        batch,
+                        MagicConstants.SNAPSHOT_DRAIN_BATCH_MESSAGES,
+                        MagicConstants.SNAPSHOT_WINDOW_BYTES) > 0) {
+                    for (byte[] message : batch) {
+                        writer.putRecord(message);
+                        byteCount += message.length;
+                    }
+                    
+                    messageCount += batch.size();
+                    batch.clear();
+                }
+                
+                if (messageCount == 0L) {
+                    continue;
+                }
+                
+                CompressionCodec codec = queue.getCompressionCodec();
+                writeString(index, queue.getName());
+                writeString(index, codec == null ? "" : codec.getName());
+                index.writeLong(position);
+                index.writeLong(messageCount);
+                index.writeLong(byteCount);
+                queueCount++;
+                totalMessageCount += messageCount;
+            }
+            
+            byte[] indexArray = indexBytes.toByteArray();
+            ByteBuffer.wrap(indexArray).putInt(0, queueCount);
+            CRC32 crc32 = new CRC32();
+            crc32.update(indexArray);
+            long indexOffset = writer.getPosition();
+            writer.put(indexArray);
+            writer.put(ByteBuffer.allocate(TRAILER_BYTES)
+                                 .putLong(indexOffset)
+                                 .putInt((int) crc32.getValue())
+                                 .putInt(VERSION)
+                                 .putInt(MAGIC)
+                                 .array());
+            writer.finish();
+        }
+        
+        Files.move(temporaryFile,
+                   file,
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        return totalMessageCount;
+    }
+    
+    /**
+     * Opens a snapshot file, reading its index only, and deletes it.
+     * 
+     * @param file the snapshot file.
+     * @return the snapshot or {@code null} if the file does not exist.
+     * @throws IOException if the file cannot be read or is not a complete
+     *                     snapshot.
+     */
+    static QueueSnapshot open(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        
+        try {
+            Map<String, Section> queueNameToSectionMap = readIndex(channel);
+            
+            try {
+                Files.delete(file);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING,
+                           "Could not delete the snapshot " + file + ".",
+                           ex);
+            }
+            
+            return new QueueSnapshot(channel, queueNameToSectionMap);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw new IOException("The snapshot " + file +
+                                  " is not complete.", ex);
+        }
+    }
+    
+    /**
+     * Returns the names of the queues not restored yet.
+     * 
+     * @return the names of the queues.
+     */
+    List<String> getQueueNames() {
+        return new ArrayList<>(queueNameToSectionMap.keySet());
+    }
+    
+    /**
+     * Returns the store of a queue being created, serving the recorded
+     * messages of the queue first, if any. The records are dropped with a
+     * warning if the queue is retained, durable or compressed differently
+     * by now, since they cannot be served as they are.
+     * 
+     * @param messageQueueName the name of the queue.
+     * @param configuration    the configuration of the queue.
+     * @param store            the store created for the queue.
+     * @return the store to use.
+     */
+    MessageStore restore(String messageQueueName,
+                         MessageQueueConfiguration configuration,
+                         MessageStore store) {
+        Section section = queueNameToSectionMap.remove(messageQueueName);
+        
+        if (section == null) {
+            return store;
+        }
+        
+        CompressionCodec codec = configuration.getCompressionCodec();
+        String codecName = codec == null ? "" : codec.getName();
+        
+        if (configuration.getRetainedMessages() > 0 ||
+                store.isFileBacked() ||
+                !codecName.equals(section.compressionCodecName)) {
+            LOGGER.warning("Dropped the " + section.messageCount +
+                           " snapshot message(s) of queue \"" +
+                           messageQueueName + "\": the queue is " +
+                           "retained, durable or compressed differently " +
+                           "by now.");
+            return store;
+        }
+        
+        LOGGER.info("Restored queue \"" + messageQueueName + "\" with " +
+                    section.messageCount + " messages from the snapshot.");
+        return new SnapshotMessageStore(channel,
+                                        section.position,
+                                        section.messageCount,
+                                        section.byteCount,
+                                        store);
+    }
+    
+    /**
+     * Closes the snapshot file. The stores restored from it keep reading
+     * the windows they have mapped only.
+     */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // Nothing to do with it.
+        }
+    }
+    
+    private static Map<String, Section> readIndex(FileChannel channel)
+            throws IOException {
+        long fileSize = channel.size();
+        
+        if (fileSize < 4 + TRAILER_BYTES) {
+            throw new IOException("The file is too short.");
+        }
+        
+        ByteBuffer trailer =
+                read(channel, fileSize - TRAILER_BYTES, TRAILER_BYTES);
+        long indexOffset = trailer.getLong();
+        int indexCrc = trailer.getInt();
+        int version = trailer.getInt();
+        
+        if (trailer.getInt() != MAGIC || version != VERSION) {
+            throw new IOException("Unknown snapshot trailer.");
+        }
+        
+        long indexBytes = fileSize - TRAILER_BYTES - indexOffset;
+        
+        if (indexOffset < 0L ||
+                indexBytes < 4L ||
+                indexBytes > Integer.MAX_VALUE) {
+            throw new IOException("Invalid index offset " + indexOffset +
+                                  ".");
+        }
+        
+        ByteBuffer index = read(channel, indexOffset, (int) indexBytes);
+        CRC32 crc32 = new CRC32();
+        crc32.update(index.duplicate());
+        
+        if ((int) crc32.getValue() != indexCrc) {
+            throw new IOException("The index fails its CRC.");
+        }
+        
+        Map<String, Section> queueNameToSectionMap =
+                new ConcurrentHashMap<>();
+        
+        try {
+            int queueCount = index.getInt();
+            
+            for (int i = 0; i < queueCount; i++) {
+                String messageQueueName = readString(index);
+                Section section = new Section(readString(index),
+                                              index.getLong(),
+                                              index.getLong(),
+                                              index.getLong());
+                
+                if (section.position < 0L ||
+                        section.messageCount < 0L ||
+                        section.byteCount < 0L ||
+                        section.position +
+                        section.messageCount * Integer.BYTES +
+                        section.byteCount > indexOffset) {
+                    throw new IOException(
+                            "Invalid records of queue \"" +
+                            messageQueueName + "\".");
+                }
+                
+                queueNameToSectionMap.put(messageQueueName, section);
+            }
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("The index is truncated.", ex);
+        }
+        
+        return queueNameToSectionMap;
+    }
+    
+    private static ByteBuffer read(FileChannel channel,
+                                   long position,
+                                   int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the file.");
+            }
+        }
+        
+        buffer.flip();
+        return buffer;
+    }
+    
+    private static void writeString(DataOutputStream out, String string)
+            throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,161 @@
+package net.coderodde.mq;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps track of how far the followers hold a retained queue of
+ * the leader, and runs the confirmations waiting for a quorum. An offset is
+ * committed once the leader and enough followers to make up the quorum hold
+ * all the messages before it; the committed offset is thus the offset held
+ * by the follower ranking {@code quorum - 1} in the descending order.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class QuorumTracker {
+    
+    /**
+     * Orders the waiters by their offsets, and the waiters of equal offsets
+     * by their arrival, so that the confirmations of each producer run in
+     * order.
+     */
+    private static final Comparator<Waiter> WAITER_COMPARATOR =
+            Comparator.comparingLong((Waiter waiter) -> waiter.offset)
+                      .thenComparingLong(waiter -> waiter.sequenceNumber);
+    
+    /**
+     * Guards the offsets and the waiters.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    /**
+     * The number of followers that must hold an offset before it is
+     * committed.
+     */
+    private final int requiredFollowers;
+    
+    /**
+     * Maps each follower to the offset it holds the queue up to.
+     */
+    private final Map<Object, Long> followerOffsets = new HashMap<>();
+    
+    /**
+     * The confirmations waiting for their offsets to be committed.
+     */
+    private final Queue<Waiter> waiters =
+            new PriorityQueue<>(WAITER_COMPARATOR);
+    
+    /**
+     * The highest committed offset.
+     */
+    private long committedOffset;
+    
+    /**
+     * The number of waiters added so far.
+     */
+    private long waiterCount;
+    
+    /**
+     * Constructs a tracker.
+     * 
+     * @param quorum the number of replicas, the leader included, that must
+     *               hold a message before it is committed.
+     */
+    QuorumTracker(int quorum) {
+        this.requiredFollowers = quorum - 1;
+    }
+    
+    /**
+     * Runs the task once all the messages before the offset are committed.
+     * Runs it right away if they already are, and otherwise in the thread
+     * reading the acknowledgements of the follower completing the quorum.
+     * 
+     * @param offset      the offset to wait for.
+     * @param onCommitted the task to run. Must not block.
+     */
+    void awaitCommit(long offset, Runnable onCommitted) {
+        lock.lock();
+        
+        try {
+            if (offset > committedOffset) {
+                waiters.add(new Waiter(offset, waiterCount++, onCommitted));
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        
+        onCommitted.run();
+    }
+    
+    /**
+     * Records how far a follower holds the queue, and runs the waiters whose
+     * offsets become committed.
+     * 
+     * @param follower  the follower.
+     * @param endOffset the offset the next message appended to the queue of
+     *                  the follower receives.
+     */
+    void acknowledge(Object follower, long endOffset) {
+        List<Runnable> committedWaiters = new ArrayList<>();
+        lock.lock();
+        
+        try {
+            followerOffsets.merge(follower, endOffset, Math::max);
+            
+            if (followerOffsets.size() < requiredFollowers) {
+                return;
+            }
+            
+            List<Long> offsets = new ArrayList<>(followerOffsets.values());
+            offsets.sort(Comparator.reverseOrder());
+            committedOffset = Math.max(committedOffset,
+                                       offsets.get(requiredFollowers - 1));
+            
+            while (!waiters.isEmpty() &&
+                    waiters.peek().offset <= committedOffset) {
+                committedWaiters.add(waiters.remove().onCommitted);
+            }
+        } finally {
+            lock.unlock();
+        }
+        
+        for (Runnable onCommitted : committedWaiters) {
+            onCommitted.run();
+        }
+    }
+    
+    /**
+     * This static inner class holds a confirmation waiting for a commit.
+     */
+    private static final class Waiter {
+        
+        /**
+         * The offset to wait for.
+         */
+        final long offset;
+        
+        /**
+         * The arrival order of this waiter.
+         */
+        final long sequenceNumber;
+        
+        /**
+         * The task to run once committed.
+         */
+        final Runnable onCommitted;
+        
+        Waiter(long offset, long sequenceNumber, Runnable onCommitted) {
+            this.offset = offset;
+            this.sequenceNumber = sequenceNumber;
+            this.onCommitted = onCommitted;
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package net.coderodde.mq;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements the thread of a leader shipping its retained queues
+ * to a single follower. Each queue is read from the leader's log at a cursor
+ * of its own and shipped in replication frames carrying the offsets, without
+ * waiting for the follower: up to
+ * {@link MagicConstants#REPLICATION_WINDOW_MESSAGES} messages per queue may
+ * be on their way. A reader thread takes the acknowledgements of the
+ * follower, moves the cursors and reports them to the handler, which
+ * confirms the producers once a quorum holds their messages.
+ * <p>
+ * A lost follower is connected to again, and the retained messages are
+ * shipped once more from the oldest; the follower skips those it already
+ * holds.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class Replicator extends Thread {
+    
+    /**
+     * Used for logging status information in a console or another listener.
+     */
+    private static final Logger LOGGER =
+            Logger.getLogger(MagicConstants.LOGGER_BADGE);
+    
+    /**
+     * The handler owning this replicator.
+     */
+    private final MessageQueueHandler handler;
+    
+    /**
+     * The host of the follower.
+     */
+    private final String hostName;
+    
+    /**
+     * The port of the follower.
+     */
+    private final int portNumber;
+    
+    /**
+     * Maps the names of the retained queues to their cursors.
+     */
+    private final Map<String, Cursor> cursors = new ConcurrentHashMap<>();
+    
+    /**
+     * Guards {@link #shippable}.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    /**
+     * Signalled whenever a queue may have something to ship.
+     */
+    private final Condition shippableChanged = lock.newCondition();
+    
+    /**
+     * Set whenever a queue may have something to ship, and cleared before
+     * looking.
+     */
+    private boolean shippable;
+    
+    /**
+     * The socket connected to the follower, or {@code null}.
+     */
+    private volatile Socket socket;
+    
+    /**
+     * Whether the current link got past the handshake. Only the thread of
+     * this replicator touches it.
+     */
+    private boolean linkEstablished;
+    
+    /**
+     * Specifies a flag for halting the replicator.
+     */
+    private volatile boolean haltRequested; // Default value is false.
+    
+    Replicator(MessageQueueHandler handler, String hostName, int portNumber) {
+        super("rodde.mq-replicator-" + hostName + ":" + portNumber);
+        setDaemon(true);
+        this.handler = handler;
+        this.hostName = hostName;
+        this.portNumber = portNumber;
+    }
+    
+    void requestHalt() {
+        haltRequested = true;
+        closeSocket();
+        wakeUp();
+    }
+    
+    @Override
+    public void run() {
+        while (!haltRequested) {
+            try {
+                connectAndShip();
+            } catch (IOException | RuntimeException ex) {
+                if (!haltRequested) {
+                    // A follower that is down is retried without the noise:
+                    LOGGER.log(linkEstablished ? Level.WARNING : Level.FINE,
+                               "Lost the follower " + hostName + ":" +
+                               portNumber + ". Reconnecting.",
+                               ex);
+                }
+            } finally {
+                linkEstablished = false;
+                closeSocket();
+            }
+            
+            try {
+                Thread.sleep(MagicConstants.REPLICATION_RECONNECT_MILLISECONDS);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Connects to the follower and ships the retained queues until the link
+     * fails or this replicator halts.
+     * 
+     * @throws IOException if the network I/O fails.
+     */
+    private void connectAndShip() throws IOException {
+        Socket newSocket = new Socket(hostName, portNumber);
+        socket = newSocket;
+        newSocket.setTcpNoDelay(true);
+        Utilities.handshake(newSocket,
+                            MagicConstants.REPLICATOR_STRING,
+                            "",
+                            MagicConstants.PROTOCOL_VERSION_8);
+        // The offset frames are shipped as they are in the log:
+        Utilities.negotiateCodec(newSocket);
+        linkEstablished = true;
+        DataInputStream in =
+                new DataInputStream(
+                        new BufferedInputStream(newSocket.getInputStream()));
+        Thread readerThread = new Thread(() -> readAcknowledgements(in),
+                                         getName() + "-reader");
+        readerThread.setDaemon(true);
+        
+        // The follower may have restarted empty; ship the whole retained 
+        // range again, and let the follower skip what it holds:
+        for (Cursor cursor : cursors.values()) {
+            cursor.nextOffset = 0L;
+            cursor.acknowledgedOffset = 0L;
+        }
+        
+        readerThread.start();
+        ship(new BufferedOutputStream(newSocket.getOutputStream(),
+                                      MagicConstants.REPLICATION_BATCH_BYTES));
+    }
+    
+    private void ship(OutputStream out) throws IOException {
+        while (!haltRequested && !socket.isClosed()) {
+            lock.lock();
+            
+            try {
+                shippable = false;
+            } finally {
+                lock.unlock();
+            }
+            
+            boolean shipped = false;
+            
+            for (MessageQueue queue : handler.getRetainedQueues()) {
+                shipped |= ship(queue, out);
+            }
+            
+            if (!shipped) {
+                out.flush();
+                awaitShippable();
+            }
+        }
+    }
+    
+    /**
+     * Ships the next batch of a queue unless the window is full.
+     * 
+     * @return {@code true} if a batch was shipped.
+     */
+    private boolean ship(MessageQueue queue, OutputStream out)
+            throws IOException {
+        Cursor cursor =
+                cursors.computeIfAbsent(queue.getName(),
+                                        name -> new Cursor(queue));
+        long window = MagicConstants.REPLICATION_WINDOW_MESSAGES -
+                      (cursor.nextOffset - cursor.acknowledgedOffset);
+        
+        if (window <= 0L) {
+            // Woken up by the next acknowledgement.
+            return false;
+        }
+        
+        RetainedLog log = queue.getRetainedLog();
+        RetainedLog.ReadResult result =
+                log.read(cursor.nextOffset,
+                         window,
+                         MagicConstants.REPLICATION_BATCH_BYTES);
+        
+        if (result == null) {
+            if (!cursor.waiting) {
+                cursor.waiting = true;
+                log.awaitAppend(cursor, cursor.nextOffset);
+            }
+            
+            return false;
+        }
+        
+        ByteBuffer frame = Frame.encodeReplicate(queue.getName(),
+                                                 result.frame);
+        out.write(frame.array(), 0, frame.limit());
+        cursor.nextOffset = result.getNextOffset();
+        return true;
+    }
+    
+    /**
+     * Reads the acknowledgements of the follower until the link fails. Runs
+     * in the reader thread.
+     * 
+     * @param in the input stream of the link.
+     */
+    private void readAcknowledgements(DataInputStream in) {
+        try {
+            while (true) {
+                Frame frame = Frame.read(in);
+                
+                if (frame.getType() == MagicConstants.FRAME_TYPE_ERROR) {
+                    throw new IOException(frame.getErrorReason());
+                }
+                
+                if (frame.getType() != MagicConstants.FRAME_TYPE_REPLICATED) {
+                    throw new IOException(
+                            "Unexpected frame type: " + frame.getType());
+                }
+                
+                Cursor cursor = cursors.get(frame.getReplicatedQueueName());
+                
+                if (cursor == null) {
+                    throw new IOException(
+                            "Acknowledgement for an unknown queue.");
+                }
+                
+                long endOffset = frame.getReplicatedEndOffset();
+                cursor.acknowledgedOffset =
+                        Math.max(cursor.acknowledgedOffset, endOffset);
+                handler.onReplicated(cursor.queue, this, endOffset);
+                wakeUp();
+            }
+        } catch (IOException | RuntimeException ex) {
+            if (!haltRequested && !socket.isClosed()) {
+                LOGGER.log(Level.WARNING,
+                           "The replication link to " + hostName + ":" +
+                           portNumber + " failed.",
+                           ex);
+            }
+            
+            // Let the shipping thread notice:
+            closeSocket();
+            wakeUp();
+        }
+    }
+    
+    private void awaitShippable() throws IOException {
+        lock.lock();
+        
+        try {
+            if (!shippable && !haltRequested) {
+                // Look for the new queues now and then:
+                shippableChanged.await(
+                        MagicConstants.REPLICATION_IDLE_MILLISECONDS,
+                        TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while replicating.", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void wakeUp() {
+        lock.lock();
+        
+        try {
+            shippable = true;
+            shippableChanged.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void closeSocket() {
+        Socket currentSocket = socket;
+        
+        if (currentSocket != null) {
+            try {
+                currentSocket.close();
+            } catch (IOException ex) {
+                // Nothing to do with it.
+            }
+        }
+    }
+    
+    /**
+     * This inner class holds the replication state of a single queue.
+     */
+    private final class Cursor implements MessageQueueListener {
+        
+        /**
+         * The retained queue.
+         */
+        final MessageQueue queue;
+        
+        /**
+         * The offset of the next message to ship.
+         */
+        volatile long nextOffset;
+        
+        /**
+         * The offset up to which the follower holds the queue.
+         */
+        volatile long acknowledgedOffset;
+        
+        /**
+         * Set while waiting for the log to grow.
+         */
+        volatile boolean waiting;
+        
+        Cursor(MessageQueue queue) {
+            this.queue = queue;
+        }
+        
+        @Override
+        public void onMessagesAvailable() {
+            waiting = false;
+            wakeUp();
+        }
+    }
+}
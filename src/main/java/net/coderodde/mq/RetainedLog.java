@@ -0,0 +1,387 @@
+package net.coderodde.mq;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class implements the bounded ring of a retained queue. The messages
+ * are numbered by a monotonically increasing 64-bit offset and kept in a 
+ * single byte ring in the very layout of the message frame records, that is,
+ * each as its {@code int32} length followed by its bytes. An index ring maps
+ * the offsets to the record positions. Once either ring is full, the oldest
+ * messages are evicted.
+ * <p>
+ * Reading does not remove anything: any number of readers scan the ring 
+ * independently, each at its own offset, and a read of many messages is a 
+ * copy of at most two contiguous ranges of the byte ring straight into a 
+ * frame.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class RetainedLog {
+    
+    /**
+     * The number of bytes preceding each message in the byte ring.
+     */
+    private static final int LENGTH_FIELD_BYTES = 4;
+    
+    /**
+     * Describes a batch of messages read from this log.
+     */
+    static final class ReadResult {
+        
+        /**
+         * The message frame ready for writing.
+         */
+        final ByteBuffer frame;
+        
+        /**
+         * The offset of the first message of the batch.
+         */
+        final long firstOffset;
+        
+        /**
+         * The number of messages in the batch.
+         */
+        final int messageCount;
+        
+        /**
+         * The number of message bytes in the batch.
+         */
+        final long byteCount;
+        
+        ReadResult(ByteBuffer frame, 
+                   long firstOffset, 
+                   int messageCount, 
+                   long byteCount) {
+            this.frame = frame;
+            this.firstOffset = firstOffset;
+            this.messageCount = messageCount;
+            this.byteCount = byteCount;
+        }
+        
+        long getNextOffset() {
+            return firstOffset + messageCount;
+        }
+    }
+    
+    /**
+     * The byte ring holding the message records.
+     */
+    private final byte[] data;
+    
+    /**
+     * Maps each retained offset, modulo the length of this array, to the 
+     * absolute position of its record.
+     */
+    private final long[] positions;
+    
+    /**
+     * Lets the readers scan the ring in parallel.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    
+    /**
+     * The readers waiting for new messages.
+     */
+    private final Queue<MessageQueueListener> waitingReaders = 
+            new ConcurrentLinkedQueue<>();
+    
+    /**
+     * The offset of the oldest retained message.
+     */
+    private long startOffset;
+    
+    /**
+     * The offset the next appended message receives.
+     */
+    private long endOffset;
+    
+    /**
+     * The absolute position of the oldest retained record. The position in
+     * the byte ring is the absolute position modulo the ring length.
+     */
+    private long startPosition;
+    
+    /**
+     * The absolute position of the next record.
+     */
+    private long endPosition;
+    
+    RetainedLog(int maxMessages, int maxBytes) {
+        this.positions = new long[maxMessages];
+        this.data = new byte[maxBytes];
+    }
+    
+    /**
+     * Appends a message, evicting the oldest messages as needed, and signals
+     * all the waiting readers.
+     * 
+     * @param message the message to append.
+     * @return {@code false} if the message does not fit in the ring at all.
+     */
+    boolean append(byte[] message) {
+        int recordLength = LENGTH_FIELD_BYTES + message.length;
+        
+        if (recordLength > data.length) {
+            return false;
+        }
+        
+        lock.writeLock().lock();
+        
+        try {
+            appendRecord(message);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        signalWaitingReaders();
+        return true;
+    }
+    
+    /**
+     * Appends the messages replicated from the log of a leader, so that they
+     * keep the offsets they have there. The messages this log already holds
+     * are skipped. Should the messages start past the end of this log, as 
+     * when this log lagged behind the eviction of the leader, this log is 
+     * emptied and restarted at their first offset. A message too large for 
+     * this ring is skipped the same way, leaving a gap in the offsets.
+     * 
+     * @param firstOffset the offset of the first message.
+     * @param messages    the messages.
+     * @return the number of messages appended.
+     */
+    int appendAt(long firstOffset, List<byte[]> messages) {
+        int appendedMessages = 0;
+        lock.writeLock().lock();
+        
+        try {
+            long offset = firstOffset;
+            
+            for (byte[] message : messages) {
+                if (offset < endOffset) {
+                    offset++;
+                    continue;
+                }
+                
+                if (offset > endOffset) {
+                    restartAt(offset);
+                }
+                
+                if (LENGTH_FIELD_BYTES + message.length > data.length) {
+                    restartAt(++offset);
+                    continue;
+                }
+                
+                appendRecord(message);
+                appendedMessages++;
+                offset++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        if (appendedMessages > 0) {
+            signalWaitingReaders();
+        }
+        
+        return appendedMessages;
+    }
+    
+    /**
+     * Appends a record that fits in the ring. Must be called while holding 
+     * the write lock.
+     * 
+     * @param message the message to append.
+     */
+    private void appendRecord(byte[] message) {
+        int recordLength = LENGTH_FIELD_BYTES + message.length;
+        
+        while (endOffset - startOffset == positions.length ||
+               endPosition - startPosition + recordLength > data.length) {
+            startOffset++;
+            startPosition = startOffset == endOffset ? 
+                    endPosition : 
+                    positions[index(startOffset)];
+        }
+        
+        positions[index(endOffset)] = endPosition;
+        writeInt(endPosition, message.length);
+        write(endPosition + LENGTH_FIELD_BYTES, message);
+        endOffset++;
+        endPosition += recordLength;
+    }
+    
+    /**
+     * Drops all the messages and makes the next one receive the given 
+     * offset. Must be called while holding the write lock.
+     * 
+     * @param offset the offset of the next message.
+     */
+    private void restartAt(long offset) {
+        startOffset = offset;
+        endOffset = offset;
+        startPosition = endPosition;
+    }
+    
+    private void signalWaitingReaders() {
+        MessageQueueListener reader;
+        
+        while ((reader = waitingReaders.poll()) != null) {
+            reader.onMessagesAvailable();
+        }
+    }
+    
+    /**
+     * Reads the messages starting at the given offset until the batch has
+     * {@code maxMessages} messages, at least {@code maxBytes} bytes, or the
+     * newest message is read. A reader lagging behind the oldest retained 
+     * message skips to it.
+     * 
+     * @param offset      the offset of the first message to read.
+     * @param maxMessages the maximum number of messages to read.
+     * @param maxBytes    the number of bytes after which to stop.
+     * @return the batch or {@code null} if there is nothing to read.
+     */
+    ReadResult read(long offset, long maxMessages, long maxBytes) {
+        lock.readLock().lock();
+        
+        try {
+            long firstOffset = Math.max(offset, startOffset);
+            long lastOffset = firstOffset;
+            long byteCount = 0L;
+            
+            while (lastOffset < endOffset &&
+                   lastOffset - firstOffset < maxMessages &&
+                   byteCount < maxBytes) {
+                byteCount += getRecordEnd(lastOffset) - 
+                             positions[index(lastOffset)] - 
+                             LENGTH_FIELD_BYTES;
+                lastOffset++;
+            }
+            
+            if (lastOffset == firstOffset) {
+                return null;
+            }
+            
+            int messageCount = (int)(lastOffset - firstOffset);
+            long firstPosition = positions[index(firstOffset)];
+            int recordBytes = 
+                    (int)(getRecordEnd(lastOffset - 1L) - firstPosition);
+            ByteBuffer frame = Frame.allocateOffsetMessages(firstOffset,
+                                                            messageCount,
+                                                            recordBytes);
+            read(firstPosition, frame, recordBytes);
+            frame.flip();
+            return new ReadResult(frame, firstOffset, messageCount, byteCount);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Maps the seek offset to an actual offset within this log.
+     * 
+     * @param offset the requested offset, or one of 
+     *               {@link MagicConstants#EARLIEST_OFFSET} and
+     *               {@link MagicConstants#LATEST_OFFSET}.
+     * @return the resolved offset.
+     */
+    long resolveOffset(long offset) {
+        lock.readLock().lock();
+        
+        try {
+            if (offset == MagicConstants.EARLIEST_OFFSET) {
+                return startOffset;
+            }
+            
+            if (offset == MagicConstants.LATEST_OFFSET) {
+                return endOffset;
+            }
+            
+            return Math.max(startOffset, Math.min(offset, endOffset));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    long getEndOffset() {
+        return resolveOffset(MagicConstants.LATEST_OFFSET);
+    }
+    
+    long size() {
+        lock.readLock().lock();
+        
+        try {
+            return endOffset - startOffset;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    long getByteCount() {
+        lock.readLock().lock();
+        
+        try {
+            return endPosition - startPosition - 
+                   LENGTH_FIELD_BYTES * (endOffset - startOffset);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Registers the reader to be signalled once a message with the given 
+     * offset is appended. If it already is, the reader is signalled right 
+     * away. A reader must not be registered again before it is signalled.
+     * 
+     * @param reader the reader to register.
+     * @param offset the offset the reader waits for.
+     */
+    void awaitAppend(MessageQueueListener reader, long offset) {
+        waitingReaders.add(reader);
+        
+        // A message appended before the registration would go unnoticed:
+        if (getEndOffset() > offset && waitingReaders.remove(reader)) {
+            reader.onMessagesAvailable();
+        }
+    }
+    
+    void cancelAwait(MessageQueueListener reader) {
+        waitingReaders.remove(reader);
+    }
+    
+    private int index(long offset) {
+        return (int)(offset % positions.length);
+    }
+    
+    private long getRecordEnd(long offset) {
+        return offset + 1L == endOffset ? 
+                endPosition : 
+                positions[index(offset + 1L)];
+    }
+    
+    private void writeInt(long position, int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            data[(int)(position++ % data.length)] = (byte)(value >>> shift);
+        }
+    }
+    
+    private void write(long position, byte[] bytes) {
+        int start = (int)(position % data.length);
+        int firstPart = Math.min(bytes.length, data.length - start);
+        System.arraycopy(bytes, 0, data, start, firstPart);
+        System.arraycopy(bytes, firstPart, data, 0, bytes.length - firstPart);
+    }
+    
+    private void read(long position, ByteBuffer target, int length) {
+        int start = (int)(position % data.length);
+        int firstPart = Math.min(length, data.length - start);
+        target.put(data, start, firstPart);
+        target.put(data, 0, length - firstPart);
+    }
+}
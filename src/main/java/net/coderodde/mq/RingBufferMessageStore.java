@@ -0,0 +1,256 @@
+package net.coderodde.mq;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class implements a {@link MessageStore} as a bounded lock-free 
+ * multi-producer/multi-consumer ring buffer. The capacity is a power of two,
+ * and each slot has a sequence number telling whether the slot is free for 
+ * the producer of a given position, or holds the message for the consumer of
+ * a given position:
+ * <ul>
+ *   <li>{@code sequence == position}: the slot is free for the producer,</li>
+ *   <li>{@code sequence == position + 1}: the slot holds a message,</li>
+ *   <li>{@code sequence == position + capacity}: the slot was consumed and
+ *       is free for the producer of the next lap.</li>
+ * </ul>
+ * The producers claim a run of consecutive positions with a single CAS on
+ * the tail and then publish the slots one by one, and the consumers claim a
+ * run of published positions with a single CAS on the head. The head and the
+ * tail live on cache lines of their own.
+ * <p>
+ * The store never rejects a message: a producer finding its slot still
+ * occupied waits for the consumer. The owning {@link MessageQueue} keeps the
+ * message count within the capacity, so that such waits last only as long
+ * as a consumer is between claiming and releasing a slot.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class RingBufferMessageStore implements MessageStore {
+    
+    /**
+     * The distance between the head and the tail counters in longs, that 
+     * is, two cache lines.
+     */
+    private static final int PADDING = 16;
+    
+    /**
+     * The index of the head counter in {@link #counters}.
+     */
+    private static final int HEAD = PADDING;
+    
+    /**
+     * The index of the tail counter in {@link #counters}.
+     */
+    private static final int TAIL = 2 * PADDING;
+    
+    /**
+     * The slots holding the messages. A slot is accessed only by the party
+     * owning its position, and the ownership is passed on via the sequence.
+     */
+    private final byte[][] slots;
+    
+    /**
+     * The sequence numbers of the slots.
+     */
+    private final AtomicLongArray sequences;
+    
+    /**
+     * Holds the head, that is, the next position to consume, and the tail,
+     * that is, the next position to produce, padded apart from each other 
+     * and from the array header.
+     */
+    private final AtomicLongArray counters = new AtomicLongArray(3 * PADDING);
+    
+    /**
+     * The capacity minus one.
+     */
+    private final int mask;
+    
+    RingBufferMessageStore(int requestedCapacity) {
+        int capacity = Integer.highestOneBit(requestedCapacity);
+        
+        if (capacity < requestedCapacity) {
+            capacity <<= 1;
+        }
+        
+        this.slots = new byte[capacity][];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+    
+    @Override
+    public void add(byte[] message) {
+        publish(claim(1), message);
+    }
+    
+    @Override
+    public void addAll(List<byte[]> messages) {
+        int index = 0;
+        
+        while (index < messages.size()) {
+            int batchSize = Math.min(messages.size() - index, slots.length);
+            long position = claim(batchSize);
+            
+            for (int i = 0; i < batchSize; i++) {
+                publish(position + i, messages.get(index + i));
+            }
+            
+            index += batchSize;
+        }
+    }
+    
+    @Override
+    public byte[] poll() {
+        while (true) {
+            long position = counters.get(HEAD);
+            int slotIndex = (int) position & mask;
+            
+            if (sequences.get(slotIndex) != position + 1L) {
+                if (position == counters.get(HEAD)) {
+                    // Nothing published at the head.
+                    return null;
+                }
+                
+                continue;
+            }
+            
+            if (counters.compareAndSet(HEAD, position, position + 1L)) {
+                return release(position);
+            }
+        }
+    }
+    
+    @Override
+    public long drainTo(List<byte[]> batch, long maxMessages, long maxBytes) {
+        while (true) {
+            long position = counters.get(HEAD);
+            int count = 0;
+            long byteCount = 0L;
+            
+            // Count the published messages following the head:
+            while (count < maxMessages && byteCount < maxBytes) {
+                long messagePosition = position + count;
+                int slotIndex = (int) messagePosition & mask;
+                
+                if (sequences.get(slotIndex) != messagePosition + 1L) {
+                    break;
+                }
+                
+                byte[] message = slots[slotIndex];
+                
+                if (message == null) {
+                    // Consumed meanwhile; the CAS below fails.
+                    break;
+                }
+                
+                byteCount += message.length;
+                count++;
+            }
+            
+            if (count == 0) {
+                if (position == counters.get(HEAD)) {
+                    return 0L;
+                }
+                
+                continue;
+            }
+            
+            if (counters.compareAndSet(HEAD, position, position + count)) {
+                byteCount = 0L;
+                
+                for (int i = 0; i < count; i++) {
+                    byte[] message = release(position + i);
+                    batch.add(message);
+                    byteCount += message.length;
+                }
+                
+                return byteCount;
+            }
+        }
+    }
+    
+    @Override
+    public boolean isEmpty() {
+        return counters.get(HEAD) == counters.get(TAIL);
+    }
+    
+    @Override
+    public long getCapacity() {
+        return slots.length;
+    }
+    
+    @Override
+    public long getRecoveredMessageCount() {
+        return 0L;
+    }
+    
+    @Override
+    public long getRecoveredByteCount() {
+        return 0L;
+    }
+    
+    @Override
+    public void close() {
+        // Nothing to release.
+    }
+    
+    /**
+     * Claims a run of consecutive positions for producing.
+     * 
+     * @param count the number of positions, at most the capacity.
+     * @return the first claimed position.
+     */
+    private long claim(int count) {
+        while (true) {
+            long position = counters.get(TAIL);
+            long lastPosition = position + count - 1L;
+            long sequence = sequences.get((int) lastPosition & mask);
+            
+            if (sequence < lastPosition) {
+                // The last slot is still occupied by the previous lap.
+                Thread.yield();
+                continue;
+            }
+            
+            if (sequence == lastPosition &&
+                    counters.compareAndSet(TAIL, position, position + count)) {
+                return position;
+            }
+        }
+    }
+    
+    /**
+     * Writes the message to the claimed position and hands the slot over to
+     * the consumers.
+     */
+    private void publish(long position, byte[] message) {
+        int slotIndex = (int) position & mask;
+        
+        // A consumer of the previous lap may still be releasing the slot:
+        while (sequences.get(slotIndex) != position) {
+            Thread.yield();
+        }
+        
+        slots[slotIndex] = message;
+        sequences.lazySet(slotIndex, position + 1L);
+    }
+    
+    /**
+     * Takes the message from the claimed position and hands the slot over to
+     * the producers of the next lap.
+     */
+    private byte[] release(long position) {
+        int slotIndex = (int) position & mask;
+        byte[] message = slots[slotIndex];
+        slots[slotIndex] = null;
+        sequences.lazySet(slotIndex, position + slots.length);
+        return message;
+    }
+}
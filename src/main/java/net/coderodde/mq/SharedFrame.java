@@ -0,0 +1,90 @@
+package net.coderodde.mq;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class implements a reference-counted message frame published to a
+ * {@link Topic}. The frame is encoded once into a direct buffer, and every
+ * subscriber writes its own {@link #duplicate() view} of the very same bytes
+ * to its socket. Each holder of the frame owns one reference; once the last
+ * one is released, the buffer is returned to the topic for reuse.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class SharedFrame {
+    
+    /**
+     * The topic owning the buffer.
+     */
+    private final Topic topic;
+    
+    /**
+     * The entire frame including the length field, ready for reading.
+     */
+    private final ByteBuffer buffer;
+    
+    /**
+     * The number of messages in the frame.
+     */
+    private final int messageCount;
+    
+    /**
+     * The number of message bytes in the frame.
+     */
+    private final long byteCount;
+    
+    /**
+     * The number of holders of this frame. The publisher holds the first
+     * reference.
+     */
+    private final AtomicInteger referenceCount = new AtomicInteger(1);
+    
+    SharedFrame(Topic topic,
+                ByteBuffer buffer,
+                int messageCount,
+                long byteCount) {
+        this.topic = topic;
+        this.buffer = buffer;
+        this.messageCount = messageCount;
+        this.byteCount = byteCount;
+    }
+    
+    int getMessageCount() {
+        return messageCount;
+    }
+    
+    long getByteCount() {
+        return byteCount;
+    }
+    
+    /**
+     * Returns the size of the frame on the wire.
+     * 
+     * @return the number of frame bytes.
+     */
+    int getFrameSize() {
+        return buffer.limit();
+    }
+    
+    /**
+     * Returns a view of the frame with a position of its own. The view must
+     * not be used after the reference is released.
+     * 
+     * @return the view ready for writing to a channel.
+     */
+    ByteBuffer duplicate() {
+        return buffer.duplicate();
+    }
+    
+    void retain() {
+        referenceCount.incrementAndGet();
+    }
+    
+    void release() {
+        if (referenceCount.decrementAndGet() == 0) {
+            topic.recycle(this, buffer);
+        }
+    }
+}
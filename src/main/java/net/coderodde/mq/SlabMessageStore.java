@@ -0,0 +1,235 @@
+package net.coderodde.mq;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class implements a {@link MessageStore} that appends the messages into
+ * large direct buffers, called slabs, outside of the Java heap. Each message
+ * is laid out as its 32-bit length followed by its bytes, so that queued
+ * messages create no heap objects: the garbage collector sees a handful of
+ * slabs regardless of the queue length.
+ * <p>
+ * Once the head of the store passes a slab, the slab is put aside for reuse
+ * by the tail. A message longer than a slab gets a dedicated slab of its own,
+ * which is not reused.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class SlabMessageStore implements MessageStore {
+    
+    /**
+     * The number of bytes preceding each message in a slab.
+     */
+    private static final int LENGTH_FIELD_BYTES = 4;
+    
+    /**
+     * A single slab together with its read position. The write position of a 
+     * slab is the position of its buffer.
+     */
+    private static final class Slab {
+        
+        final ByteBuffer buffer;
+        
+        int readPosition;
+        
+        Slab(int capacity) {
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+        }
+        
+        boolean isDrained() {
+            return readPosition == buffer.position();
+        }
+        
+        void clear() {
+            buffer.clear();
+            readPosition = 0;
+        }
+    }
+    
+    /**
+     * The slabs holding the messages, from the head to the tail.
+     */
+    private final Deque<Slab> slabs = new ArrayDeque<>();
+    
+    /**
+     * The drained slabs awaiting reuse.
+     */
+    private final Deque<Slab> freeSlabs = new ArrayDeque<>();
+    
+    /**
+     * Guards all the slabs.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    /**
+     * The capacity of a regular slab.
+     */
+    private final int slabBytes;
+    
+    /**
+     * The number of messages in this store.
+     */
+    private volatile long size;
+    
+    SlabMessageStore(int slabBytes) {
+        this.slabBytes = slabBytes;
+    }
+    
+    @Override
+    public void add(byte[] message) {
+        lock.lock();
+        
+        try {
+            append(message);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public void addAll(List<byte[]> messages) {
+        lock.lock();
+        
+        try {
+            for (byte[] message : messages) {
+                append(message);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public byte[] poll() {
+        lock.lock();
+        
+        try {
+            return size == 0L ? null : readHead();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public long drainTo(List<byte[]> batch, long maxMessages, long maxBytes) {
+        int drainedMessages = 0;
+        long drainedBytes = 0L;
+        lock.lock();
+        
+        try {
+            while (drainedMessages < maxMessages &&
+                   drainedBytes < maxBytes &&
+                   size > 0L) {
+                byte[] message = readHead();
+                batch.add(message);
+                drainedBytes += message.length;
+                drainedMessages++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        
+        return drainedBytes;
+    }
+    
+    @Override
+    public boolean isEmpty() {
+        return size == 0L;
+    }
+    
+    @Override
+    public long getCapacity() {
+        return Long.MAX_VALUE;
+    }
+    
+    @Override
+    public long getRecoveredMessageCount() {
+        return 0L;
+    }
+    
+    @Override
+    public long getRecoveredByteCount() {
+        return 0L;
+    }
+    
+    @Override
+    public void close() {
+        // Nothing to release.
+    }
+    
+    /**
+     * Appends a message. Must be called with the lock held.
+     * 
+     * @param message the message to append.
+     */
+    private void append(byte[] message) {
+        int recordLength = LENGTH_FIELD_BYTES + message.length;
+        Slab tail = slabs.peekLast();
+        
+        if (tail == null || tail.buffer.remaining() < recordLength) {
+            tail = allocateSlab(recordLength);
+            slabs.addLast(tail);
+        }
+        
+        tail.buffer.putInt(message.length);
+        tail.buffer.put(message);
+        size++;
+    }
+    
+    /**
+     * Reads the head message. Must be called with the lock held and the store
+     * being non-empty.
+     * 
+     * @return the head message.
+     */
+    private byte[] readHead() {
+        Slab head = slabs.peekFirst();
+        
+        while (head.isDrained()) {
+            recycleSlab(slabs.removeFirst());
+            head = slabs.peekFirst();
+        }
+        
+        ByteBuffer buffer = head.buffer;
+        int messageLength = buffer.getInt(head.readPosition);
+        byte[] message = new byte[messageLength];
+        ByteBuffer view = buffer.duplicate();
+        view.position(head.readPosition + LENGTH_FIELD_BYTES);
+        view.get(message);
+        head.readPosition += LENGTH_FIELD_BYTES + messageLength;
+        size--;
+        
+        if (head.isDrained()) {
+            if (slabs.size() > 1) {
+                recycleSlab(slabs.removeFirst());
+            } else {
+                // The only slab is empty: rewind it instead of moving on.
+                head.clear();
+            }
+        }
+        
+        return message;
+    }
+    
+    private Slab allocateSlab(int recordLength) {
+        if (recordLength > slabBytes) {
+            return new Slab(recordLength);
+        }
+        
+        Slab slab = freeSlabs.pollFirst();
+        return slab != null ? slab : new Slab(slabBytes);
+    }
+    
+    private void recycleSlab(Slab slab) {
+        if (slab.buffer.capacity() == slabBytes && 
+                freeSlabs.size() < MagicConstants.MAX_POOLED_SLABS) {
+            slab.clear();
+            freeSlabs.addFirst(slab);
+        }
+    }
+}
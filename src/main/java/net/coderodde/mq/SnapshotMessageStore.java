@@ -0,0 +1,252 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class implements a {@link MessageStore} serving the messages a queue
+ * held upon the last graceful shutdown, as recorded in a
+ * {@link QueueSnapshot}, before the messages of the store it wraps. The
+ * recorded messages are read straight from the mapped snapshot file as they
+ * are removed, so that restoring a queue costs nothing up front however long
+ * its backlog; the new messages go to the wrapped store.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class SnapshotMessageStore implements MessageStore {
+    
+    /**
+     * The store receiving the new messages.
+     */
+    private final MessageStore store;
+    
+    /**
+     * The snapshot file.
+     */
+    private final FileChannel channel;
+    
+    /**
+     * The file offset past the last record of the queue.
+     */
+    private final long sectionEnd;
+    
+    /**
+     * The number of the recorded messages.
+     */
+    private final long recoveredMessageCount;
+    
+    /**
+     * The number of the recorded message bytes.
+     */
+    private final long recoveredByteCount;
+    
+    /**
+     * Guards the reading of the records.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    /**
+     * The file offset of the next record.
+     */
+    private long position;
+    
+    /**
+     * The number of the records not removed yet.
+     */
+    private long remainingMessageCount;
+    
+    /**
+     * Set once all the records are removed, so that the wrapped store is
+     * used without locking from then on.
+     */
+    private volatile boolean snapshotDrained;
+    
+    /**
+     * The mapped window of the snapshot file holding the next record.
+     */
+    private MappedByteBuffer window;
+    
+    /**
+     * The file offset of {@link #window}.
+     */
+    private long windowStart;
+    
+    /**
+     * Constructs a store serving the records of a queue first.
+     * 
+     * @param channel      the snapshot file.
+     * @param position     the file offset of the first record of the queue.
+     * @param messageCount the number of the records of the queue.
+     * @param byteCount    the number of the message bytes of the records.
+     * @param store        the store receiving the new messages.
+     */
+    SnapshotMessageStore(FileChannel channel,
+                         long position,
+                         long messageCount,
+                         long byteCount,
+                         MessageStore store) {
+        this.channel = channel;
+        this.position = position;
+        this.sectionEnd = position + messageCount * Integer.BYTES + byteCount;
+        this.recoveredMessageCount = messageCount;
+        this.recoveredByteCount = byteCount;
+        this.remainingMessageCount = messageCount;
+        this.snapshotDrained = messageCount == 0L;
+        this.store = store;
+    }
+    
+    @Override
+    public void add(byte[] message) {
+        store.add(message);
+    }
+    
+    @Override
+    public void addAll(List<byte[]> messages) {
+        store.addAll(messages);
+    }
+    
+    @Override
+    public byte[] poll() {
+        if (!snapshotDrained) {
+            lock.lock();
+            
+            try {
+                if (remainingMessageCount > 0L) {
+                    return readMessage();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        return store.poll();
+    }
+    
+    @Override
+    public long drainTo(List<byte[]> batch, long maxMessages, long maxBytes) {
+        long drainedMessages = 0L;
+        long drainedBytes = 0L;
+        
+        if (!snapshotDrained) {
+            lock.lock();
+            
+            try {
+                while (drainedMessages < maxMessages &&
+                       drainedBytes < maxBytes &&
+                       remainingMessageCount > 0L) {
+                    byte[] message = readMessage();
+                    batch.add(message);
+                    drainedBytes += message.length;
+                    drainedMessages++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        if (drainedMessages < maxMessages && drainedBytes < maxBytes) {
+            drainedBytes += store.drainTo(batch,
+                                          maxMessages - drainedMessages,
+                                          maxBytes - drainedBytes);
+        }
+        
+        return drainedBytes;
+    }
+    
+    @Override
+    public boolean isEmpty() {
+        return snapshotDrained && store.isEmpty();
+    }
+    
+    @Override
+    public long getCapacity() {
+        return store.getCapacity();
+    }
+    
+    @Override
+    public long getRecoveredMessageCount() {
+        return recoveredMessageCount + store.getRecoveredMessageCount();
+    }
+    
+    @Override
+    public long getRecoveredByteCount() {
+        return recoveredByteCount + store.getRecoveredByteCount();
+    }
+    
+    @Override
+    public void close() {
+        lock.lock();
+        
+        try {
+            // The snapshot file is closed by its owner.
+            window = null;
+        } finally {
+            lock.unlock();
+        }
+        
+        store.close();
+    }
+    
+    /**
+     * Reads the next record. Called while holding the lock.
+     */
+    private byte[] readMessage() {
+        map(Integer.BYTES);
+        int length = window.getInt((int)(position - windowStart));
+        
+        if (length < 0) {
+            throw new IllegalStateException(
+                    "Corrupted snapshot record at offset " + position + ".");
+        }
+        
+        map(Integer.BYTES + (long) length);
+        ByteBuffer view = window.duplicate();
+        view.position((int)(position - windowStart) + Integer.BYTES);
+        byte[] message = new byte[length];
+        view.get(message);
+        position += Integer.BYTES + length;
+        
+        if (--remainingMessageCount == 0L) {
+            window = null;
+            snapshotDrained = true;
+        }
+        
+        return message;
+    }
+    
+    /**
+     * Makes sure the window holds the given number of bytes at the position,
+     * mapping a new window starting at the position if it does not.
+     */
+    private void map(long bytes) {
+        if (window != null &&
+                position + bytes <= windowStart + window.capacity()) {
+            return;
+        }
+        
+        long windowBytes =
+                Math.min(Math.max(bytes,
+                                  MagicConstants.SNAPSHOT_WINDOW_BYTES),
+                         sectionEnd - position);
+        
+        if (windowBytes < bytes) {
+            throw new IllegalStateException(
+                    "Corrupted snapshot record at offset " + position + ".");
+        }
+        
+        try {
+            window = channel.map(FileChannel.MapMode.READ_ONLY,
+                                 position,
+                                 windowBytes);
+            windowStart = position;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package net.coderodde.mq;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * This class implements the {@link ClientLink} over a connection of its own.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class SocketLink implements ClientLink {
+    
+    /**
+     * The socket connected to the handler.
+     */
+    private final Socket socket;
+    
+    /**
+     * The output stream of the socket.
+     */
+    private final OutputStream out;
+    
+    /**
+     * The buffered input stream of the socket.
+     */
+    private final DataInputStream in;
+    
+    /**
+     * The codec chosen in the handshake, or {@code null}.
+     */
+    private final CompressionCodec compressionCodec;
+    
+    /**
+     * The protocol version confirmed in the handshake.
+     */
+    private final int protocolVersion;
+    
+    /**
+     * Performs the handshake over the socket.
+     * 
+     * @param socket           the socket connected to the handler.
+     * @param roleName         the role of the client.
+     * @param messageQueueName the name of the queue.
+     * @throws IOException if the handshake fails.
+     */
+    SocketLink(Socket socket, 
+               String roleName, 
+               String messageQueueName) throws IOException {
+        this(socket, 
+             roleName, 
+             messageQueueName, 
+             MagicConstants.PROTOCOL_VERSION_2);
+    }
+    
+    /**
+     * Performs the handshake over the socket, accepting only the handlers 
+     * speaking at least the given protocol version.
+     * 
+     * @param socket             the socket connected to the handler.
+     * @param roleName           the role of the client.
+     * @param messageQueueName   the name of the queue.
+     * @param minProtocolVersion the lowest acceptable protocol version.
+     * @throws IOException if the handshake fails.
+     */
+    SocketLink(Socket socket, 
+               String roleName, 
+               String messageQueueName,
+               int minProtocolVersion) throws IOException {
+        this.socket = socket;
+        
+        try {
+            this.protocolVersion = 
+                    Utilities.handshake(socket, 
+                                        roleName, 
+                                        messageQueueName, 
+                                        minProtocolVersion);
+            this.compressionCodec = 
+                    protocolVersion >= MagicConstants.PROTOCOL_VERSION_4 ?
+                            Utilities.negotiateCodec(socket) :
+                            null;
+            this.out = socket.getOutputStream();
+            this.in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+        } catch (IOException | RuntimeException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+    
+    @Override
+    public void write(ByteBuffer frame) throws IOException {
+        out.write(frame.array(), 
+                  frame.arrayOffset() + frame.position(), 
+                  frame.remaining());
+    }
+    
+    @Override
+    public Frame read() throws IOException {
+        return Frame.read(in);
+    }
+    
+    @Override
+    public boolean hasFrame() throws IOException {
+        return in.available() > 0;
+    }
+    
+    @Override
+    public CompressionCodec getCompressionCodec() {
+        return compressionCodec;
+    }
+    
+    @Override
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,421 @@
+package net.coderodde.mq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class implements a hierarchical timing wheel running delayed tasks
+ * in a single ticker thread. The wheel has
+ * {@link MagicConstants#TIMER_WHEEL_LEVELS} levels of
+ * {@code 2^}{@link MagicConstants#TIMER_WHEEL_BITS} slots: a slot of the
+ * lowest level spans a single tick, and a slot of each higher level spans a
+ * whole turn of the level below. A timer goes to the lowest level whose turn
+ * covers its delay, into the slot its deadline falls in, and is cascaded a
+ * level down each time the ticker reaches that slot, until it runs from the
+ * lowest level. Each slot is a circular doubly linked list, so that both
+ * scheduling and cancelling a timer take constant time, however many timers
+ * are pending.
+ * <p>
+ * The message queue handler schedules the delayed messages here. The tasks
+ * run in the ticker thread, and so must not block.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class TimingWheel extends Thread {
+    
+    /**
+     * Used for logging status information in a console or another listener.
+     */
+    private static final Logger LOGGER =
+            Logger.getLogger(MagicConstants.LOGGER_BADGE);
+    
+    /**
+     * The number of slots of each level.
+     */
+    private static final int SLOT_COUNT = 
+            1 << MagicConstants.TIMER_WHEEL_BITS;
+    
+    /**
+     * Masks the slot index out of a tick.
+     */
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+    
+    /**
+     * The number of ticks covered by all the levels together. The timers
+     * further away are parked in the top level and placed again once
+     * cascaded.
+     */
+    private static final long SPAN_TICKS =
+            1L << (MagicConstants.TIMER_WHEEL_BITS *
+                   MagicConstants.TIMER_WHEEL_LEVELS);
+    
+    /**
+     * The length of a tick in nanoseconds.
+     */
+    private static final long TICK_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(
+                    MagicConstants.TIMER_TICK_MILLISECONDS);
+    
+    /**
+     * The sentinels of the slots, indexed by level and slot.
+     */
+    private final Timer[][] slots =
+            new Timer[MagicConstants.TIMER_WHEEL_LEVELS][SLOT_COUNT];
+    
+    /**
+     * Guards the slots and the current tick.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    /**
+     * Signalled whenever a timer is scheduled into an idle wheel or the wheel
+     * is halted.
+     */
+    private final Condition timerScheduled = lock.newCondition();
+    
+    /**
+     * The clock in nanoseconds, {@link System#nanoTime()} unless the tests
+     * drive the wheel by hand.
+     */
+    private final LongSupplier nanoClock;
+    
+    /**
+     * The value of the clock at tick zero.
+     */
+    private final long startNanos;
+    
+    /**
+     * The last tick processed.
+     */
+    private long currentTick;
+    
+    /**
+     * The number of pending timers.
+     */
+    private int timerCount;
+    
+    /**
+     * Specifies a flag for halting the ticker.
+     */
+    private volatile boolean haltRequested; // Default value is false.
+    
+    TimingWheel() {
+        this(System::nanoTime);
+    }
+    
+    /**
+     * Constructs a timing wheel reading the given clock. Unless the ticker 
+     * is started, nothing runs until {@link #tick()} is called.
+     * 
+     * @param nanoClock the clock in nanoseconds.
+     */
+    TimingWheel(LongSupplier nanoClock) {
+        super("rodde.mq-timer");
+        setDaemon(true);
+        this.nanoClock = nanoClock;
+        this.startNanos = nanoClock.getAsLong();
+        
+        for (Timer[] level : slots) {
+            for (int i = 0; i < SLOT_COUNT; i++) {
+                level[i] = new Timer(0L, null);
+            }
+        }
+    }
+    
+    /**
+     * Schedules a task to run once the delay passes. The task runs at most
+     * a tick late, or later if the ticker falls behind. May be called from
+     * any thread.
+     * 
+     * @param delayMillis the delay in milliseconds.
+     * @param task        the task to run.
+     * @return the timer, for cancelling the task.
+     */
+    Timer schedule(long delayMillis, Runnable task) {
+        // The first tick starting no earlier than the deadline:
+        long deadlineTick = 
+                (nanoClock.getAsLong() - startNanos + 
+                 TimeUnit.MILLISECONDS.toNanos(
+                         Math.min(delayMillis, 
+                                  MagicConstants.MAX_SCHEDULE_MILLISECONDS)) + 
+                 TICK_NANOS - 1L) / TICK_NANOS;
+        lock.lock();
+        
+        try {
+            if (timerCount == 0) {
+                // An idle wheel has no ticks to catch up on:
+                currentTick = Math.max(currentTick, getElapsedTicks());
+            }
+            
+            Timer timer = 
+                    new Timer(Math.max(deadlineTick, currentTick + 1L), task);
+            place(timer);
+            
+            if (timerCount++ == 0) {
+                timerScheduled.signal();
+            }
+            
+            return timer;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Cancels a task unless it has already run. May be called from any
+     * thread.
+     * 
+     * @param timer the timer of the task.
+     */
+    void cancel(Timer timer) {
+        lock.lock();
+        
+        try {
+            if (timer.next != null) {
+                timer.unlink();
+                timerCount--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Stops the ticker. The pending tasks never run.
+     */
+    void requestHalt() {
+        haltRequested = true;
+        lock.lock();
+        
+        try {
+            timerScheduled.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public void run() {
+        List<Timer> dueTimers = new ArrayList<>();
+        
+        while (!haltRequested) {
+            lock.lock();
+            
+            try {
+                advance(dueTimers);
+                
+                if (dueTimers.isEmpty()) {
+                    awaitNextTick();
+                    continue;
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            
+            runTasks(dueTimers);
+        }
+    }
+    
+    /**
+     * Runs the tasks due by the clock in the calling thread. The ticker does
+     * the same on its own, so this is for driving a wheel not started.
+     */
+    void tick() {
+        List<Timer> dueTimers = new ArrayList<>();
+        lock.lock();
+        
+        try {
+            advance(dueTimers);
+        } finally {
+            lock.unlock();
+        }
+        
+        runTasks(dueTimers);
+    }
+    
+    /**
+     * Runs the due tasks and clears the list.
+     * 
+     * @param dueTimers the due timers.
+     */
+    private static void runTasks(List<Timer> dueTimers) {
+        for (Timer timer : dueTimers) {
+            try {
+                timer.task.run();
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.SEVERE, "A timer task failed.", ex);
+            }
+        }
+        
+        dueTimers.clear();
+    }
+    
+    /**
+     * Processes the ticks up to the clock, collecting the due timers.
+     * 
+     * @param dueTimers the list to add the due timers to.
+     */
+    private void advance(List<Timer> dueTimers) {
+        long targetTick = getElapsedTicks();
+        
+        if (timerCount == 0) {
+            // Nothing to cascade; skip the idle ticks:
+            currentTick = Math.max(currentTick, targetTick);
+            return;
+        }
+        
+        while (currentTick < targetTick) {
+            currentTick++;
+            
+            // Cascade from the top, so that the timers moved down are
+            // cascaded further within the same tick:
+            for (int level = MagicConstants.TIMER_WHEEL_LEVELS - 1;
+                    level > 0;
+                    level--) {
+                int shift = MagicConstants.TIMER_WHEEL_BITS * level;
+                
+                if ((currentTick & ((1L << shift) - 1L)) == 0L) {
+                    cascade(slots[level][(int)(currentTick >>> shift) &
+                                         SLOT_MASK]);
+                }
+            }
+            
+            Timer sentinel = slots[0][(int) currentTick & SLOT_MASK];
+            
+            while (sentinel.next != sentinel) {
+                Timer timer = sentinel.next;
+                timer.unlink();
+                timerCount--;
+                dueTimers.add(timer);
+            }
+        }
+    }
+    
+    /**
+     * Places the timers of a higher level slot again, now that the ticker has
+     * reached it.
+     * 
+     * @param sentinel the sentinel of the slot.
+     */
+    private void cascade(Timer sentinel) {
+        while (sentinel.next != sentinel) {
+            Timer timer = sentinel.next;
+            timer.unlink();
+            place(timer);
+        }
+    }
+    
+    /**
+     * Links the timer into the slot its deadline falls in, on the lowest
+     * level whose turn covers the remaining delay. A due timer goes to the
+     * current slot of the lowest level.
+     * 
+     * @param timer the timer to place.
+     */
+    private void place(Timer timer) {
+        long remainingTicks = timer.deadlineTick - currentTick;
+        long slotTick = remainingTicks < SPAN_TICKS ?
+                timer.deadlineTick :
+                currentTick + SPAN_TICKS - 1L;
+        int level = 0;
+        
+        while (level < MagicConstants.TIMER_WHEEL_LEVELS - 1 &&
+                remainingTicks >=
+                1L << (MagicConstants.TIMER_WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        
+        int slot = (int)(slotTick >>> (MagicConstants.TIMER_WHEEL_BITS *
+                                       level)) & SLOT_MASK;
+        slots[level][slot].linkBefore(timer);
+    }
+    
+    /**
+     * Waits until the next tick is due, or until a timer is scheduled if
+     * there are none.
+     * 
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void awaitNextTick() throws InterruptedException {
+        if (haltRequested) {
+            return;
+        }
+        
+        if (timerCount == 0) {
+            timerScheduled.await();
+            return;
+        }
+        
+        long nextTickNanos = startNanos + (currentTick + 1L) * TICK_NANOS;
+        long remainingNanos = nextTickNanos - nanoClock.getAsLong();
+        
+        if (remainingNanos > 0L) {
+            timerScheduled.awaitNanos(remainingNanos);
+        }
+    }
+    
+    private long getElapsedTicks() {
+        return (nanoClock.getAsLong() - startNanos) / TICK_NANOS;
+    }
+    
+    /**
+     * This static inner class implements a scheduled task, linked into the
+     * slot of its deadline.
+     */
+    static final class Timer {
+        
+        /**
+         * The tick at which the task is due.
+         */
+        private final long deadlineTick;
+        
+        /**
+         * The task to run, or {@code null} for a sentinel.
+         */
+        private final Runnable task;
+        
+        /**
+         * The previous timer in the slot, or {@code null} if unlinked.
+         */
+        private Timer prev;
+        
+        /**
+         * The next timer in the slot, or {@code null} if unlinked.
+         */
+        private Timer next;
+        
+        private Timer(long deadlineTick, Runnable task) {
+            this.deadlineTick = deadlineTick;
+            this.task = task;
+            
+            if (task == null) {
+                // A sentinel of an empty slot links to itself:
+                this.prev = this;
+                this.next = this;
+            }
+        }
+        
+        private void linkBefore(Timer timer) {
+            timer.prev = prev;
+            timer.next = this;
+            prev.next = timer;
+            prev = timer;
+        }
+        
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class implements a named publish/subscribe topic: every message
+ * published is delivered to every subscriber connected at the time. Each
+ * published frame is copied once into a {@link SharedFrame}, and every
+ * {@link TopicSubscription} merely holds a reference to it, so that the
+ * payload is stored once no matter how many subscribers there are. The
+ * buffers of the released frames are pooled by capacity.
+ * <p>
+ * The topic memory counts against the broker-wide {@link MemoryBudget}, but
+ * never blocks the publishers; the backlog of each subscriber is bounded by
+ * the message and the byte limits of the topic configuration instead.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class Topic {
+    
+    /**
+     * The subscriptions receiving the published frames.
+     */
+    private final List<TopicSubscription> subscriptions =
+            new CopyOnWriteArrayList<>();
+    
+    /**
+     * The pools of the released frame buffers. The pool at index {@code i}
+     * holds the buffers of capacity
+     * {@code MIN_POOLED_FRAME_BUFFER_BYTES << i}.
+     */
+    private final List<Queue<ByteBuffer>> bufferPools;
+    
+    /**
+     * The name of this topic.
+     */
+    private final String name;
+    
+    /**
+     * The settings of this topic.
+     */
+    private final MessageQueueConfiguration configuration;
+    
+    /**
+     * The broker-wide memory budget.
+     */
+    private final MemoryBudget memoryBudget;
+    
+    Topic(String name,
+          MessageQueueConfiguration configuration,
+          MemoryBudget memoryBudget) {
+        this.name = name;
+        this.configuration = configuration;
+        this.memoryBudget = memoryBudget;
+        int poolCount = getPoolIndex(
+                MagicConstants.MAX_POOLED_FRAME_BUFFER_BYTES) + 1;
+        this.bufferPools = new ArrayList<>(poolCount);
+        
+        for (int i = 0; i < poolCount; i++) {
+            bufferPools.add(
+                    new ArrayBlockingQueue<>(
+                            MagicConstants.MAX_POOLED_FRAME_BUFFERS));
+        }
+    }
+    
+    String getName() {
+        return name;
+    }
+    
+    MessageQueueConfiguration getConfiguration() {
+        return configuration;
+    }
+    
+    /**
+     * Creates a subscription receiving the frames published from now on.
+     * 
+     * @return the new subscription.
+     */
+    TopicSubscription subscribe() {
+        TopicSubscription subscription = new TopicSubscription(this);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+    
+    void unsubscribe(TopicSubscription subscription) {
+        subscriptions.remove(subscription);
+    }
+    
+    int getSubscriberCount() {
+        return subscriptions.size();
+    }
+    
+    /**
+     * Publishes the messages of a frame received from a publisher to all the
+     * current subscribers. The records are copied once into a shared frame,
+     * which is then handed to every subscription by reference.
+     * 
+     * @param frame the message frame received.
+     * @throws IOException if the frame is malformed.
+     */
+    void publish(Frame frame) throws IOException {
+        if (frame.getFlags() != 0) {
+            throw new IOException(
+                    "Unexpected message frame flags: " + frame.getFlags());
+        }
+        
+        long byteCount = frame.countMessageBytes();
+        
+        if (frame.getCount() == 0 || subscriptions.isEmpty()) {
+            return;
+        }
+        
+        ByteBuffer body = frame.getBody().duplicate();
+        int length = MagicConstants.FRAME_HEADER_LENGTH + body.remaining();
+        ByteBuffer buffer = allocateBuffer(4 + length);
+        buffer.putInt(length)
+              .put(MagicConstants.FRAME_TYPE_MESSAGES)
+              .put((byte) 0)
+              .putInt(frame.getCount())
+              .put(body);
+        buffer.flip();
+        memoryBudget.forceReserve(buffer.limit());
+        SharedFrame sharedFrame =
+                new SharedFrame(this, buffer, frame.getCount(), byteCount);
+        
+        try {
+            for (TopicSubscription subscription : subscriptions) {
+                subscription.offer(sharedFrame);
+            }
+        } finally {
+            // Drop the reference of the publisher:
+            sharedFrame.release();
+        }
+    }
+    
+    /**
+     * Takes back the buffer of a frame whose last reference was released.
+     * 
+     * @param frame  the released frame.
+     * @param buffer the buffer of the frame.
+     */
+    void recycle(SharedFrame frame, ByteBuffer buffer) {
+        memoryBudget.release(frame.getFrameSize());
+        
+        if (buffer.capacity() <= MagicConstants.MAX_POOLED_FRAME_BUFFER_BYTES) {
+            // The pool may be full, in which case the buffer is left to GC:
+            bufferPools.get(getPoolIndex(buffer.capacity())).offer(buffer);
+        }
+    }
+    
+    private ByteBuffer allocateBuffer(int size) {
+        if (size > MagicConstants.MAX_POOLED_FRAME_BUFFER_BYTES) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        
+        int capacity =
+                Math.max(MagicConstants.MIN_POOLED_FRAME_BUFFER_BYTES,
+                         Integer.highestOneBit(size - 1) << 1);
+        ByteBuffer buffer = bufferPools.get(getPoolIndex(capacity)).poll();
+        
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        
+        buffer.clear();
+        return buffer;
+    }
+    
+    private static int getPoolIndex(int capacity) {
+        return Integer.numberOfTrailingZeros(capacity) -
+               Integer.numberOfTrailingZeros(
+                       MagicConstants.MIN_POOLED_FRAME_BUFFER_BYTES);
+    }
+}
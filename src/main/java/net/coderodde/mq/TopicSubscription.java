@@ -0,0 +1,176 @@
+package net.coderodde.mq;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * This class implements the cursor of a single subscriber of a
+ * {@link Topic}: the queue of the shared frames published but not yet
+ * delivered to it. The publishers never wait for a subscription. Once the
+ * backlog exceeds the message or the byte limit of the topic configuration,
+ * the oldest frames are dropped from this subscription only, so that a slow
+ * subscriber does not hold up the others.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class TopicSubscription {
+    
+    /**
+     * Used for logging status information in a console or another listener.
+     */
+    private static final Logger LOGGER =
+            Logger.getLogger(MagicConstants.LOGGER_BADGE);
+    
+    /**
+     * The frames not yet delivered, the oldest first.
+     */
+    private final Queue<SharedFrame> backlog = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * The number of messages in the backlog.
+     */
+    private final AtomicLong backlogMessages = new AtomicLong();
+    
+    /**
+     * The number of message bytes in the backlog.
+     */
+    private final AtomicLong backlogBytes = new AtomicLong();
+    
+    /**
+     * The number of messages dropped because the subscriber lagged behind.
+     */
+    private final AtomicLong droppedMessages = new AtomicLong();
+    
+    /**
+     * The subscriber waiting for a frame, if any.
+     */
+    private final AtomicReference<MessageQueueListener> waitingListener =
+            new AtomicReference<>();
+    
+    /**
+     * The topic this subscription belongs to.
+     */
+    private final Topic topic;
+    
+    /**
+     * Whether this subscription is closed.
+     */
+    private volatile boolean closed;
+    
+    TopicSubscription(Topic topic) {
+        this.topic = topic;
+    }
+    
+    long getDroppedMessageCount() {
+        return droppedMessages.get();
+    }
+    
+    /**
+     * Appends a frame to the backlog, drops the oldest frames if the backlog
+     * grows too large, and signals the waiting subscriber. Called by the
+     * publishers.
+     * 
+     * @param frame the frame to append.
+     */
+    void offer(SharedFrame frame) {
+        if (closed) {
+            return;
+        }
+        
+        frame.retain();
+        backlog.add(frame);
+        backlogMessages.addAndGet(frame.getMessageCount());
+        backlogBytes.addAndGet(frame.getByteCount());
+        
+        // The frame may have been added after close() released the backlog:
+        if (closed) {
+            releaseBacklog();
+            return;
+        }
+        
+        MessageQueueConfiguration configuration = topic.getConfiguration();
+        
+        while (backlogMessages.get() > configuration.getMaxMessages() ||
+               backlogBytes.get() > configuration.getMaxBytes()) {
+            SharedFrame oldestFrame = poll();
+            
+            if (oldestFrame == null) {
+                break;
+            }
+            
+            if (droppedMessages.getAndAdd(oldestFrame.getMessageCount())
+                    == 0L) {
+                LOGGER.warning("A subscriber of the topic \"" +
+                               topic.getName() + "\" lags behind. Dropping " +
+                               "its oldest messages.");
+            }
+            
+            oldestFrame.release();
+        }
+        
+        MessageQueueListener listener = waitingListener.getAndSet(null);
+        
+        if (listener != null) {
+            listener.onMessagesAvailable();
+        }
+    }
+    
+    /**
+     * Removes the oldest frame of the backlog. The caller takes over its
+     * reference.
+     * 
+     * @return the oldest frame or {@code null} if the backlog is empty.
+     */
+    SharedFrame poll() {
+        SharedFrame frame = backlog.poll();
+        
+        if (frame != null) {
+            backlogMessages.addAndGet(-frame.getMessageCount());
+            backlogBytes.addAndGet(-frame.getByteCount());
+        }
+        
+        return frame;
+    }
+    
+    /**
+     * Registers the listener to be signalled once the backlog has a frame. If
+     * it already has, the listener is signalled right away. A listener must
+     * not be registered again before it is signalled.
+     * 
+     * @param listener the listener to register.
+     */
+    void awaitFrames(MessageQueueListener listener) {
+        waitingListener.set(listener);
+        
+        // A frame added before the registration would go unnoticed:
+        if (!backlog.isEmpty() &&
+                waitingListener.compareAndSet(listener, null)) {
+            listener.onMessagesAvailable();
+        }
+    }
+    
+    void cancelAwait(MessageQueueListener listener) {
+        waitingListener.compareAndSet(listener, null);
+    }
+    
+    /**
+     * Unsubscribes from the topic and releases the frames not yet delivered.
+     */
+    void close() {
+        closed = true;
+        topic.unsubscribe(this);
+        releaseBacklog();
+    }
+    
+    private void releaseBacklog() {
+        SharedFrame frame;
+        
+        while ((frame = poll()) != null) {
+            frame.release();
+        }
+    }
+}
@@ -1,8 +1,15 @@
 package net.coderodde.mq;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.SocketException;
-import java.util.logging.Logger;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This class groups all miscellaneous utilities.
@@ -12,33 +19,6 @@ import java.util.logging.Logger;
  */
 final class Utilities {
     
-    /**
-     * Reports an {@link java.io.IOException} and rethrows it via a
-     * {@link java.lang.RuntimeException}.
-     * 
-     * @param ioException the exception to report.
-     * @param logger      the logger to print to.
-     */
-    static void reportAndThrowIOException(IOException ioException,
-                                          Logger logger) {
-        logger.severe("IOException.getMessage(): " + ioException.getMessage());
-        throw new RuntimeException(ioException);
-    }
-    
-    /**
-     * Reports an {@link java.net.SocketException} and rethrows it via a
-     * {@link java.lang.RuntimeException}.
-     * 
-     * @param ioException the exception to report.
-     * @param logger      the logger to print to.
-     */
-    static void reportAndThrowSocketException(
-            SocketException ioException,
-            Logger logger) {
-        logger.severe("SocketException.getMessage(): " + ioException.getMessage());
-        throw new RuntimeException(ioException);
-    }
-    
     /**
      * Checks that the port number is within range {@code [0, 65535]}.
      * 
@@ -60,5 +40,343 @@ final class Utilities {
         
         return portNumber;
     }
-}
     
+    /**
+     * Returns the total number of bytes in the messages.
+     * 
+     * @param messages the messages to count.
+     * @return the sum of the message lengths.
+     */
+    static long countBytes(Collection<byte[]> messages) {
+        long byteCount = 0L;
+        
+        for (byte[] message : messages) {
+            byteCount += message.length;
+        }
+        
+        return byteCount;
+    }
+    
+    /**
+     * Hashes a partition key. The bits of the hash are mixed, so that the
+     * keys differing in a few bytes spread over the partitions evenly.
+     * 
+     * @param key the partition key.
+     * @return the key hash.
+     */
+    static int hashKey(byte[] key) {
+        int hash = Arrays.hashCode(key);
+        // The finalizer of MurmurHash3:
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+    
+    /**
+     * Performs the client side of the handshake: announces the protocol 
+     * version, the role of the client and the name of the queue, and waits for
+     * the handler to confirm the protocol version. The handlers speaking
+     * protocol version 2 or later are accepted. From version 4 on, the client
+     * must then {@linkplain #negotiateCodec(Socket) negotiate} the codec.
+     * 
+     * @param socket           the socket connected to the handler.
+     * @param roleName         the role of the client.
+     * @param messageQueueName the name of the queue.
+     * @return the protocol version confirmed by the handler.
+     * @throws IOException if the network I/O fails or the handler does not 
+     *                     speak the protocol.
+     */
+    static int handshake(Socket socket, 
+                         String roleName, 
+                         String messageQueueName) 
+            throws IOException {
+        return handshake(socket, 
+                         roleName, 
+                         messageQueueName, 
+                         MagicConstants.PROTOCOL_VERSION_2);
+    }
+    
+    /**
+     * Performs the client side of the handshake, accepting only the handlers
+     * speaking at least the given protocol version.
+     * 
+     * @param socket             the socket connected to the handler.
+     * @param roleName           the role of the client.
+     * @param messageQueueName   the name of the queue.
+     * @param minProtocolVersion the lowest acceptable protocol version.
+     * @return the protocol version confirmed by the handler.
+     * @throws IOException if the network I/O fails or the handler does not 
+     *                     speak the protocol.
+     */
+    static int handshake(Socket socket, 
+                         String roleName, 
+                         String messageQueueName,
+                         int minProtocolVersion) 
+            throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(encodeHandshake(roleName, messageQueueName));
+        out.flush();
+        
+        int protocolVersion = socket.getInputStream().read();
+        checkProtocolVersion(protocolVersion, minProtocolVersion);
+        return protocolVersion;
+    }
+    
+    /**
+     * Completes the client side of the handshake with the handlers speaking
+     * protocol version 4 or later: offers all the registered compression 
+     * codecs and learns the one chosen by the handler.
+     * 
+     * @param socket the socket connected to the handler.
+     * @return the codec chosen by the handler, or {@code null} if the batches
+     *         go uncompressed.
+     * @throws IOException if the network I/O fails or the codec is unknown.
+     */
+    static CompressionCodec negotiateCodec(Socket socket) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        InputStream in = socket.getInputStream();
+        out.write(encodeCodecOffer());
+        out.flush();
+        
+        int codecId = in.read();
+        
+        if (codecId == -1) {
+            throw new EOFException("The handler closed the connection.");
+        }
+        
+        return toCompressionCodec(codecId);
+    }
+    
+    /**
+     * Encodes the opening of the client side of the handshake: the protocol
+     * version followed by the role of the client and the name of the queue.
+     * 
+     * @param roleName         the role of the client.
+     * @param messageQueueName the name of the queue.
+     * @return the handshake bytes.
+     */
+    static byte[] encodeHandshake(String roleName, String messageQueueName) {
+        byte[] roleNameBytes = roleName.getBytes();
+        byte[] messageQueueNameBytes = messageQueueName.getBytes();
+        
+        if (messageQueueNameBytes.length > 255) {
+            throw new IllegalArgumentException(
+                    "The message queue name is too long: " + 
+                    messageQueueNameBytes.length + " bytes.");
+        }
+        
+        byte[] handshakeBytes = 
+                new byte[4 + roleNameBytes.length + 
+                             messageQueueNameBytes.length];
+        int index = 0;
+        handshakeBytes[index++] = MagicConstants.PROTOCOL_VERSION_MARKER;
+        handshakeBytes[index++] = MagicConstants.LATEST_PROTOCOL_VERSION;
+        handshakeBytes[index++] = (byte) roleNameBytes.length;
+        System.arraycopy(roleNameBytes, 
+                         0, 
+                         handshakeBytes, 
+                         index, 
+                         roleNameBytes.length);
+        index += roleNameBytes.length;
+        handshakeBytes[index++] = (byte) messageQueueNameBytes.length;
+        System.arraycopy(messageQueueNameBytes, 
+                         0, 
+                         handshakeBytes, 
+                         index, 
+                         messageQueueNameBytes.length);
+        return handshakeBytes;
+    }
+    
+    /**
+     * Encodes the offer of all the registered compression codecs, sent once 
+     * the handler has confirmed protocol version 4 or later.
+     * 
+     * @return the offer bytes.
+     */
+    static byte[] encodeCodecOffer() {
+        byte[] codecIds = CompressionCodecs.getIds();
+        byte[] codecOfferBytes = new byte[1 + codecIds.length];
+        codecOfferBytes[0] = (byte) codecIds.length;
+        System.arraycopy(codecIds, 0, codecOfferBytes, 1, codecIds.length);
+        return codecOfferBytes;
+    }
+    
+    /**
+     * Checks the protocol version confirmed by the handler.
+     * 
+     * @param protocolVersion    the version confirmed, or -1 if the handler
+     *                           closed the connection.
+     * @param minProtocolVersion the lowest acceptable protocol version.
+     * @throws IOException if the version is not acceptable.
+     */
+    static void checkProtocolVersion(int protocolVersion, 
+                                     int minProtocolVersion) 
+            throws IOException {
+        if (protocolVersion < minProtocolVersion ||
+                protocolVersion > MagicConstants.LATEST_PROTOCOL_VERSION) {
+            throw new IOException(
+                    "The handler does not speak protocol version " + 
+                    minProtocolVersion + " or later, got: " + 
+                    protocolVersion);
+        }
+    }
+    
+    /**
+     * Returns the codec chosen by the handler in the handshake.
+     * 
+     * @param codecId the ID of the codec.
+     * @return the codec or {@code null} if the batches go uncompressed.
+     * @throws IOException if the codec is not registered.
+     */
+    static CompressionCodec toCompressionCodec(int codecId) 
+            throws IOException {
+        if (codecId == MagicConstants.NO_COMPRESSION_CODEC_ID) {
+            return null;
+        }
+        
+        CompressionCodec codec = CompressionCodecs.get((byte) codecId);
+        
+        if (codec == null) {
+            throw new IOException(
+                    "The handler chose an unknown codec: " + codecId);
+        }
+        
+        return codec;
+    }
+    
+    /**
+     * Returns a factory of virtual threads named by the prefix and a counter.
+     * Looked up reflectively, so that this class still compiles for and runs
+     * on Java 8.
+     * 
+     * @param namePrefix the prefix of the thread names.
+     * @return the virtual thread factory.
+     * @throws UnsupportedOperationException if the running Java has no 
+     *                                       virtual threads.
+     */
+    static ThreadFactory newVirtualThreadFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                                  .invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory")
+                                               .invoke(builder);
+        } catch (ReflectiveOperationException ex) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads require Java 21 or later, running " + 
+                    System.getProperty("java.version") + ".", 
+                    ex);
+        }
+    }
+    
+    /**
+     * Returns the input stream of a socket. A socket accepted by a server 
+     * socket channel gets a stream reading from its channel directly, so 
+     * that a thread blocked reading the socket holds no lock a writer or a
+     * change of the blocking mode of the channel would wait for.
+     * 
+     * @param socket the socket.
+     * @return the input stream.
+     * @throws IOException if the stream cannot be created.
+     * @see #getOutputStream(Socket)
+     */
+    static InputStream getInputStream(Socket socket) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        return channel == null ? 
+                socket.getInputStream() : 
+                new ChannelInputStream(channel);
+    }
+    
+    /**
+     * Returns the output stream of a socket. A socket accepted by a server
+     * socket channel gets a stream writing to its channel directly: the 
+     * stream of the socket itself takes the blocking lock of the channel, 
+     * which a thread reading the socket at the same time holds on Java 8, 
+     * so that the write would wait for the read to return.
+     * 
+     * @param socket the socket.
+     * @return the output stream.
+     * @throws IOException if the stream cannot be created.
+     */
+    static OutputStream getOutputStream(Socket socket) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        return channel == null ? 
+                socket.getOutputStream() : 
+                new ChannelOutputStream(channel);
+    }
+    
+    /**
+     * Reads from a blocking socket channel without taking its blocking lock.
+     */
+    private static final class ChannelInputStream extends InputStream {
+        
+        private final SocketChannel channel;
+        
+        ChannelInputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] bytes = new byte[1];
+            int bytesRead;
+            
+            while ((bytesRead = read(bytes, 0, 1)) == 0) {
+                // A blocking channel reads at least one byte.
+            }
+            
+            return bytesRead < 0 ? -1 : bytes[0] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] bytes, int offset, int length) 
+                throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            
+            return channel.read(ByteBuffer.wrap(bytes, offset, length));
+        }
+        
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Writes to a blocking socket channel without taking its blocking lock.
+     */
+    private static final class ChannelOutputStream extends OutputStream {
+        
+        private final SocketChannel channel;
+        
+        ChannelOutputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{ (byte) b }, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int length) 
+                throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+            
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package net.coderodde.mq;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import static net.coderodde.mq.TestMessages.toIndex;
+import static net.coderodde.mq.TestMessages.toMessage;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the at-least-once delivery to the acknowledging consumers: the
+ * messages not acknowledged when a consumer closes, times out or sends an
+ * invalid acknowledgement go back to the queue, and the acknowledged ones
+ * do not.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public class AcknowledgingConsumerTest {
+    
+    private static final String QUEUE_NAME = "acknowledged";
+    
+    private MessageQueueHandler handler;
+    private int portNumber;
+    
+    @After
+    public void halt() throws InterruptedException {
+        if (handler != null) {
+            handler.requestHalt();
+            handler.join(5000L);
+        }
+    }
+    
+    @Test
+    public void rejectsAcknowledgingMoreThanDelivered() throws IOException {
+        InFlightMessages inFlightMessages = new InFlightMessages();
+        inFlightMessages.add(newQueue(), messages(0, 3));
+        
+        try {
+            inFlightMessages.acknowledge(4L);
+            fail("Acknowledged more messages than delivered.");
+        } catch (IOException ex) {
+            // Expected.
+        }
+        
+        // The failed acknowledgement changes nothing:
+        inFlightMessages.acknowledge(3L);
+        
+        try {
+            inFlightMessages.acknowledge(2L);
+            fail("The acknowledged count went back.");
+        } catch (IOException ex) {
+            // Expected.
+        }
+    }
+    
+    @Test
+    public void redeliversOnlyTheUnacknowledgedMessages() throws IOException {
+        MessageQueue queue = newQueue();
+        InFlightMessages inFlightMessages = new InFlightMessages();
+        inFlightMessages.add(queue, messages(0, 3));
+        inFlightMessages.add(queue, messages(3, 3));
+        inFlightMessages.acknowledge(4L);
+        inFlightMessages.redeliver();
+        
+        assertEquals(2L, queue.size());
+        assertEquals(4, toIndex(queue.poll()));
+        assertEquals(5, toIndex(queue.poll()));
+    }
+    
+    @Test(timeout = 20000L)
+    public void redeliversAfterCloseInBlockingMode() throws Exception {
+        startHandler(MessageQueueHandler.Mode.BLOCKING);
+        redeliverAfterClose();
+    }
+    
+    @Test(timeout = 20000L)
+    public void redeliversAfterCloseInNonBlockingMode() throws Exception {
+        startHandler(MessageQueueHandler.Mode.NON_BLOCKING);
+        redeliverAfterClose();
+    }
+    
+    @Test(timeout = 20000L)
+    public void redeliversAfterAckTimeoutInBlockingMode() throws Exception {
+        startHandler(MessageQueueHandler.Mode.BLOCKING);
+        redeliverAfterAckTimeout();
+    }
+    
+    @Test(timeout = 20000L)
+    public void redeliversAfterAckTimeoutInNonBlockingMode() throws Exception {
+        startHandler(MessageQueueHandler.Mode.NON_BLOCKING);
+        redeliverAfterAckTimeout();
+    }
+    
+    @Test(timeout = 20000L)
+    public void dropsInvalidAckInBlockingMode() throws Exception {
+        startHandler(MessageQueueHandler.Mode.BLOCKING);
+        dropInvalidAck();
+    }
+    
+    @Test(timeout = 20000L)
+    public void dropsInvalidAckInNonBlockingMode() throws Exception {
+        startHandler(MessageQueueHandler.Mode.NON_BLOCKING);
+        dropInvalidAck();
+    }
+    
+    private void startHandler(MessageQueueHandler.Mode mode)
+            throws IOException {
+        portNumber = BlockingRoundTripTest.getFreePortNumber();
+        handler = new MessageQueueHandler(portNumber, mode);
+        handler.start();
+    }
+    
+    /**
+     * Consumes six messages of ten, acknowledges the first five and closes.
+     * The last five messages must come back, and the first five not.
+     */
+    private void redeliverAfterClose() throws Exception {
+        produce(0, 10);
+        
+        try (MessageQueueConsumer consumer =
+                MessageQueueConsumer.acknowledging(QUEUE_NAME,
+                                                   "localhost",
+                                                   portNumber)) {
+            for (int i = 0; i < 5; i++) {
+                assertEquals(i, toIndex(consumer.consume()));
+            }
+            
+            consumer.acknowledge();
+            assertEquals(5, toIndex(consumer.consume()));
+        }
+        
+        consumeInOrder(5, 5);
+    }
+    
+    /**
+     * Keeps the delivered messages unacknowledged past the timeout while
+     * staying connected. The handler must close the connection and hand the
+     * messages to another consumer.
+     */
+    private void redeliverAfterAckTimeout() throws Exception {
+        handler.setAckTimeout(200L);
+        produce(0, 3);
+        
+        MessageQueueConsumer consumer =
+                MessageQueueConsumer.acknowledging(QUEUE_NAME,
+                                                   "localhost",
+                                                   portNumber);
+        
+        try {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(i, toIndex(consumer.consume()));
+            }
+            
+            consumeInOrder(0, 3);
+            
+            try {
+                consumer.consume();
+                fail("The overdue consumer is still connected.");
+            } catch (IOException ex) {
+                // Expected.
+            }
+        } finally {
+            try {
+                consumer.close();
+            } catch (IOException ex) {
+                // The handler has dropped the consumer.
+            }
+        }
+    }
+    
+    /**
+     * Acknowledges one message more than delivered. The handler must drop
+     * the connection and redeliver all the messages.
+     */
+    private void dropInvalidAck() throws Exception {
+        produce(0, 3);
+        
+        try (Socket socket = new Socket("localhost", portNumber)) {
+            socket.setSoTimeout(5000);
+            Utilities.handshake(socket,
+                                MagicConstants.CONSUMER_STRING,
+                                QUEUE_NAME,
+                                MagicConstants.PROTOCOL_VERSION_6);
+            Utilities.negotiateCodec(socket);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in =
+                    new DataInputStream(socket.getInputStream());
+            write(out, Frame.encodeAck(0L));
+            write(out, Frame.encodeCredit(100L, 1L << 20));
+            int deliveredCount = 0;
+            
+            while (deliveredCount < 3) {
+                Frame frame = Frame.read(in);
+                
+                if (frame.getType() == MagicConstants.FRAME_TYPE_MESSAGES) {
+                    deliveredCount += frame.getMessages().size();
+                }
+            }
+            
+            write(out, Frame.encodeAck(deliveredCount + 1L));
+            assertEquals(-1, in.read());
+        }
+        
+        consumeInOrder(0, 3);
+    }
+    
+    private void produce(int firstIndex, int count) throws Exception {
+        try (MessageQueueProducer producer =
+                new MessageQueueProducer(QUEUE_NAME,
+                                         "localhost",
+                                         portNumber)) {
+            producer.produce(messages(firstIndex, count));
+            producer.flush();
+        }
+    }
+    
+    /**
+     * Consumes the given messages in order, followed by a message produced
+     * only now, so that no other message may precede it.
+     */
+    private void consumeInOrder(int firstIndex, int count) throws Exception {
+        try (MessageQueueConsumer consumer =
+                new MessageQueueConsumer(QUEUE_NAME,
+                                         "localhost",
+                                         portNumber)) {
+            for (int i = firstIndex; i < firstIndex + count; i++) {
+                assertEquals(i, toIndex(consumer.consume()));
+            }
+            
+            produce(-1, 1);
+            assertEquals(-1, toIndex(consumer.consume()));
+        }
+    }
+    
+    private static void write(OutputStream out, ByteBuffer frame)
+            throws IOException {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        out.write(bytes);
+        out.flush();
+    }
+    
+    private static List<byte[]> messages(int firstIndex, int count) {
+        List<byte[]> messages = new ArrayList<>(count);
+        
+        for (int i = firstIndex; i < firstIndex + count; i++) {
+            messages.add(toMessage(i));
+        }
+        
+        return messages;
+    }
+    
+    private static MessageQueue newQueue() {
+        return new MessageQueue(QUEUE_NAME,
+                                new MessageQueueConfiguration(),
+                                new MemoryBudget(),
+                                new HeapMessageStore());
+    }
+}
@@ -0,0 +1,108 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the asynchronous clients close cleanly however the handler 
+ * closing its side races with the completion of the close frame write.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public class AsyncConnectionTest {
+    
+    private static final int CYCLES = 300;
+    
+    private MessageQueueHandler handler;
+    private int portNumber;
+    
+    @After
+    public void halt() throws InterruptedException {
+        handler.requestHalt();
+        handler.join(5000L);
+    }
+    
+    @Test(timeout = 60000L)
+    public void producersCloseCleanlyInBlockingMode() throws Exception {
+        startHandler(MessageQueueHandler.Mode.BLOCKING);
+        closeProducers();
+    }
+    
+    @Test(timeout = 60000L)
+    public void producersCloseCleanlyInNonBlockingMode() throws Exception {
+        startHandler(MessageQueueHandler.Mode.NON_BLOCKING);
+        closeProducers();
+    }
+    
+    @Test(timeout = 60000L)
+    public void consumersCloseCleanlyInBlockingMode() throws Exception {
+        startHandler(MessageQueueHandler.Mode.BLOCKING);
+        closeConsumers();
+    }
+    
+    @Test(timeout = 60000L)
+    public void consumersCloseCleanlyInNonBlockingMode() throws Exception {
+        startHandler(MessageQueueHandler.Mode.NON_BLOCKING);
+        closeConsumers();
+    }
+    
+    private void startHandler(MessageQueueHandler.Mode mode) 
+            throws IOException {
+        portNumber = BlockingRoundTripTest.getFreePortNumber();
+        handler = new MessageQueueHandler(portNumber, mode);
+        handler.start();
+    }
+    
+    private void closeProducers() throws Exception {
+        for (int i = 0; i < CYCLES; i++) {
+            AsyncMessageQueueProducer producer = 
+                    AsyncMessageQueueProducer.connect("q", 
+                                                      "localhost", 
+                                                      portNumber)
+                                             .get();
+            producer.produce(new byte[]{ 1 }).get();
+            producer.close();
+        }
+    }
+    
+    private void closeConsumers() throws Exception {
+        AtomicInteger closedCount = new AtomicInteger();
+        AtomicInteger errorCount = new AtomicInteger();
+        AsyncMessageListener listener = new AsyncMessageListener() {
+            
+            @Override
+            public void onMessage(byte[] message) {}
+            
+            @Override
+            public void onError(Throwable cause) {
+                errorCount.incrementAndGet();
+            }
+            
+            @Override
+            public void onClosed() {
+                closedCount.incrementAndGet();
+            }
+        };
+        
+        for (int i = 0; i < CYCLES; i++) {
+            AsyncMessageQueueConsumer.connect("q", 
+                                              "localhost", 
+                                              portNumber, 
+                                              listener)
+                                     .get()
+                                     .close();
+        }
+        
+        // The listener may be called from the thread noticing the close:
+        while (closedCount.get() + errorCount.get() < CYCLES) {
+            Thread.sleep(1L);
+        }
+        
+        assertEquals(0, errorCount.get());
+        assertEquals(CYCLES, closedCount.get());
+    }
+}
@@ -0,0 +1,95 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import static net.coderodde.mq.TestMessages.toMessage;
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Produces and consumes through a handler serving each connection on a 
+ * thread of its own. The handler writes to a consumer while another thread
+ * of it reads the credit frames of the consumer, which used to deadlock on 
+ * Java 8.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public class BlockingRoundTripTest {
+    
+    private MessageQueueHandler handler;
+    
+    @After
+    public void halt() throws InterruptedException {
+        if (handler != null) {
+            handler.requestHalt();
+            handler.join(5000L);
+        }
+    }
+    
+    @Test(timeout = 20000L)
+    public void deliversFewMessages() throws Exception {
+        int portNumber = startHandler(MessageQueueHandler.Mode.BLOCKING);
+        roundTrip(portNumber, 10);
+    }
+    
+    @Test(timeout = 60000L)
+    public void deliversMoreMessagesThanTheCreditWindow() throws Exception {
+        int portNumber = startHandler(MessageQueueHandler.Mode.BLOCKING);
+        roundTrip(portNumber, 100000);
+    }
+    
+    @Test(timeout = 60000L)
+    public void deliversInNonBlockingMode() throws Exception {
+        int portNumber = startHandler(MessageQueueHandler.Mode.NON_BLOCKING);
+        roundTrip(portNumber, 10000);
+    }
+    
+    private int startHandler(MessageQueueHandler.Mode mode) 
+            throws IOException {
+        int portNumber = getFreePortNumber();
+        handler = new MessageQueueHandler(portNumber, mode);
+        handler.start();
+        return portNumber;
+    }
+    
+    private static void roundTrip(int portNumber, int messageCount) 
+            throws Exception {
+        try (MessageQueueConsumer consumer = 
+                new MessageQueueConsumer("queue", "localhost", portNumber);
+             MessageQueueProducer producer = 
+                new MessageQueueProducer("queue", "localhost", portNumber)) {
+            List<byte[]> batch = new ArrayList<>();
+            
+            for (int i = 0; i < messageCount; i++) {
+                batch.add(toMessage(i));
+                
+                if (batch.size() == 100) {
+                    producer.produce(batch);
+                    batch.clear();
+                }
+            }
+            
+            if (!batch.isEmpty()) {
+                producer.produce(batch);
+            }
+            
+            producer.flush();
+            
+            for (int i = 0; i < messageCount; i++) {
+                assertArrayEquals("Message " + i, 
+                                  toMessage(i), 
+                                  consumer.consume());
+            }
+        }
+    }
+    
+    static int getFreePortNumber() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+}
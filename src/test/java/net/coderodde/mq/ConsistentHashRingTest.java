@@ -0,0 +1,161 @@
+package net.coderodde.mq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the consistent hash ring moves only the keys it must when a
+ * node comes or goes, and that the placement does not depend on the order
+ * the nodes were added in.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public class ConsistentHashRingTest {
+    
+    private static final int KEY_COUNT = 20_000;
+    
+    private static final int VIRTUAL_NODE_COUNT =
+            MagicConstants.DEFAULT_VIRTUAL_NODE_COUNT;
+    
+    private static final List<String> NODES =
+            Arrays.asList("node-a", "node-b", "node-c", "node-d", "node-e");
+    
+    @Test
+    public void addingNodeMovesKeysOnlyToIt() {
+        ConsistentHashRing ring = newRing(NODES);
+        Map<String, String> before = place(ring);
+        
+        assertTrue(ring.add("node-f"));
+        Map<String, String> after = place(ring);
+        int movedKeyCount = 0;
+        
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            String node = after.get(entry.getKey());
+            
+            if (!node.equals(entry.getValue())) {
+                assertEquals(entry.getKey(), "node-f", node);
+                movedKeyCount++;
+            }
+        }
+        
+        // About a sixth of the keys, as the new node takes its fair share:
+        assertShare(movedKeyCount, NODES.size() + 1);
+    }
+    
+    @Test
+    public void removingNodeMovesOnlyItsKeys() {
+        ConsistentHashRing ring = newRing(NODES);
+        Map<String, String> before = place(ring);
+        
+        assertTrue(ring.remove("node-c"));
+        Map<String, String> after = place(ring);
+        int movedKeyCount = 0;
+        
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            String node = after.get(entry.getKey());
+            
+            if (entry.getValue().equals("node-c")) {
+                assertFalse(entry.getKey(), node.equals("node-c"));
+                movedKeyCount++;
+            } else {
+                assertEquals(entry.getKey(), entry.getValue(), node);
+            }
+        }
+        
+        assertShare(movedKeyCount, NODES.size());
+    }
+    
+    @Test
+    public void placementDoesNotDependOnOrderOfAdditions() {
+        Map<String, String> expected = place(newRing(NODES));
+        Random random = new Random(13L);
+        
+        for (int i = 0; i < 10; i++) {
+            List<String> shuffledNodes = new ArrayList<>(NODES);
+            Collections.shuffle(shuffledNodes, random);
+            assertEquals(shuffledNodes.toString(),
+                         expected,
+                         place(newRing(shuffledNodes)));
+        }
+        
+        // Nor on a node that came and went:
+        ConsistentHashRing ring = newRing(NODES.subList(0, 2));
+        ring.add("node-x");
+        
+        for (String node : NODES.subList(2, NODES.size())) {
+            ring.add(node);
+        }
+        
+        ring.remove("node-x");
+        assertEquals(expected, place(ring));
+    }
+    
+    @Test
+    public void spreadsKeysEvenly() {
+        Map<String, Integer> keyCounts = new HashMap<>();
+        
+        for (String node : place(newRing(NODES)).values()) {
+            keyCounts.merge(node, 1, Integer::sum);
+        }
+        
+        assertEquals(NODES.size(), keyCounts.size());
+        
+        for (int keyCount : keyCounts.values()) {
+            assertShare(keyCount, NODES.size());
+        }
+    }
+    
+    @Test
+    public void handlesEmptyRingAndRepeatedChanges() {
+        ConsistentHashRing ring = new ConsistentHashRing(VIRTUAL_NODE_COUNT);
+        assertNull(ring.get("key"));
+        assertFalse(ring.remove("node-a"));
+        assertTrue(ring.add("node-a"));
+        assertFalse(ring.add("node-a"));
+        assertEquals("node-a", ring.get("key"));
+        assertTrue(ring.remove("node-a"));
+        assertNull(ring.get("key"));
+    }
+    
+    /**
+     * Checks that a count of keys is within a half of the fair share among
+     * the given number of nodes.
+     */
+    private static void assertShare(int keyCount, int nodeCount) {
+        int fairShare = KEY_COUNT / nodeCount;
+        assertTrue(keyCount + " keys, the fair share being " + fairShare,
+                   Math.abs(keyCount - fairShare) < fairShare / 2);
+    }
+    
+    private static ConsistentHashRing newRing(List<String> nodes) {
+        ConsistentHashRing ring = new ConsistentHashRing(VIRTUAL_NODE_COUNT);
+        
+        for (String node : nodes) {
+            ring.add(node);
+        }
+        
+        return ring;
+    }
+    
+    private static Map<String, String> place(ConsistentHashRing ring) {
+        Map<String, String> placement = new HashMap<>();
+        
+        for (int i = 0; i < KEY_COUNT; i++) {
+            String key = "queue-" + i;
+            placement.put(key, ring.get(key));
+        }
+        
+        return placement;
+    }
+}
@@ -0,0 +1,175 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static net.coderodde.mq.TestMessages.toIndex;
+import static net.coderodde.mq.TestMessages.toMessage;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the durable log recovers the messages not consumed before it
+ * was closed, and cuts off a torn tail.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public class DurableMessageStoreTest {
+    
+    /**
+     * The length of each test message.
+     */
+    private static final int MESSAGE_BYTES = 50;
+    
+    /**
+     * The length of each record: the length, the CRC and the message.
+     */
+    private static final int RECORD_BYTES = 4 + 4 + MESSAGE_BYTES;
+    
+    private Path directory;
+    private MessageQueueConfiguration configuration;
+    
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("rodde.mq-log-test");
+        configuration = new MessageQueueConfiguration();
+        configuration.setSegmentBytes(1024);
+        configuration.setSyncIntervalMillis(0L);
+    }
+    
+    @After
+    public void deleteDirectory() throws IOException {
+        for (Path file : listFiles()) {
+            Files.delete(file);
+        }
+        
+        Files.delete(directory);
+    }
+    
+    @Test
+    public void recoversUnconsumedMessages() throws IOException {
+        DurableMessageStore store = 
+                new DurableMessageStore(directory, configuration);
+        
+        for (int i = 0; i < 100; i++) {
+            store.add(toMessage(i, MESSAGE_BYTES));
+        }
+        
+        for (int i = 0; i < 30; i++) {
+            assertEquals(i, toIndex(store.poll()));
+        }
+        
+        store.close();
+        store = new DurableMessageStore(directory, configuration);
+        
+        assertEquals(70L, store.getRecoveredMessageCount());
+        assertEquals(70L * MESSAGE_BYTES, store.getRecoveredByteCount());
+        
+        for (int i = 30; i < 100; i++) {
+            assertEquals(i, toIndex(store.poll()));
+        }
+        
+        assertNull(store.poll());
+        assertTrue(store.isEmpty());
+        store.close();
+    }
+    
+    @Test
+    public void deletesConsumedSegments() throws IOException {
+        DurableMessageStore store = 
+                new DurableMessageStore(directory, configuration);
+        
+        for (int i = 0; i < 100; i++) {
+            store.add(toMessage(i, MESSAGE_BYTES));
+        }
+        
+        int segmentCount = countSegments();
+        
+        for (int i = 0; i < 90; i++) {
+            store.poll();
+        }
+        
+        store.close();
+        store = new DurableMessageStore(directory, configuration);
+        
+        assertTrue(countSegments() < segmentCount);
+        assertEquals(10L, store.getRecoveredMessageCount());
+        assertEquals(90, toIndex(store.poll()));
+        store.close();
+    }
+    
+    @Test
+    public void cutsOffTornTail() throws IOException {
+        DurableMessageStore store = 
+                new DurableMessageStore(directory, configuration);
+        
+        for (int i = 0; i < 10; i++) {
+            store.add(toMessage(i, MESSAGE_BYTES));
+        }
+        
+        store.close();
+        
+        // Corrupt the last message as a crash in the middle of its write:
+        Path segment = listFiles().stream()
+                                  .filter(f -> f.toString().endsWith(".log"))
+                                  .findFirst()
+                                  .get();
+        
+        try (RandomAccessFile file = 
+                new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(9 * RECORD_BYTES + 4 + 4);
+            file.write(0xff);
+        }
+        
+        store = new DurableMessageStore(directory, configuration);
+        assertEquals(9L, store.getRecoveredMessageCount());
+        
+        // The new messages go where the torn record was:
+        store.add(toMessage(10, MESSAGE_BYTES));
+        store.close();
+        store = new DurableMessageStore(directory, configuration);
+        assertEquals(10L, store.getRecoveredMessageCount());
+        
+        for (int i = 0; i < 9; i++) {
+            assertEquals(i, toIndex(store.poll()));
+        }
+        
+        assertEquals(10, toIndex(store.poll()));
+        assertNull(store.poll());
+        store.close();
+    }
+    
+    private int countSegments() throws IOException {
+        int segmentCount = 0;
+        
+        for (Path file : listFiles()) {
+            if (file.toString().endsWith(".log")) {
+                segmentCount++;
+            }
+        }
+        
+        return segmentCount;
+    }
+    
+    private List<Path> listFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        
+        try (DirectoryStream<Path> stream = 
+                Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        
+        return files;
+    }
+}
@@ -0,0 +1,230 @@
+package net.coderodde.mq;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the frames decode to what they were encoded from.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public class FrameTest {
+    
+    private static final List<byte[]> MESSAGES = 
+            Arrays.asList(new byte[0], 
+                          new byte[]{ 1 }, 
+                          new byte[]{ 2, 3, 4 },
+                          new byte[300]);
+    
+    @Test
+    public void decodesMessages() throws IOException {
+        Frame frame = Frame.decode(Frame.encodeMessages(MESSAGES));
+        
+        assertEquals(MagicConstants.FRAME_TYPE_MESSAGES, frame.getType());
+        assertEquals(MESSAGES.size(), frame.getCount());
+        assertFalse(frame.hasKey());
+        assertFalse(frame.isCompressed());
+        assertFalse(frame.isScheduled());
+        assertMessages(frame.getMessages());
+        assertEquals(304L, frame.countMessageBytes());
+    }
+    
+    @Test
+    public void readsMessagesFromStream() throws IOException {
+        ByteBuffer buffer = Frame.encodeMessages(MESSAGES);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        Frame frame = Frame.read(
+                new DataInputStream(new ByteArrayInputStream(bytes)));
+        
+        assertMessages(frame.getMessages());
+    }
+    
+    @Test
+    public void decodesKeyedCompressedScheduledMessages() throws IOException {
+        ByteBuffer buffer = 
+                Frame.encodeScheduled(
+                        Frame.encodeKeyedCompressedMessages(
+                                42, 
+                                CompressionCodecs.DEFLATE, 
+                                MESSAGES),
+                        100L, 
+                        200L);
+        Frame frame = Frame.decode(buffer);
+        
+        assertTrue(frame.hasKey());
+        assertTrue(frame.isCompressed());
+        assertTrue(frame.isScheduled());
+        assertEquals(42, frame.getKeyHash());
+        assertEquals(100L, frame.getDelayMillis());
+        assertEquals(200L, frame.getTtlMillis());
+        assertMessages(frame.getMessages());
+    }
+    
+    @Test
+    public void decodesScheduledMessages() throws IOException {
+        Frame frame = 
+                Frame.decode(
+                        Frame.encodeScheduled(Frame.encodeMessages(MESSAGES),
+                                              5L, 
+                                              0L));
+        
+        assertEquals(5L, frame.getDelayMillis());
+        assertEquals(0L, frame.getTtlMillis());
+        assertMessages(frame.getMessages());
+    }
+    
+    @Test
+    public void verifiesChecksummedRecords() throws IOException {
+        Frame frame = Frame.decode(encodeChecksummed(false));
+        
+        assertTrue(frame.hasChecksums());
+        assertMessages(frame.getMessages());
+    }
+    
+    @Test(expected = IOException.class)
+    public void rejectsCorruptedRecord() throws IOException {
+        Frame.decode(encodeChecksummed(true)).getMessages();
+    }
+    
+    @Test
+    public void waitsForEntireFrame() throws IOException {
+        ByteBuffer buffer = Frame.encodeMessages(MESSAGES);
+        buffer.limit(buffer.limit() - 1);
+        
+        assertNull(Frame.decode(buffer));
+        assertEquals(0, buffer.position());
+        
+        buffer.limit(buffer.limit() + 1);
+        assertMessages(Frame.decode(buffer).getMessages());
+        assertFalse(buffer.hasRemaining());
+    }
+    
+    @Test
+    public void decodesConsecutiveFrames() throws IOException {
+        ByteBuffer first = Frame.encodeCredit(5L, 1000L);
+        ByteBuffer second = Frame.encodeAck(7L);
+        ByteBuffer buffer = 
+                ByteBuffer.allocate(first.remaining() + second.remaining());
+        buffer.put(first).put(second).flip();
+        
+        Frame credit = Frame.decode(buffer);
+        Frame ack = Frame.decode(buffer);
+        
+        assertEquals(MagicConstants.FRAME_TYPE_CREDIT, credit.getType());
+        assertEquals(5L, credit.getMessageCredit());
+        assertEquals(1000L, credit.getByteCredit());
+        assertEquals(7L, ack.getAcknowledgedMessageCount());
+        assertNull(Frame.decode(buffer));
+    }
+    
+    @Test
+    public void decodesError() throws IOException {
+        Frame frame = Frame.decode(Frame.encodeError(3, "Full."));
+        
+        assertEquals(MagicConstants.FRAME_TYPE_ERROR, frame.getType());
+        assertEquals(3, frame.getCount());
+        assertEquals("Full.", frame.getErrorReason());
+    }
+    
+    @Test(expected = IOException.class)
+    public void rejectsBadFrameLength() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putInt(-1).flip();
+        Frame.decode(buffer);
+    }
+    
+    @Test(expected = IOException.class)
+    public void rejectsCountBeyondBody() throws IOException {
+        Frame.decode(encodeRawMessages(Integer.MAX_VALUE));
+    }
+    
+    @Test(expected = IOException.class)
+    public void rejectsNegativeCount() throws IOException {
+        Frame.decode(encodeRawMessages(-1));
+    }
+    
+    @Test(expected = IOException.class)
+    public void rejectsCountBeyondDecompressedRecords() throws IOException {
+        ByteBuffer buffer = 
+                Frame.encodeCompressedMessages(CompressionCodecs.DEFLATE, 
+                                               MESSAGES);
+        // The records of the four messages take 320 bytes:
+        buffer.putInt(4 + 1 + 1, 320 / 4 + 1);
+        Frame.decode(buffer);
+    }
+    
+    /**
+     * Encodes a message frame of a single empty record with the given count,
+     * as a hostile producer might send it.
+     */
+    private static ByteBuffer encodeRawMessages(int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 6 + 4);
+        buffer.putInt(6 + 4)
+              .put(MagicConstants.FRAME_TYPE_MESSAGES)
+              .put((byte) 0)
+              .putInt(count)
+              .putInt(0)
+              .flip();
+        return buffer;
+    }
+    
+    /**
+     * Encodes the messages as the checksummed records of a durable log 
+     * segment, optionally flipping a bit of the last message.
+     */
+    private static ByteBuffer encodeChecksummed(boolean corrupted) {
+        int recordBytes = 0;
+        
+        for (byte[] message : MESSAGES) {
+            recordBytes += 4 + 4 + message.length;
+        }
+        
+        ByteBuffer header = 
+                Frame.encodeChecksummedMessagesHeader(MESSAGES.size(), 
+                                                      recordBytes);
+        ByteBuffer buffer = 
+                ByteBuffer.allocate(header.remaining() + recordBytes);
+        buffer.put(header);
+        CRC32 crc32 = new CRC32();
+        
+        for (byte[] message : MESSAGES) {
+            crc32.reset();
+            crc32.update(ByteBuffer.allocate(4)
+                                   .putInt(message.length)
+                                   .array());
+            crc32.update(message);
+            buffer.putInt(message.length)
+                  .putInt((int) crc32.getValue())
+                  .put(message);
+        }
+        
+        if (corrupted) {
+            buffer.put(buffer.position() - 1, 
+                       (byte)(buffer.get(buffer.position() - 1) ^ 1));
+        }
+        
+        buffer.flip();
+        return buffer;
+    }
+    
+    private static void assertMessages(List<byte[]> messages) {
+        assertEquals(MESSAGES.size(), messages.size());
+        
+        for (int i = 0; i < MESSAGES.size(); i++) {
+            assertArrayEquals(MESSAGES.get(i), messages.get(i));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package net.coderodde.mq;
+
+import java.nio.ByteBuffer;
+import java.util.function.Predicate;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the handshake to the parser one byte at a time, the way a
+ * non-blocking channel may deliver it, and checks that no field is consumed
+ * before it arrives in its entirety.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public class HandshakeParserTest {
+    
+    private static final String ROLE_NAME = MagicConstants.PRODUCER_STRING;
+    private static final String QUEUE_NAME = "handshake-queue";
+    
+    @Test
+    public void parsesNegotiatedHandshakeOneByteAtATime() {
+        HandshakeParser parser = new HandshakeParser();
+        byte[] handshake = Utilities.encodeHandshake(ROLE_NAME, QUEUE_NAME);
+        
+        ByteBuffer buffer = feedOneByteAtATime(handshake, parser::parse);
+        
+        assertFalse(buffer.hasRemaining());
+        assertTrue(parser.isVersionNegotiated());
+        assertEquals(MagicConstants.LATEST_PROTOCOL_VERSION,
+                     parser.getRequestedProtocolVersion());
+        assertEquals(ROLE_NAME, parser.getRoleName());
+        assertEquals(QUEUE_NAME, parser.getQueueName());
+    }
+    
+    @Test
+    public void parsesVersionOneHandshakeOneByteAtATime() {
+        HandshakeParser parser = new HandshakeParser();
+        byte[] handshake = encodeVersionOneHandshake(ROLE_NAME, QUEUE_NAME);
+        
+        ByteBuffer buffer = feedOneByteAtATime(handshake, parser::parse);
+        
+        assertFalse(buffer.hasRemaining());
+        assertFalse(parser.isVersionNegotiated());
+        assertEquals(MagicConstants.PROTOCOL_VERSION_1,
+                     parser.getRequestedProtocolVersion());
+        assertEquals(ROLE_NAME, parser.getRoleName());
+        assertEquals(QUEUE_NAME, parser.getQueueName());
+    }
+    
+    @Test
+    public void parsesCodecOfferOneByteAtATime() {
+        HandshakeParser parser = new HandshakeParser();
+        
+        ByteBuffer buffer = feedOneByteAtATime(Utilities.encodeCodecOffer(),
+                                               parser::parseCodecOffer);
+        
+        assertFalse(buffer.hasRemaining());
+        assertArrayEquals(CompressionCodecs.getIds(),
+                          parser.getOfferedCodecIds());
+    }
+    
+    @Test
+    public void parsesEmptyCodecOffer() {
+        HandshakeParser parser = new HandshakeParser();
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{ 0 });
+        
+        assertTrue(parser.parseCodecOffer(buffer));
+        assertFalse(buffer.hasRemaining());
+        assertEquals(0, parser.getOfferedCodecIds().length);
+    }
+    
+    @Test
+    public void leavesTheBytesFollowingEachPartInTheBuffer() {
+        HandshakeParser parser = new HandshakeParser();
+        byte[] handshake = Utilities.encodeHandshake(ROLE_NAME, QUEUE_NAME);
+        byte[] codecOffer = Utilities.encodeCodecOffer();
+        ByteBuffer buffer =
+                ByteBuffer.allocate(handshake.length + codecOffer.length + 1);
+        buffer.put(handshake).put(codecOffer).put((byte) 42).flip();
+        
+        assertTrue(parser.parse(buffer));
+        assertEquals(codecOffer.length + 1, buffer.remaining());
+        assertTrue(parser.parseCodecOffer(buffer));
+        assertEquals(1, buffer.remaining());
+        assertEquals(42, buffer.get());
+    }
+    
+    /**
+     * Appends {@code bytes} to a buffer one at a time, running
+     * {@code step} after each, and checks that {@code step} reports
+     * completion only once the last byte is in.
+     * 
+     * @param bytes the bytes to feed.
+     * @param step  the parsing step.
+     * @return the buffer in read mode holding whatever was not consumed.
+     */
+    private static ByteBuffer feedOneByteAtATime(byte[] bytes,
+                                                 Predicate<ByteBuffer> step) {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        
+        for (int i = 0; i < bytes.length - 1; i++) {
+            buffer.put(bytes[i]).flip();
+            assertFalse("Complete after " + (i + 1) + " of " +
+                        bytes.length + " bytes.",
+                        step.test(buffer));
+            buffer.compact();
+        }
+        
+        buffer.put(bytes[bytes.length - 1]).flip();
+        assertTrue(step.test(buffer));
+        return buffer;
+    }
+    
+    private static byte[] encodeVersionOneHandshake(String roleName,
+                                                    String queueName) {
+        byte[] roleNameBytes = roleName.getBytes();
+        byte[] queueNameBytes = queueName.getBytes();
+        return ByteBuffer.allocate(2 + roleNameBytes.length +
+                                       queueNameBytes.length)
+                         .put((byte) roleNameBytes.length)
+                         .put(roleNameBytes)
+                         .put((byte) queueNameBytes.length)
+                         .put(queueNameBytes)
+                         .array();
+    }
+}
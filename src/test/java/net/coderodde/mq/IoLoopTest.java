@@ -0,0 +1,155 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Test;
+import static net.coderodde.mq.BlockingRoundTripTest.getFreePortNumber;
+import static net.coderodde.mq.TestMessages.toIndex;
+import static net.coderodde.mq.TestMessages.toMessage;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs many concurrent connections through the I/O loops of a non-blocking
+ * handler, with a few more connections stalled in the middle of their
+ * handshakes and one sending a malformed frame.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public class IoLoopTest {
+    
+    private static final int IO_LOOP_COUNT = 4;
+    private static final int QUEUE_COUNT = 64;
+    private static final int MESSAGES_PER_QUEUE = 500;
+    private static final int STALLED_CONNECTION_COUNT = 16;
+    
+    private MessageQueueHandler handler;
+    private ExecutorService executor;
+    private final List<Socket> sockets = new ArrayList<>();
+    
+    @After
+    public void halt() throws Exception {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        
+        if (handler != null) {
+            handler.requestHalt();
+            handler.join(5000L);
+        }
+    }
+    
+    @Test(timeout = 60000L)
+    public void servesManyConcurrentConnections() throws Exception {
+        int portNumber = getFreePortNumber();
+        handler = new MessageQueueHandler(
+                portNumber,
+                MessageQueueHandler.Mode.NON_BLOCKING,
+                IO_LOOP_COUNT);
+        handler.start();
+        
+        for (int i = 0; i < STALLED_CONNECTION_COUNT; i++) {
+            openStalledConnection(portNumber, i);
+        }
+        
+        sendMalformedFrame(portNumber);
+        
+        executor = Executors.newFixedThreadPool(2 * QUEUE_COUNT);
+        List<Future<Void>> futures = new ArrayList<>();
+        
+        for (int i = 0; i < QUEUE_COUNT; i++) {
+            String queueName = "queue-" + i;
+            futures.add(executor.submit(produce(portNumber, queueName)));
+            futures.add(executor.submit(consume(portNumber, queueName)));
+        }
+        
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+    }
+    
+    private static Callable<Void> produce(int portNumber, String queueName) {
+        return () -> {
+            try (MessageQueueProducer producer =
+                    new MessageQueueProducer(queueName,
+                                             "localhost",
+                                             portNumber)) {
+                for (int i = 0; i < MESSAGES_PER_QUEUE; i++) {
+                    producer.produce(toMessage(i));
+                }
+                
+                producer.flush();
+            }
+            
+            return null;
+        };
+    }
+    
+    private static Callable<Void> consume(int portNumber, String queueName) {
+        return () -> {
+            try (MessageQueueConsumer consumer =
+                    new MessageQueueConsumer(queueName,
+                                             "localhost",
+                                             portNumber)) {
+                for (int i = 0; i < MESSAGES_PER_QUEUE; i++) {
+                    assertEquals(queueName, i, toIndex(consumer.consume()));
+                }
+            }
+            
+            return null;
+        };
+    }
+    
+    /**
+     * Opens a connection that sends only a part of its handshake, leaving its
+     * I/O loop with an incomplete field to hold on to.
+     */
+    private void openStalledConnection(int portNumber, int index)
+            throws IOException {
+        byte[] handshake =
+                Utilities.encodeHandshake(MagicConstants.CONSUMER_STRING,
+                                          "stalled-" + index);
+        Socket socket = new Socket("localhost", portNumber);
+        sockets.add(socket);
+        OutputStream out = socket.getOutputStream();
+        out.write(handshake, 0, 1 + index % (handshake.length - 1));
+        out.flush();
+    }
+    
+    /**
+     * Sends a frame claiming far more messages than it carries, and waits
+     * for the handler to drop the connection.
+     */
+    private static void sendMalformedFrame(int portNumber) throws IOException {
+        try (Socket socket = new Socket("localhost", portNumber)) {
+            socket.setSoTimeout(5000);
+            Utilities.handshake(socket,
+                                MagicConstants.PRODUCER_STRING,
+                                "malformed");
+            Utilities.negotiateCodec(socket);
+            OutputStream out = socket.getOutputStream();
+            byte[] frame = new byte[4 + 6 + 4];
+            ByteBuffer.wrap(frame)
+                      .putInt(6 + 4)
+                      .put(MagicConstants.FRAME_TYPE_MESSAGES)
+                      .put((byte) 0)
+                      .putInt(Integer.MAX_VALUE);
+            out.write(frame);
+            out.flush();
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package net.coderodde.mq;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the producers waiting for the memory budget are woken up by
+ * the released bytes only.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public class MemoryBudgetTest {
+    
+    @Test
+    public void failedReservationWakesNoWaiter() {
+        MemoryBudget budget = new MemoryBudget();
+        budget.setMaxBytes(100L);
+        assertTrue(budget.tryReserve(100L));
+        AtomicInteger wakeUps = new AtomicInteger();
+        
+        for (int i = 0; i < 3; i++) {
+            budget.addSpaceWaiter(wakeUps::incrementAndGet);
+        }
+        
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(budget.tryReserve(1L));
+        }
+        
+        assertEquals(0, wakeUps.get());
+        assertEquals(100L, budget.getUsedBytes());
+    }
+    
+    @Test
+    public void releaseWakesEachWaiterOnce() {
+        MemoryBudget budget = new MemoryBudget();
+        budget.setMaxBytes(100L);
+        assertTrue(budget.tryReserve(100L));
+        AtomicInteger wakeUps = new AtomicInteger();
+        
+        for (int i = 0; i < 3; i++) {
+            budget.addSpaceWaiter(wakeUps::incrementAndGet);
+        }
+        
+        budget.release(10L);
+        budget.release(10L);
+        assertEquals(3, wakeUps.get());
+        assertEquals(80L, budget.getUsedBytes());
+    }
+    
+    @Test(timeout = 10000L)
+    public void blockedProducersParkUntilBytesAreReleased() 
+            throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget();
+        budget.setMaxBytes(100L);
+        MessageQueue fullQueue = newQueue("full", budget);
+        MessageQueue blockedQueue = newQueue("blocked", budget);
+        assertEquals(MessageQueue.OfferResult.ACCEPTED, 
+                     fullQueue.offer(new byte[100]));
+        
+        AtomicInteger attempts = new AtomicInteger();
+        Thread[] producers = new Thread[4];
+        
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread(() -> produce(blockedQueue, attempts));
+            producers[i].start();
+        }
+        
+        // Give the producers the time to block, and to spin if they would:
+        Thread.sleep(300L);
+        int attemptsWhileBlocked = attempts.get();
+        assertTrue("The blocked producers retried " + attemptsWhileBlocked +
+                   " times.",
+                   attemptsWhileBlocked <= 2 * producers.length);
+        
+        // The freed bytes make room for all the producers:
+        assertEquals(100, fullQueue.poll().length);
+        
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        
+        assertEquals(producers.length, blockedQueue.size());
+    }
+    
+    /**
+     * Offers a message the way a blocking producer connection does: waits 
+     * for room whenever the queue is full.
+     */
+    private static void produce(MessageQueue queue, AtomicInteger attempts) {
+        Thread thread = Thread.currentThread();
+        
+        while (true) {
+            attempts.incrementAndGet();
+            
+            if (queue.offer(new byte[25]) == 
+                    MessageQueue.OfferResult.ACCEPTED) {
+                return;
+            }
+            
+            AtomicBoolean spaceAvailable = new AtomicBoolean();
+            queue.awaitSpace(25, () -> {
+                spaceAvailable.set(true);
+                LockSupport.unpark(thread);
+            });
+            
+            while (!spaceAvailable.get()) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10L));
+            }
+        }
+    }
+    
+    private static MessageQueue newQueue(String name, MemoryBudget budget) {
+        return new MessageQueue(name, 
+                                new MessageQueueConfiguration(), 
+                                budget, 
+                                new HeapMessageStore());
+    }
+}
@@ -0,0 +1,112 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the synchronous and the asynchronous sends report the 
+ * messages rejected by the handler the same way.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public class MessageQueueProducerTest {
+    
+    private static final String LIMITED_QUEUE_NAME = "limited";
+    
+    private MessageQueueHandler handler;
+    private int portNumber;
+    
+    @Before
+    public void startHandler() throws IOException {
+        portNumber = BlockingRoundTripTest.getFreePortNumber();
+        handler = new MessageQueueHandler(portNumber);
+        MessageQueueConfiguration configuration = 
+                new MessageQueueConfiguration();
+        configuration.setMaxMessages(2L);
+        configuration.setOverflowPolicy(
+                MessageQueueConfiguration.OverflowPolicy.REJECT);
+        handler.setQueueConfiguration(LIMITED_QUEUE_NAME, configuration);
+        handler.start();
+    }
+    
+    @After
+    public void haltHandler() throws InterruptedException {
+        handler.requestHalt();
+        handler.join(5000L);
+    }
+    
+    @Test(timeout = 20000L)
+    public void synchronousSendFailsOnRejection() throws Exception {
+        try (MessageQueueProducer producer = 
+                MessageQueueProducer.confirming(LIMITED_QUEUE_NAME, 
+                                                "localhost", 
+                                                portNumber)) {
+            producer.produce(new byte[]{ 1 });
+            producer.produce(new byte[]{ 2 });
+            
+            try {
+                producer.produce(new byte[]{ 3 });
+                fail("The rejected message was reported as sent.");
+            } catch (IOException ex) {
+                assertTrue(ex.getMessage().contains("rejected 1"));
+            }
+        }
+    }
+    
+    @Test(timeout = 20000L)
+    public void asynchronousSendFailsOnRejection() throws Exception {
+        try (MessageQueueProducer producer = 
+                MessageQueueProducer.confirming(LIMITED_QUEUE_NAME, 
+                                                "localhost", 
+                                                portNumber)) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            
+            for (byte i = 0; i < 3; i++) {
+                futures.add(producer.produceAsync(new byte[]{ i }));
+            }
+            
+            producer.flush();
+            
+            for (CompletableFuture<Void> future : futures) {
+                try {
+                    future.get();
+                    fail("The rejected batch was reported as sent.");
+                } catch (ExecutionException ex) {
+                    assertTrue(ex.getCause() instanceof IOException);
+                    assertTrue(ex.getCause().getMessage()
+                                            .contains("rejected 1"));
+                }
+            }
+            
+            assertEquals(1L, producer.getRejectedMessageCount());
+        }
+    }
+    
+    @Test(timeout = 20000L)
+    public void asynchronousSendSucceedsWithinLimits() throws Exception {
+        try (MessageQueueProducer producer = 
+                MessageQueueProducer.confirming(LIMITED_QUEUE_NAME, 
+                                                "localhost", 
+                                                portNumber)) {
+            CompletableFuture<Void> first = 
+                    producer.produceAsync(new byte[]{ 1 });
+            CompletableFuture<Void> second = 
+                    producer.produceAsync(new byte[]{ 2 });
+            producer.flush();
+            assertNull(first.get());
+            assertNull(second.get());
+            assertEquals(0L, producer.getRejectedMessageCount());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the channels share the pooled connections, and that a handler
+ * slow to answer does not hold up the channels to the other handlers.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public class MultiplexedConnectionTest {
+    
+    private MessageQueueHandler handler;
+    private int portNumber;
+    
+    @Before
+    public void startHandler() throws IOException {
+        portNumber = BlockingRoundTripTest.getFreePortNumber();
+        handler = new MessageQueueHandler(portNumber);
+        handler.start();
+    }
+    
+    @After
+    public void haltHandler() throws InterruptedException {
+        handler.requestHalt();
+        handler.join(5000L);
+    }
+    
+    @Test(timeout = 20000L)
+    public void channelsShareConnection() throws Exception {
+        try (MessageQueueProducer producer = 
+                MessageQueueProducer.multiplexed("q", 
+                                                 "localhost", 
+                                                 portNumber);
+             MessageQueueConsumer consumer = 
+                MessageQueueConsumer.multiplexed("q", 
+                                                 "localhost", 
+                                                 portNumber,
+                                                 10,
+                                                 1024L)) {
+            producer.produce(new byte[]{ 1, 2 });
+            assertArrayEquals(new byte[]{ 1, 2 }, consumer.consume());
+        }
+    }
+    
+    @Test(timeout = 20000L)
+    public void silentHandlerHoldsUpNoOtherHandler() throws Exception {
+        // Accepts the connections in the backlog, but never answers:
+        try (ServerSocket silentServer = new ServerSocket(0)) {
+            AtomicReference<Throwable> silentFailure = new AtomicReference<>();
+            Thread thread = new Thread(() -> {
+                try {
+                    MessageQueueProducer.multiplexed(
+                            "q", 
+                            "localhost", 
+                            silentServer.getLocalPort()).close();
+                } catch (Exception ex) {
+                    silentFailure.set(ex);
+                }
+            });
+            
+            thread.start();
+            // Let the thread get stuck in the handshake:
+            Thread.sleep(200L);
+            
+            long startNanos = System.nanoTime();
+            
+            try (MessageQueueProducer producer = 
+                    MessageQueueProducer.multiplexed("q", 
+                                                     "localhost", 
+                                                     portNumber)) {
+                producer.produce(new byte[]{ 1 });
+            }
+            
+            long elapsedMillis = (System.nanoTime() - startNanos) / 1_000_000L;
+            assertTrue(elapsedMillis + " ms", elapsedMillis < 2000L);
+            
+            // The silent handler is given up on after the handshake timeout:
+            thread.join();
+            assertTrue(silentFailure.get() instanceof IOException);
+        }
+    }
+}
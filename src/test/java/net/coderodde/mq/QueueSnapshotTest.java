@@ -0,0 +1,132 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static net.coderodde.mq.TestMessages.toMessage;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the in-memory queues survive a graceful restart through the
+ * snapshot file.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public class QueueSnapshotTest {
+    
+    private static final String QUEUE_NAME = "q";
+    
+    private Path directory;
+    private Path snapshotFile;
+    private MessageQueueHandler handler;
+    private int portNumber;
+    
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("rodde.mq-snapshot-test");
+        snapshotFile = directory.resolve("queues.snapshot");
+    }
+    
+    @After
+    public void deleteDirectory() throws Exception {
+        if (handler != null) {
+            halt(handler);
+        }
+        
+        Files.deleteIfExists(snapshotFile);
+        Files.deleteIfExists(directory);
+    }
+    
+    @Test(timeout = 30000L)
+    public void restoresTheMessagesInOrder() throws Exception {
+        handler = startHandler();
+        
+        try (MessageQueueProducer producer = 
+                MessageQueueProducer.confirming(QUEUE_NAME, 
+                                                "localhost", 
+                                                portNumber)) {
+            for (int i = 0; i < 1000; i++) {
+                producer.produce(toMessage(i));
+            }
+        }
+        
+        halt(handler);
+        handler = startHandler();
+        
+        try (MessageQueueConsumer consumer = 
+                new MessageQueueConsumer(QUEUE_NAME, 
+                                         "localhost", 
+                                         portNumber)) {
+            for (int i = 0; i < 1000; i++) {
+                assertArrayEquals(toMessage(i), consumer.consume());
+            }
+        }
+    }
+    
+    @Test(timeout = 30000L)
+    public void keepsTheMessagesConfirmedWhileHalting() throws Exception {
+        handler = startHandler();
+        AtomicLong confirmedMessageCount = new AtomicLong();
+        Thread producerThread = new Thread(() -> {
+            try (MessageQueueProducer producer = 
+                    MessageQueueProducer.confirming(QUEUE_NAME, 
+                                                    "localhost", 
+                                                    portNumber)) {
+                for (int i = 0; ; i++) {
+                    producer.produce(toMessage(i));
+                    confirmedMessageCount.incrementAndGet();
+                }
+            } catch (Exception ex) {
+                // The handler halted.
+            }
+        });
+        
+        producerThread.start();
+        
+        while (confirmedMessageCount.get() < 100L) {
+            Thread.sleep(1L);
+        }
+        
+        halt(handler);
+        long confirmedBeforeHalt = confirmedMessageCount.get();
+        Thread.sleep(200L);
+        
+        // A producer still served after the snapshot would keep going:
+        assertEquals(confirmedBeforeHalt, confirmedMessageCount.get());
+        
+        handler = startHandler();
+        
+        // The handshake is served once the snapshot is open:
+        new MessageQueueProducer("probe", 
+                                 "localhost", 
+                                 portNumber).close();
+        
+        long restoredMessageCount = handler.getQueue(QUEUE_NAME).size();
+        assertTrue(restoredMessageCount + " < " + confirmedBeforeHalt,
+                   restoredMessageCount >= confirmedBeforeHalt);
+        producerThread.join(5000L);
+    }
+    
+    private MessageQueueHandler startHandler() throws IOException {
+        portNumber = BlockingRoundTripTest.getFreePortNumber();
+        MessageQueueHandler handler = 
+                new MessageQueueHandler(portNumber, 
+                                        MessageQueueHandler.Mode.BLOCKING);
+        handler.setSnapshotFile(snapshotFile);
+        handler.start();
+        return handler;
+    }
+    
+    private static void halt(MessageQueueHandler handler) 
+            throws InterruptedException {
+        handler.requestHalt();
+        handler.join(5000L);
+    }
+}
@@ -0,0 +1,183 @@
+package net.coderodde.mq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static net.coderodde.mq.TestMessages.toIndex;
+import static net.coderodde.mq.TestMessages.toMessage;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the order and the bounds of the lock-free ring buffer store.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public class RingBufferMessageStoreTest {
+    
+    /**
+     * The length of each message, which the byte counts below rely on.
+     */
+    private static final int MESSAGE_BYTES = 4;
+    
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() {
+        assertEquals(1L, new RingBufferMessageStore(1).getCapacity());
+        assertEquals(8L, new RingBufferMessageStore(5).getCapacity());
+        assertEquals(8L, new RingBufferMessageStore(8).getCapacity());
+    }
+    
+    @Test
+    public void keepsOrderAcrossLaps() {
+        RingBufferMessageStore store = new RingBufferMessageStore(4);
+        int next = 0;
+        
+        for (int lap = 0; lap < 10; lap++) {
+            for (int i = 0; i < 3; i++) {
+                store.add(toMessage(next + i, MESSAGE_BYTES));
+            }
+            
+            for (int i = 0; i < 3; i++) {
+                assertEquals(next++, toIndex(store.poll()));
+            }
+        }
+        
+        assertTrue(store.isEmpty());
+        assertNull(store.poll());
+    }
+    
+    @Test
+    public void drainsWithinLimits() {
+        RingBufferMessageStore store = new RingBufferMessageStore(8);
+        store.addAll(Arrays.asList(toMessage(0, MESSAGE_BYTES), 
+                                   toMessage(1, MESSAGE_BYTES), 
+                                   toMessage(2, MESSAGE_BYTES), 
+                                   toMessage(3, MESSAGE_BYTES), 
+                                   toMessage(4, MESSAGE_BYTES)));
+        List<byte[]> batch = new ArrayList<>();
+        
+        assertEquals(8L, store.drainTo(batch, 2L, Long.MAX_VALUE));
+        assertEquals(2, batch.size());
+        
+        // The message crossing the byte limit is still drained:
+        assertEquals(8L, store.drainTo(batch, 10L, 5L));
+        assertEquals(4, batch.size());
+        
+        assertEquals(4L, store.drainTo(batch, 10L, Long.MAX_VALUE));
+        assertEquals(0L, store.drainTo(batch, 10L, Long.MAX_VALUE));
+        
+        for (int i = 0; i < batch.size(); i++) {
+            assertEquals(i, toIndex(batch.get(i)));
+        }
+    }
+    
+    @Test
+    public void addsMoreMessagesThanCapacity() throws InterruptedException {
+        RingBufferMessageStore store = new RingBufferMessageStore(4);
+        List<byte[]> messages = new ArrayList<>();
+        
+        for (int i = 0; i < 100; i++) {
+            messages.add(toMessage(i, MESSAGE_BYTES));
+        }
+        
+        // The producer waits for the consumer whenever the buffer is full:
+        Thread producer = new Thread(() -> store.addAll(messages));
+        producer.start();
+        
+        for (int i = 0; i < 100; i++) {
+            byte[] message;
+            
+            while ((message = store.poll()) == null) {
+                Thread.yield();
+            }
+            
+            assertEquals(i, toIndex(message));
+        }
+        
+        producer.join();
+        assertTrue(store.isEmpty());
+    }
+    
+    @Test(timeout = 30000L)
+    public void deliversEachMessageOnceUnderContention() 
+            throws InterruptedException {
+        int producerCount = 4;
+        int consumerCount = 4;
+        int messagesPerProducer = 50000;
+        int totalMessages = producerCount * messagesPerProducer;
+        RingBufferMessageStore store = new RingBufferMessageStore(64);
+        AtomicInteger consumedMessages = new AtomicInteger();
+        int[][] lastIndices = new int[consumerCount][producerCount];
+        boolean[] seen = new boolean[totalMessages];
+        List<Thread> threads = new ArrayList<>();
+        
+        for (int p = 0; p < producerCount; p++) {
+            int producerIndex = p;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < messagesPerProducer; i++) {
+                    store.add(toMessage(producerIndex * messagesPerProducer +
+                                        i));
+                }
+            }));
+        }
+        
+        for (int c = 0; c < consumerCount; c++) {
+            int[] last = lastIndices[c];
+            Arrays.fill(last, -1);
+            threads.add(new Thread(() -> {
+                List<byte[]> batch = new ArrayList<>();
+                
+                while (consumedMessages.get() < totalMessages) {
+                    batch.clear();
+                    store.drainTo(batch, 16L, Long.MAX_VALUE);
+                    
+                    for (byte[] message : batch) {
+                        int index = toIndex(message);
+                        int producerIndex = index / messagesPerProducer;
+                        
+                        // Each consumer sees the messages of a producer in
+                        // the order they were added:
+                        if (index <= last[producerIndex]) {
+                            throw new IllegalStateException(
+                                    index + " after " + 
+                                    last[producerIndex]);
+                        }
+                        
+                        last[producerIndex] = index;
+                        
+                        synchronized (seen) {
+                            if (seen[index]) {
+                                throw new IllegalStateException(
+                                        "Delivered twice: " + index);
+                            }
+                            
+                            seen[index] = true;
+                        }
+                    }
+                    
+                    consumedMessages.addAndGet(batch.size());
+                }
+            }));
+        }
+        
+        AtomicInteger failures = new AtomicInteger();
+        
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler(
+                    (t, ex) -> failures.incrementAndGet());
+            thread.start();
+        }
+        
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertEquals(0, failures.get());
+        assertEquals(totalMessages, consumedMessages.get());
+        assertTrue(store.isEmpty());
+    }
+}
@@ -0,0 +1,32 @@
+package net.coderodde.mq;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds the messages the tests send and reads back the index each of them
+ * carries in its first four bytes.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+final class TestMessages {
+    
+    /**
+     * The default length of a test message in bytes.
+     */
+    static final int DEFAULT_MESSAGE_LENGTH = 16;
+    
+    private TestMessages() {}
+    
+    static byte[] toMessage(int index) {
+        return toMessage(index, DEFAULT_MESSAGE_LENGTH);
+    }
+    
+    static byte[] toMessage(int index, int length) {
+        return ByteBuffer.allocate(length).putInt(index).array();
+    }
+    
+    static int toIndex(byte[] message) {
+        return ByteBuffer.wrap(message).getInt();
+    }
+}
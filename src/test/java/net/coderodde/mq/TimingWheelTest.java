@@ -0,0 +1,228 @@
+package net.coderodde.mq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Test;
+import static net.coderodde.mq.TestMessages.toIndex;
+import static net.coderodde.mq.TestMessages.toMessage;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a timing wheel by a clock of its own, checking that each timer
+ * runs exactly at the tick of its deadline across the level boundaries,
+ * and checks the delayed and the expiring messages through a handler.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public class TimingWheelTest {
+    
+    private static final long TICK_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(
+                    MagicConstants.TIMER_TICK_MILLISECONDS);
+    
+    /**
+     * The number of ticks in a turn of the lowest level.
+     */
+    private static final long LEVEL_TICKS =
+            1L << MagicConstants.TIMER_WHEEL_BITS;
+    
+    private final AtomicLong clockNanos = new AtomicLong(123_456_789L);
+    private final TimingWheel wheel = new TimingWheel(clockNanos::get);
+    private long currentTick;
+    private MessageQueueHandler handler;
+    
+    @After
+    public void halt() throws InterruptedException {
+        if (handler != null) {
+            handler.requestHalt();
+            handler.join(5000L);
+        }
+    }
+    
+    @Test(timeout = 20000L)
+    public void runsTimersOnTheirDeadlinesAcrossLevels() {
+        long[] delays = {
+            1L,
+            LEVEL_TICKS - 1L,
+            LEVEL_TICKS,
+            LEVEL_TICKS + 1L,
+            LEVEL_TICKS * LEVEL_TICKS - 1L,
+            LEVEL_TICKS * LEVEL_TICKS,
+            LEVEL_TICKS * LEVEL_TICKS + 1L,
+        };
+        List<AtomicLong> runTicks = new ArrayList<>();
+        
+        for (long delay : delays) {
+            runTicks.add(schedule(delay));
+        }
+        
+        tickUntil(LEVEL_TICKS * LEVEL_TICKS + 2L);
+        
+        for (int i = 0; i < delays.length; i++) {
+            assertEquals("Delay " + delays[i],
+                         delays[i],
+                         runTicks.get(i).get());
+        }
+    }
+    
+    @Test(timeout = 20000L)
+    public void runsTimersCrossingTurnsFromMidTurn() {
+        tickUntil(LEVEL_TICKS - 56L);
+        AtomicLong acrossLowestTurn = schedule(100L);
+        AtomicLong acrossSecondTurn = schedule(LEVEL_TICKS * LEVEL_TICKS);
+        long expectedAcrossLowestTurn = currentTick + 100L;
+        long expectedAcrossSecondTurn = currentTick +
+                                        LEVEL_TICKS * LEVEL_TICKS;
+        
+        tickUntil(expectedAcrossSecondTurn + 1L);
+        
+        assertEquals(expectedAcrossLowestTurn, acrossLowestTurn.get());
+        assertEquals(expectedAcrossSecondTurn, acrossSecondTurn.get());
+    }
+    
+    @Test(timeout = 20000L)
+    public void runsOverdueTimersAtOnce() {
+        AtomicLong nearTimer = schedule(3L);
+        AtomicLong farTimer = schedule(LEVEL_TICKS * 3L + 7L);
+        
+        // The ticker falls behind by more than both delays:
+        advanceClock(LEVEL_TICKS * 4L);
+        wheel.tick();
+        
+        assertEquals(currentTick, nearTimer.get());
+        assertEquals(currentTick, farTimer.get());
+    }
+    
+    @Test(timeout = 20000L)
+    public void cancelledTimersNeverRun() {
+        AtomicLong runCount = new AtomicLong();
+        TimingWheel.Timer nearTimer =
+                wheel.schedule(ticksToMillis(5L), runCount::incrementAndGet);
+        TimingWheel.Timer farTimer =
+                wheel.schedule(ticksToMillis(LEVEL_TICKS + 5L),
+                               runCount::incrementAndGet);
+        AtomicLong keptTimer = schedule(10L);
+        
+        wheel.cancel(nearTimer);
+        wheel.cancel(farTimer);
+        // Cancelling again does nothing:
+        wheel.cancel(farTimer);
+        tickUntil(2L * LEVEL_TICKS);
+        
+        assertEquals(0L, runCount.get());
+        assertEquals(10L, keptTimer.get());
+        
+        // Cancelling a timer that has run does nothing either:
+        AtomicLong ranTimer = new AtomicLong(-1L);
+        TimingWheel.Timer timer =
+                wheel.schedule(ticksToMillis(1L),
+                               () -> ranTimer.set(currentTick));
+        tickUntil(currentTick + 1L);
+        wheel.cancel(timer);
+        AtomicLong nextTimer = schedule(1L);
+        tickUntil(currentTick + 1L);
+        
+        assertEquals(currentTick - 1L, ranTimer.get());
+        assertEquals(currentTick, nextTimer.get());
+    }
+    
+    /**
+     * Schedules a timer after the ticker has slept through a long idle time.
+     * The wheel must start from the clock rather than cascade through every
+     * idle tick, which would take seconds.
+     */
+    @Test(timeout = 2000L)
+    public void schedulingSkipsTheIdleTicks() {
+        advanceClock(1L << 31);
+        AtomicLong runTick = schedule(LEVEL_TICKS + 1L);
+        
+        tickUntil(currentTick + LEVEL_TICKS + 1L);
+        
+        assertEquals(currentTick, runTick.get());
+    }
+    
+    @Test(timeout = 20000L)
+    public void deliversDelayedAndDropsExpiredMessages() throws Exception {
+        int portNumber = BlockingRoundTripTest.getFreePortNumber();
+        MessageQueueConfiguration configuration =
+                new MessageQueueConfiguration();
+        configuration.setMessageTtlEnabled(true);
+        handler = new MessageQueueHandler(portNumber);
+        handler.setQueueConfiguration("q", configuration);
+        handler.start();
+        long delayMillis = 300L;
+        long startNanos = System.nanoTime();
+        
+        try (MessageQueueProducer producer =
+                new MessageQueueProducer("q", "localhost", portNumber)) {
+            producer.produce(toMessage(0), delayMillis, 0L);
+            producer.produce(toMessage(1), 0L, 50L);
+            producer.produce(toMessage(2));
+            producer.flush();
+        }
+        
+        // Let the message 1 expire once enqueued, before there is a consumer:
+        MessageQueue queue = handler.getQueue("q");
+        
+        while (queue.size() < 2L) {
+            Thread.sleep(10L);
+        }
+        
+        Thread.sleep(100L);
+        
+        try (MessageQueueConsumer consumer =
+                new MessageQueueConsumer("q", "localhost", portNumber)) {
+            assertEquals(2, toIndex(consumer.consume()));
+            assertEquals(0, toIndex(consumer.consume()));
+            long elapsedMillis =
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() -
+                                                  startNanos);
+            assertTrue("Delivered after " + elapsedMillis + " ms.",
+                       elapsedMillis >= delayMillis);
+            
+            try (MessageQueueProducer producer =
+                    new MessageQueueProducer("q", "localhost", portNumber)) {
+                producer.produce(toMessage(3));
+                producer.flush();
+            }
+            
+            // The expired message never shows up:
+            assertEquals(3, toIndex(consumer.consume()));
+        }
+    }
+    
+    /**
+     * Schedules a timer recording the tick it runs at.
+     */
+    private AtomicLong schedule(long delayTicks) {
+        AtomicLong runTick = new AtomicLong(-1L);
+        wheel.schedule(ticksToMillis(delayTicks),
+                       () -> runTick.set(currentTick));
+        return runTick;
+    }
+    
+    /**
+     * Advances the clock a tick at a time, running the due tasks after
+     * each.
+     */
+    private void tickUntil(long tick) {
+        while (currentTick < tick) {
+            advanceClock(1L);
+            wheel.tick();
+        }
+    }
+    
+    private void advanceClock(long ticks) {
+        clockNanos.addAndGet(ticks * TICK_NANOS);
+        currentTick += ticks;
+    }
+    
+    private static long ticksToMillis(long ticks) {
+        return ticks * MagicConstants.TIMER_TICK_MILLISECONDS;
+    }
+}
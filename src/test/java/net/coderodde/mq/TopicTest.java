@@ -0,0 +1,199 @@
+package net.coderodde.mq;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import static net.coderodde.mq.TestMessages.toIndex;
+import static net.coderodde.mq.TestMessages.toMessage;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that a topic hands each published frame to every subscriber
+ * without copying it, that a lagging subscriber loses only its own oldest
+ * frames, and that a frame buffer goes back to the pool once the last
+ * reference to it is released.
+ * 
+ * @author Rodion "rodde" Efremov
+ * @version 1.6 (Feb 26, 2019)
+ */
+public class TopicTest {
+    
+    private final MemoryBudget memoryBudget = new MemoryBudget();
+    private MessageQueueHandler handler;
+    
+    @After
+    public void halt() throws InterruptedException {
+        if (handler != null) {
+            handler.requestHalt();
+            handler.join(5000L);
+        }
+    }
+    
+    @Test
+    public void sharesEachFrameWithEverySubscriber() throws IOException {
+        Topic topic = newTopic(new MessageQueueConfiguration());
+        TopicSubscription first = topic.subscribe();
+        TopicSubscription second = topic.subscribe();
+        
+        for (int i = 0; i < 3; i++) {
+            publish(topic, i);
+        }
+        
+        for (int i = 0; i < 3; i++) {
+            SharedFrame frame = first.poll();
+            assertSame(frame, second.poll());
+            assertEquals(i, readIndex(frame));
+            frame.release();
+            frame.release();
+        }
+        
+        assertNull(first.poll());
+        assertNull(second.poll());
+        assertEquals(0L, memoryBudget.getUsedBytes());
+    }
+    
+    @Test
+    public void laggingSubscriberDropsOnlyItsOwnOldestFrames()
+            throws IOException {
+        MessageQueueConfiguration configuration =
+                new MessageQueueConfiguration();
+        configuration.setMaxMessages(4L);
+        Topic topic = newTopic(configuration);
+        TopicSubscription fast = topic.subscribe();
+        TopicSubscription slow = topic.subscribe();
+        
+        for (int i = 0; i < 10; i++) {
+            publish(topic, i);
+            SharedFrame frame = fast.poll();
+            assertEquals(i, readIndex(frame));
+            frame.release();
+        }
+        
+        assertEquals(0L, fast.getDroppedMessageCount());
+        assertEquals(6L, slow.getDroppedMessageCount());
+        
+        for (int i = 6; i < 10; i++) {
+            SharedFrame frame = slow.poll();
+            assertEquals(i, readIndex(frame));
+            frame.release();
+        }
+        
+        assertNull(slow.poll());
+        assertEquals(0L, memoryBudget.getUsedBytes());
+    }
+    
+    @Test
+    public void recyclesBufferOnLastRelease() throws IOException {
+        Topic topic = newTopic(new MessageQueueConfiguration());
+        TopicSubscription first = topic.subscribe();
+        TopicSubscription second = topic.subscribe();
+        
+        publish(topic, 0);
+        SharedFrame frame = first.poll();
+        ByteBuffer view = frame.duplicate();
+        assertSame(frame, second.poll());
+        frame.release();
+        
+        // Still referenced by the second subscriber, so not reused:
+        publish(topic, 1);
+        assertEquals(0, readIndex(view));
+        assertEquals(1, readIndex(first.poll()));
+        assertEquals(1, readIndex(second.poll()));
+        
+        frame.release();
+        
+        // Now the next frame of the same size goes into the same buffer:
+        publish(topic, 2);
+        assertEquals(2, readIndex(view));
+    }
+    
+    @Test
+    public void closedSubscriptionReleasesItsBacklog() throws IOException {
+        Topic topic = newTopic(new MessageQueueConfiguration());
+        TopicSubscription subscription = topic.subscribe();
+        
+        for (int i = 0; i < 3; i++) {
+            publish(topic, i);
+        }
+        
+        subscription.close();
+        publish(topic, 3);
+        
+        assertNull(subscription.poll());
+        assertEquals(0, topic.getSubscriberCount());
+        assertEquals(0L, memoryBudget.getUsedBytes());
+    }
+    
+    @Test(timeout = 20000L)
+    public void fansOutInBlockingMode() throws Exception {
+        fanOut(MessageQueueHandler.Mode.BLOCKING);
+    }
+    
+    @Test(timeout = 20000L)
+    public void fansOutInNonBlockingMode() throws Exception {
+        fanOut(MessageQueueHandler.Mode.NON_BLOCKING);
+    }
+    
+    /**
+     * Publishes through a handler to two subscribers, each of which must
+     * receive every message in order.
+     */
+    private void fanOut(MessageQueueHandler.Mode mode) throws Exception {
+        int portNumber = BlockingRoundTripTest.getFreePortNumber();
+        int messageCount = 1000;
+        handler = new MessageQueueHandler(portNumber, mode);
+        handler.start();
+        
+        try (MessageQueueConsumer first =
+                MessageQueueConsumer.forTopic("t", "localhost", portNumber);
+             MessageQueueConsumer second =
+                MessageQueueConsumer.forTopic("t", "localhost", portNumber)) {
+            // The frames published before a subscription never reach it:
+            while (handler.getTopic("t").getSubscriberCount() < 2) {
+                Thread.sleep(10L);
+            }
+            
+            try (MessageQueueProducer publisher =
+                    MessageQueueProducer.forTopic("t",
+                                                  "localhost",
+                                                  portNumber)) {
+                for (int i = 0; i < messageCount; i++) {
+                    publisher.produce(toMessage(i));
+                }
+                
+                publisher.flush();
+            }
+            
+            for (int i = 0; i < messageCount; i++) {
+                assertEquals(i, toIndex(first.consume()));
+                assertEquals(i, toIndex(second.consume()));
+            }
+        }
+    }
+    
+    private Topic newTopic(MessageQueueConfiguration configuration) {
+        return new Topic("t", configuration, memoryBudget);
+    }
+    
+    private static void publish(Topic topic, int index) throws IOException {
+        ByteBuffer buffer =
+                Frame.encodeMessages(Collections.singletonList(
+                        toMessage(index)));
+        topic.publish(Frame.decode(buffer));
+    }
+    
+    private static int readIndex(SharedFrame frame) throws IOException {
+        return readIndex(frame.duplicate());
+    }
+    
+    private static int readIndex(ByteBuffer view) throws IOException {
+        List<byte[]> messages = Frame.decode(view.duplicate()).getMessages();
+        assertEquals(1, messages.size());
+        return toIndex(messages.get(0));
+    }
+}